@@ -0,0 +1,87 @@
+package com.example.android.nearbybeacons;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Attachment lookups for beacons as BeaconObserverService makes them,
+ * each beacon having one small attachment cached.
+ *
+ * Lookups cycle through the beacons. With 64 they all stay in the
+ * in-memory LRU; with 1024 there are more than it holds, so every
+ * lookup reads its file back, as after a process restart. Scores are
+ * microseconds per lookup; either is far below the network round trip
+ * a miss costs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AttachmentCacheBenchmark {
+
+    private static final String TYPE = "beacons/offer";
+    private static final long HOUR = 60 * 60 * 1000;
+    private static final int MEMORY_ENTRIES = 256;
+
+    @Param({"64", "1024"})
+    public int beacons;
+
+    private byte[][] mIds;
+    private File mDirectory;
+    private AttachmentCache mCache;
+    private int mNext;
+
+    @Setup
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("attachments", "");
+        if (!mDirectory.delete() || !mDirectory.mkdir()) {
+            throw new IOException("Cannot create " + mDirectory);
+        }
+        mCache = new AttachmentCache(mDirectory, MEMORY_ENTRIES, beacons * 2, HOUR, HOUR,
+                HOUR);
+        mIds = new byte[beacons][];
+        for (int i = 0; i < beacons; i++) {
+            mIds[i] = ScanTraces.advertisedId(i);
+            List<byte[]> attachment = Collections.singletonList(
+                    ScanTraces.offerContent("Section " + i, "10% off today"));
+            mCache.put(mIds[i], TYPE, attachment);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+        System.out.println(mCache);
+    }
+
+    @Benchmark
+    public AttachmentCache.Entry lookup() {
+        int next = mNext++;
+        if (mNext == beacons) mNext = 0;
+        return mCache.get(mIds[next], TYPE);
+    }
+}
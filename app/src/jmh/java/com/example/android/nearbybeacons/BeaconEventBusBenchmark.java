@@ -0,0 +1,139 @@
+package com.example.android.nearbybeacons;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Beacon updates from a few hundred beacons published to a
+ * BeaconEventBus and fanned out to N subscribers.
+ *
+ * With "direct" delivery the subscribers run on the publishing thread,
+ * so the score is the bus's own cost. With "async" they run on a shared
+ * pool of two threads, receiving in batches, and each round waits for
+ * every subscriber to have everything, as the UI and the services would
+ * consume. "conflated" is async with every subscriber conflating per
+ * beacon, so the further one falls behind the fewer events it handles.
+ *
+ * Scores are nanoseconds per published event; how many of them each
+ * subscriber received is printed at the end of the trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BeaconEventBusBenchmark {
+
+    private static final int EVENTS = 1 << 12;
+    private static final int BEACONS = 256;
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            task.run();
+        }
+    };
+
+    @Param({"1", "4", "16"})
+    public int subscribers;
+
+    @Param({"direct", "async", "conflated"})
+    public String delivery;
+
+    private final BeaconEvent[] mEvents = new BeaconEvent[EVENTS];
+    // Ends each round; found events are never conflated, so it arrives last
+    private final BeaconEvent mMarker = new BeaconEvent(BeaconEvent.FOUND,
+            ScanTraces.NAMESPACE_HIGH, 0, 0, 0, 0, null);
+    private ExecutorService mPool;
+    private BeaconEventBus mBus;
+    private Counter[] mCounters;
+    private long mRounds;
+
+    /* Counts the rounds it has received, requesting everything up front */
+    private static class Counter implements BeaconFlow.Subscriber<BeaconEvent> {
+        volatile long rounds;
+        long received;
+
+        @Override
+        public void onSubscribe(BeaconFlow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(BeaconEvent event) {
+            if (event.type == BeaconEvent.FOUND) {
+                rounds++;
+            } else {
+                received++;
+            }
+        }
+
+        @Override
+        public void onError(Throwable error) {
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        for (int i = 0; i < EVENTS; i++) {
+            mEvents[i] = new BeaconEvent(BeaconEvent.UPDATED, ScanTraces.NAMESPACE_HIGH,
+                    ScanTraces.idLow(i % BEACONS), i, -60, 1, null);
+        }
+        mPool = Executors.newFixedThreadPool(2);
+        mBus = new BeaconEventBus();
+        mCounters = new Counter[subscribers];
+        Executor executor = "direct".equals(delivery) ? DIRECT : mPool;
+        for (int i = 0; i < subscribers; i++) {
+            mCounters[i] = new Counter();
+            BeaconEventBus.Stream stream = mBus
+                    .stream(BeaconEvent.UPDATED | BeaconEvent.FOUND, executor)
+                    .buffer(EVENTS * 2);
+            if ("conflated".equals(delivery)) stream = stream.conflate();
+            stream.subscribe(mCounters[i]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mPool.shutdown();
+        System.out.println(mCounters[0].received + " of " + mRounds * EVENTS
+                + " events received per subscriber");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public void publish() {
+        for (BeaconEvent event : mEvents) {
+            mBus.publish(event);
+        }
+        mBus.publish(mMarker);
+        mRounds++;
+        for (Counter counter : mCounters) {
+            while (counter.rounds < mRounds) {
+                Thread.yield();
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.example.android.nearbybeacons;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BeaconRegistry operations with 10k, 100k and 1M Eddystone ids
+ * registered, next to a HashMap keyed by the id as a hex string, the
+ * way beacons used to be tracked.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class BeaconRegistryBenchmark {
+
+    // Lookups cycle through this many precomputed ids
+    private static final int PROBES = 4096;
+
+    @Param({"10000", "100000", "1000000"})
+    public int size;
+
+    private BeaconRegistry mRegistry;
+    private HashMap<String, Boolean> mStrings;
+    private long[] mHits;
+    private long[] mMisses;
+    private String[] mHitStrings;
+    private int mNext;
+    private long mChurn;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(5);
+        mRegistry = new BeaconRegistry();
+        mStrings = new HashMap<>();
+        long[] ids = new long[size];
+        for (int i = 0; i < size; i++) {
+            ids[i] = random.nextLong();
+            mRegistry.add(ScanTraces.NAMESPACE_HIGH, ids[i]);
+            mStrings.put(hex(ScanTraces.NAMESPACE_HIGH, ids[i]), Boolean.FALSE);
+        }
+        mHits = new long[PROBES];
+        mMisses = new long[PROBES];
+        mHitStrings = new String[PROBES];
+        for (int i = 0; i < PROBES; i++) {
+            mHits[i] = ids[random.nextInt(size)];
+            mMisses[i] = random.nextLong();
+            mHitStrings[i] = hex(ScanTraces.NAMESPACE_HIGH, mHits[i]);
+        }
+    }
+
+    @Benchmark
+    public int findHit() {
+        return mRegistry.find(ScanTraces.NAMESPACE_HIGH, mHits[mNext++ & (PROBES - 1)]);
+    }
+
+    @Benchmark
+    public int findMiss() {
+        return mRegistry.find(ScanTraces.NAMESPACE_HIGH, mMisses[mNext++ & (PROBES - 1)]);
+    }
+
+    /** A new beacon arrives and another is lost, at constant size */
+    @Benchmark
+    public int addRemove() {
+        int handle = mRegistry.add(0, ++mChurn);
+        mRegistry.remove(handle);
+        return handle;
+    }
+
+    /** What the notification needs on every new beacon */
+    @Benchmark
+    public int unreadCount() {
+        return mRegistry.getUnreadCount();
+    }
+
+    @Benchmark
+    public Boolean stringMapFindHit() {
+        return mStrings.get(mHitStrings[mNext++ & (PROBES - 1)]);
+    }
+
+    private static String hex(long high, long low) {
+        StringBuilder sb = new StringBuilder(32);
+        EddystoneFrame.appendHex(sb, high, 16);
+        EddystoneFrame.appendHex(sb, low, 16);
+        return sb.toString();
+    }
+}
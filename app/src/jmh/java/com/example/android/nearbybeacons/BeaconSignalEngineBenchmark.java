@@ -0,0 +1,67 @@
+package com.example.android.nearbybeacons;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RSSI samples spread at random across up to 10k beacons, each one a
+ * Kalman step, a distance estimate and a debounced zone check.
+ *
+ * Scores are samples per second, and should stay well above a million;
+ * -prof gc should show no allocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BeaconSignalEngineBenchmark {
+
+    private static final int SAMPLES = 1 << 20;
+
+    @Param({"100", "10000"})
+    public int beacons;
+
+    private int[] mHandles;
+    private int[] mRssi;
+    private BeaconSignalEngine mEngine;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        mHandles = new int[SAMPLES];
+        mRssi = new int[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            int handle = random.nextInt(beacons);
+            mHandles[i] = handle;
+            //Each beacon has its own distance, plus noise
+            mRssi[i] = -50 - handle % 40 - random.nextInt(12);
+        }
+        mEngine = new BeaconSignalEngine(0.5f, 16f, 2.5f, 3);
+        mEngine.addSample(beacons - 1, -60, ScanTraces.TX_POWER);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public int addSample() {
+        int changes = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            if (mEngine.addSample(mHandles[i], mRssi[i], ScanTraces.TX_POWER)) changes++;
+        }
+        return changes;
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.android.nearbybeacons;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sightings through a DwellAggregator configured as the scanner service
+ * configures it, with a new sighting every 10ms on the simulated clock.
+ * Beacons come in visits of a few minutes with breaks between, so
+ * sessions open and close, windows tumble, and idle handles are
+ * released as they would in a shop.
+ *
+ * Scores are nanoseconds per sighting, the per-window reports included.
+ * Their inverse is how much faster than real time a trace replays at
+ * this density.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DwellAggregatorBenchmark {
+
+    private static final long SESSION_GAP_MS = 30000;
+    private static final long WINDOW_MS = 60000;
+    private static final int SLIDING_WINDOWS = 15;
+    private static final long STEP_MS = 10;
+
+    @Param({"64", "4096"})
+    public int beacons;
+
+    private DwellAggregator mAggregator;
+    private long mNow;
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        mAggregator = new DwellAggregator(SESSION_GAP_MS, WINDOW_MS, SLIDING_WINDOWS, null);
+    }
+
+    @Benchmark
+    public long sighting() {
+        int beacon = mNext++;
+        if (mNext == beacons) mNext = 0;
+        mNow += STEP_MS;
+        //Each beacon is visited for three minutes out of every five
+        if ((mNow / WINDOW_MS + beacon) % 5 < 3) {
+            mAggregator.onSighting(beacon, mNow);
+        } else {
+            mAggregator.advance(mNow);
+        }
+        return mNow;
+    }
+}
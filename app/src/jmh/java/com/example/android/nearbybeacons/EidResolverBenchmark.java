@@ -0,0 +1,112 @@
+package com.example.android.nearbybeacons;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fleet of EID beacons, rotating every 1024 seconds, registered with
+ * an EidResolver.
+ *
+ * {@code build} and {@code buildInline} register the fleet and compute
+ * its first table, on a fork-join pool and on the calling thread, in
+ * milliseconds per fleet. {@code rollover} is the refresh when every
+ * beacon's epoch has rolled over at once, the worst case after the
+ * first. {@code resolve} is nanoseconds per observed EID, of which one
+ * in four is not ours.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EidResolverBenchmark {
+
+    private static final int K = 10;
+    private static final long NOW = 1700000000000L;
+    private static final long EPOCH_MILLIS = 1000L << K;
+    private static final int OBSERVED = 1 << 12;
+
+    @Param({"1000", "100000"})
+    public int beacons;
+
+    private byte[][] mKeys;
+    private final long[] mObserved = new long[OBSERVED];
+    private ForkJoinPool mPool;
+    private EidResolver mResolver;
+    private long mNow;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        mPool = new ForkJoinPool();
+        mKeys = new byte[beacons][];
+        for (int i = 0; i < beacons; i++) {
+            mKeys[i] = ScanTraces.identityKey(i);
+        }
+        mResolver = build(mPool);
+        mNow = NOW;
+
+        Random random = new Random(42);
+        for (int i = 0; i < OBSERVED; i++) {
+            mObserved[i] = random.nextInt(4) == 0 ? random.nextLong()
+                    : ScanTraces.eid(mKeys[random.nextInt(beacons)], K, NOW / 1000);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mPool.shutdown();
+    }
+
+    @Benchmark
+    public EidResolver build() {
+        return build(mPool);
+    }
+
+    @Benchmark
+    public EidResolver buildInline() {
+        return build(null);
+    }
+
+    @Benchmark
+    public int rollover() {
+        mNow += EPOCH_MILLIS;
+        return mResolver.refresh(mNow);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OBSERVED)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int resolve() {
+        int found = 0;
+        for (long eid : mObserved) {
+            if (mResolver.resolve(eid) != EidResolver.NOT_FOUND) found++;
+        }
+        return found;
+    }
+
+    private EidResolver build(ForkJoinPool pool) {
+        EidResolver resolver = new EidResolver(pool);
+        for (int i = 0; i < beacons; i++) {
+            resolver.register(mKeys[i], K, 0, ScanTraces.NAMESPACE_HIGH, ScanTraces.idLow(i));
+        }
+        resolver.refresh(NOW);
+        return resolver;
+    }
+}
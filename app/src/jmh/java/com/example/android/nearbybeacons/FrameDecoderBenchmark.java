@@ -0,0 +1,59 @@
+package com.example.android.nearbybeacons;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding one frame of each type from a raw scan record into a reused
+ * EddystoneFrame. Run with -prof gc: gc.alloc.rate.norm should be 0
+ * bytes per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameDecoderBenchmark {
+
+    private final EddystoneFrame mFrame = new EddystoneFrame();
+    private final byte[] mUid = ScanTraces.uidRecord(ScanTraces.NAMESPACE_HIGH,
+            ScanTraces.idLow(1), ScanTraces.TX_POWER);
+    private final byte[] mTlm = ScanTraces.tlmRecord(2900, 0x1780, 1000, 100);
+    private final byte[] mUrl = ScanTraces.urlRecord(1,
+            new byte[]{'e', 'x', 'a', 'm', 'p', 'l', 'e', 0x00}, ScanTraces.TX_POWER);
+    private final byte[] mEid = ScanTraces.eidRecord(0x1122334455667788L, ScanTraces.TX_POWER);
+
+    @Benchmark
+    public long uid() {
+        EddystoneFrameDecoder.decodeScanRecord(mUid, mFrame);
+        return mFrame.idLow;
+    }
+
+    @Benchmark
+    public long tlm() {
+        EddystoneFrameDecoder.decodeScanRecord(mTlm, mFrame);
+        return mFrame.advertisingCount;
+    }
+
+    @Benchmark
+    public int url() {
+        EddystoneFrameDecoder.decodeScanRecord(mUrl, mFrame);
+        return mFrame.urlLength;
+    }
+
+    @Benchmark
+    public long eid() {
+        EddystoneFrameDecoder.decodeScanRecord(mEid, mFrame);
+        return mFrame.ephemeralId;
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.android.nearbybeacons;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to diff the displayed list against a new snapshot of the model,
+ * as BatchedListModel does on its background thread: after a burst that
+ * touched one item in a hundred, and after a full reshuffle.
+ *
+ * Scores are microseconds per diff, recording the edits as an Update.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListDiffBenchmark {
+
+    @Param({"1000", "10000", "50000"})
+    public int size;
+
+    private List<Integer> mOld;
+    private List<Integer> mBurst;
+    private List<Integer> mShuffled;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        mOld = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            mOld.add(i);
+        }
+
+        //One percent each of removals, insertions and moves
+        mBurst = new ArrayList<>(mOld);
+        int touched = Math.max(size / 100, 1);
+        for (int i = 0; i < touched; i++) {
+            mBurst.remove(random.nextInt(mBurst.size()));
+            mBurst.add(random.nextInt(mBurst.size() + 1), size + i);
+            mBurst.add(random.nextInt(mBurst.size()), mBurst.remove(random.nextInt(mBurst.size())));
+        }
+
+        mShuffled = new ArrayList<>(mOld);
+        Collections.shuffle(mShuffled, random);
+    }
+
+    @Benchmark
+    public int burst() {
+        return diff(mBurst);
+    }
+
+    @Benchmark
+    public int shuffle() {
+        return diff(mShuffled);
+    }
+
+    private int diff(List<Integer> items) {
+        BatchedListModel.Update<Integer> update = new BatchedListModel.Update<>(mOld, items);
+        ListDiff.diff(mOld, items, update);
+        return update.getOperationCount();
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.android.nearbybeacons;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the scan path pays per event for its metrics: a counter
+ * increment, a histogram record, and both together as for each scan
+ * result (results counted, processing latency recorded), alone and
+ * with four threads updating the same metrics.
+ *
+ * Scores are nanoseconds per event and must stay below 50. The
+ * contended score only means something on a machine with four cores or
+ * more; with fewer, the threads' time slices add up.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+
+    private static final int EVENTS = 1 << 12;
+
+    private StripedCounter mResults;
+    private ConcurrentLogHistogram mLatency;
+    private final long[] mLatencies = new long[EVENTS];
+
+    @Setup
+    public void setUp() {
+        Metrics metrics = new Metrics();
+        mResults = metrics.counter("scan.results");
+        mLatency = metrics.histogram("scan.processing_latency_ms");
+        Random random = new Random(42);
+        for (int i = 0; i < EVENTS; i++) {
+            //Milliseconds, mostly small with a long tail
+            mLatencies[i] = (long) Math.exp(random.nextDouble() * 8);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public void increment() {
+        for (int i = 0; i < EVENTS; i++) {
+            mResults.increment();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public void record() {
+        for (int i = 0; i < EVENTS; i++) {
+            mLatency.record(mLatencies[i]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public void scanResult() {
+        for (int i = 0; i < EVENTS; i++) {
+            mResults.increment();
+            mLatency.record(mLatencies[i]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    @Threads(4)
+    public void scanResultContended() {
+        scanResult();
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.android.nearbybeacons;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of matching a UID frame against a compiled NamespaceFilterSet as
+ * the number of namespaces grows, next to a scan of every namespace in
+ * turn. Half the frames match, split between namespaces with instance
+ * prefix rules and namespaces without.
+ *
+ * Scores are nanoseconds per frame; the compiled set should stay flat.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NamespaceFilterBenchmark {
+
+    private static final int FRAMES = 1 << 12;
+
+    @Param({"1", "16", "256", "4096"})
+    public int namespaces;
+
+    private NamespaceFilterSet mFilter;
+    private long[] mNamespaceHigh;
+    private long[] mNamespaceLow;
+    private final long[] mIdHigh = new long[FRAMES];
+    private final long[] mIdLow = new long[FRAMES];
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        String[] rules = new String[namespaces];
+        mNamespaceHigh = new long[namespaces];
+        mNamespaceLow = new long[namespaces];
+        for (int i = 0; i < namespaces; i++) {
+            mNamespaceHigh[i] = random.nextLong();
+            mNamespaceLow[i] = random.nextInt(0x10000);
+            //Every other namespace is narrowed to an instance prefix
+            rules[i] = String.format("%016x%04x", mNamespaceHigh[i], mNamespaceLow[i])
+                    + (i % 2 == 1 ? "/00" : "");
+        }
+        mFilter = NamespaceFilterSet.compile(rules);
+
+        for (int f = 0; f < FRAMES; f++) {
+            int i = random.nextInt(namespaces);
+            boolean hit = random.nextBoolean();
+            mIdHigh[f] = hit ? mNamespaceHigh[i] : random.nextLong();
+            mIdLow[f] = mNamespaceLow[i] << 48 | (random.nextLong() & 0xFFFFFFFFFFL);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int compiled() {
+        int matched = 0;
+        for (int f = 0; f < FRAMES; f++) {
+            if (mFilter.matches(mIdHigh[f], mIdLow[f])) matched++;
+        }
+        return matched;
+    }
+
+    /** Every namespace compared in turn, without instance rules */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int linear() {
+        int matched = 0;
+        for (int f = 0; f < FRAMES; f++) {
+            long namespaceLow = mIdLow[f] >>> 48;
+            for (int i = 0; i < mNamespaceHigh.length; i++) {
+                if (mNamespaceHigh[i] == mIdHigh[f] && mNamespaceLow[i] == namespaceLow) {
+                    matched++;
+                    break;
+                }
+            }
+        }
+        return matched;
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.android.nearbybeacons;
+
+import android.util.Base64;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads getforobserved responses of 1KB to 1MB with ObservedCodec's
+ * streaming decoder, and with the path BeaconObserverService used
+ * before it: read every line into a StringBuilder, build the JSONObject
+ * tree, then decode each attachment into a String.
+ *
+ * The old parseAttachments only looked at the first beacon; here it
+ * walks all of them, so both paths return the same attachments. Scores
+ * are responses per second; run with -prof gc for allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ObservedCodecBenchmark {
+
+    @Param({"1024", "16384", "262144", "1048576"})
+    public int size;
+
+    private byte[] mResponse;
+
+    @Setup
+    public void setUp() {
+        mResponse = ScanTraces.observedResponse(size);
+    }
+
+    /** ObservedCodec.readResponse, as BeaconObserverService reads responses */
+    @Benchmark
+    public int streaming() throws IOException {
+        return ObservedCodec.readResponse(new ByteArrayInputStream(mResponse)).size();
+    }
+
+    /** The whole body as a String, then the org.json tree */
+    @Benchmark
+    public int tree() throws IOException, JSONException {
+        StringBuilder sb = new StringBuilder();
+        BufferedReader br = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(mResponse), "UTF-8"));
+        String line;
+        while ((line = br.readLine()) != null) {
+            sb.append(line + "\n");
+        }
+        br.close();
+
+        return parseAttachments(sb.toString()).size();
+    }
+
+    private static List<String> parseAttachments(String response) throws JSONException {
+        List<String> parsed = new ArrayList<>();
+        JSONArray beacons = new JSONObject(response).getJSONArray("beacons");
+        for (int b = 0; b < beacons.length(); b++) {
+            JSONArray attachments = beacons.getJSONObject(b).getJSONArray("attachments");
+            for (int i = 0; i < attachments.length(); i++) {
+                String encoded = attachments.getJSONObject(i).getString("data");
+                parsed.add(new String(Base64.decode(encoded, Base64.NO_WRAP)));
+            }
+        }
+        return parsed;
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.android.nearbybeacons;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sightings of simulated beacons going through ObserverEngine as
+ * BeaconObserverService sends them: LOOKUP_THREADS threads, a limit per
+ * namespace, and lookups that finish later from a batch callback, as the
+ * service's batched attachment fetch does.
+ *
+ * Each invocation is a burst of sightings spread over the fleet, after
+ * which the pending batch completes. Sightings of a beacon already in
+ * flight join its lookup, so smaller fleets share more. Scores are
+ * microseconds per sighting, to be compared against the scan interval.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ObserverEngineBenchmark {
+
+    private static final int THREADS = 8;
+    private static final int NAMESPACE_LIMIT = 4;
+    private static final int NAMESPACES = 16;
+    private static final int SIGHTINGS = 4096;
+
+    @Param({"1000", "10000"})
+    public int beacons;
+
+    private ExecutorService mExecutor;
+    private ObserverEngine<String> mEngine;
+    private String[] mKeys;
+    private String[] mNamespaces;
+    private final List<ObserverEngine.Completion<String>> mBatch = new ArrayList<>();
+    private final ObserverEngine.Task<String> mTask = new ObserverEngine.Task<String>() {
+        @Override
+        public void start(ObserverEngine.Completion<String> completion) {
+            synchronized (mBatch) {
+                mBatch.add(completion);
+            }
+        }
+    };
+    private final List<Future<String>> mFutures = new ArrayList<>(SIGHTINGS);
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        mExecutor = Executors.newFixedThreadPool(THREADS);
+        mEngine = new ObserverEngine<>(mExecutor, NAMESPACE_LIMIT, null);
+        mKeys = new String[beacons];
+        mNamespaces = new String[beacons];
+        for (int i = 0; i < beacons; i++) {
+            mKeys[i] = "beacon " + i;
+            mNamespaces[i] = "namespace " + i % NAMESPACES;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mExecutor.shutdownNow();
+        System.out.println(mEngine);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIGHTINGS)
+    public int sightings() throws InterruptedException, ExecutionException {
+        mFutures.clear();
+        for (int i = 0; i < SIGHTINGS; i++) {
+            int beacon = mNext;
+            mNext = (mNext + 7) % beacons;
+            mFutures.add(mEngine.submit(mKeys[beacon], mNamespaces[beacon], mTask));
+        }
+        //Every lookup started joins the batch; complete it until none are left in flight
+        while (mEngine.getInFlightCount() > 0) {
+            List<ObserverEngine.Completion<String>> batch;
+            synchronized (mBatch) {
+                batch = new ArrayList<>(mBatch);
+                mBatch.clear();
+            }
+            for (ObserverEngine.Completion<String> completion : batch) {
+                completion.complete("attachments");
+            }
+            if (batch.isEmpty()) Thread.yield();
+        }
+        int found = 0;
+        for (Future<String> future : mFutures) {
+            if (future.get() != null) found++;
+        }
+        return found;
+    }
+}
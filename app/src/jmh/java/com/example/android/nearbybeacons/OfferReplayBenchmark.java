@@ -0,0 +1,105 @@
+package com.example.android.nearbybeacons;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a scan trace through BeaconService's OfferBeacon path: each
+ * UID sighting delivers the Nearby message attached to that beacon, as
+ * a fresh content array the way Nearby hands them over. The message is
+ * turned into an OfferBeacon, checked against the beacons already
+ * detected, and a notification update is counted for each new one.
+ *
+ * Scores are messages per second; compare the interned path with a
+ * parse per message, and run with -prof gc for allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OfferReplayBenchmark {
+
+    private static final int RECORDS = 50000;
+
+    @Param({"64", "4096"})
+    public int beacons;
+
+    private byte[] mTrace;
+    private final EddystoneFrame mFrame = new EddystoneFrame();
+    // Message content by beacon instance
+    private byte[][] mContents;
+    private OfferBeaconPool mPool;
+    private final HashSet<OfferBeacon> mDetected = new HashSet<>();
+    private long mNotifications;
+    private boolean mInterned;
+
+    private final ScanTraceReader.Visitor mMessages = new ScanTraceReader.Visitor() {
+        @Override
+        public void onScanResult(long timestampNanos, long address, int rssi,
+                                 byte[] scanRecord, int length) {
+            if (!EddystoneFrameDecoder.decodeScanRecord(scanRecord, length, mFrame)) return;
+            if (mFrame.type != EddystoneFrame.TYPE_UID) return;
+
+            byte[] content = mContents[ScanTraces.instanceOf(mFrame.idLow)].clone();
+            OfferBeacon beacon = mInterned ? mPool.get(content) : new OfferBeacon(content);
+            if (mDetected.add(beacon)) {
+                mNotifications++;
+            }
+        }
+    };
+
+    @Setup
+    public void setUp() throws IOException {
+        mTrace = ScanTraces.trace(beacons, RECORDS, 42);
+        mContents = new byte[beacons][];
+        for (int i = 0; i < beacons; i++) {
+            mContents[i] = ScanTraces.offerContent("Section " + i, "Offer " + i);
+        }
+        //Sized like BeaconService's pool
+        mPool = new OfferBeaconPool(512);
+    }
+
+    /** OfferBeacon.from, as BeaconService receives messages */
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public long interned() throws IOException {
+        mInterned = true;
+        return replay();
+    }
+
+    /** A new parse for every message, as before interning */
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public long parsed() throws IOException {
+        mInterned = false;
+        return replay();
+    }
+
+    private long replay() throws IOException {
+        //Every replay finds the beacons again, as after the service restarts
+        mDetected.clear();
+        ScanTraceReader reader = new ScanTraceReader(new ByteArrayInputStream(mTrace));
+        try {
+            return reader.replay(mMessages) + mNotifications;
+        } finally {
+            reader.close();
+        }
+    }
+}
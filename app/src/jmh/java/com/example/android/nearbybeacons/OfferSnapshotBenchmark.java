@@ -0,0 +1,102 @@
+package com.example.android.nearbybeacons;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The offer list at launch, cold and warm. {@code cold} builds it from
+ * the Nearby messages as they would arrive, parsing each one's JSON,
+ * which only starts once Play Services has connected and subscribed.
+ * {@code warm} is MainActivity's restore: map the snapshot saved at the
+ * last stop and decode every offer. {@code firstScreen} maps it and
+ * decodes only the offers a phone screen shows, which the format allows
+ * without reading the rest. {@code save} is the background write at
+ * stop.
+ *
+ * Scores are microseconds per launch or save.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OfferSnapshotBenchmark {
+
+    private static final int SCREEN = 12;
+
+    @Param({"50", "5000"})
+    public int offers;
+
+    private byte[][] mMessages;
+    private List<OfferBeacon> mOffers;
+    private File mFile;
+    private File mSaveFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        mMessages = new byte[offers][];
+        mOffers = new ArrayList<>(offers);
+        for (int i = 0; i < offers; i++) {
+            mMessages[i] = ScanTraces.offerContent("Section " + i,
+                    "Today only: " + (i % 50 + 5) + "% off everything in aisle " + i);
+            mOffers.add(new OfferBeacon(mMessages[i]));
+        }
+        mFile = File.createTempFile("offers", ".snapshot");
+        mSaveFile = File.createTempFile("offers", ".snapshot");
+        OfferSnapshot.write(mFile, mOffers);
+        System.out.println(OfferSnapshot.open(mFile));
+    }
+
+    @TearDown
+    public void tearDown() {
+        mFile.delete();
+        mSaveFile.delete();
+    }
+
+    @Benchmark
+    public List<OfferBeacon> cold() {
+        List<OfferBeacon> list = new ArrayList<>(offers);
+        for (byte[] message : mMessages) {
+            list.add(new OfferBeacon(message));
+        }
+        return list;
+    }
+
+    @Benchmark
+    public List<OfferBeacon> warm() throws IOException {
+        return OfferSnapshot.open(mFile).getAll();
+    }
+
+    @Benchmark
+    public List<OfferBeacon> firstScreen() throws IOException {
+        OfferSnapshot snapshot = OfferSnapshot.open(mFile);
+        int shown = Math.min(SCREEN, snapshot.size());
+        List<OfferBeacon> list = new ArrayList<>(shown);
+        for (int i = 0; i < shown; i++) {
+            list.add(snapshot.get(i));
+        }
+        return list;
+    }
+
+    @Benchmark
+    public void save() throws IOException {
+        OfferSnapshot.write(mSaveFile, mOffers);
+    }
+}
@@ -0,0 +1,141 @@
+package com.example.android.nearbybeacons;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a scan trace through the scanner's parse, dedup and notify
+ * path: decode the raw scan record, check the namespace filter, find or
+ * register the beacon, smooth its signal, push back its expiry, and
+ * count the notification updates the scanner would post.
+ *
+ * Scores are scan results per second. Run with -prof gc for the
+ * allocation rate, which should stay near zero once every beacon has
+ * been registered.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanReplayBenchmark {
+
+    private static final int RECORDS = 100000;
+
+    @Param({"64", "4096"})
+    public int beacons;
+
+    private byte[] mTrace;
+    private final EddystoneFrame mFrame = new EddystoneFrame();
+    private NamespaceFilterSet mFilter;
+    private BeaconRegistry mRegistry;
+    private BeaconSignalEngine mSignalEngine;
+    private ExpiryWheel mExpiryWheel;
+    // Replays continue the clock of the previous one, so the wheel never goes back
+    private long mClockOffset;
+    private long mTraceMillis;
+    private int mLastUnread;
+    private long mNotifications;
+
+    private final ExpiryWheel.Listener mExpiryListener = new ExpiryWheel.Listener() {
+        @Override
+        public void onLost(int handle) {
+            mRegistry.remove(handle);
+            mSignalEngine.reset(handle);
+        }
+    };
+
+    private final ScanTraceReader.Visitor mPipeline = new ScanTraceReader.Visitor() {
+        @Override
+        public void onScanResult(long timestampNanos, long address, int rssi,
+                                 byte[] scanRecord, int length) {
+            if (!EddystoneFrameDecoder.decodeScanRecord(scanRecord, length, mFrame)) return;
+            if (mFrame.type != EddystoneFrame.TYPE_UID) return;
+            if (!mFilter.matches(mFrame.idHigh, mFrame.idLow)) return;
+
+            long now = mClockOffset + timestampNanos / 1000000;
+            int handle = mRegistry.find(mFrame.idHigh, mFrame.idLow);
+            boolean isNew = handle == BeaconRegistry.NOT_FOUND;
+            if (isNew) {
+                handle = mRegistry.add(mFrame.idHigh, mFrame.idLow);
+                mSignalEngine.reset(handle);
+            }
+            if (mSignalEngine.addSample(handle, rssi, mFrame.txPower) || isNew) {
+                notifyUnread();
+            }
+            mExpiryWheel.touch(handle, now);
+            if (mExpiryWheel.advance(now, mExpiryListener) > 0) {
+                notifyUnread();
+            }
+        }
+    };
+
+    private final ScanTraceReader.Visitor mDecodeOnly = new ScanTraceReader.Visitor() {
+        @Override
+        public void onScanResult(long timestampNanos, long address, int rssi,
+                                 byte[] scanRecord, int length) {
+            if (EddystoneFrameDecoder.decodeScanRecord(scanRecord, length, mFrame)) {
+                mNotifications += mFrame.type;
+            }
+        }
+    };
+
+    @Setup
+    public void setUp() throws IOException {
+        mTrace = ScanTraces.trace(beacons, RECORDS, 42);
+        mTraceMillis = RECORDS * ScanTraces.RECORD_INTERVAL_NANOS / 1000000;
+        mFilter = NamespaceFilterSet.compile(new String[]{ScanTraces.NAMESPACE});
+        mRegistry = new BeaconRegistry();
+        mSignalEngine = new BeaconSignalEngine(0.5f, 16f, 2.5f, 3);
+        mExpiryWheel = new ExpiryWheel(1000, 64, 30000);
+    }
+
+    /** Parse, dedup and notify, as on the scanner's ingestion thread */
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public long uidPipeline() throws IOException {
+        long replayed = replay(mPipeline);
+        mClockOffset += mTraceMillis;
+        return replayed + mNotifications;
+    }
+
+    /** Trace reading and frame decoding alone, the floor for the pipeline */
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public long decodeOnly() throws IOException {
+        return replay(mDecodeOnly) + mNotifications;
+    }
+
+    private long replay(ScanTraceReader.Visitor visitor) throws IOException {
+        ScanTraceReader reader = new ScanTraceReader(new ByteArrayInputStream(mTrace));
+        try {
+            return reader.replay(visitor);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /* What the scanner hands to its NotificationDispatcher */
+    private void notifyUnread() {
+        int unread = mRegistry.getUnreadCount();
+        if (unread != mLastUnread) {
+            mLastUnread = unread;
+            mNotifications++;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.android.nearbybeacons;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sightings appended to a journal in a temporary directory, committed
+ * every batch appends as EddystoneScannerService commits each ingested
+ * batch, with segments sized like the service's. Segments roll over
+ * and are compacted as they would be on the device.
+ *
+ * Scores are appends per second, including their share of the commits;
+ * batches of 64 and up should stay above 100k. A batch of one shows the
+ * cost of committing every sighting on its own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SightingJournalBenchmark {
+
+    private static final int SEGMENT_RECORDS = 32768;
+    private static final int MAX_SEALED = 8;
+    private static final int BEACONS = 1024;
+
+    @Param({"1", "64", "1024"})
+    public int batch;
+
+    private File mDirectory;
+    private SightingJournal mJournal;
+    private long mTimestamp;
+
+    @Setup
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("journal", "");
+        if (!mDirectory.delete() || !mDirectory.mkdir()) {
+            throw new IOException("Cannot create " + mDirectory);
+        }
+        mJournal = new SightingJournal(mDirectory, SEGMENT_RECORDS);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mJournal.close();
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    @Benchmark
+    public void append() throws IOException {
+        long timestamp = mTimestamp++;
+        mJournal.append(timestamp, ScanTraces.NAMESPACE_HIGH,
+                ScanTraces.idLow((int) (timestamp % BEACONS)), -60 - (int) (timestamp & 31),
+                ScanTraces.TX_POWER);
+        if (mJournal.getUncommittedCount() >= batch) {
+            mJournal.commit();
+            if (mJournal.getSealedSegmentCount() > MAX_SEALED) {
+                mJournal.compact();
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.android.nearbybeacons;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A day of TLM samples from a fleet of beacons, each reporting every
+ * ten seconds with jittered intervals, slowly draining batteries that
+ * read a little noisy, and drifting temperatures; one beacon in ten is
+ * below 2.4 V by the end of the day.
+ *
+ * {@code append} is the ingest cost in nanoseconds per sample, into a
+ * store that already holds the day. The queries are the low battery
+ * report over the whole day and a scan of the last hour, in
+ * microseconds per query. The store's bytes per sample are printed once
+ * set up.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TelemetryStoreBenchmark {
+
+    private static final long DAY = 24 * 60 * 60 * 1000;
+    private static final long INTERVAL = 10000;
+    private static final int INGEST = 1 << 12;
+
+    @Param({"100", "1000"})
+    public int beacons;
+
+    private TelemetryStore mStore;
+    private long mEnd;
+    // Per beacon state of the simulated fleet
+    private long[] mTimestamp;
+    private int[] mBattery;
+    private int[] mTemperature;
+    private long[] mCount;
+    private final Random mRandom = new Random(42);
+    private long mMatches;
+
+    private final TelemetryStore.Visitor mCounter = new TelemetryStore.Visitor() {
+        @Override
+        public void onSample(long address, long timestamp, int batteryMillivolts,
+                             int temperature, long advertisingCount, long uptimeTenths) {
+            mMatches++;
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        mStore = new TelemetryStore();
+        mTimestamp = new long[beacons];
+        mBattery = new int[beacons];
+        mTemperature = new int[beacons];
+        mCount = new long[beacons];
+        for (int i = 0; i < beacons; i++) {
+            mTimestamp[i] = mRandom.nextInt((int) INTERVAL);
+            //Every tenth beacon ends the day just under 2.4V
+            mBattery[i] = i % 10 == 0 ? 2500 : 2900 + mRandom.nextInt(200);
+            mTemperature[i] = 0x1400 + mRandom.nextInt(0x400);
+        }
+        long samples = DAY / INTERVAL * beacons;
+        for (long n = 0; n < samples; n++) {
+            appendNext((int) (n % beacons));
+        }
+        mEnd = DAY;
+        System.out.println(mStore);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INGEST)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void append() {
+        for (int n = 0; n < INGEST; n++) {
+            appendNext(mRandom.nextInt(beacons));
+        }
+    }
+
+    @Benchmark
+    public long lowBatteryDay() {
+        mMatches = 0;
+        mStore.scanBatteryBelow(2400, mEnd - DAY, mEnd, mCounter);
+        return mMatches;
+    }
+
+    @Benchmark
+    public long lastHour() {
+        mMatches = 0;
+        mStore.scan(mEnd - 60 * 60 * 1000, mEnd, mCounter);
+        return mMatches;
+    }
+
+    private void appendNext(int beacon) {
+        mTimestamp[beacon] += INTERVAL + mRandom.nextInt(100) - 50;
+        //About 120mV a day for the draining beacons
+        if (beacon % 10 == 0 && mRandom.nextInt(72) == 0) mBattery[beacon]--;
+        if (mRandom.nextInt(30) == 0) mTemperature[beacon] += mRandom.nextInt(3) - 1;
+        mCount[beacon] += 100;
+        mStore.append(beacon, mTimestamp[beacon], mBattery[beacon] + mRandom.nextInt(4),
+                mTemperature[beacon], mCount[beacon], mTimestamp[beacon] / 100);
+    }
+}
@@ -0,0 +1,85 @@
+package com.example.android.nearbybeacons;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Repeat sightings of a few dozen URL beacons, as a scan delivers them,
+ * through the UrlFrameEngine cache next to expanding each frame afresh.
+ * Every URL has been resolved already, so {@code cached} is the hash and
+ * table probe a sighting costs, and {@code expand} is what it would cost
+ * without the cache.
+ *
+ * Scores are nanoseconds per sighting; run with -prof gc to see that the
+ * cached path allocates nothing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UrlFrameEngineBenchmark {
+
+    private static final int BEACONS = 48;
+
+    private final EddystoneFrame[] mFrames = new EddystoneFrame[BEACONS];
+    private UrlFrameEngine mEngine;
+
+    @Setup
+    public void setUp() {
+        mEngine = new UrlFrameEngine(256, Long.MAX_VALUE / 2, Long.MAX_VALUE / 2,
+                new UrlResolver() {
+                    @Override
+                    public String resolve(String url) {
+                        return url;
+                    }
+                },
+                new Executor() {
+                    @Override
+                    public void execute(Runnable task) {
+                        task.run();
+                    }
+                }, 2, Collections.<String>emptyList(), 0, null);
+        for (int i = 0; i < BEACONS; i++) {
+            byte[] encoded = ("goo.gl/x" + i).getBytes();
+            mFrames[i] = new EddystoneFrame();
+            EddystoneFrameDecoder.decodeScanRecord(
+                    ScanTraces.urlRecord(i % 4, encoded, ScanTraces.TX_POWER), mFrames[i]);
+            mEngine.onFrame(mFrames[i], 0, true);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BEACONS)
+    public int cached() {
+        int length = 0;
+        for (EddystoneFrame frame : mFrames) {
+            length += mEngine.onFrame(frame, 1, true).length();
+        }
+        return length;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BEACONS)
+    public int expand() {
+        int length = 0;
+        for (EddystoneFrame frame : mFrames) {
+            length += UrlFrameEngine.expand(frame.urlScheme, frame.url, frame.urlLength).length();
+        }
+        return length;
+    }
+}
@@ -0,0 +1,342 @@
+package com.example.android.nearbybeacons;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Two-level cache of beacon attachments, keyed by the 16-byte advertised
+ * id and the namespaced type they were requested for.
+ *
+ * Entries live in a bounded in-memory LRU and are written through to one
+ * small file per key in a cache directory, so they survive process death.
+ * Each entry is fresh for its TTL, after which it may still be served
+ * while a refresh is in flight (stale-while-revalidate) until its stale
+ * deadline. Beacons with no attachments are cached too, for a shorter
+ * time, so unregistered beacons do not cost a request every sighting.
+ * Files that cannot be read back are deleted and treated as misses.
+ *
+ * The in-memory LRU is guarded by the cache itself, but disk reads and
+ * writes happen outside that lock, under one of a few striped locks by
+ * key, so a slow disk only holds up lookups of keys on the same stripe.
+ *
+ * This class is thread-safe and has no Android dependencies.
+ */
+public class AttachmentCache {
+
+    private static final int FILE_VERSION = 1;
+    // Trim the disk store once per this many writes
+    private static final int TRIM_INTERVAL = 64;
+    private static final int DISK_LOCK_STRIPES = 16;
+
+    /** Cached result for one beacon */
+    public static class Entry {
+        public final List<byte[]> attachments;
+        public final long freshUntil;
+        public final long staleUntil;
+
+        Entry(List<byte[]> attachments, long freshUntil, long staleUntil) {
+            this.attachments = Collections.unmodifiableList(attachments);
+            this.freshUntil = freshUntil;
+            this.staleUntil = staleUntil;
+        }
+
+        public boolean isFresh(long now) {
+            return now < freshUntil;
+        }
+
+        /** True if this beacon has no attachments */
+        public boolean isNegative() {
+            return attachments.isEmpty();
+        }
+    }
+
+    private final File mDirectory;
+    private final int mMaxDiskEntries;
+    private final long mTtlMillis;
+    private final long mNegativeTtlMillis;
+    private final long mStaleMillis;
+    private final LinkedHashMap<String, Entry> mMemory;
+    // Serialize disk access per key, so files and memory change in the same order
+    private final Object[] mDiskLocks = new Object[DISK_LOCK_STRIPES];
+
+    // Statistics, guarded by this
+    private long mHits;
+    private long mStaleHits;
+    private long mNegativeHits;
+    private long mDiskHits;
+    private long mMisses;
+    private long mEvictions;
+    private int mWritesSinceTrim;
+
+    /**
+     * @param directory Location of the on-disk store, created if needed
+     * @param maxMemoryEntries Size of the in-memory LRU
+     * @param maxDiskEntries Approximate number of files kept on disk
+     * @param ttlMillis How long an entry with attachments stays fresh
+     * @param negativeTtlMillis How long an empty entry stays fresh
+     * @param staleMillis How long past its TTL an entry may still be served
+     */
+    public AttachmentCache(File directory, final int maxMemoryEntries, int maxDiskEntries,
+                           long ttlMillis, long negativeTtlMillis, long staleMillis) {
+        mDirectory = directory;
+        mMaxDiskEntries = maxDiskEntries;
+        mTtlMillis = ttlMillis;
+        mNegativeTtlMillis = negativeTtlMillis;
+        mStaleMillis = staleMillis;
+        mMemory = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, AttachmentCache.Entry> eldest) {
+                if (size() > maxMemoryEntries) {
+                    mEvictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        for (int i = 0; i < mDiskLocks.length; i++) {
+            mDiskLocks[i] = new Object();
+        }
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IllegalArgumentException("Unable to create " + directory);
+        }
+    }
+
+    /**
+     * @return the cached entry, which may be stale, or null if there is
+     *         nothing usable for this beacon
+     */
+    public Entry get(byte[] advertisedId, String namespacedType) {
+        String key = getKey(advertisedId, namespacedType);
+
+        Entry entry;
+        synchronized (this) {
+            entry = mMemory.get(key);
+        }
+        boolean fromDisk = false;
+        if (entry == null) {
+            synchronized (getDiskLock(key)) {
+                entry = readEntry(key, namespacedType);
+            }
+            fromDisk = entry != null;
+        }
+
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (fromDisk) {
+                Entry current = mMemory.get(key);
+                if (current == null) {
+                    mDiskHits++;
+                    mMemory.put(key, entry);
+                } else {
+                    //Put while we were reading
+                    entry = current;
+                }
+            }
+
+            if (entry != null && now >= entry.staleUntil) {
+                mMemory.remove(key);
+                mEvictions++;
+                entry = null;
+            }
+
+            if (entry == null) {
+                mMisses++;
+            } else if (!entry.isFresh(now)) {
+                mStaleHits++;
+            } else if (entry.isNegative()) {
+                mNegativeHits++;
+            } else {
+                mHits++;
+            }
+        }
+        return entry;
+    }
+
+    /** Store a fresh lookup result; an empty list caches a negative result */
+    public void put(byte[] advertisedId, String namespacedType, List<byte[]> attachments) {
+        long now = System.currentTimeMillis();
+        long ttl = attachments.isEmpty() ? mNegativeTtlMillis : mTtlMillis;
+        Entry entry = new Entry(new ArrayList<>(attachments),
+                now + ttl, now + ttl + mStaleMillis);
+
+        String key = getKey(advertisedId, namespacedType);
+        boolean trim;
+        synchronized (getDiskLock(key)) {
+            synchronized (this) {
+                mMemory.put(key, entry);
+                trim = ++mWritesSinceTrim >= TRIM_INTERVAL;
+                if (trim) mWritesSinceTrim = 0;
+            }
+            writeEntry(key, namespacedType, entry);
+        }
+
+        if (trim) {
+            trimDisk();
+        }
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getStaleHitCount() {
+        return mStaleHits;
+    }
+
+    public synchronized long getNegativeHitCount() {
+        return mNegativeHits;
+    }
+
+    public synchronized long getDiskHitCount() {
+        return mDiskHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AttachmentCache[" + mHits + " hits, "
+                + mStaleHits + " stale, "
+                + mNegativeHits + " negative, "
+                + mDiskHits + " from disk, "
+                + mMisses + " misses, "
+                + mEvictions + " evictions]";
+    }
+
+    private Object getDiskLock(String key) {
+        return mDiskLocks[(key.hashCode() & 0x7fffffff) % mDiskLocks.length];
+    }
+
+    private static String getKey(byte[] advertisedId, String namespacedType) {
+        StringBuilder sb = new StringBuilder(41);
+        for (byte b : advertisedId) {
+            EddystoneFrame.appendHex(sb, b, 2);
+        }
+        sb.append('-');
+        EddystoneFrame.appendHex(sb, namespacedType.hashCode(), 8);
+
+        return sb.toString();
+    }
+
+    /*
+     * File layout: version, type, freshUntil, staleUntil, count,
+     * then (length, bytes) for each attachment
+     */
+
+    private Entry readEntry(String key, String namespacedType) {
+        File file = new File(mDirectory, key);
+        if (!file.exists()) return null;
+        //Every count and length is checked against this before allocating
+        long size = file.length();
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_VERSION
+                    || !namespacedType.equals(in.readUTF())) {
+                return null;
+            }
+            long freshUntil = in.readLong();
+            long staleUntil = in.readLong();
+            int count = in.readInt();
+            if (count < 0 || count > size / 4) {
+                throw new IOException("Invalid attachment count " + count);
+            }
+            List<byte[]> attachments = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int length = in.readInt();
+                if (length < 0 || length > size) {
+                    throw new IOException("Invalid attachment length " + length);
+                }
+                byte[] data = new byte[length];
+                in.readFully(data);
+                attachments.add(data);
+            }
+            return new Entry(attachments, freshUntil, staleUntil);
+        } catch (IOException | RuntimeException e) {
+            //Unreadable entries are treated as misses, and not read again
+            file.delete();
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void writeEntry(String key, String namespacedType, Entry entry) {
+        File file = new File(mDirectory, key);
+        File temp = new File(mDirectory, key + ".tmp");
+
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(FILE_VERSION);
+            out.writeUTF(namespacedType);
+            out.writeLong(entry.freshUntil);
+            out.writeLong(entry.staleUntil);
+            out.writeInt(entry.attachments.size());
+            for (byte[] attachment : entry.attachments) {
+                out.writeInt(attachment.length);
+                out.write(attachment);
+            }
+            out.close();
+            out = null;
+
+            if (!temp.renameTo(file)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            //Disk is best effort, memory still holds the entry
+            temp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /* Drop the least recently written files beyond the disk limit */
+    private void trimDisk() {
+        File[] files = mDirectory.listFiles();
+        if (files == null || files.length <= mMaxDiskEntries) return;
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long left = lhs.lastModified();
+                long right = rhs.lastModified();
+                return left < right ? -1 : (left == right ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length - mMaxDiskEntries; i++) {
+            files[i].delete();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.example.android.nearbybeacons;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * List of unique items, in the order they were added, that is mutated
+ * from any thread and shown on another.
+ *
+ * Mutations only touch the model. The first one after the display last
+ * caught up schedules a diff on the supplied executor, which compares
+ * the list currently displayed with the model and leaves the result as
+ * a pending {@link Update}. The display side picks that up whenever it
+ * is ready (e.g. once per frame) and applies it in one go. Bursts of
+ * mutations therefore cost one diff and one apply between them.
+ *
+ * An item can be replaced by a newer, equal one in place with
+ * {@link #put}; the update then reports it as changed.
+ *
+ * This class has no Android dependencies.
+ */
+public class BatchedListModel<T> {
+
+    /** Called on the diff executor when an update is ready to take */
+    public interface Listener {
+        void onUpdateReady();
+    }
+
+    /** The edits from the displayed list to a newer snapshot of the model */
+    public static class Update<T> implements ListDiff.Callback {
+        private static final int REMOVE = 0;
+        private static final int INSERT = 1;
+        private static final int MOVE = 2;
+        private static final int CHANGE = 3;
+
+        private final List<T> mBase;
+        private final List<T> mItems;
+        // Recorded operations, three ints each
+        private int[] mOps = new int[24];
+        private int mOpCount;
+
+        Update(List<T> base, List<T> items) {
+            mBase = base;
+            mItems = items;
+        }
+
+        /** The model contents once this update is applied, unmodifiable */
+        public List<T> getItems() {
+            return mItems;
+        }
+
+        public int getOperationCount() {
+            return mOpCount;
+        }
+
+        /** Replay the edits, in order, onto the displayed list */
+        public void dispatch(ListDiff.Callback callback) {
+            for (int i = 0; i < mOpCount * 3; i += 3) {
+                switch (mOps[i]) {
+                    case REMOVE:
+                        callback.onRemove(mOps[i + 1]);
+                        break;
+                    case INSERT:
+                        callback.onInsert(mOps[i + 1], mOps[i + 2]);
+                        break;
+                    case CHANGE:
+                        callback.onChange(mOps[i + 1]);
+                        break;
+                    default:
+                        callback.onMove(mOps[i + 1], mOps[i + 2]);
+                }
+            }
+        }
+
+        @Override
+        public void onRemove(int position) {
+            record(REMOVE, position, 0);
+        }
+
+        @Override
+        public void onInsert(int position, int newIndex) {
+            record(INSERT, position, newIndex);
+        }
+
+        @Override
+        public void onMove(int from, int to) {
+            record(MOVE, from, to);
+        }
+
+        @Override
+        public void onChange(int position) {
+            record(CHANGE, position, 0);
+        }
+
+        private void record(int type, int a, int b) {
+            if (mOpCount * 3 == mOps.length) {
+                int[] grown = new int[mOps.length * 2];
+                System.arraycopy(mOps, 0, grown, 0, mOps.length);
+                mOps = grown;
+            }
+            int i = mOpCount * 3;
+            mOps[i] = type;
+            mOps[i + 1] = a;
+            mOps[i + 2] = b;
+            mOpCount++;
+        }
+    }
+
+    private final Executor mDiffExecutor;
+    private final Listener mListener;
+
+    // Each item keyed by itself, so an equal one can replace it in place; guarded by this
+    private final LinkedHashMap<T, T> mItems = new LinkedHashMap<>();
+    private List<T> mDisplayed = Collections.emptyList();
+    private Update<T> mPending;
+    private boolean mDirty;
+    private boolean mScheduled;
+    private long mDiffs;
+    private long mApplied;
+
+    /**
+     * @param diffExecutor Runs the diffs, ideally a single background thread
+     * @param listener Notified when {@link #takeUpdate()} has something
+     */
+    public BatchedListModel(Executor diffExecutor, Listener listener) {
+        mDiffExecutor = diffExecutor;
+        mListener = listener;
+    }
+
+    /** @return false if an equal item was already present */
+    public boolean add(T item) {
+        synchronized (this) {
+            if (mItems.containsKey(item)) return false;
+            mItems.put(item, item);
+        }
+        changed();
+        return true;
+    }
+
+    /**
+     * Add the item, or replace an equal one where it stands.
+     *
+     * @return false if this very item was already present
+     */
+    public boolean put(T item) {
+        synchronized (this) {
+            if (mItems.put(item, item) == item) return false;
+        }
+        changed();
+        return true;
+    }
+
+    /** @return false if the item was not present */
+    public boolean remove(T item) {
+        synchronized (this) {
+            if (mItems.remove(item) == null) return false;
+        }
+        changed();
+        return true;
+    }
+
+    public void clear() {
+        synchronized (this) {
+            if (mItems.isEmpty()) return;
+            mItems.clear();
+        }
+        changed();
+    }
+
+    public synchronized int size() {
+        return mItems.size();
+    }
+
+    /** A copy of the model contents, in order */
+    public synchronized List<T> getItems() {
+        return new ArrayList<>(mItems.values());
+    }
+
+    /**
+     * Replace the model contents with items the display already shows,
+     * e.g. restored from storage, without computing an update. Call
+     * before any other mutation.
+     */
+    public synchronized void restore(List<T> items) {
+        mItems.clear();
+        for (T item : items) {
+            mItems.put(item, item);
+        }
+        mDisplayed = Collections.unmodifiableList(new ArrayList<>(mItems.values()));
+    }
+
+    /**
+     * Take the pending update, if any, and treat its items as displayed
+     * from now on. Call from the display thread.
+     */
+    public synchronized Update<T> takeUpdate() {
+        Update<T> update = mPending;
+        if (update != null) {
+            mPending = null;
+            mDisplayed = update.mItems;
+            mApplied++;
+        }
+        return update;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BatchedListModel[" + mItems.size() + " items, "
+                + mDiffs + " diffs, "
+                + mApplied + " applied]";
+    }
+
+    private void changed() {
+        synchronized (this) {
+            mDirty = true;
+            if (mScheduled) return;
+            mScheduled = true;
+        }
+        mDiffExecutor.execute(mComputeUpdate);
+    }
+
+    private final Runnable mComputeUpdate = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                List<T> base;
+                List<T> items;
+                synchronized (BatchedListModel.this) {
+                    if (!mDirty) {
+                        mScheduled = false;
+                        return;
+                    }
+                    mDirty = false;
+                    base = mDisplayed;
+                    items = Collections.unmodifiableList(new ArrayList<>(mItems.values()));
+                }
+
+                //The expensive part runs without the lock
+                Update<T> update = new Update<>(base, items);
+                ListDiff.diff(base, items, update);
+
+                synchronized (BatchedListModel.this) {
+                    mDiffs++;
+                    if (mDisplayed != update.mBase) {
+                        //The display took an older update meanwhile, redo it
+                        mDirty = true;
+                        continue;
+                    }
+                    mPending = update.getOperationCount() > 0 ? update : null;
+                    if (mDirty || mPending == null) continue;
+                }
+                mListener.onUpdateReady();
+            }
+        }
+    };
+}
@@ -0,0 +1,284 @@
+package com.example.android.nearbybeacons;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Small HTTP client for the beacon REST endpoints.
+ *
+ * Connections are returned to the platform keep-alive pool by always
+ * reading and closing the response (including error bodies) and never
+ * calling disconnect() on success. Request and response bodies are
+ * gzipped, the number of requests in flight is bounded, and requests
+ * that fail with 429, a 5xx status or an I/O error are retried with
+ * jittered exponential backoff, honoring any Retry-After header.
+ *
+ * This class has no Android dependencies.
+ */
+public class BeaconApiClient {
+
+    /** Writes a request body; may be called again if the request is retried */
+    public interface BodyWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
+    /** Reads a successful response body */
+    public interface ResponseReader<T> {
+        T read(InputStream in) throws IOException;
+    }
+
+    /** Thrown for a response status that is not retried, or ran out of retries */
+    public static class HttpException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public final int statusCode;
+
+        public HttpException(int statusCode, String message) {
+            super("HTTP " + statusCode + ": " + message);
+            this.statusCode = statusCode;
+        }
+    }
+
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final int READ_TIMEOUT_MS = 15000;
+    private static final int DRAIN_BUFFER = 1024;
+
+    private final Map<String, String> mHeaders = new LinkedHashMap<>();
+    private final Semaphore mPermits;
+    private final int mMaxAttempts;
+    private final long mBaseBackoffMillis;
+    private final long mMaxBackoffMillis;
+    private final boolean mGzipRequests;
+    private final Random mRandom = new Random();
+
+    // Statistics, guarded by this
+    private long mRequestCount;
+    private long mAttemptCount;
+    private long mRetryCount;
+    private long mFailureCount;
+    private long mTotalLatencyNanos;
+    private long mMaxLatencyNanos;
+
+    /**
+     * @param maxConcurrent Requests allowed in flight at once
+     * @param maxAttempts Total attempts per request, including the first
+     * @param baseBackoffMillis Backoff before the first retry, doubled after each
+     * @param maxBackoffMillis Upper bound on any single wait
+     * @param gzipRequests Whether request bodies are sent gzip encoded
+     */
+    public BeaconApiClient(int maxConcurrent, int maxAttempts, long baseBackoffMillis,
+                           long maxBackoffMillis, boolean gzipRequests) {
+        mPermits = new Semaphore(maxConcurrent, true);
+        mMaxAttempts = maxAttempts;
+        mBaseBackoffMillis = baseBackoffMillis;
+        mMaxBackoffMillis = maxBackoffMillis;
+        mGzipRequests = gzipRequests;
+    }
+
+    /** Add a header sent with every request */
+    public void setHeader(String name, String value) {
+        mHeaders.put(name, value);
+    }
+
+    /**
+     * POST a body to the given url, blocking until a response is read
+     * or every attempt has failed.
+     */
+    public <T> T post(URL url, BodyWriter body, ResponseReader<T> reader)
+            throws IOException {
+        try {
+            mPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for a connection");
+        }
+
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            T result = postWithRetries(url, body, reader);
+            success = true;
+            return result;
+        } finally {
+            mPermits.release();
+            recordRequest(System.nanoTime() - start, success);
+        }
+    }
+
+    public synchronized long getRequestCount() {
+        return mRequestCount;
+    }
+
+    public synchronized long getRetryCount() {
+        return mRetryCount;
+    }
+
+    public synchronized long getFailureCount() {
+        return mFailureCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("BeaconApiClient[%d requests, %d attempts, %d retries, "
+                        + "%d failures, latency avg %.1fms max %.1fms]",
+                mRequestCount, mAttemptCount, mRetryCount, mFailureCount,
+                mRequestCount > 0 ? mTotalLatencyNanos / 1e6 / mRequestCount : 0,
+                mMaxLatencyNanos / 1e6);
+    }
+
+    private <T> T postWithRetries(URL url, BodyWriter body, ResponseReader<T> reader)
+            throws IOException {
+        int attempt = 0;
+        while (true) {
+            attempt++;
+            synchronized (this) {
+                mAttemptCount++;
+            }
+
+            long retryAfter;
+            IOException failure;
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            try {
+                int status = send(connection, body);
+                if (status == HttpURLConnection.HTTP_OK) {
+                    return readResponse(connection, reader);
+                }
+
+                drainError(connection);
+                failure = new HttpException(status, connection.getResponseMessage());
+                if (status != 429 && status < 500) {
+                    throw failure;
+                }
+                retryAfter = parseRetryAfter(connection.getHeaderField("Retry-After"));
+            } catch (HttpException e) {
+                throw e;
+            } catch (IOException e) {
+                //Don't hand a broken connection back to the pool
+                connection.disconnect();
+                failure = e;
+                retryAfter = -1;
+            }
+
+            if (attempt >= mMaxAttempts) {
+                throw failure;
+            }
+
+            synchronized (this) {
+                mRetryCount++;
+            }
+            sleep(retryAfter >= 0 ? Math.min(retryAfter, mMaxBackoffMillis)
+                    : getBackoff(attempt));
+        }
+    }
+
+    private int send(HttpURLConnection connection, BodyWriter body) throws IOException {
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        connection.setDoOutput(true);
+        connection.setChunkedStreamingMode(0);
+        connection.setRequestMethod("POST");
+        for (Map.Entry<String, String> header : mHeaders.entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        //Setting this ourselves means we also decode it ourselves
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        if (mGzipRequests) {
+            connection.setRequestProperty("Content-Encoding", "gzip");
+        }
+
+        OutputStream out = connection.getOutputStream();
+        try {
+            if (mGzipRequests) {
+                GZIPOutputStream gzip = new GZIPOutputStream(out);
+                body.write(gzip);
+                gzip.finish();
+            } else {
+                body.write(out);
+            }
+        } finally {
+            out.close();
+        }
+
+        return connection.getResponseCode();
+    }
+
+    private static <T> T readResponse(HttpURLConnection connection, ResponseReader<T> reader)
+            throws IOException {
+        InputStream in = connection.getInputStream();
+        try {
+            InputStream decoded = "gzip".equalsIgnoreCase(connection.getContentEncoding())
+                    ? new GZIPInputStream(in) : in;
+            T result = reader.read(decoded);
+            //Consume any trailing bytes so the connection can be reused
+            drain(decoded);
+            return result;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void drainError(HttpURLConnection connection) {
+        InputStream error = connection.getErrorStream();
+        if (error == null) return;
+        try {
+            drain(error);
+        } catch (IOException ignored) {
+        } finally {
+            try {
+                error.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[DRAIN_BUFFER];
+        while (in.read(buffer) != -1) {
+            //Discard
+        }
+    }
+
+    /* Full jitter: a random wait up to the exponential backoff */
+    private long getBackoff(int attempt) {
+        long ceiling = Math.min(mMaxBackoffMillis,
+                mBaseBackoffMillis << Math.min(attempt - 1, 16));
+        synchronized (mRandom) {
+            return (long) (mRandom.nextDouble() * ceiling);
+        }
+    }
+
+    /* Retry-After in delta-seconds form, or -1 if absent or a date */
+    private static long parseRetryAfter(String value) {
+        if (value == null) return -1;
+        try {
+            return Math.max(0, Long.parseLong(value.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted during retry backoff");
+        }
+    }
+
+    private synchronized void recordRequest(long latencyNanos, boolean success) {
+        mRequestCount++;
+        if (!success) mFailureCount++;
+        mTotalLatencyNanos += latencyNanos;
+        mMaxLatencyNanos = Math.max(mMaxLatencyNanos, latencyNanos);
+    }
+}
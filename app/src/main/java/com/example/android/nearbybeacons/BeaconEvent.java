@@ -0,0 +1,98 @@
+package com.example.android.nearbybeacons;
+
+/**
+ * Immutable beacon event carried by {@link BeaconEventBus}.
+ *
+ * Beacons are keyed by two longs: the Eddystone id for beacons seen by
+ * the scanner, or {@link #hashName(String)} of the section (and zero)
+ * for Nearby messages. Messages have their own found and lost types, so
+ * the offer list can subscribe to them alone, and carry their
+ * {@link OfferBeacon} as the payload. Telemetry events are keyed by zero and the packed device
+ * address, since TLM frames carry no id, and carry a copy of the frame.
+ * Window events carry a {@link DwellWindow} for a beacon seen in a
+ * footfall window that has just closed.
+ */
+public class BeaconEvent {
+
+    // Event types, usable together as a mask
+    public static final int FOUND = 1;
+    public static final int LOST = 2;
+    public static final int UPDATED = 4;
+    public static final int TELEMETRY = 8;
+    public static final int WINDOW = 16;
+    public static final int OFFER_FOUND = 32;
+    public static final int OFFER_LOST = 64;
+    public static final int ALL =
+            FOUND | LOST | UPDATED | TELEMETRY | WINDOW | OFFER_FOUND | OFFER_LOST;
+
+    public final int type;
+    public final long idHigh;
+    public final long idLow;
+    /** SystemClock.elapsedRealtime() of the sighting */
+    public final long timestamp;
+    /** Last RSSI in dBm, or 0 if unknown */
+    public final int rssi;
+    /** Estimated distance in meters, or 0 if unknown */
+    public final float distance;
+    /** OfferBeacon, EddystoneFrame, DwellWindow or null */
+    public final Object payload;
+
+    public BeaconEvent(int type, long idHigh, long idLow, long timestamp, int rssi,
+                       float distance, Object payload) {
+        this.type = type;
+        this.idHigh = idHigh;
+        this.idLow = idLow;
+        this.timestamp = timestamp;
+        this.rssi = rssi;
+        this.distance = distance;
+        this.payload = payload;
+    }
+
+    /** OFFER_FOUND or OFFER_LOST event for a Nearby message, keyed by its section */
+    public static BeaconEvent forOffer(int type, OfferBeacon beacon, long timestamp) {
+        return new BeaconEvent(type, hashName(beacon.section), 0, timestamp, 0, 0, beacon);
+    }
+
+    /** 64-bit FNV-1a of a name, as a beacon key */
+    public static long hashName(String name) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            hash ^= name.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    public static String getTypeName(int type) {
+        switch (type) {
+            case FOUND:
+                return "found";
+            case LOST:
+                return "lost";
+            case UPDATED:
+                return "updated";
+            case TELEMETRY:
+                return "telemetry";
+            case WINDOW:
+                return "window";
+            case OFFER_FOUND:
+                return "offer found";
+            case OFFER_LOST:
+                return "offer lost";
+            default:
+                return "unknown";
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("BeaconEvent[").append(getTypeName(type)).append(' ');
+        if (payload instanceof OfferBeacon) {
+            sb.append(payload);
+        } else {
+            EddystoneFrame.appendHex(sb, idHigh, 16);
+            EddystoneFrame.appendHex(sb, idLow, 16);
+        }
+        return sb.append(" @").append(timestamp).append(']').toString();
+    }
+}
@@ -0,0 +1,434 @@
+package com.example.android.nearbybeacons;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stream of beacon events from every source: the Eddystone
+ * scanner, and foreground and background Nearby subscriptions.
+ *
+ * Sources {@link #publish(BeaconEvent)} from any thread without ever
+ * blocking. Consumers subscribe to a {@link Stream} of the event types
+ * they want. Each subscription has its own bounded buffer and demand,
+ * and is drained on the consumer's executor: one task delivers as many
+ * buffered events as were requested, up to a batch limit, so events
+ * cross threads in batches rather than one hop each. When a buffer is
+ * full the oldest event is dropped, so a slow consumer loses history
+ * instead of stalling the scanner.
+ *
+ * Streams can also conflate, keeping only the latest pending UPDATED or
+ * TELEMETRY event per beacon, and sample, passing at most one of those
+ * per beacon per interval. Found and lost events are never conflated or
+ * sampled out. A beacon's conflation state is freed once its pending
+ * events have left the buffer, and its sampling state once the interval
+ * has passed, so streams of types that never see a LOST, such as
+ * telemetry, only keep state for the beacons they heard recently.
+ *
+ * This class is thread-safe and has no Android dependencies.
+ */
+public class BeaconEventBus {
+
+    private static final int DEFAULT_BUFFER = 256;
+    // Events delivered per executor task before yielding to other work
+    private static final int MAX_BATCH = 64;
+    private static final long NONE = -1;
+    // Returned by EventSubscription.track for an event that needs no buffer slot
+    private static final int ABSORBED = -2;
+
+    private static final BeaconEventBus sDefault = new BeaconEventBus();
+
+    private static final EventSubscription[] NO_SUBSCRIPTIONS = new EventSubscription[0];
+
+    // Replaced whole on every change, so publishing iterates without allocating
+    private volatile EventSubscription[] mSubscriptions = NO_SUBSCRIPTIONS;
+    // Union of the types subscribed to
+    private volatile int mSubscribedTypes;
+    private final AtomicLong mPublished = new AtomicLong();
+
+    /** The process-wide bus */
+    public static BeaconEventBus getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Whether anyone wants events of these types. Sources can check this
+     * first to skip building events nobody will see.
+     */
+    public boolean hasSubscribers(int typeMask) {
+        return (mSubscribedTypes & typeMask) != 0;
+    }
+
+    /** Offer an event to every subscription for its type; never blocks */
+    public void publish(BeaconEvent event) {
+        if ((mSubscribedTypes & event.type) == 0) return;
+        mPublished.incrementAndGet();
+        for (EventSubscription subscription : mSubscriptions) {
+            if ((subscription.mTypes & event.type) != 0) {
+                subscription.offer(event);
+            }
+        }
+    }
+
+    /**
+     * Events of the given types, delivered on the executor. The stream
+     * can be subscribed to any number of times.
+     */
+    public Stream stream(int typeMask, Executor executor) {
+        return new Stream(typeMask, executor, DEFAULT_BUFFER, false, 0);
+    }
+
+    public int getSubscriberCount() {
+        return mSubscriptions.length;
+    }
+
+    /** Beacons the subscriptions currently hold conflation or sampling state for */
+    public int getTrackedCount() {
+        int tracked = 0;
+        for (EventSubscription subscription : mSubscriptions) {
+            synchronized (subscription) {
+                if (subscription.mKeys != null) tracked += subscription.mKeys.size();
+            }
+        }
+        return tracked;
+    }
+
+    @Override
+    public String toString() {
+        long dropped = 0;
+        long merged = 0;
+        for (EventSubscription subscription : mSubscriptions) {
+            synchronized (subscription) {
+                dropped += subscription.mDropped;
+                merged += subscription.mMerged;
+            }
+        }
+        return "BeaconEventBus[" + mPublished.get() + " published, "
+                + mSubscriptions.length + " subscribers, "
+                + merged + " conflated or sampled, "
+                + dropped + " dropped]";
+    }
+
+    private synchronized void add(EventSubscription subscription) {
+        EventSubscription[] subscriptions =
+                Arrays.copyOf(mSubscriptions, mSubscriptions.length + 1);
+        subscriptions[subscriptions.length - 1] = subscription;
+        update(subscriptions);
+    }
+
+    private synchronized void remove(EventSubscription subscription) {
+        EventSubscription[] subscriptions = mSubscriptions;
+        for (int i = 0; i < subscriptions.length; i++) {
+            if (subscriptions[i] != subscription) continue;
+            EventSubscription[] remaining = new EventSubscription[subscriptions.length - 1];
+            System.arraycopy(subscriptions, 0, remaining, 0, i);
+            System.arraycopy(subscriptions, i + 1, remaining, i, remaining.length - i);
+            update(remaining);
+            return;
+        }
+    }
+
+    /* Called with the lock held */
+    private void update(EventSubscription[] subscriptions) {
+        int types = 0;
+        for (EventSubscription subscription : subscriptions) {
+            types |= subscription.mTypes;
+        }
+        mSubscriptions = subscriptions;
+        mSubscribedTypes = types;
+    }
+
+    /** Immutable description of a subscription; each method returns a new stream */
+    public class Stream implements BeaconFlow.Publisher<BeaconEvent> {
+        private final int mTypes;
+        private final Executor mExecutor;
+        private final int mBufferSize;
+        private final boolean mConflate;
+        private final long mSampleMillis;
+
+        Stream(int types, Executor executor, int bufferSize, boolean conflate,
+               long sampleMillis) {
+            mTypes = types;
+            mExecutor = executor;
+            mBufferSize = bufferSize;
+            mConflate = conflate;
+            mSampleMillis = sampleMillis;
+        }
+
+        /** Buffer up to this many undelivered events, rounded up to a power of two */
+        public Stream buffer(int size) {
+            return new Stream(mTypes, mExecutor, size, mConflate, mSampleMillis);
+        }
+
+        /** Replace a beacon's pending update or telemetry event with a newer one */
+        public Stream conflate() {
+            return new Stream(mTypes, mExecutor, mBufferSize, true, mSampleMillis);
+        }
+
+        /** Pass at most one update and one telemetry event per beacon per interval */
+        public Stream sample(long intervalMillis) {
+            return new Stream(mTypes, mExecutor, mBufferSize, mConflate, intervalMillis);
+        }
+
+        @Override
+        public void subscribe(BeaconFlow.Subscriber<? super BeaconEvent> subscriber) {
+            EventSubscription subscription = new EventSubscription(this, subscriber);
+            //Nothing is delivered before the subscriber requests it in onSubscribe
+            add(subscription);
+            subscriber.onSubscribe(subscription);
+        }
+    }
+
+    /*
+     * Ring buffer and demand of one subscriber. Offers and polls are
+     * guarded by this; delivery runs on the executor, serialized by the
+     * work-in-progress count.
+     */
+    private class EventSubscription implements BeaconFlow.Subscription, Runnable {
+        final int mTypes;
+        private final Executor mExecutor;
+        private final BeaconFlow.Subscriber<? super BeaconEvent> mSubscriber;
+        private final boolean mConflate;
+        private final long mSampleMillis;
+
+        private final BeaconEvent[] mBuffer;
+        private final int mMask;
+        // Sequence numbers of the oldest and next events
+        private long mHead;
+        private long mTail;
+
+        // Per beacon key, for conflation and sampling; handles are freed when
+        // lost, or once nothing is pending and the sample interval has passed
+        private final BeaconRegistry mKeys;
+        private long[] mPendingUpdate;
+        private long[] mPendingTelemetry;
+        private long[] mLastUpdate;
+        private long[] mLastTelemetry;
+        // Reports keys whose sample interval has passed; null unless sampling
+        private final ExpiryWheel mSampleExpiry;
+        private final ExpiryWheel.Listener mSampleListener = new ExpiryWheel.Listener() {
+            @Override
+            public void onLost(int handle) {
+                releaseIfIdle(handle);
+            }
+        };
+
+        private final AtomicLong mRequested = new AtomicLong();
+        private final AtomicInteger mWorkInProgress = new AtomicInteger();
+        private volatile boolean mCancelled;
+        private volatile Throwable mError;
+
+        long mDropped;
+        long mMerged;
+
+        EventSubscription(Stream stream,
+                          BeaconFlow.Subscriber<? super BeaconEvent> subscriber) {
+            mTypes = stream.mTypes;
+            mExecutor = stream.mExecutor;
+            mSubscriber = subscriber;
+            mConflate = stream.mConflate;
+            mSampleMillis = stream.mSampleMillis;
+            int size = Integer.highestOneBit(Math.max(stream.mBufferSize, 2) * 2 - 1);
+            mBuffer = new BeaconEvent[size];
+            mMask = size - 1;
+            if (mConflate || mSampleMillis > 0) {
+                mKeys = new BeaconRegistry();
+                mPendingUpdate = new long[0];
+                mPendingTelemetry = new long[0];
+                mLastUpdate = new long[0];
+                mLastTelemetry = new long[0];
+            } else {
+                mKeys = null;
+            }
+            if (mSampleMillis > 0) {
+                mSampleExpiry = new ExpiryWheel(Math.max(mSampleMillis / 8, 1), 64,
+                        mSampleMillis);
+            } else {
+                mSampleExpiry = null;
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                mError = new IllegalArgumentException("Non-positive request: " + n);
+            } else {
+                long current;
+                long next;
+                do {
+                    current = mRequested.get();
+                    next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                } while (!mRequested.compareAndSet(current, next));
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            if (mCancelled) return;
+            mCancelled = true;
+            remove(this);
+            synchronized (this) {
+                Arrays.fill(mBuffer, null);
+                mHead = mTail;
+            }
+        }
+
+        void offer(BeaconEvent event) {
+            if (mCancelled) return;
+            synchronized (this) {
+                int handle = mKeys != null ? track(event) : BeaconRegistry.NOT_FOUND;
+                if (handle == ABSORBED) {
+                    mMerged++;
+                    return;
+                }
+                BeaconEvent dropped = null;
+                if (mTail - mHead == mBuffer.length) {
+                    int index = (int) mHead & mMask;
+                    dropped = mBuffer[index];
+                    mBuffer[index] = null;
+                    mHead++;
+                    mDropped++;
+                }
+                if (mConflate && handle != BeaconRegistry.NOT_FOUND) {
+                    if (event.type == BeaconEvent.UPDATED) {
+                        mPendingUpdate[handle] = mTail;
+                    } else {
+                        mPendingTelemetry[handle] = mTail;
+                    }
+                }
+                mBuffer[(int) mTail & mMask] = event;
+                mTail++;
+                //Only once the new event is pending, in case they share a key
+                if (dropped != null) retire(dropped);
+            }
+            schedule();
+        }
+
+        /*
+         * Apply sampling and conflation. Returns ABSORBED if the event was
+         * dropped by the sampler or merged into a pending one, otherwise
+         * the key's handle for update and telemetry events, or NOT_FOUND.
+         */
+        private int track(BeaconEvent event) {
+            if (mSampleExpiry != null) {
+                mSampleExpiry.advance(event.timestamp, mSampleListener);
+            }
+            if (event.type != BeaconEvent.UPDATED && event.type != BeaconEvent.TELEMETRY) {
+                if (event.type == BeaconEvent.LOST) {
+                    int handle = mKeys.find(event.idHigh, event.idLow);
+                    if (handle != BeaconRegistry.NOT_FOUND) {
+                        if (mSampleExpiry != null) mSampleExpiry.remove(handle);
+                        mKeys.remove(handle);
+                    }
+                }
+                return BeaconRegistry.NOT_FOUND;
+            }
+
+            int handle = mKeys.find(event.idHigh, event.idLow);
+            if (handle == BeaconRegistry.NOT_FOUND) {
+                handle = mKeys.add(event.idHigh, event.idLow);
+                ensureCapacity(handle);
+                mPendingUpdate[handle] = NONE;
+                mPendingTelemetry[handle] = NONE;
+                mLastUpdate[handle] = NONE;
+                mLastTelemetry[handle] = NONE;
+            }
+            boolean update = event.type == BeaconEvent.UPDATED;
+
+            if (mSampleMillis > 0) {
+                long[] last = update ? mLastUpdate : mLastTelemetry;
+                if (last[handle] != NONE && event.timestamp - last[handle] < mSampleMillis) {
+                    return ABSORBED;
+                }
+                last[handle] = event.timestamp;
+                mSampleExpiry.touch(handle, event.timestamp);
+            }
+            if (mConflate) {
+                long pending = (update ? mPendingUpdate : mPendingTelemetry)[handle];
+                if (pending != NONE && pending >= mHead) {
+                    mBuffer[(int) pending & mMask] = event;
+                    return ABSORBED;
+                }
+            }
+            return handle;
+        }
+
+        private synchronized BeaconEvent poll() {
+            if (mHead == mTail) return null;
+            int index = (int) mHead & mMask;
+            BeaconEvent event = mBuffer[index];
+            mBuffer[index] = null;
+            mHead++;
+            retire(event);
+            return event;
+        }
+
+        /* An event has left the buffer; free its key if nothing else needs it */
+        private void retire(BeaconEvent event) {
+            if (mKeys == null) return;
+            if (event.type != BeaconEvent.UPDATED && event.type != BeaconEvent.TELEMETRY) return;
+            int handle = mKeys.find(event.idHigh, event.idLow);
+            if (handle != BeaconRegistry.NOT_FOUND) releaseIfIdle(handle);
+        }
+
+        /* Free a key with no event in the buffer and no sample interval running */
+        private void releaseIfIdle(int handle) {
+            if (mPendingUpdate[handle] >= mHead || mPendingTelemetry[handle] >= mHead) return;
+            if (mSampleExpiry != null && mSampleExpiry.isTracked(handle)) return;
+            mKeys.remove(handle);
+        }
+
+        private void schedule() {
+            if (mWorkInProgress.getAndIncrement() == 0) {
+                mExecutor.execute(this);
+            }
+        }
+
+        /* Deliver up to MAX_BATCH events, then yield if there are more */
+        @Override
+        public void run() {
+            int missed = 1;
+            while (true) {
+                if (mCancelled) return;
+                Throwable error = mError;
+                if (error != null) {
+                    cancel();
+                    mSubscriber.onError(error);
+                    return;
+                }
+
+                long requested = mRequested.get();
+                long delivered = 0;
+                BeaconEvent event;
+                while (delivered < requested && delivered < MAX_BATCH
+                        && (event = poll()) != null) {
+                    mSubscriber.onNext(event);
+                    delivered++;
+                    if (mCancelled) return;
+                }
+                if (delivered > 0 && requested != Long.MAX_VALUE) {
+                    mRequested.addAndGet(-delivered);
+                }
+                if (delivered == MAX_BATCH) {
+                    //Still in progress; let other tasks on the executor run first
+                    mExecutor.execute(this);
+                    return;
+                }
+
+                missed = mWorkInProgress.addAndGet(-missed);
+                if (missed == 0) return;
+            }
+        }
+
+        private void ensureCapacity(int handle) {
+            if (handle < mPendingUpdate.length) return;
+            int size = Math.max(handle + 1, Math.max(mPendingUpdate.length * 2, 16));
+            mPendingUpdate = Arrays.copyOf(mPendingUpdate, size);
+            mPendingTelemetry = Arrays.copyOf(mPendingTelemetry, size);
+            mLastUpdate = Arrays.copyOf(mLastUpdate, size);
+            mLastTelemetry = Arrays.copyOf(mLastTelemetry, size);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.example.android.nearbybeacons;
+
+/**
+ * Reactive stream interfaces with the same contract as
+ * java.util.concurrent.Flow, which needs API 30. Publishers deliver
+ * items only as subscribers request them, so a slow subscriber holds
+ * back its own stream and nothing else.
+ */
+public final class BeaconFlow {
+
+    private BeaconFlow() {
+    }
+
+    public interface Publisher<T> {
+        /** Add a subscriber; it is given its Subscription via onSubscribe */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    public interface Subscriber<T> {
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T item);
+
+        void onError(Throwable error);
+
+        void onComplete();
+    }
+
+    public interface Subscription {
+        /** Allow n more items to be delivered; n must be positive */
+        void request(long n);
+
+        /** Stop delivery, eventually; items already in flight may still arrive */
+        void cancel();
+    }
+}
@@ -1,26 +1,25 @@
 package com.example.android.nearbybeacons;
 
-import android.app.IntentService;
+import android.app.Service;
 import android.content.Intent;
-import android.util.Base64;
+import android.os.IBinder;
 import android.util.Log;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
-import java.net.HttpURLConnection;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 
 /**
  * BeaconObserverService is a simple example of posting a
@@ -33,8 +32,12 @@ import java.util.Locale;
  *
  * Send this service an Intent containing the raw bytes from
  * Eddystone beacon advertisements, and it will post to the API.
+ * Lookups run in parallel, ids arriving close together are batched
+ * into a single request, and results are cached so repeat sightings
+ * skip the network. Send ACTION_BEACON_LOST with the same extra to
+ * cancel a lookup that is no longer needed.
  */
-public class BeaconObserverService extends IntentService {
+public class BeaconObserverService extends Service {
 
     private static final String TAG =
             BeaconObserverService.class.getSimpleName();
@@ -42,6 +45,10 @@ public class BeaconObserverService extends IntentService {
     public static final String EXTRA_BEACON_ID =
             "BeaconObserverService.EXTRA_BEACON_ID";
 
+    // Action to cancel a pending lookup
+    public static final String ACTION_BEACON_LOST =
+            "BeaconObserverService.ACTION_BEACON_LOST";
+
     /**
      * API Key from Developer Console Project.
      * Requires use of a 'browser' key.
@@ -62,104 +69,264 @@ public class BeaconObserverService extends IntentService {
     private static final String ATTACHMENT_NAMESPACE =
             "YOUR_NAMESPACED_TYPE_HERE";
 
-    public BeaconObserverService() {
-        super(BeaconObserverService.class.getSimpleName());
+    /**
+     * Observations are collected for up to this long, or until
+     * this many are pending, before a request is sent.
+     */
+    private static final long BATCH_WINDOW_MS = 500;
+    private static final int BATCH_MAX_SIZE = 50;
+
+    /* Attachment cache lifetimes */
+    private static final long CACHE_TTL_MS = 60 * 60 * 1000;
+    private static final long CACHE_NEGATIVE_TTL_MS = 10 * 60 * 1000;
+    private static final long CACHE_STALE_MS = 24 * 60 * 60 * 1000;
+    private static final int CACHE_MEMORY_ENTRIES = 256;
+    private static final int CACHE_DISK_ENTRIES = 4096;
+
+    /* Lookup concurrency, overall and per Eddystone namespace */
+    private static final int LOOKUP_THREADS = 8;
+    // Lookups in flight per namespace: one full batch, leaving the other requests to the rest
+    private static final int LOOKUP_NAMESPACE_LIMIT = BATCH_MAX_SIZE;
+    // Longer than a request with all its retries, so this only catches lookups that hang
+    private static final long LOOKUP_TIMEOUT_MS = 3 * 60 * 1000;
+
+    /* REST client limits */
+    private static final int HTTP_MAX_CONCURRENT = 4;
+    private static final int HTTP_MAX_ATTEMPTS = 4;
+    private static final long HTTP_BASE_BACKOFF_MS = 500;
+    private static final long HTTP_MAX_BACKOFF_MS = 30 * 1000;
+
+    private static final ConcurrentLogHistogram sRequestLatency =
+            Metrics.getDefault().histogram("observe.request_ms");
+    private static final StripedCounter sRequestFailures =
+            Metrics.getDefault().counter("observe.failed");
+
+    // These outlive individual service instances, which stop once idle
+    private static final BeaconApiClient sClient = new BeaconApiClient(
+            HTTP_MAX_CONCURRENT, HTTP_MAX_ATTEMPTS,
+            HTTP_BASE_BACKOFF_MS, HTTP_MAX_BACKOFF_MS, true);
+    static {
+        //POST requires a Referer header
+        sClient.setHeader("Referer", REFERER);
+        sClient.setHeader("Content-Type", "application/json");
+    }
+    private static final ObservationBatcher sBatcher = new ObservationBatcher(
+            new ObservedTransport(), BATCH_MAX_SIZE, BATCH_WINDOW_MS, HTTP_MAX_CONCURRENT);
+    private static final ExecutorService sLookupExecutor =
+            Executors.newFixedThreadPool(LOOKUP_THREADS);
+    private static final ScheduledThreadPoolExecutor sLookupTimer =
+            new ScheduledThreadPoolExecutor(1);
+    static {
+        //Timeouts are cancelled as lookups finish; don't keep them queued
+        sLookupTimer.setRemoveOnCancelPolicy(true);
+    }
+    private static AttachmentCache sCache;
+
+    private ObserverEngine<List<byte[]>> mEngine;
+    private volatile int mLastStartId;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        synchronized (BeaconObserverService.class) {
+            if (sCache == null) {
+                sCache = new AttachmentCache(new File(getCacheDir(), "attachments"),
+                        CACHE_MEMORY_ENTRIES, CACHE_DISK_ENTRIES,
+                        CACHE_TTL_MS, CACHE_NEGATIVE_TTL_MS, CACHE_STALE_MS);
+            }
+        }
+        mEngine = new ObserverEngine<>(sLookupExecutor, sLookupTimer, LOOKUP_TIMEOUT_MS,
+                LOOKUP_NAMESPACE_LIMIT, mLookupListener);
     }
 
     @Override
-    protected void onHandleIntent(Intent intent) {
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        mLastStartId = startId;
         if (intent == null || !intent.hasExtra(EXTRA_BEACON_ID)) {
             //Nothing we can do here
-            return;
+            stopIfIdle();
+            return START_NOT_STICKY;
         }
 
-        byte[] advertisedId = intent.getByteArrayExtra(EXTRA_BEACON_ID);
-        try {
-            JSONObject body = getObservedBody(advertisedId, ATTACHMENT_NAMESPACE);
-            String response = postBeaconObserved(body.toString());
-            List<String> attachments = parseAttachments(response);
+        byte[] advertisedId = getAdvertisedIdBytes(
+                intent.getByteArrayExtra(EXTRA_BEACON_ID));
+        if (advertisedId == null) {
+            Log.w(TAG, "Ignoring request without a 16-byte beacon id");
+            stopIfIdle();
+            return START_NOT_STICKY;
+        }
+        String key = ObservedCodec.encodeId(advertisedId);
+        if (ACTION_BEACON_LOST.equals(intent.getAction())) {
+            mEngine.cancel(key);
+            stopIfIdle();
+        } else {
+            mEngine.submit(key, getNamespace(advertisedId), new Lookup(advertisedId));
+        }
+
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        Log.d(TAG, "Engine stats: " + mEngine);
+        Log.d(TAG, "Observer stats: " + sBatcher);
+        Log.d(TAG, "Client stats: " + sClient);
+        Log.d(TAG, "Cache stats: " + sCache);
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    private void stopIfIdle() {
+        if (mEngine.getInFlightCount() == 0) {
+            //Ignored if newer requests have arrived since
+            stopSelf(mLastStartId);
+        }
+    }
 
-            Log.i(TAG, "Attachments:");
-            for (String attachment : attachments) {
-                Log.i(TAG, attachment);
+    /* Report each lookup, and stop once nothing is in flight */
+    private final ObserverEngine.Listener<List<byte[]>> mLookupListener =
+            new ObserverEngine.Listener<List<byte[]>>() {
+        @Override
+        public void onComplete(String key, Future<List<byte[]>> result) {
+            try {
+                logAttachments(result.get());
+            } catch (CancellationException e) {
+                Log.d(TAG, "Lookup cancelled for " + key);
+            } catch (ExecutionException e) {
+                Log.w(TAG, "Unable to process POST to API", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-        } catch (JSONException e) {
-            Log.w(TAG, "Unable to process observed POST body", e);
-        } catch (IOException e) {
-            Log.w(TAG, "Unable to process POST to API", e);
+            stopIfIdle();
+        }
+    };
+
+    /*
+     * Cache first, then a batched request. Only the cache check runs on
+     * a lookup thread; the batch completes the lookup from its callback,
+     * so no thread or namespace permit is held while the batch fills.
+     */
+    private static class Lookup implements ObserverEngine.Task<List<byte[]>> {
+        private final byte[] mAdvertisedId;
+
+        Lookup(byte[] advertisedId) {
+            mAdvertisedId = advertisedId;
+        }
+
+        @Override
+        public void start(final ObserverEngine.Completion<List<byte[]>> completion) {
+            AttachmentCache.Entry cached = sCache.get(mAdvertisedId, ATTACHMENT_NAMESPACE);
+            if (cached != null) {
+                if (!cached.isFresh(System.currentTimeMillis())) {
+                    //Serve the stale copy now, refresh it in the background
+                    sBatcher.submit(mAdvertisedId, sRevalidateCallback);
+                }
+                completion.complete(cached.attachments);
+                return;
+            }
+
+            sBatcher.submit(mAdvertisedId, new ObservationBatcher.Callback() {
+                @Override
+                public void onAttachments(byte[] advertisedId, List<byte[]> attachments) {
+                    sCache.put(advertisedId, ATTACHMENT_NAMESPACE, attachments);
+                    completion.complete(attachments);
+                }
+
+                @Override
+                public void onError(byte[] advertisedId, IOException error) {
+                    completion.fail(error);
+                }
+            });
         }
     }
 
-    private JSONObject getObservedBody(byte[] advertisement, String namespace)
-            throws JSONException {
-        int packetLength = 16;
-        int offset = advertisement.length - packetLength;
-        String id = Base64.encodeToString(advertisement,
-                offset, packetLength, Base64.NO_WRAP);
-
-        SimpleDateFormat sdf =
-                new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
-        return new JSONObject()
-                .put("observations", new JSONArray()
-                        .put(new JSONObject()
-                            .put("advertisedId", new JSONObject()
-                                    .put("type", "EDDYSTONE")
-                                    .put("id", id)
-                            ).put("timestampMs", sdf.format(new Date()))
-                        )
-                    ).put("namespacedTypes", namespace);
+    private static void logAttachments(List<byte[]> attachments) {
+        Log.i(TAG, "Attachments:");
+        for (byte[] attachment : attachments) {
+            Log.i(TAG, new String(attachment));
+        }
     }
 
-    private String postBeaconObserved(String body) throws IOException {
-        URL url = new URL("https://proximitybeacon.googleapis.com/v1beta1/"
-                + "beaconinfo:getforobserved?key=" + API_KEY);
-        HttpURLConnection connection = (HttpURLConnection)url.openConnection();
-
-        connection.setDoOutput(true);
-        connection.setRequestMethod("POST");
-        connection.setRequestProperty("Referer", REFERER);
-        connection.setRequestProperty("Content-Type", "application/json");
-        connection.connect();
-
-        //Upload body
-        Writer out = new OutputStreamWriter(connection.getOutputStream(), "UTF-8");
-        out.write(body);
-        out.flush();
-        out.close();
-
-        //Download response
-        if (connection.getResponseCode() != 200) {
-            Log.w(TAG, connection.getResponseMessage());
+    /* Refresh stale results quietly; on failure, the stale copy remains */
+    private static final ObservationBatcher.Callback sRevalidateCallback =
+            new ObservationBatcher.Callback() {
+        @Override
+        public void onAttachments(byte[] advertisedId, List<byte[]> attachments) {
+            sCache.put(advertisedId, ATTACHMENT_NAMESPACE, attachments);
         }
-        StringBuilder sb = new StringBuilder();
-        BufferedReader br = new BufferedReader(new InputStreamReader(
-                connection.getInputStream(), "UTF-8"));
-        String line;
-        while ((line = br.readLine()) != null) {
-            sb.append(line + "\n");
+
+        @Override
+        public void onError(byte[] advertisedId, IOException error) {
+            Log.w(TAG, "Unable to revalidate cached attachments", error);
         }
-        br.close();
+    };
 
-        connection.disconnect();
+    /* Sends each batch as a single getforobserved request */
+    private static class ObservedTransport implements ObservationBatcher.Transport {
+        @Override
+        public List<List<byte[]>> getForObserved(List<byte[]> advertisedIds)
+                throws IOException {
+            Map<String, List<byte[]>> attachments = postBeaconObserved(advertisedIds);
 
+            List<List<byte[]>> results = new ArrayList<>(advertisedIds.size());
+            for (byte[] advertisedId : advertisedIds) {
+                results.add(attachments.get(ObservedCodec.encodeId(advertisedId)));
+            }
+            return results;
+        }
+    }
+
+    /* Hex form of the 10-byte namespace at the start of an id */
+    private static String getNamespace(byte[] advertisedId) {
+        StringBuilder sb = new StringBuilder(20);
+        for (int i = 0; i < 10; i++) {
+            EddystoneFrame.appendHex(sb, advertisedId[i], 2);
+        }
         return sb.toString();
     }
 
-    private List<String> parseAttachments(String response)
-            throws JSONException {
-        List<String> parsed = new ArrayList<>();
-        JSONObject object = new JSONObject(response);
+    /* The 16-byte id at the end of an advertisement, or null if it is too short */
+    private static byte[] getAdvertisedIdBytes(byte[] advertisement) {
+        int packetLength = 16;
+        if (advertisement == null || advertisement.length < packetLength) return null;
+        int offset = advertisement.length - packetLength;
+        return Arrays.copyOfRange(advertisement, offset, advertisement.length);
+    }
 
-        JSONArray attachments = object.getJSONArray("beacons")
-                .getJSONObject(0)
-                .getJSONArray("attachments");
+    private static Map<String, List<byte[]>> postBeaconObserved(
+            final List<byte[]> advertisedIds) throws IOException {
+        URL url = new URL("https://proximitybeacon.googleapis.com/v1beta1/"
+                + "beaconinfo:getforobserved?key=" + API_KEY);
 
-        for (int i=0; i < attachments.length(); i++) {
-            String encoded = attachments.getJSONObject(i).getString("data");
-            String decoded = new String(Base64.decode(encoded, Base64.NO_WRAP));
-            parsed.add(decoded);
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            Map<String, List<byte[]>> attachments =
+                    sClient.post(url, new BeaconApiClient.BodyWriter() {
+                @Override
+                public void write(OutputStream out) throws IOException {
+                    ObservedCodec.writeRequest(out, advertisedIds,
+                            ATTACHMENT_NAMESPACE, System.currentTimeMillis());
+                }
+            }, sResponseReader);
+            success = true;
+            return attachments;
+        } finally {
+            //Includes retries and waiting for a connection slot
+            sRequestLatency.record((System.nanoTime() - start) / 1000000);
+            if (!success) sRequestFailures.increment();
         }
-
-        return parsed;
     }
+
+    private static final BeaconApiClient.ResponseReader<Map<String, List<byte[]>>>
+            sResponseReader = new BeaconApiClient.ResponseReader<Map<String, List<byte[]>>>() {
+        @Override
+        public Map<String, List<byte[]>> read(InputStream in) throws IOException {
+            return ObservedCodec.readResponse(in);
+        }
+    };
 }
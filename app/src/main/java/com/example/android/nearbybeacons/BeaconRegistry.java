@@ -0,0 +1,247 @@
+package com.example.android.nearbybeacons;
+
+import java.util.Arrays;
+
+/**
+ * Set of known beacons keyed by a 128-bit Eddystone id (two longs), or by
+ * a packed 48-bit device address via the *Address methods. Use one
+ * registry per kind of key; the two are not distinguished internally.
+ *
+ * Each entry is assigned a small integer handle that stays stable until
+ * the entry is removed, so other per-beacon state can live in plain arrays
+ * indexed by handle. Keys are held in an open-addressing table of
+ * primitive arrays, and every entry also tracks whether it has been seen
+ * by the user. Insert, lookup, removal and the unread count are O(1);
+ * marking everything read is O(1) as well.
+ *
+ * This class is not thread-safe and has no Android dependencies.
+ */
+public class BeaconRegistry {
+
+    public static final int NOT_FOUND = -1;
+
+    private static final int MIN_CAPACITY = 16;
+
+    // Open-addressing table of (handle + 1), 0 marks an empty slot
+    private int[] mTable;
+    private int mTableMask;
+
+    // Per-handle entry data
+    private long[] mKeyHigh;
+    private long[] mKeyLow;
+    // Insertion sequence; 0 marks read entries, -1 free handles
+    private long[] mSequence;
+    private int[] mNextFree;
+
+    private int mHandleLimit;
+    private int mFreeHead = NOT_FOUND;
+    private int mSize;
+    private int mUnreadCount;
+    private long mNextSequence = 1;
+    // Entries with a sequence below this have been marked read
+    private long mReadMark = 1;
+
+    public BeaconRegistry() {
+        this(MIN_CAPACITY);
+    }
+
+    public BeaconRegistry(int expectedSize) {
+        int handles = Math.max(expectedSize, MIN_CAPACITY);
+        mKeyHigh = new long[handles];
+        mKeyLow = new long[handles];
+        mSequence = new long[handles];
+        mNextFree = new int[handles];
+        allocateTable(tableSizeFor(handles));
+    }
+
+    /** @return handle of the entry, or NOT_FOUND */
+    public int find(long keyHigh, long keyLow) {
+        int slot = slotFor(keyHigh, keyLow);
+        int entry;
+        while ((entry = mTable[slot]) != 0) {
+            int handle = entry - 1;
+            if (mKeyHigh[handle] == keyHigh && mKeyLow[handle] == keyLow) {
+                return handle;
+            }
+            slot = (slot + 1) & mTableMask;
+        }
+
+        return NOT_FOUND;
+    }
+
+    /**
+     * Add a new, unread entry.
+     *
+     * @return handle of the new entry, or NOT_FOUND if the key was
+     *         already present
+     */
+    public int add(long keyHigh, long keyLow) {
+        int slot = slotFor(keyHigh, keyLow);
+        int entry;
+        while ((entry = mTable[slot]) != 0) {
+            int handle = entry - 1;
+            if (mKeyHigh[handle] == keyHigh && mKeyLow[handle] == keyLow) {
+                return NOT_FOUND;
+            }
+            slot = (slot + 1) & mTableMask;
+        }
+
+        int handle = allocateHandle();
+        mKeyHigh[handle] = keyHigh;
+        mKeyLow[handle] = keyLow;
+        mSequence[handle] = mNextSequence++;
+        mTable[slot] = handle + 1;
+        mSize++;
+        mUnreadCount++;
+
+        if (mSize * 2 > mTable.length) {
+            allocateTable(mTable.length * 2);
+        }
+        return handle;
+    }
+
+    public int findAddress(long address) {
+        return find(0, address);
+    }
+
+    public int addAddress(long address) {
+        return add(0, address);
+    }
+
+    /** Remove the entry with the given handle, freeing the handle for reuse */
+    public void remove(int handle) {
+        if (!isLive(handle)) return;
+
+        int slot = slotFor(mKeyHigh[handle], mKeyLow[handle]);
+        while (mTable[slot] != handle + 1) {
+            slot = (slot + 1) & mTableMask;
+        }
+        deleteSlot(slot);
+
+        if (isUnread(handle)) mUnreadCount--;
+        mSequence[handle] = -1;
+        mNextFree[handle] = mFreeHead;
+        mFreeHead = handle;
+        mSize--;
+    }
+
+    public boolean isLive(int handle) {
+        return handle >= 0 && handle < mHandleLimit && mSequence[handle] >= 0;
+    }
+
+    public boolean isUnread(int handle) {
+        return mSequence[handle] >= mReadMark;
+    }
+
+    public void markRead(int handle) {
+        if (isLive(handle) && isUnread(handle)) {
+            mSequence[handle] = 0;
+            mUnreadCount--;
+        }
+    }
+
+    /** Mark every current entry as read */
+    public void markAllRead() {
+        mReadMark = mNextSequence;
+        mUnreadCount = 0;
+    }
+
+    public int getUnreadCount() {
+        return mUnreadCount;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Exclusive upper bound of handles handed out so far. Size any
+     * handle-indexed arrays to at least this.
+     */
+    public int getHandleLimit() {
+        return mHandleLimit;
+    }
+
+    public long getKeyHigh(int handle) {
+        return mKeyHigh[handle];
+    }
+
+    public long getKeyLow(int handle) {
+        return mKeyLow[handle];
+    }
+
+    public void clear() {
+        Arrays.fill(mTable, 0);
+        mHandleLimit = 0;
+        mFreeHead = NOT_FOUND;
+        mSize = 0;
+        mUnreadCount = 0;
+        mReadMark = mNextSequence;
+    }
+
+    private int allocateHandle() {
+        if (mFreeHead != NOT_FOUND) {
+            int handle = mFreeHead;
+            mFreeHead = mNextFree[handle];
+            return handle;
+        }
+
+        if (mHandleLimit == mKeyHigh.length) {
+            int grown = mKeyHigh.length * 2;
+            mKeyHigh = Arrays.copyOf(mKeyHigh, grown);
+            mKeyLow = Arrays.copyOf(mKeyLow, grown);
+            mSequence = Arrays.copyOf(mSequence, grown);
+            mNextFree = Arrays.copyOf(mNextFree, grown);
+        }
+        return mHandleLimit++;
+    }
+
+    /* Backward-shift deletion keeps probe sequences intact without tombstones */
+    private void deleteSlot(int slot) {
+        int gap = slot;
+        int next = (gap + 1) & mTableMask;
+        int entry;
+        while ((entry = mTable[next]) != 0) {
+            int handle = entry - 1;
+            int home = slotFor(mKeyHigh[handle], mKeyLow[handle]);
+            //Move the entry back if its home slot is not between gap and next
+            if (((next - home) & mTableMask) >= ((next - gap) & mTableMask)) {
+                mTable[gap] = entry;
+                gap = next;
+            }
+            next = (next + 1) & mTableMask;
+        }
+        mTable[gap] = 0;
+    }
+
+    private void allocateTable(int size) {
+        mTable = new int[size];
+        mTableMask = size - 1;
+        for (int handle = 0; handle < mHandleLimit; handle++) {
+            if (mSequence[handle] < 0) continue;
+            int slot = slotFor(mKeyHigh[handle], mKeyLow[handle]);
+            while (mTable[slot] != 0) {
+                slot = (slot + 1) & mTableMask;
+            }
+            mTable[slot] = handle + 1;
+        }
+    }
+
+    private int slotFor(long keyHigh, long keyLow) {
+        return (int) mix(keyHigh * 0x9E3779B97F4A7C15L ^ keyLow) & mTableMask;
+    }
+
+    private static int tableSizeFor(int entries) {
+        return Integer.highestOneBit(entries * 2 - 1) << 1;
+    }
+
+    /* 64-bit finalizer from MurmurHash3 */
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
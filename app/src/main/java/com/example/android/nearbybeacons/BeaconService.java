@@ -1,17 +1,17 @@
 package com.example.android.nearbybeacons;
 
-import android.app.Notification;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.google.android.gms.nearby.Nearby;
 import com.google.android.gms.nearby.messages.Message;
 import com.google.android.gms.nearby.messages.MessageListener;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 
 /**
@@ -29,18 +29,50 @@ public class BeaconService extends Service {
             "BeaconService.ACTION_DISMISS";
 
     private static final int NOTIFICATION_ID = 42;
-
-    private NotificationManager mNotificationManager;
+    // Coalesce bursts of discoveries into one notification update
+    private static final long NOTIFICATION_DEBOUNCE_MS = 250;
+    private static final long NOTIFICATION_MIN_INTERVAL_MS = 1000;
+
+    // Track sections approximately in fixed memory, for very large fleets
+    private static boolean APPROXIMATE_SEEN = false;
+    // Nearby reports losses itself, the generations only catch missed ones
+    private static final int SEEN_CAPACITY = 16384;
+    private static final int SEEN_GENERATIONS = 3;
+    private static final long SEEN_GENERATION_MS = 30 * 60 * 1000;
+    private static final int SEEN_FINGERPRINT_BITS = 15;
+
+    // Nearby reports losses itself, so a visit only times out if one is missed
+    private static final long DWELL_SESSION_GAP_MS = 60 * 60 * 1000;
+    private static final long DWELL_WINDOW_MS = 60000;
+    private static final int DWELL_SLIDING_WINDOWS = 15;
+
+    private static final BeaconEventBus sEvents = BeaconEventBus.getDefault();
+
+    private NotificationDispatcher mNotifier;
     private HashSet<OfferBeacon> mDetectedBeacons;
+    // Dwell handles by section, and sections by handle
+    private HashMap<String, Integer> mSectionHandles;
+    private ArrayList<String> mSections;
+    private DwellAggregator mDwell;
+    // Replaces all of the above if APPROXIMATE_SEEN
+    private SeenFilter mSeenFilter;
 
     @Override
     public void onCreate() {
         super.onCreate();
         Log.d(TAG, "Background Scanning Service Created…");
-        mNotificationManager =
-                (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+        mNotifier = new NotificationDispatcher(this, ACTION_DISMISS, NOTIFICATION_ID,
+                NOTIFICATION_DEBOUNCE_MS, NOTIFICATION_MIN_INTERVAL_MS);
 
+        if (APPROXIMATE_SEEN) {
+            mSeenFilter = new SeenFilter(SEEN_CAPACITY, SEEN_GENERATIONS,
+                    SEEN_GENERATION_MS, SEEN_FINGERPRINT_BITS);
+        }
         mDetectedBeacons = new HashSet<>();
+        mSectionHandles = new HashMap<>();
+        mSections = new ArrayList<>();
+        mDwell = new DwellAggregator(DWELL_SESSION_GAP_MS, DWELL_WINDOW_MS,
+                DWELL_SLIDING_WINDOWS, mDwellListener);
     }
 
     @Override
@@ -51,7 +83,7 @@ public class BeaconService extends Service {
             //Convert the incoming intent into a message
             Nearby.Messages.handleIntent(intent, mMessageListener);
         } else {
-            mNotificationManager.cancel(NOTIFICATION_ID);
+            mNotifier.cancel();
             stopSelf();
         }
 
@@ -61,7 +93,12 @@ public class BeaconService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
-        Log.d(TAG, "Background Scanning Service Destroyed…");
+        mNotifier.release();
+        mDwell.flush();
+        Log.d(TAG, "Background Scanning Service Destroyed… " + mNotifier
+                + ", " + OfferBeacon.getPool()
+                + ", median dwell " + mDwell.getDwellPercentile(50) + "ms"
+                + (mSeenFilter != null ? ", " + mSeenFilter : ""));
     }
 
     @Override
@@ -69,44 +106,84 @@ public class BeaconService extends Service {
         return null;
     }
 
-    /* Handle user notifications */
-    private void postScanResultNotification(int count) {
-
-        Intent contentAction = new Intent(this, MainActivity.class);
-        contentAction.setAction(ACTION_DISMISS);
-        PendingIntent content = PendingIntent.getActivity(this, -1, contentAction, 0);
-
-        Intent deleteAction = new Intent(this, BeaconService.class);
-        deleteAction.setAction(ACTION_DISMISS);
-        PendingIntent delete = PendingIntent.getService(this, -1, deleteAction, 0);
-
-        Notification note = new Notification.Builder(this)
-                .setContentTitle("Beacons Detected")
-                .setContentText(String.format("%d New Beacons In Range", count))
-                .setSmallIcon(R.drawable.ic_stat_scan)
-                .setContentIntent(content)
-                .setDeleteIntent(delete)
-                .build();
-
-        mNotificationManager.notify(NOTIFICATION_ID, note);
-    }
-
     private MessageListener mMessageListener = new MessageListener() {
         @Override
         public void onFound(Message message) {
-            Log.i(TAG, "Found Background Beacon: "
-                    + new String(message.getContent()));
-            boolean added = mDetectedBeacons.add(new OfferBeacon(message));
+            OfferBeacon beacon = OfferBeacon.from(message);
+            Log.i(TAG, "Found Background Beacon: " + beacon);
+            if (sEvents.hasSubscribers(BeaconEvent.OFFER_FOUND)) {
+                sEvents.publish(BeaconEvent.forOffer(BeaconEvent.OFFER_FOUND, beacon,
+                        SystemClock.elapsedRealtime()));
+            }
+            if (mSeenFilter != null) {
+                mSeenFilter.advance(SystemClock.elapsedRealtime());
+                if (mSeenFilter.add(BeaconEvent.hashName(beacon.section), 0)) {
+                    mNotifier.update(mSeenFilter.getUnreadCount());
+                }
+                return;
+            }
+            boolean added = mDetectedBeacons.add(beacon);
             if (added) {
-                postScanResultNotification(mDetectedBeacons.size());
+                mNotifier.update(mDetectedBeacons.size());
             }
+            mDwell.onSighting(getSectionHandle(beacon.section), SystemClock.elapsedRealtime());
         }
 
         @Override
         public void onLost(Message message) {
-            Log.w(TAG, "Lost Background Beacon: "
-                    + new String(message.getContent()));
-            mDetectedBeacons.remove(new OfferBeacon(message));
+            OfferBeacon beacon = OfferBeacon.from(message);
+            Log.w(TAG, "Lost Background Beacon: " + beacon);
+            if (sEvents.hasSubscribers(BeaconEvent.OFFER_LOST)) {
+                sEvents.publish(BeaconEvent.forOffer(BeaconEvent.OFFER_LOST, beacon,
+                        SystemClock.elapsedRealtime()));
+            }
+            if (mSeenFilter != null) {
+                mSeenFilter.remove(BeaconEvent.hashName(beacon.section), 0);
+                return;
+            }
+            mDetectedBeacons.remove(beacon);
+            int handle = getSectionHandle(beacon.section);
+            long now = SystemClock.elapsedRealtime();
+            if (mDwell.isInSession(handle)) {
+                //Nearby only reports the beacon once, it was present until now
+                mDwell.onSighting(handle, now);
+            }
+            mDwell.onLost(handle, now);
+        }
+    };
+
+    private int getSectionHandle(String section) {
+        Integer handle = mSectionHandles.get(section);
+        if (handle == null) {
+            handle = mSections.size();
+            mSections.add(section);
+            mSectionHandles.put(section, handle);
+        }
+        return handle;
+    }
+
+    private DwellAggregator.Listener mDwellListener = new DwellAggregator.Listener() {
+        @Override
+        public void onSessionEnd(int handle, long start, long end) {
+            Log.i(TAG, "Visit to section " + mSections.get(handle)
+                    + " ended after " + (end - start) + "ms");
+        }
+
+        @Override
+        public void onWindow(int handle, long windowStart, int visits, int sightings) {
+            Log.d(TAG, "Section " + mSections.get(handle) + ": " + visits + " new visits, "
+                    + mDwell.getSlidingVisits(handle) + " in the last "
+                    + DWELL_SLIDING_WINDOWS + " minutes");
+        }
+
+        @Override
+        public void onWindowSummary(long windowStart, int visits, int activeBeacons,
+                                    long medianDwell) {
+        }
+
+        @Override
+        public void onReleased(int handle) {
+            //Sections are few and keep their handles; the aggregator reuses the slot
         }
     };
 }
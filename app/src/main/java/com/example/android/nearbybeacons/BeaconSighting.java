@@ -0,0 +1,55 @@
+package com.example.android.nearbybeacons;
+
+/**
+ * A single advertisement observed from a beacon: when it was seen,
+ * which device sent it, at what signal strength, and the decoded frame.
+ *
+ * Like {@link EddystoneFrame}, instances are reusable slots. Consumers
+ * receiving a sighting must copy out anything they want to keep.
+ */
+public class BeaconSighting {
+
+    /** Monotonic time of the sighting, in milliseconds */
+    public long timestamp;
+    /** 48-bit device address, packed by {@link #parseAddress(String)} */
+    public long address;
+    /** Received signal strength in dBm */
+    public int rssi;
+    /** Decoded frame contents */
+    public final EddystoneFrame frame = new EddystoneFrame();
+
+    public void set(BeaconSighting other) {
+        timestamp = other.timestamp;
+        address = other.address;
+        rssi = other.rssi;
+        frame.set(other.frame);
+    }
+
+    /**
+     * Pack a colon-separated device address (e.g. "00:11:22:AA:BB:CC")
+     * into the low 48 bits of a long.
+     */
+    public static long parseAddress(String address) {
+        long packed = 0;
+        int len = address.length();
+        for (int i = 0; i < len; i++) {
+            int digit = Character.digit(address.charAt(i), 16);
+            if (digit >= 0) {
+                packed = (packed << 4) | digit;
+            }
+        }
+
+        return packed;
+    }
+
+    /** Inverse of {@link #parseAddress(String)} */
+    public static String formatAddress(long address) {
+        StringBuilder sb = new StringBuilder(17);
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            EddystoneFrame.appendHex(sb, address >>> shift, 2);
+            if (shift > 0) sb.append(':');
+        }
+
+        return sb.toString().toUpperCase();
+    }
+}
@@ -0,0 +1,184 @@
+package com.example.android.nearbybeacons;
+
+import java.util.Arrays;
+
+/**
+ * Per-beacon RSSI smoothing and distance estimation, indexed by
+ * {@link BeaconRegistry} handle.
+ *
+ * Each sample runs one step of a scalar Kalman filter over the RSSI and
+ * then refreshes the estimated distance and proximity zone, all in
+ * primitive arrays. Adding a sample is O(1) and does not allocate.
+ *
+ * Distance uses the log-distance path loss model against the calibrated
+ * TX power from the frame, which Eddystone reports at 0m; the 1m
+ * reference is 41dB below that.
+ *
+ * Zones are debounced: a beacon only moves to a new zone once that many
+ * consecutive samples agree, so a beacon on a boundary does not flap.
+ * The number of beacons in each zone is kept up to date as they move, so
+ * callers can notify by proximity without scanning every beacon.
+ *
+ * This class is not thread-safe and has no Android dependencies.
+ */
+public class BeaconSignalEngine {
+
+    public static final int ZONE_UNKNOWN = 0;
+    public static final int ZONE_IMMEDIATE = 1;
+    public static final int ZONE_NEAR = 2;
+    public static final int ZONE_FAR = 3;
+
+    // Loss between the 0m calibration point and 1m
+    private static final int ONE_METER_LOSS = 41;
+    // Zone boundaries, in meters
+    private static final float IMMEDIATE_LIMIT = 0.5f;
+    private static final float NEAR_LIMIT = 3f;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final float mProcessNoise;
+    private final float mMeasurementNoise;
+    private final double mPathLossFactor;
+    private final int mZoneDebounce;
+
+    private float[] mRssi;
+    private float[] mError;
+    private float[] mDistance;
+    private byte[] mZone;
+    // Zone the recent samples point to, and how many in a row have
+    private byte[] mCandidateZone;
+    private int[] mCandidateSamples;
+    private int[] mSamples;
+    // Beacons per zone, indexed by ZONE_*
+    private final int[] mZoneCounts = new int[ZONE_FAR + 1];
+
+    /**
+     * @param processNoise Expected RSSI drift between samples (variance)
+     * @param measurementNoise Expected RSSI noise per sample (variance)
+     * @param pathLossExponent 2.0 in free space, typically 2-4 indoors
+     * @param zoneDebounce Consecutive samples needed to change zone
+     */
+    public BeaconSignalEngine(float processNoise, float measurementNoise,
+                              float pathLossExponent, int zoneDebounce) {
+        mProcessNoise = processNoise;
+        mMeasurementNoise = measurementNoise;
+        mPathLossFactor = 10.0 * pathLossExponent;
+        mZoneDebounce = Math.max(zoneDebounce, 1);
+
+        mRssi = new float[INITIAL_CAPACITY];
+        mError = new float[INITIAL_CAPACITY];
+        mDistance = new float[INITIAL_CAPACITY];
+        mZone = new byte[INITIAL_CAPACITY];
+        mCandidateZone = new byte[INITIAL_CAPACITY];
+        mCandidateSamples = new int[INITIAL_CAPACITY];
+        mSamples = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Feed one RSSI reading for the beacon with this handle
+     *
+     * @return true if the beacon changed zone, including into its first one
+     */
+    public boolean addSample(int handle, int rssi, int txPower) {
+        ensureCapacity(handle);
+
+        float estimate;
+        if (mSamples[handle] == 0) {
+            estimate = rssi;
+            mError[handle] = mMeasurementNoise;
+        } else {
+            float error = mError[handle] + mProcessNoise;
+            float gain = error / (error + mMeasurementNoise);
+            estimate = mRssi[handle] + gain * (rssi - mRssi[handle]);
+            mError[handle] = (1 - gain) * error;
+        }
+        mRssi[handle] = estimate;
+        mSamples[handle]++;
+
+        float distance = (float) Math.pow(10.0,
+                (txPower - ONE_METER_LOSS - estimate) / mPathLossFactor);
+        mDistance[handle] = distance;
+        int zone = distance < IMMEDIATE_LIMIT ? ZONE_IMMEDIATE
+                : distance < NEAR_LIMIT ? ZONE_NEAR : ZONE_FAR;
+
+        int current = mZone[handle];
+        if (zone == current) {
+            mCandidateSamples[handle] = 0;
+            return false;
+        }
+        if (current != ZONE_UNKNOWN) {
+            if (mCandidateZone[handle] != zone) {
+                mCandidateZone[handle] = (byte) zone;
+                mCandidateSamples[handle] = 0;
+            }
+            if (++mCandidateSamples[handle] < mZoneDebounce) return false;
+            mZoneCounts[current]--;
+        }
+        mZoneCounts[zone]++;
+        mZone[handle] = (byte) zone;
+        mCandidateSamples[handle] = 0;
+        return true;
+    }
+
+    /** Forget the history for a handle, e.g. when it is reused */
+    public void reset(int handle) {
+        if (handle < mSamples.length) {
+            mSamples[handle] = 0;
+            if (mZone[handle] != ZONE_UNKNOWN) {
+                mZoneCounts[mZone[handle]]--;
+            }
+            mZone[handle] = ZONE_UNKNOWN;
+            mCandidateSamples[handle] = 0;
+        }
+    }
+
+    public int getSampleCount(int handle) {
+        return handle < mSamples.length ? mSamples[handle] : 0;
+    }
+
+    /** Smoothed RSSI in dBm */
+    public float getRssi(int handle) {
+        return mRssi[handle];
+    }
+
+    /** Estimated distance in meters */
+    public float getDistance(int handle) {
+        return mDistance[handle];
+    }
+
+    /** One of the ZONE_* constants, after debouncing */
+    public int getZone(int handle) {
+        return handle < mZone.length ? mZone[handle] : ZONE_UNKNOWN;
+    }
+
+    /** Number of beacons currently in the given zone, other than ZONE_UNKNOWN */
+    public int getZoneCount(int zone) {
+        return mZoneCounts[zone];
+    }
+
+    public static String getZoneName(int zone) {
+        switch (zone) {
+            case ZONE_IMMEDIATE:
+                return "immediate";
+            case ZONE_NEAR:
+                return "near";
+            case ZONE_FAR:
+                return "far";
+            default:
+                return "unknown";
+        }
+    }
+
+    private void ensureCapacity(int handle) {
+        if (handle < mSamples.length) return;
+
+        int size = Math.max(handle + 1, mSamples.length * 2);
+        mRssi = Arrays.copyOf(mRssi, size);
+        mError = Arrays.copyOf(mError, size);
+        mDistance = Arrays.copyOf(mDistance, size);
+        mZone = Arrays.copyOf(mZone, size);
+        mCandidateZone = Arrays.copyOf(mCandidateZone, size);
+        mCandidateSamples = Arrays.copyOf(mCandidateSamples, size);
+        mSamples = Arrays.copyOf(mSamples, size);
+    }
+}
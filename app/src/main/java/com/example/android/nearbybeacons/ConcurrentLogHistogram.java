@@ -0,0 +1,46 @@
+package com.example.android.nearbybeacons;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free counterpart of {@link LogHistogram} for recording from any
+ * thread. Recording is a bucket calculation and one atomic increment;
+ * percentiles are read from a {@link #snapshot()}.
+ *
+ * This class has no Android dependencies.
+ */
+public class ConcurrentLogHistogram {
+
+    private final int mSubBucketBits;
+    private final int mMaxBits;
+    private final long mMaxValue;
+    private final AtomicLongArray mCounts;
+
+    /** See {@link LogHistogram#LogHistogram(int, int)} */
+    public ConcurrentLogHistogram(int subBucketBits, int maxBits) {
+        mSubBucketBits = subBucketBits;
+        mMaxBits = maxBits;
+        mMaxValue = (1L << maxBits) - 1;
+        mCounts = new AtomicLongArray(LogHistogram.bucketCount(subBucketBits, maxBits));
+    }
+
+    public void record(long value) {
+        long clamped = value < 0 ? 0 : (value > mMaxValue ? mMaxValue : value);
+        mCounts.incrementAndGet(LogHistogram.bucketOf(clamped, mSubBucketBits));
+    }
+
+    /**
+     * Copy the counts recorded so far. Values recorded concurrently may
+     * or may not be included.
+     */
+    public LogHistogram snapshot() {
+        LogHistogram copy = new LogHistogram(mSubBucketBits, mMaxBits);
+        for (int i = 0; i < mCounts.length(); i++) {
+            long count = mCounts.get(i);
+            if (count > 0) {
+                copy.addToBucket(i, count);
+            }
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,328 @@
+package com.example.android.nearbybeacons;
+
+import java.util.Arrays;
+
+/**
+ * Streaming dwell time and footfall statistics over sighting events,
+ * indexed by a stable per-beacon handle.
+ *
+ * Consecutive sightings of a beacon less than the session gap apart
+ * form one dwell session (a visit); the session ends at its last
+ * sighting once the gap passes, or when the beacon is reported lost.
+ * Time is divided into tumbling windows: for every window each beacon
+ * reports its visits and sightings, and the listener also gets totals
+ * with the median dwell of the sessions that ended in that window. A
+ * sliding count of visits over the last few windows is kept as well.
+ * Windows in which nothing happened are not reported.
+ *
+ * Dwell percentiles come from {@link LogHistogram}s, so memory is a
+ * fixed amount per beacon however much traffic it sees, and each event
+ * is O(1) apart from the per-window report. Once a beacon's last visit
+ * has ended and every window it was seen in has left the sliding count,
+ * its handle is released: its state is cleared, including its per-beacon
+ * totals, and the listener is told so the caller can reuse the handle.
+ * Memory therefore follows the beacons seen recently, not all of them.
+ *
+ * Time is always passed in by the caller, in milliseconds on any
+ * monotonic clock, and must not go backwards; see {@link DwellReplay}
+ * for running a journal through at full speed. This class is not
+ * thread-safe and has no Android dependencies.
+ */
+public class DwellAggregator {
+
+    /** Receives completed sessions and windows */
+    public interface Listener {
+        /** A visit to this beacon has ended */
+        void onSessionEnd(int handle, long start, long end);
+
+        /** Counts for a beacon that was seen in the window just closed */
+        void onWindow(int handle, long windowStart, int visits, int sightings);
+
+        /** Totals for the window just closed */
+        void onWindowSummary(long windowStart, int visits, int activeBeacons,
+                             long medianDwell);
+
+        /**
+         * Nothing is left about this beacon and its state was cleared, so
+         * the handle may be given to another. Releases happen as time
+         * advances; call {@link #advance} before looking up a handle to
+         * pass to onSighting.
+         */
+        void onReleased(int handle);
+    }
+
+    // Dwell histograms: about 6% precision, up to 49 days
+    private static final int DWELL_SUB_BUCKET_BITS = 3;
+    private static final int DWELL_MAX_BITS = 32;
+
+    private static final long NONE = -1;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final long mWindowMillis;
+    private final int mSlidingWindows;
+    private final Listener mListener;
+    // Closes sessions once the gap has passed without a sighting
+    private final ExpiryWheel mSessionTimeouts;
+
+    // Per handle
+    private long[] mSessionStart;
+    private long[] mLastSeen;
+    private int[] mSessions;
+    private int[] mWindowSightings;
+    // Window of the last sighting, NONE for handles not in use
+    private long[] mLastActiveWindow;
+    // mSlidingWindows visit counts per handle, a ring indexed by window
+    private int[] mWindowVisits;
+    private LogHistogram[] mDwell;
+    private int mHandleLimit;
+
+    private long mWindow = NONE;
+    private int mWindowTotalVisits;
+    private final LogHistogram mWindowDwell =
+            new LogHistogram(DWELL_SUB_BUCKET_BITS, DWELL_MAX_BITS);
+    private final LogHistogram mAllDwell =
+            new LogHistogram(DWELL_SUB_BUCKET_BITS, DWELL_MAX_BITS);
+
+    private final ExpiryWheel.Listener mTimeoutListener = new ExpiryWheel.Listener() {
+        @Override
+        public void onLost(int handle) {
+            endSession(handle);
+        }
+    };
+
+    /**
+     * @param sessionGapMillis Longest gap between sightings within one visit
+     * @param windowMillis Length of a tumbling window, e.g. one minute
+     * @param slidingWindows Number of recent windows in the sliding count
+     * @param listener Optional, may be null
+     */
+    public DwellAggregator(long sessionGapMillis, long windowMillis, int slidingWindows,
+                           Listener listener) {
+        mWindowMillis = windowMillis;
+        mSlidingWindows = slidingWindows;
+        mListener = listener;
+        mSessionTimeouts = new ExpiryWheel(Math.max(sessionGapMillis / 8, 1), 64,
+                sessionGapMillis);
+
+        mSessionStart = new long[INITIAL_CAPACITY];
+        mLastSeen = new long[INITIAL_CAPACITY];
+        mSessions = new int[INITIAL_CAPACITY];
+        mWindowSightings = new int[INITIAL_CAPACITY];
+        mLastActiveWindow = new long[INITIAL_CAPACITY];
+        Arrays.fill(mLastActiveWindow, NONE);
+        mWindowVisits = new int[INITIAL_CAPACITY * slidingWindows];
+        mDwell = new LogHistogram[INITIAL_CAPACITY];
+        Arrays.fill(mSessionStart, NONE);
+    }
+
+    /** Record a sighting of the beacon with this handle */
+    public void onSighting(int handle, long timestamp) {
+        advance(timestamp);
+        ensureCapacity(handle);
+
+        if (mSessionStart[handle] == NONE) {
+            mSessionStart[handle] = timestamp;
+            mSessions[handle]++;
+            mWindowVisits[handle * mSlidingWindows + ringSlot(mWindow)]++;
+            mWindowTotalVisits++;
+        }
+        mLastSeen[handle] = Math.max(mLastSeen[handle], timestamp);
+        mWindowSightings[handle]++;
+        mLastActiveWindow[handle] = mWindow;
+        mSessionTimeouts.touch(handle, timestamp);
+    }
+
+    /** End the current visit to this beacon, if any */
+    public void onLost(int handle, long timestamp) {
+        advance(timestamp);
+        if (handle < mHandleLimit) {
+            endSession(handle);
+        }
+    }
+
+    /**
+     * Move time forward, ending sessions whose gap has passed and
+     * closing any windows that are complete.
+     */
+    public void advance(long now) {
+        long window = now / mWindowMillis;
+        if (mWindow == NONE) {
+            mWindow = window;
+        }
+        while (mWindow < window) {
+            //Sessions that time out before the window closes count in it
+            mSessionTimeouts.advance((mWindow + 1) * mWindowMillis - 1, mTimeoutListener);
+            closeWindow();
+            if (mSessionTimeouts.size() == 0) {
+                //Nothing can happen until now, skip the empty windows
+                skipTo(window);
+            }
+        }
+        mSessionTimeouts.advance(now, mTimeoutListener);
+    }
+
+    /** End every open visit and close the current window, e.g. at the end of a trace */
+    public void flush() {
+        for (int handle = 0; handle < mHandleLimit; handle++) {
+            endSession(handle);
+        }
+        if (mWindow != NONE) {
+            closeWindow();
+        }
+    }
+
+    /** Forget everything about a handle, e.g. before it is reused */
+    public void reset(int handle) {
+        if (handle >= mHandleLimit) return;
+        mSessionTimeouts.remove(handle);
+        mSessionStart[handle] = NONE;
+        mLastSeen[handle] = 0;
+        mSessions[handle] = 0;
+        mWindowSightings[handle] = 0;
+        mLastActiveWindow[handle] = NONE;
+        Arrays.fill(mWindowVisits, handle * mSlidingWindows,
+                (handle + 1) * mSlidingWindows, 0);
+        if (mDwell[handle] != null) mDwell[handle].clear();
+    }
+
+    public boolean isInSession(int handle) {
+        return handle < mHandleLimit && mSessionStart[handle] != NONE;
+    }
+
+    /** Visits to this beacon since tracking began */
+    public int getSessionCount(int handle) {
+        return handle < mHandleLimit ? mSessions[handle] : 0;
+    }
+
+    /** Visits to this beacon that started in the current window */
+    public int getWindowVisits(int handle) {
+        if (handle >= mHandleLimit || mWindow == NONE) return 0;
+        return mWindowVisits[handle * mSlidingWindows + ringSlot(mWindow)];
+    }
+
+    /** Visits to this beacon over the current and previous sliding windows */
+    public int getSlidingVisits(int handle) {
+        if (handle >= mHandleLimit) return 0;
+        int visits = 0;
+        for (int i = 0; i < mSlidingWindows; i++) {
+            visits += mWindowVisits[handle * mSlidingWindows + i];
+        }
+        return visits;
+    }
+
+    /** Dwell time percentile (0-100) over completed visits to this beacon */
+    public long getDwellPercentile(int handle, double percentile) {
+        if (handle >= mHandleLimit || mDwell[handle] == null) return 0;
+        return mDwell[handle].getPercentile(percentile);
+    }
+
+    /** Dwell time percentile (0-100) over all completed visits */
+    public long getDwellPercentile(double percentile) {
+        return mAllDwell.getPercentile(percentile);
+    }
+
+    public long getCompletedSessionCount() {
+        return mAllDwell.getCount();
+    }
+
+    private void endSession(int handle) {
+        long start = mSessionStart[handle];
+        if (start == NONE) return;
+
+        long end = mLastSeen[handle];
+        mSessionStart[handle] = NONE;
+        mSessionTimeouts.remove(handle);
+
+        long dwell = end - start;
+        if (mDwell[handle] == null) {
+            mDwell[handle] = new LogHistogram(DWELL_SUB_BUCKET_BITS, DWELL_MAX_BITS);
+        }
+        mDwell[handle].record(dwell);
+        mAllDwell.record(dwell);
+        mWindowDwell.record(dwell);
+        if (mListener != null) {
+            mListener.onSessionEnd(handle, start, end);
+        }
+    }
+
+    private void closeWindow() {
+        long windowStart = mWindow * mWindowMillis;
+        int slot = ringSlot(mWindow);
+        int active = 0;
+        for (int handle = 0; handle < mHandleLimit; handle++) {
+            int sightings = mWindowSightings[handle];
+            if (sightings == 0) continue;
+            active++;
+            if (mListener != null) {
+                mListener.onWindow(handle, windowStart,
+                        mWindowVisits[handle * mSlidingWindows + slot], sightings);
+            }
+            mWindowSightings[handle] = 0;
+        }
+        //A window with no sightings and no visit ending in it has nothing to report
+        if (mListener != null && (active > 0 || mWindowDwell.getCount() > 0)) {
+            mListener.onWindowSummary(windowStart, mWindowTotalVisits, active,
+                    mWindowDwell.getPercentile(50));
+        }
+
+        mWindow++;
+        mWindowTotalVisits = 0;
+        mWindowDwell.clear();
+        //Reuse the oldest slot of each ring for the new window
+        int next = ringSlot(mWindow);
+        for (int handle = 0; handle < mHandleLimit; handle++) {
+            mWindowVisits[handle * mSlidingWindows + next] = 0;
+            releaseIfIdle(handle);
+        }
+    }
+
+    /* Release a handle with no visit in progress or left in the sliding count */
+    private void releaseIfIdle(int handle) {
+        long last = mLastActiveWindow[handle];
+        if (last == NONE || mSessionStart[handle] != NONE
+                || mWindow - last < mSlidingWindows) {
+            return;
+        }
+        reset(handle);
+        if (mListener != null) {
+            mListener.onReleased(handle);
+        }
+    }
+
+    private void skipTo(long window) {
+        long skipped = Math.min(window - mWindow, mSlidingWindows);
+        for (long w = window - skipped + 1; w <= window; w++) {
+            int slot = ringSlot(w);
+            for (int handle = 0; handle < mHandleLimit; handle++) {
+                mWindowVisits[handle * mSlidingWindows + slot] = 0;
+            }
+        }
+        mWindow = window;
+        for (int handle = 0; handle < mHandleLimit; handle++) {
+            releaseIfIdle(handle);
+        }
+    }
+
+    private int ringSlot(long window) {
+        return (int) (window % mSlidingWindows);
+    }
+
+    private void ensureCapacity(int handle) {
+        if (handle >= mHandleLimit) {
+            mHandleLimit = handle + 1;
+        }
+        if (handle < mSessionStart.length) return;
+
+        int size = Math.max(handle + 1, mSessionStart.length * 2);
+        int oldSize = mSessionStart.length;
+        mSessionStart = Arrays.copyOf(mSessionStart, size);
+        Arrays.fill(mSessionStart, oldSize, size, NONE);
+        mLastSeen = Arrays.copyOf(mLastSeen, size);
+        mSessions = Arrays.copyOf(mSessions, size);
+        mWindowSightings = Arrays.copyOf(mWindowSightings, size);
+        mLastActiveWindow = Arrays.copyOf(mLastActiveWindow, size);
+        Arrays.fill(mLastActiveWindow, oldSize, size, NONE);
+        mWindowVisits = Arrays.copyOf(mWindowVisits, size * mSlidingWindows);
+        mDwell = Arrays.copyOf(mDwell, size);
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.android.nearbybeacons;
+
+import java.io.IOException;
+
+/**
+ * Runs a recorded sighting trace through a {@link DwellAggregator} as
+ * fast as it can be read, using the recorded timestamps as the clock.
+ *
+ * Beacon ids are mapped to aggregator handles in order of first
+ * appearance; {@link #getBeacons()} maps them back. Replay a journal
+ * before it is compacted, as compaction keeps only the latest sighting
+ * of each beacon.
+ *
+ * This class is not thread-safe and has no Android dependencies.
+ */
+public class DwellReplay implements SightingJournal.Visitor {
+
+    private final DwellAggregator mAggregator;
+    private final BeaconRegistry mBeacons = new BeaconRegistry();
+    private long mLastTimestamp = Long.MIN_VALUE;
+    private long mEvents;
+    private long mReordered;
+    private long mElapsedNanos;
+
+    public DwellReplay(DwellAggregator aggregator) {
+        mAggregator = aggregator;
+    }
+
+    /** Replay every record in the journal, then flush the aggregator */
+    public void run(SightingJournal journal) throws IOException {
+        long start = System.nanoTime();
+        journal.replay(this);
+        mAggregator.flush();
+        mElapsedNanos += System.nanoTime() - start;
+    }
+
+    @Override
+    public void onSighting(long timestamp, long idHigh, long idLow, int rssi, int txPower) {
+        int handle = mBeacons.find(idHigh, idLow);
+        if (handle == BeaconRegistry.NOT_FOUND) {
+            handle = mBeacons.add(idHigh, idLow);
+        }
+
+        //The aggregator's clock may not go backwards
+        if (timestamp < mLastTimestamp) {
+            timestamp = mLastTimestamp;
+            mReordered++;
+        }
+        mLastTimestamp = timestamp;
+        mAggregator.onSighting(handle, timestamp);
+        mEvents++;
+    }
+
+    /** Beacon ids by aggregator handle */
+    public BeaconRegistry getBeacons() {
+        return mBeacons;
+    }
+
+    public long getEventCount() {
+        return mEvents;
+    }
+
+    /** Events replayed per second of wall time */
+    public long getEventRate() {
+        return mElapsedNanos > 0 ? mEvents * 1000000000L / mElapsedNanos : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "DwellReplay[" + mEvents + " events, "
+                + mReordered + " reordered, "
+                + getEventRate() + " events/s]";
+    }
+}
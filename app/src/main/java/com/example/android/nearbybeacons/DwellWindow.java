@@ -0,0 +1,30 @@
+package com.example.android.nearbybeacons;
+
+/**
+ * Footfall of one beacon over a closed {@link DwellAggregator} window,
+ * carried as the payload of {@link BeaconEvent#WINDOW} events.
+ */
+public class DwellWindow {
+
+    /** Start of the window, on the same clock as the sightings */
+    public final long windowStart;
+    /** Visits that started in the window */
+    public final int visits;
+    /** Sightings in the window */
+    public final int sightings;
+    /** Visits over the sliding windows ending with this one */
+    public final int slidingVisits;
+
+    public DwellWindow(long windowStart, int visits, int sightings, int slidingVisits) {
+        this.windowStart = windowStart;
+        this.visits = visits;
+        this.sightings = sightings;
+        this.slidingVisits = slidingVisits;
+    }
+
+    @Override
+    public String toString() {
+        return "DwellWindow[@" + windowStart + ", " + visits + " visits, "
+                + sightings + " sightings, " + slidingVisits + " sliding]";
+    }
+}
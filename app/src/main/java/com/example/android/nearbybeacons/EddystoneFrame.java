@@ -0,0 +1,116 @@
+package com.example.android.nearbybeacons;
+
+/**
+ * Reusable holder for a single decoded Eddystone frame.
+ *
+ * Instances are filled in place by {@link EddystoneFrameDecoder}, so the
+ * same object can be recycled for every scan result without allocating.
+ * Only the fields belonging to the current {@link #type} are valid; copy
+ * out anything you need to keep before decoding the next frame.
+ */
+public class EddystoneFrame {
+
+    // Eddystone frame types
+    public static final int TYPE_UID = 0x00;
+    public static final int TYPE_URL = 0x10;
+    public static final int TYPE_TLM = 0x20;
+    public static final int TYPE_EID = 0x30;
+
+    // Reported by TLM frames when the beacon has no temperature sensor
+    public static final int TEMPERATURE_UNSUPPORTED = 0x8000;
+
+    private static final long INSTANCE_MASK = 0xFFFFFFFFFFFFL;
+
+    /** One of the TYPE_* constants */
+    public int type;
+    /** Calibrated TX power at 0m in dBm (UID, URL and EID frames) */
+    public int txPower;
+
+    /* UID frames: the 16-byte beacon id, big-endian */
+    /** Namespace bytes 0-7 */
+    public long idHigh;
+    /** Namespace bytes 8-9, followed by the 6-byte instance */
+    public long idLow;
+
+    /* EID frames */
+    /** The 8-byte ephemeral identifier, big-endian */
+    public long ephemeralId;
+
+    /* URL frames */
+    /** Scheme prefix code (0x00-0x03) */
+    public int urlScheme;
+    /** Encoded URL bytes, valid up to {@link #urlLength} */
+    public final byte[] url = new byte[17];
+    public int urlLength;
+
+    /* TLM frames */
+    public int tlmVersion;
+    public int batteryMillivolts;
+    /** Signed 8.8 fixed point degrees Celsius, or TEMPERATURE_UNSUPPORTED */
+    public int temperature;
+    public long advertisingCount;
+    /** Time since power-on, in 0.1 second increments */
+    public long uptimeTenths;
+
+    /** Copy the contents of another frame into this one */
+    public void set(EddystoneFrame other) {
+        type = other.type;
+        txPower = other.txPower;
+        idHigh = other.idHigh;
+        idLow = other.idLow;
+        ephemeralId = other.ephemeralId;
+        urlScheme = other.urlScheme;
+        urlLength = other.urlLength;
+        System.arraycopy(other.url, 0, url, 0, other.urlLength);
+        tlmVersion = other.tlmVersion;
+        batteryMillivolts = other.batteryMillivolts;
+        temperature = other.temperature;
+        advertisingCount = other.advertisingCount;
+        uptimeTenths = other.uptimeTenths;
+    }
+
+    /** Low 16 bits (bytes 8-9) of the 80-bit namespace, stored in the top of {@link #idLow} */
+    public int getNamespaceLow() {
+        return (int) (idLow >>> 48);
+    }
+
+    /** 48-bit instance id */
+    public long getInstance() {
+        return idLow & INSTANCE_MASK;
+    }
+
+    public float getTemperatureCelsius() {
+        return temperature / 256f;
+    }
+
+    @Override
+    public String toString() {
+        switch (type) {
+            case TYPE_UID:
+                StringBuilder sb = new StringBuilder("UID[");
+                appendHex(sb, idHigh, 16);
+                appendHex(sb, getNamespaceLow(), 4);
+                sb.append(':');
+                appendHex(sb, getInstance(), 12);
+                return sb.append(']').toString();
+            case TYPE_EID:
+                return "EID[" + Long.toHexString(ephemeralId) + "]";
+            case TYPE_URL:
+                return "URL[scheme=" + urlScheme + ", length=" + urlLength + "]";
+            case TYPE_TLM:
+                return "TLM[" + batteryMillivolts + "mV, "
+                        + getTemperatureCelsius() + "C, "
+                        + advertisingCount + " adv, "
+                        + uptimeTenths + " uptime]";
+            default:
+                return "Unknown[" + type + "]";
+        }
+    }
+
+    /* Append the low (digits * 4) bits of value as zero-padded hex */
+    static void appendHex(StringBuilder sb, long value, int digits) {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            sb.append(Character.forDigit((int) (value >>> shift) & 0xF, 16));
+        }
+    }
+}
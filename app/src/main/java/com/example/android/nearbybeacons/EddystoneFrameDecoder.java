@@ -0,0 +1,159 @@
+package com.example.android.nearbybeacons;
+
+/**
+ * Decodes Eddystone UID, URL, TLM and EID frames into a reusable
+ * {@link EddystoneFrame} without allocating.
+ *
+ * Input can be either the raw advertisement bytes of a scan record
+ * (as returned by ScanRecord.getBytes()) or the Eddystone service data
+ * alone. This class has no Android dependencies.
+ */
+public class EddystoneFrameDecoder {
+
+    // Advertising data type for 16-bit UUID service data
+    private static final int AD_SERVICE_DATA_16 = 0x16;
+    // Eddystone service uuid (0xfeaa)
+    private static final int EDDYSTONE_UUID = 0xFEAA;
+
+    // Minimum service data lengths for each frame type
+    private static final int UID_LENGTH = 18;
+    private static final int URL_MIN_LENGTH = 3;
+    private static final int TLM_LENGTH = 14;
+    private static final int EID_LENGTH = 10;
+
+    private EddystoneFrameDecoder() {
+        //No instances
+    }
+
+    /**
+     * Locate the Eddystone service data inside a raw scan record and
+     * decode it into the supplied frame.
+     *
+     * @return true if an Eddystone frame was found and decoded
+     */
+    public static boolean decodeScanRecord(byte[] scanRecord, EddystoneFrame out) {
+        return scanRecord != null && decodeScanRecord(scanRecord, scanRecord.length, out);
+    }
+
+    /**
+     * Same as {@link #decodeScanRecord(byte[], EddystoneFrame)} for a
+     * record held in the first {@code length} bytes of a reused buffer.
+     */
+    public static boolean decodeScanRecord(byte[] scanRecord, int length, EddystoneFrame out) {
+        int offset = 0;
+        while (offset < length) {
+            int fieldLength = scanRecord[offset] & 0xFF;
+            if (fieldLength == 0) {
+                //Remainder of the record is padding
+                return false;
+            }
+            int end = offset + 1 + fieldLength;
+            if (end > length) {
+                //Truncated structure
+                return false;
+            }
+
+            int adType = scanRecord[offset + 1] & 0xFF;
+            if (adType == AD_SERVICE_DATA_16 && fieldLength >= 3) {
+                //UUID is little-endian in the advertisement
+                int uuid = (scanRecord[offset + 2] & 0xFF)
+                        | ((scanRecord[offset + 3] & 0xFF) << 8);
+                if (uuid == EDDYSTONE_UUID) {
+                    return decodeServiceData(scanRecord,
+                            offset + 4, end - (offset + 4), out);
+                }
+            }
+
+            offset = end;
+        }
+
+        return false;
+    }
+
+    /**
+     * Decode Eddystone service data (frame type byte first) into the
+     * supplied frame.
+     *
+     * @return true if the data held a valid frame of a known type
+     */
+    public static boolean decodeServiceData(byte[] data, EddystoneFrame out) {
+        return data != null && decodeServiceData(data, 0, data.length, out);
+    }
+
+    /**
+     * Decode Eddystone service data located at {@code offset} in
+     * {@code data} into the supplied frame.
+     *
+     * @return true if the data held a valid frame of a known type
+     */
+    public static boolean decodeServiceData(byte[] data, int offset, int length,
+                                            EddystoneFrame out) {
+        if (length < 1) return false;
+
+        int type = data[offset] & 0xFF;
+        switch (type) {
+            case EddystoneFrame.TYPE_UID:
+                if (length < UID_LENGTH) return false;
+                out.txPower = data[offset + 1];
+                out.idHigh = readLong(data, offset + 2);
+                out.idLow = readLong(data, offset + 10);
+                break;
+            case EddystoneFrame.TYPE_URL:
+                if (length < URL_MIN_LENGTH) return false;
+                out.txPower = data[offset + 1];
+                out.urlScheme = data[offset + 2] & 0xFF;
+                out.urlLength = Math.min(length - URL_MIN_LENGTH, out.url.length);
+                System.arraycopy(data, offset + URL_MIN_LENGTH, out.url, 0, out.urlLength);
+                break;
+            case EddystoneFrame.TYPE_TLM:
+                if (length < 2) return false;
+                out.tlmVersion = data[offset + 1] & 0xFF;
+                if (out.tlmVersion != 0 || length < TLM_LENGTH) {
+                    //Encrypted (or malformed) telemetry, version only
+                    out.batteryMillivolts = 0;
+                    out.temperature = EddystoneFrame.TEMPERATURE_UNSUPPORTED;
+                    out.advertisingCount = 0;
+                    out.uptimeTenths = 0;
+                    break;
+                }
+                out.batteryMillivolts = readUnsignedShort(data, offset + 2);
+                int temperature = readUnsignedShort(data, offset + 4);
+                out.temperature = temperature == EddystoneFrame.TEMPERATURE_UNSUPPORTED
+                        ? temperature : (short) temperature;
+                out.advertisingCount = readUnsignedInt(data, offset + 6);
+                out.uptimeTenths = readUnsignedInt(data, offset + 10);
+                break;
+            case EddystoneFrame.TYPE_EID:
+                if (length < EID_LENGTH) return false;
+                out.txPower = data[offset + 1];
+                out.ephemeralId = readLong(data, offset + 2);
+                break;
+            default:
+                return false;
+        }
+
+        out.type = type;
+        return true;
+    }
+
+    /* Big-endian field readers */
+
+    static long readLong(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    static long readUnsignedInt(byte[] data, int offset) {
+        return ((long) (data[offset] & 0xFF) << 24)
+                | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8)
+                | (data[offset + 3] & 0xFF);
+    }
+
+    static int readUnsignedShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+}
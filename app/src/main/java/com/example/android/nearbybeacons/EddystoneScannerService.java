@@ -1,9 +1,7 @@
 package com.example.android.nearbybeacons;
 
-import android.app.Notification;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
@@ -11,16 +9,26 @@ import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.os.Handler;
 import android.os.IBinder;
-import android.os.Looper;
 import android.os.ParcelUuid;
-import android.util.ArrayMap;
+import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * This class is Deprecated!
@@ -44,9 +52,28 @@ public class EddystoneScannerService extends Service {
     // Action to track notification dismissal
     public static final String ACTION_DISMISS =
             "EddystoneScannerService.ACTION_DISMISS";
+    // Actions to track whether the app is in the foreground
+    public static final String ACTION_FOREGROUND =
+            "EddystoneScannerService.ACTION_FOREGROUND";
+    public static final String ACTION_BACKGROUND =
+            "EddystoneScannerService.ACTION_BACKGROUND";
 
     // …if you feel like making the log a bit noisier…
     private static boolean DEBUG_SCAN = false;
+    // …or record every raw scan result for replaying off the device
+    private static boolean RECORD_TRACE = false;
+    // Track seen beacons approximately in fixed memory, for very large fleets
+    private static boolean APPROXIMATE_SEEN = false;
+
+    // Frame type byte of Eddystone-TLM, -URL and -EID service data
+    private static final byte[] TLM_FILTER_DATA = {EddystoneFrame.TYPE_TLM};
+    private static final byte[] URL_FILTER_DATA = {EddystoneFrame.TYPE_URL};
+    private static final byte[] EID_FILTER_DATA = {EddystoneFrame.TYPE_EID};
+    private static final byte[] FRAME_TYPE_MASK = {(byte) 0xFF};
+    // Frame type filters, each installed only while its frames have a use
+    private static final int FILTER_TLM = 1;
+    private static final int FILTER_URL = 2;
+    private static final int FILTER_EID = 4;
 
     // Eddystone service uuid (0xfeaa)
     private static final ParcelUuid UID_SERVICE =
@@ -54,68 +81,252 @@ public class EddystoneScannerService extends Service {
 
     /**
      * ENTER ALL EDDYSTONE NAMESPACES YOU WANT TO SCAN HERE
-     * e.g. "d89bed6e130ee5cf1ba1"
+     * e.g. "d89bed6e130ee5cf1ba1", or "d89bed6e130ee5cf1ba1/0a3f" for
+     * instances starting with 0a3f. See {@link NamespaceFilterSet}.
+     * Can be replaced at runtime with ACTION_SET_NAMESPACES.
      */
     private static final String[] NAMESPACE_IDS = {
             "YOUR_NAMESPACES_HERE"
     };
-    private static byte[] getNamespaceFilter(String namespaceId) {
-        byte[] filter = new byte[18];
 
-        int len = namespaceId.length();
-        int index = 2; //Skip frame type + TX power bytes
-        for (int i = 0; i < len; i += 2) {
-            filter[index++] = (byte) ((Character.digit(namespaceId.charAt(i), 16) << 4)
-                    + Character.digit(namespaceId.charAt(i+1), 16));
-        }
+    /**
+     * ENTER ANY EDDYSTONE-EID BEACONS YOU WANT TO RESOLVE HERE
+     * as "identity key/K/clock offset/id", see {@link EidResolver}.
+     * Resolved beacons are reported under their id, like UID beacons.
+     * Can be replaced at runtime with ACTION_SET_EID_BEACONS.
+     */
+    private static final String[] EID_BEACONS = {};
 
-        return filter;
-    }
+    // Action to replace the namespace filter, with EXTRA_NAMESPACES
+    public static final String ACTION_SET_NAMESPACES =
+            "EddystoneScannerService.ACTION_SET_NAMESPACES";
+    public static final String EXTRA_NAMESPACES = "namespaces";
+    // Action to replace the registered EID beacons, with EXTRA_EID_BEACONS (none if absent)
+    public static final String ACTION_SET_EID_BEACONS =
+            "EddystoneScannerService.ACTION_SET_EID_BEACONS";
+    public static final String EXTRA_EID_BEACONS = "eid_beacons";
 
-    // Filter that forces frame type and namespace id to match
-    private static final byte[] NAMESPACE_FILTER_MASK = {
-            (byte)0xFF,
-            0x00,
-            (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF,
-            (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF,
-            0x00, 0x00, 0x00, 0x00, 0x00, 0x00
-    };
+    // Hardware filters to use when the controller filters offloaded;
+    // there is no API for the real slot count
+    private static final int OFFLOADED_FILTER_SLOTS = 16;
 
-    private static String getNamespaceIdFromScan(byte[] scanData) {
-        StringBuilder sb = new StringBuilder();
-        for (int i=2; i < 12; i++) {
-            sb.append(String.format("%02x", scanData[i]));
-        }
+    private static final int NOTIFICATION_ID = 42;
+    // Coalesce bursts of discoveries into one notification update
+    private static final long NOTIFICATION_DEBOUNCE_MS = 250;
+    private static final long NOTIFICATION_MIN_INTERVAL_MS = 1000;
 
-        return sb.toString();
-    }
+    // Sizing for the scan result hand-off to the ingestion thread
+    private static final int INGESTION_CAPACITY = 256;
+    private static final int INGESTION_BATCH = 32;
 
-    // Eddystone frame types
-    private static final byte TYPE_UID = 0x00;
-    private static final byte TYPE_URL = 0x10;
-    private static final byte TYPE_TLM = 0x20;
+    // RSSI filter tuning (variances in dB^2) and indoor path loss
+    private static final float SIGNAL_PROCESS_NOISE = 0.5f;
+    private static final float SIGNAL_MEASUREMENT_NOISE = 16f;
+    private static final float SIGNAL_PATH_LOSS = 2.5f;
+    // Samples in a row needed to move a beacon to another proximity zone
+    private static final int SIGNAL_ZONE_DEBOUNCE = 3;
 
-    private static final int NOTIFICATION_ID = 42;
+    // A beacon is lost once it has not been seen for this long
+    private static final long LOST_TIMEOUT_MS = 30000;
+    private static final long EXPIRY_TICK_MS = 1000;
+    private static final int EXPIRY_WHEEL_SIZE = 64;
+
+    // Approximate mode forgets a beacon after 30-45s, in about 200KB
+    private static final int SEEN_CAPACITY = 16384;
+    private static final int SEEN_GENERATIONS = 3;
+    private static final long SEEN_GENERATION_MS = LOST_TIMEOUT_MS / 2;
+    private static final int SEEN_FINGERPRINT_BITS = 15;
+
+    // Visits end after the same quiet period as a lost beacon
+    private static final long DWELL_WINDOW_MS = 60000;
+    private static final int DWELL_SLIDING_WINDOWS = 15;
+
+    // Telemetry is kept for two days, pruned every few minutes
+    private static final long TELEMETRY_RETENTION_MS = 48 * 60 * 60 * 1000;
+    private static final long TELEMETRY_PRUNE_INTERVAL_MS = 5 * 60 * 1000;
+    private static final int LOW_BATTERY_MILLIVOLTS = 2400;
+    // Addresses rotate, so one stops counting as ours once its UID is quiet
+    private static final long FLEET_ADDRESS_TIMEOUT_MS = 10 * 60 * 1000;
+    private static final long FLEET_EXPIRY_TICK_MS = 10000;
 
-    private NotificationManager mNotificationManager;
+    // Resolved URLs are trusted for an hour, failures retried after five minutes
+    private static final int URL_CACHE_CAPACITY = 256;
+    private static final long URL_TTL_MS = 60 * 60 * 1000;
+    private static final long URL_FAILURE_TTL_MS = 5 * 60 * 1000;
+    private static final int URL_MAX_REDIRECTS = 5;
+    private static final int URL_RESOLVE_THREADS = 2;
+    private static final int URL_HOST_LIMIT = 2;
+    // URLs from beacons outside the fleet are only resolved on these hosts,
+    // and no host is asked more than once every few seconds
+    private static final List<String> URL_ALLOWED_HOSTS = Collections.emptyList();
+    private static final long URL_HOST_INTERVAL_MS = 5000;
+
+    // Metrics are appended to a file in the app's files directory this often
+    private static final long METRICS_DUMP_MS = 60000;
+
+    // Hot path metrics, looked up once
+    private static final StripedCounter sScanResults =
+            Metrics.getDefault().counter("scan.results");
+    private static final ConcurrentLogHistogram sScanBatchSizes =
+            Metrics.getDefault().histogram("scan.batch_size");
+    // From reception by the controller, including any batching delay
+    private static final ConcurrentLogHistogram sProcessingLatency =
+            Metrics.getDefault().histogram("scan.processing_latency_ms");
+    // New beacons only, to compare against the radio time the scheduler spends
+    private static final ConcurrentLogHistogram sDiscoveryLatency =
+            Metrics.getDefault().histogram("scan.discovery_latency_ms");
+    private static final StripedCounter sRadioOnMillis =
+            Metrics.getDefault().counter("scan.radio_on_ms");
+    // Footfall per dwell window
+    private static final StripedCounter sWindowVisits =
+            Metrics.getDefault().counter("dwell.visits");
+    private static final ConcurrentLogHistogram sWindowBeacons =
+            Metrics.getDefault().histogram("dwell.active_beacons");
+    private static final ConcurrentLogHistogram sWindowMedianDwell =
+            Metrics.getDefault().histogram("dwell.median_ms");
+
+    private static final BeaconEventBus sEvents = BeaconEventBus.getDefault();
+
+    // Sighting journal segments of 1MB, compacted beyond this many
+    private static final int JOURNAL_SEGMENT_RECORDS = 32768;
+    private static final int JOURNAL_MAX_SEALED = 8;
+
+    private NotificationDispatcher mNotifier;
     private BluetoothLeScanner mBluetoothLeScanner;
-    private ArrayMap<String, Boolean> mDetectedBeacons;
+    private Handler mMainHandler;
+    // Set first thing in onDestroy; nothing is scheduled or restarted after it
+    private volatile boolean mDestroyed;
+    // Only used on the main thread
+    private boolean mScanning;
+    private boolean mOffloadedFiltering;
+    // Frame type filters the scan installs; the namespaces get the other slots
+    private int mScanFrameFilters;
+    private List<NamespaceFilterSet.HardwareFilter> mHardwareFilters;
+    // Matched on the scan callback thread
+    private volatile NamespaceFilterSet mFilterSet;
+    private ScanIngestionQueue mIngestionQueue;
+    // Guarded by itself; updated on the ingestion thread
+    private BeaconRegistry mDetectedBeacons;
+    // Indexed by registry handle, guarded by mDetectedBeacons
+    private BeaconSignalEngine mSignalEngine;
+    // Indexed by registry handle, guarded by mDetectedBeacons
+    private ExpiryWheel mExpiryWheel;
+    // Guarded by mDetectedBeacons
+    private ScanScheduler mScanScheduler;
+    // Scheduler time already added to Metrics, and when the next evaluation is posted for
+    private long mReportedRadioOn;
+    private final long[] mReportedStateMillis = new long[ScanScheduler.STATE_DUTY_OFF + 1];
+    private long mNextEvaluation;
+    // Handles for dwell statistics, freed once idle; guarded by mDetectedBeacons
+    private BeaconRegistry mVisitedBeacons;
+    // Indexed by visit handle, guarded by mDetectedBeacons
+    private DwellAggregator mDwell;
+    // Registered EID beacons, guarded by mDetectedBeacons
+    private EidResolver mEidResolver;
+    private ForkJoinPool mEidPool;
+    // Replaces the per-beacon state above if APPROXIMATE_SEEN; guarded by mDetectedBeacons
+    private SeenFilter mSeenFilter;
+    // Only used on the ingestion thread once started; null if unavailable
+    private SightingJournal mJournal;
+    // Converts sighting timestamps to wall clock time for the journal
+    private long mWallClockOffset;
+    // Only used on the ingestion thread once started
+    private TelemetryStore mTelemetry;
+    // Devices recently seen advertising a matching UID, whose telemetry is kept
+    private BeaconRegistry mFleetAddresses;
+    private ExpiryWheel mFleetExpiry;
+    // Guarded by mDetectedBeacons: whether any fleet address is known, and
+    // the frame type filters that calls for
+    private boolean mFleetKnown;
+    private int mFrameFilters;
+    private long mLastTelemetryPrune;
+    // Expands and resolves URL frames; thread-safe
+    private UrlFrameEngine mUrlEngine;
+    private ExecutorService mUrlExecutor;
+    // Only used on the main thread; null unless RECORD_TRACE
+    private ScanTraceWriter mTrace;
 
     @Override
     public void onCreate() {
         super.onCreate();
         sRunning = true;
 
-        mNotificationManager =
-                (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+        mNotifier = new NotificationDispatcher(this, ACTION_DISMISS, NOTIFICATION_ID,
+                NOTIFICATION_DEBOUNCE_MS, NOTIFICATION_MIN_INTERVAL_MS);
 
         BluetoothManager manager =
                 (BluetoothManager) getSystemService(BLUETOOTH_SERVICE);
-        mBluetoothLeScanner = manager.getAdapter().getBluetoothLeScanner();
+        BluetoothAdapter adapter = manager.getAdapter();
+        mBluetoothLeScanner = adapter.getBluetoothLeScanner();
+        mMainHandler = new Handler();
+        mOffloadedFiltering = adapter.isOffloadedFilteringSupported();
+        setNamespaces(NAMESPACE_IDS);
+
+        mDetectedBeacons = new BeaconRegistry();
+        mEidPool = new ForkJoinPool();
+        mEidResolver = new EidResolver(mEidPool);
+        setEidBeacons(EID_BEACONS);
+        mSignalEngine = new BeaconSignalEngine(SIGNAL_PROCESS_NOISE,
+                SIGNAL_MEASUREMENT_NOISE, SIGNAL_PATH_LOSS, SIGNAL_ZONE_DEBOUNCE);
+        mExpiryWheel = new ExpiryWheel(EXPIRY_TICK_MS, EXPIRY_WHEEL_SIZE, LOST_TIMEOUT_MS);
+        if (APPROXIMATE_SEEN) {
+            mSeenFilter = new SeenFilter(SEEN_CAPACITY, SEEN_GENERATIONS,
+                    SEEN_GENERATION_MS, SEEN_FINGERPRINT_BITS);
+        }
+        mVisitedBeacons = new BeaconRegistry();
+        mDwell = new DwellAggregator(LOST_TIMEOUT_MS, DWELL_WINDOW_MS,
+                DWELL_SLIDING_WINDOWS, mDwellListener);
+
+        PowerManager power = (PowerManager) getSystemService(POWER_SERVICE);
+        mScanScheduler = new ScanScheduler(adapter.isOffloadedScanBatchingSupported());
+        mScanScheduler.setScreenOn(power.isInteractive(), SystemClock.elapsedRealtime());
+        //MainActivity may have come to the foreground before we started
+        mScanScheduler.setForeground(MainActivity.isInForeground(),
+                SystemClock.elapsedRealtime());
+        IntentFilter screenFilter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+        screenFilter.addAction(Intent.ACTION_SCREEN_OFF);
+        registerReceiver(mScreenReceiver, screenFilter);
+
+        try {
+            mJournal = new SightingJournal(new File(getFilesDir(), "journal"),
+                    JOURNAL_SEGMENT_RECORDS);
+        } catch (IOException e) {
+            Log.w(TAG, "Sighting journal unavailable", e);
+        }
+        mWallClockOffset = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+        if (RECORD_TRACE) {
+            File traceFile = new File(getFilesDir(),
+                    "scan-" + System.currentTimeMillis() + ".trace");
+            try {
+                mTrace = new ScanTraceWriter(new FileOutputStream(traceFile));
+                Log.d(TAG, "Recording scan trace to " + traceFile);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to record scan trace", e);
+            }
+        }
+
+        Metrics.getDefault().startDump(new File(getFilesDir(), "metrics.txt"),
+                METRICS_DUMP_MS);
 
-        mDetectedBeacons = new ArrayMap<>();
+        mTelemetry = new TelemetryStore();
+        mFleetAddresses = new BeaconRegistry();
+        mFleetExpiry = new ExpiryWheel(FLEET_EXPIRY_TICK_MS, EXPIRY_WHEEL_SIZE,
+                FLEET_ADDRESS_TIMEOUT_MS);
+        mUrlExecutor = Executors.newFixedThreadPool(URL_RESOLVE_THREADS);
+        mUrlEngine = new UrlFrameEngine(URL_CACHE_CAPACITY, URL_TTL_MS, URL_FAILURE_TTL_MS,
+                new HttpUrlResolver(URL_MAX_REDIRECTS), mUrlExecutor, URL_HOST_LIMIT,
+                URL_ALLOWED_HOSTS, URL_HOST_INTERVAL_MS, mUrlListener);
 
-        startScanning();
+        mIngestionQueue = new ScanIngestionQueue(INGESTION_CAPACITY,
+                INGESTION_BATCH, ScanIngestionQueue.OverflowPolicy.COALESCE);
+        //Idle ticks keep expiry running when nothing is in range
+        mIngestionQueue.start(mIngestionSink, EXPIRY_TICK_MS);
+
+        synchronized (mDetectedBeacons) {
+            updateFrameFilters();
+        }
+        mApplyFrameFilters.run();
+        mApplyScanSchedule.run();
     }
 
     @Override
@@ -124,7 +335,18 @@ public class EddystoneScannerService extends Service {
             //Mark all currently discovered beacons as "seen"
             markAllRead();
             //Hide the notification, if visible
-            mNotificationManager.cancel(NOTIFICATION_ID);
+            mNotifier.cancel();
+        } else if (ACTION_SET_NAMESPACES.equals(intent.getAction())) {
+            setNamespaces(intent.getStringArrayExtra(EXTRA_NAMESPACES));
+        } else if (ACTION_SET_EID_BEACONS.equals(intent.getAction())) {
+            setEidBeacons(intent.getStringArrayExtra(EXTRA_EID_BEACONS));
+        } else if (ACTION_FOREGROUND.equals(intent.getAction())
+                || ACTION_BACKGROUND.equals(intent.getAction())) {
+            synchronized (mDetectedBeacons) {
+                mScanScheduler.setForeground(ACTION_FOREGROUND.equals(intent.getAction()),
+                        SystemClock.elapsedRealtime());
+            }
+            evaluateScanSchedule();
         }
         return START_NOT_STICKY;
     }
@@ -133,8 +355,39 @@ public class EddystoneScannerService extends Service {
     public void onDestroy() {
         super.onDestroy();
         sRunning = false;
+        mDestroyed = true;
 
+        unregisterReceiver(mScreenReceiver);
+        //The consumer may still be finishing a batch that evaluates the schedule
+        mIngestionQueue.stop();
+        mMainHandler.removeCallbacks(mApplyScanSchedule);
+        mMainHandler.removeCallbacks(mScheduledEvaluation);
+        mMainHandler.removeCallbacks(mApplyFrameFilters);
         stopScanning();
+        closeTrace();
+        closeJournal();
+        mUrlExecutor.shutdownNow();
+        mEidPool.shutdownNow();
+        if (DEBUG_SCAN) logTelemetry();
+        mNotifier.release();
+        Metrics.getDefault().stopDump();
+        if (DEBUG_SCAN) {
+            synchronized (mDetectedBeacons) {
+                Log.d(TAG, mScanScheduler.toString());
+                Log.d(TAG, mEidResolver.toString());
+                if (mSeenFilter != null) Log.d(TAG, mSeenFilter.toString());
+                Log.d(TAG, "Dwell: " + mDwell.getCompletedSessionCount() + " visits, median "
+                        + mDwell.getDwellPercentile(50) + "ms, p90 "
+                        + mDwell.getDwellPercentile(90) + "ms");
+            }
+            Log.d(TAG, mNotifier.toString());
+            Log.d(TAG, mUrlEngine.toString());
+            Log.d(TAG, "Ingestion: " + mIngestionQueue.getEnqueuedCount() + " enqueued, "
+                    + mIngestionQueue.getDrainedCount() + " drained, "
+                    + mIngestionQueue.getDroppedCount() + " dropped, "
+                    + mIngestionQueue.getCoalescedCount() + " coalesced, "
+                    + mIngestionQueue.getFailedCount() + " failed");
+        }
     }
 
     @Override
@@ -142,92 +395,658 @@ public class EddystoneScannerService extends Service {
         return null;
     }
 
-    /* Handle user notifications */
-    private void postScanResultNotification(int count) {
+    /*
+     * Swap in a new namespace filter. Matching switches over immediately;
+     * the scan is only restarted if its hardware filters have to change.
+     * A missing or malformed set is rejected and the current one kept; if
+     * there is none yet, nothing matches until a valid set arrives.
+     */
+    private void setNamespaces(String[] namespaces) {
+        if (namespaces == null) {
+            Log.w(TAG, "Ignoring namespace change without " + EXTRA_NAMESPACES);
+            return;
+        }
+        NamespaceFilterSet filterSet;
+        try {
+            filterSet = NamespaceFilterSet.compile(namespaces);
+        } catch (IllegalArgumentException e) {
+            if (mFilterSet != null) {
+                Log.w(TAG, "Ignoring namespace change: " + e.getMessage());
+                return;
+            }
+            Log.w(TAG, "No valid namespaces, matching none: " + e.getMessage());
+            filterSet = NamespaceFilterSet.MATCH_NONE;
+        }
+        mFilterSet = filterSet;
+
+        if (!updateHardwareFilters()) return;
+        if (mScanning) {
+            mApplyScanSchedule.run();
+        }
+        if (DEBUG_SCAN) {
+            Log.d(TAG, filterSet + ", " + mHardwareFilters.size() + " hardware filters");
+        }
+    }
 
-        Intent contentAction = new Intent(this, MainActivity.class);
-        contentAction.setAction(ACTION_DISMISS);
-        PendingIntent content = PendingIntent.getActivity(this, -1, contentAction, 0);
+    /*
+     * Fit the namespace filters into the slots the frame type filters
+     * leave, returning true if they changed
+     */
+    private boolean updateHardwareFilters() {
+        int slots;
+        if (mOffloadedFiltering) {
+            //Filter slots are shared with the telemetry, URL and EID filters
+            slots = Math.max(OFFLOADED_FILTER_SLOTS - Integer.bitCount(mScanFrameFilters), 1);
+        } else {
+            //The stack filters in software, one filter at a time; a single
+            //UID filter plus our own table is cheaper than one per namespace
+            slots = 1;
+        }
+        List<NamespaceFilterSet.HardwareFilter> hardwareFilters =
+                mFilterSet.getHardwareFilters(slots);
+        if (hardwareFilters.equals(mHardwareFilters)) return false;
+        mHardwareFilters = hardwareFilters;
+        return true;
+    }
 
-        Intent deleteAction = new Intent(this, EddystoneScannerService.class);
-        deleteAction.setAction(ACTION_DISMISS);
-        PendingIntent delete = PendingIntent.getService(this, -1, deleteAction, 0);
+    /*
+     * Work out which frame type filters are needed, and have the scan
+     * restarted with them if that changed; called with mDetectedBeacons held.
+     * A frame type nothing would use stays out of the controller, so it
+     * never wakes us up.
+     */
+    private void updateFrameFilters() {
+        int filters = 0;
+        if (mFleetKnown) filters |= FILTER_TLM;
+        //Only fleet URLs and those on allowed hosts are resolved
+        if (mFleetKnown || !URL_ALLOWED_HOSTS.isEmpty()) filters |= FILTER_URL;
+        //EIDs can only be resolved for registered beacons
+        if (mEidResolver.size() > 0) filters |= FILTER_EID;
+        if (filters == mFrameFilters) return;
+        mFrameFilters = filters;
+        if (!mDestroyed) mMainHandler.post(mApplyFrameFilters);
+    }
 
-        Notification note = new Notification.Builder(this)
-                .setContentTitle("Beacons Detected")
-                .setContentText(String.format("%d New Beacons In Range", count))
-                .setSmallIcon(R.drawable.ic_stat_scan)
-                .setContentIntent(content)
-                .setDeleteIntent(delete)
-                .build();
+    private Runnable mApplyFrameFilters = new Runnable() {
+        @Override
+        public void run() {
+            if (mDestroyed) return;
+            int filters;
+            synchronized (mDetectedBeacons) {
+                filters = mFrameFilters;
+            }
+            if (filters == mScanFrameFilters) return;
+            mScanFrameFilters = filters;
+            updateHardwareFilters();
+            if (mScanning) {
+                mApplyScanSchedule.run();
+            }
+            if (DEBUG_SCAN) {
+                Log.d(TAG, "Frame type filters " + Integer.toBinaryString(filters) + ", "
+                        + mHardwareFilters.size() + " hardware filters");
+            }
+        }
+    };
 
-        mNotificationManager.notify(NOTIFICATION_ID, note);
+    /*
+     * Replace the registered EID beacons, or remove them all if null.
+     * Their EIDs are computed on the ingestion thread, at the next refresh.
+     */
+    private void setEidBeacons(String[] beacons) {
+        if (beacons == null) beacons = new String[0];
+        synchronized (mDetectedBeacons) {
+            mEidResolver.clear();
+            for (String beacon : beacons) {
+                try {
+                    mEidResolver.register(beacon);
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "Ignoring EID beacon: " + e.getMessage());
+                }
+            }
+            updateFrameFilters();
+        }
     }
 
     /* Begin scanning for Eddystone advertisers */
-    private void startScanning() {
+    private void startScanning(int scanMode, long reportDelay) {
         List<ScanFilter> filters = new ArrayList<>();
-        //Filter on just our requested namespaces
-        for (String namespace : NAMESPACE_IDS) {
+        if ((mScanFrameFilters & FILTER_TLM) != 0) {
+            //Telemetry frames carry no id, so take them all and match by address
+            filters.add(new ScanFilter.Builder()
+                    .setServiceUuid(UID_SERVICE)
+                    .setServiceData(UID_SERVICE, TLM_FILTER_DATA, FRAME_TYPE_MASK)
+                    .build());
+        }
+        if ((mScanFrameFilters & FILTER_URL) != 0) {
+            filters.add(new ScanFilter.Builder()
+                    .setServiceUuid(UID_SERVICE)
+                    .setServiceData(UID_SERVICE, URL_FILTER_DATA, FRAME_TYPE_MASK)
+                    .build());
+        }
+        if ((mScanFrameFilters & FILTER_EID) != 0) {
+            filters.add(new ScanFilter.Builder()
+                    .setServiceUuid(UID_SERVICE)
+                    .setServiceData(UID_SERVICE, EID_FILTER_DATA, FRAME_TYPE_MASK)
+                    .build());
+        }
+        //Filter on our requested namespaces as far as the controller allows
+        for (NamespaceFilterSet.HardwareFilter filter : mHardwareFilters) {
             ScanFilter beaconFilter = new ScanFilter.Builder()
                     .setServiceUuid(UID_SERVICE)
-                    .setServiceData(UID_SERVICE, getNamespaceFilter(namespace),
-                            NAMESPACE_FILTER_MASK)
+                    .setServiceData(UID_SERVICE, filter.data, filter.mask)
                     .build();
             filters.add(beaconFilter);
         }
 
-        //Run in background mode
+        //Mode and batching as chosen by the scan scheduler
         ScanSettings settings = new ScanSettings.Builder()
-                .setScanMode(ScanSettings.SCAN_MODE_LOW_POWER)
+                .setScanMode(scanMode)
+                .setReportDelay(reportDelay)
                 .build();
 
         mBluetoothLeScanner.startScan(filters, settings, mScanCallback);
-        if (DEBUG_SCAN) Log.d(TAG, "Scanning started…");
+        mScanning = true;
+        if (DEBUG_SCAN) Log.d(TAG, "Scanning started… mode " + scanMode + ", delay " + reportDelay);
     }
 
     /* Terminate scanning */
     private void stopScanning() {
+        if (!mScanning) return;
+        //Deliver anything still batched in the controller
+        mBluetoothLeScanner.flushPendingScanResults(mScanCallback);
         mBluetoothLeScanner.stopScan(mScanCallback);
+        mScanning = false;
         if (DEBUG_SCAN) Log.d(TAG, "Scanning stopped…");
     }
 
-    /* Handle UID packet discovery on the main thread */
-    private void processUidPacket(String deviceAddress, int rssi, byte[] packet) {
+    /*
+     * Restart the scan on the main thread if the scheduler wants a change,
+     * and make sure it is evaluated again when it asks to be, even if no
+     * sighting or other event comes first. Does nothing once destroyed.
+     */
+    private void evaluateScanSchedule() {
+        if (mDestroyed) return;
+        boolean changed;
+        synchronized (mDetectedBeacons) {
+            long now = SystemClock.elapsedRealtime();
+            changed = mScanScheduler.evaluate(now);
+            reportScanAccounting();
+
+            long next = mScanScheduler.getNextEvaluation(now);
+            if (mNextEvaluation == 0 || next < mNextEvaluation) {
+                mNextEvaluation = next;
+                mMainHandler.removeCallbacks(mScheduledEvaluation);
+                mMainHandler.postDelayed(mScheduledEvaluation, Math.max(next - now, 0));
+            }
+        }
+        if (changed) {
+            mMainHandler.post(mApplyScanSchedule);
+        }
+    }
+
+    private Runnable mScheduledEvaluation = new Runnable() {
+        @Override
+        public void run() {
+            if (mDestroyed) return;
+            synchronized (mDetectedBeacons) {
+                mNextEvaluation = 0;
+            }
+            evaluateScanSchedule();
+        }
+    };
+
+    /* Add the scheduler's radio time since the last call to Metrics; called with lock held */
+    private void reportScanAccounting() {
+        long radioOn = mScanScheduler.getRadioOnMillis();
+        sRadioOnMillis.add(radioOn - mReportedRadioOn);
+        mReportedRadioOn = radioOn;
+        for (int state = 0; state < mReportedStateMillis.length; state++) {
+            long millis = mScanScheduler.getStateMillis(state);
+            if (millis != mReportedStateMillis[state]) {
+                String name = "scan.state_ms." + ScanScheduler.getStateName(state);
+                Metrics.getDefault().counter(name).add(millis - mReportedStateMillis[state]);
+                mReportedStateMillis[state] = millis;
+            }
+        }
+    }
+
+    private Runnable mApplyScanSchedule = new Runnable() {
+        @Override
+        public void run() {
+            if (mDestroyed) return;
+            boolean scanning;
+            int scanMode;
+            long reportDelay;
+            synchronized (mDetectedBeacons) {
+                scanning = mScanScheduler.isScanning();
+                scanMode = mScanScheduler.getScanMode();
+                reportDelay = mScanScheduler.getReportDelay();
+                if (DEBUG_SCAN) Log.d(TAG, mScanScheduler.toString());
+            }
+
+            stopScanning();
+            if (scanning) {
+                startScanning(scanMode, reportDelay);
+            }
+        }
+    };
+
+    private BroadcastReceiver mScreenReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            synchronized (mDetectedBeacons) {
+                mScanScheduler.setScreenOn(Intent.ACTION_SCREEN_ON.equals(intent.getAction()),
+                        SystemClock.elapsedRealtime());
+            }
+            evaluateScanSchedule();
+        }
+    };
+
+    /* Handle UID packet discovery on the ingestion thread */
+    private void processUidPacket(BeaconSighting sighting) {
+        EddystoneFrame frame = sighting.frame;
+        synchronized (mDetectedBeacons) {
+            if (mSeenFilter != null) {
+                processUidPacketApproximate(sighting);
+                return;
+            }
+
+            int handle = mDetectedBeacons.find(frame.idHigh, frame.idLow);
+            boolean isNew = handle == BeaconRegistry.NOT_FOUND;
+            mScanScheduler.onSighting(SystemClock.elapsedRealtime(), sighting.timestamp, isNew);
+            if (isNew) {
+                handle = mDetectedBeacons.add(frame.idHigh, frame.idLow);
+                mSignalEngine.reset(handle);
+            }
+            if (isNew) {
+                sDiscoveryLatency.record(SystemClock.elapsedRealtime() - sighting.timestamp);
+            }
+            if (mSignalEngine.addSample(handle, sighting.rssi, frame.txPower) || isNew) {
+                //A new beacon, or one that moved nearer or further away
+                updateNotification();
+            }
+            publishSighting(sighting, isNew, mSignalEngine.getDistance(handle));
+            sProcessingLatency.record(SystemClock.elapsedRealtime() - sighting.timestamp);
+            mExpiryWheel.touch(handle, sighting.timestamp);
+
+            //Release idle visits first, so the handle found stays valid
+            mDwell.advance(sighting.timestamp);
+            int visit = mVisitedBeacons.find(frame.idHigh, frame.idLow);
+            if (visit == BeaconRegistry.NOT_FOUND) {
+                visit = mVisitedBeacons.add(frame.idHigh, frame.idLow);
+            }
+            mDwell.onSighting(visit, sighting.timestamp);
+
+            if (DEBUG_SCAN) {
+                Log.d(TAG, "Eddystone(" + BeaconSighting.formatAddress(sighting.address)
+                        + ") id = " + frame
+                        + String.format(", %.1fm (%s)", mSignalEngine.getDistance(handle),
+                        BeaconSignalEngine.getZoneName(mSignalEngine.getZone(handle))));
+            }
+        }
+    }
+
+    /* Only new-or-seen is tracked, called with mDetectedBeacons held */
+    private void processUidPacketApproximate(BeaconSighting sighting) {
+        EddystoneFrame frame = sighting.frame;
+        boolean isNew = mSeenFilter.add(frame.idHigh, frame.idLow);
+        mScanScheduler.onSighting(SystemClock.elapsedRealtime(), sighting.timestamp, isNew);
+        if (isNew) {
+            sDiscoveryLatency.record(SystemClock.elapsedRealtime() - sighting.timestamp);
+            mNotifier.update(mSeenFilter.getUnreadCount());
+        }
+        publishSighting(sighting, isNew, 0);
+        sProcessingLatency.record(SystemClock.elapsedRealtime() - sighting.timestamp);
+
         if (DEBUG_SCAN) {
-            String id = getNamespaceIdFromScan(packet);
-            Log.d(TAG, "Eddystone(" + deviceAddress + ") id = " + id);
+            Log.d(TAG, "Eddystone(" + BeaconSighting.formatAddress(sighting.address)
+                    + ") id = " + frame + (isNew ? ", new" : ""));
         }
+    }
+
+    /* Tell event bus subscribers about a UID sighting */
+    private void publishSighting(BeaconSighting sighting, boolean isNew, float distance) {
+        EddystoneFrame frame = sighting.frame;
+        if (isNew && sEvents.hasSubscribers(BeaconEvent.FOUND)) {
+            sEvents.publish(new BeaconEvent(BeaconEvent.FOUND, frame.idHigh, frame.idLow,
+                    sighting.timestamp, sighting.rssi, distance, null));
+        }
+        if (sEvents.hasSubscribers(BeaconEvent.UPDATED)) {
+            sEvents.publish(new BeaconEvent(BeaconEvent.UPDATED, frame.idHigh, frame.idLow,
+                    sighting.timestamp, sighting.rssi, distance, null));
+        }
+    }
 
-        if (!mDetectedBeacons.containsKey(deviceAddress)) {
-            mDetectedBeacons.put(deviceAddress, false);
-            int unreadCount = getUnreadCount();
-            if (unreadCount > 0) {
-                postScanResultNotification(unreadCount);
+    /* Look up the beacon an EID belongs to, on the ingestion thread */
+    private boolean resolveEid(BeaconSighting sighting) {
+        EddystoneFrame frame = sighting.frame;
+        synchronized (mDetectedBeacons) {
+            int handle = mEidResolver.resolve(frame.ephemeralId);
+            if (handle == EidResolver.NOT_FOUND) {
+                if (DEBUG_SCAN) Log.d(TAG, "Unknown EID " + frame);
+                return false;
             }
+            //From here on it is handled like the UID it stands for
+            frame.type = EddystoneFrame.TYPE_UID;
+            frame.idHigh = mEidResolver.getIdHigh(handle);
+            frame.idLow = mEidResolver.getIdLow(handle);
         }
+        return true;
     }
 
-    private void markAllRead() {
-        for (String key : mDetectedBeacons.keySet()) {
-            mDetectedBeacons.put(key, true);
+    /* Store telemetry from our own beacons, on the ingestion thread */
+    private void processTlmPacket(BeaconSighting sighting) {
+        EddystoneFrame frame = sighting.frame;
+        //Encrypted telemetry (version 1) has nothing we can read
+        if (frame.tlmVersion != 0) return;
+        mFleetExpiry.advance(sighting.timestamp, mFleetExpiryListener);
+        if (mFleetAddresses.findAddress(sighting.address) == BeaconRegistry.NOT_FOUND) return;
+
+        long now = sighting.timestamp + mWallClockOffset;
+        mTelemetry.append(sighting.address, now, frame);
+        if (sEvents.hasSubscribers(BeaconEvent.TELEMETRY)) {
+            //The frame is recycled, subscribers get their own copy
+            EddystoneFrame copy = new EddystoneFrame();
+            copy.set(frame);
+            sEvents.publish(new BeaconEvent(BeaconEvent.TELEMETRY, 0, sighting.address,
+                    sighting.timestamp, sighting.rssi, 0, copy));
+        }
+        if (now - mLastTelemetryPrune > TELEMETRY_PRUNE_INTERVAL_MS) {
+            mTelemetry.prune(now - TELEMETRY_RETENTION_MS);
+            mLastTelemetryPrune = now;
+        }
+    }
+
+    /* Note a device advertising one of our UIDs, on the ingestion thread */
+    private void touchFleetAddress(BeaconSighting sighting) {
+        mFleetExpiry.advance(sighting.timestamp, mFleetExpiryListener);
+        int handle = mFleetAddresses.findAddress(sighting.address);
+        if (handle == BeaconRegistry.NOT_FOUND) {
+            handle = mFleetAddresses.addAddress(sighting.address);
+            if (mFleetAddresses.size() == 1) setFleetKnown(true);
+        }
+        mFleetExpiry.touch(handle, sighting.timestamp);
+    }
+
+    /*
+     * Telemetry, and URLs when no other hosts are allowed, are only scanned
+     * for while there are fleet addresses to match them by
+     */
+    private void setFleetKnown(boolean known) {
+        synchronized (mDetectedBeacons) {
+            mFleetKnown = known;
+            updateFrameFilters();
+        }
+    }
+
+    /* Called on the ingestion thread */
+    private final ExpiryWheel.Listener mFleetExpiryListener = new ExpiryWheel.Listener() {
+        @Override
+        public void onLost(int handle) {
+            mFleetAddresses.remove(handle);
+            if (mFleetAddresses.size() == 0) setFleetKnown(false);
+        }
+    };
+
+    /* Expand the URL, resolving it in the background if new or stale and ours */
+    private void processUrlPacket(BeaconSighting sighting) {
+        mFleetExpiry.advance(sighting.timestamp, mFleetExpiryListener);
+        boolean fleet =
+                mFleetAddresses.findAddress(sighting.address) != BeaconRegistry.NOT_FOUND;
+        String url = mUrlEngine.onFrame(sighting.frame, sighting.timestamp, fleet);
+        if (DEBUG_SCAN && url != null) {
+            Log.d(TAG, "Eddystone(" + BeaconSighting.formatAddress(sighting.address)
+                    + ") url = " + url);
+        }
+    }
+
+    private final UrlFrameEngine.Listener mUrlListener = new UrlFrameEngine.Listener() {
+        @Override
+        public void onResolved(String url, String resolved) {
+            if (DEBUG_SCAN) Log.d(TAG, "Resolved " + url + " to " + resolved);
+        }
+
+        @Override
+        public void onResolveFailed(String url, IOException error) {
+            Log.w(TAG, "Unable to resolve " + url + ": " + error.getMessage());
+        }
+    };
+
+    /* Summarize telemetry, once the ingestion thread has stopped */
+    private void logTelemetry() {
+        Log.d(TAG, mTelemetry.toString());
+        long now = System.currentTimeMillis();
+        mTelemetry.scanBatteryBelow(LOW_BATTERY_MILLIVOLTS, now - 24 * 60 * 60 * 1000, now,
+                new TelemetryStore.Visitor() {
+            private long mLastAddress = -1;
+
+            @Override
+            public void onSample(long address, long timestamp, int batteryMillivolts,
+                                 int temperature, long advertisingCount, long uptimeTenths) {
+                if (address == mLastAddress) return;
+                mLastAddress = address;
+                Log.d(TAG, "Low battery: " + BeaconSighting.formatAddress(address)
+                        + " " + batteryMillivolts + "mV");
+            }
+        });
+    }
+
+    /* Record a sighting durably, on the ingestion thread */
+    private void journalSighting(BeaconSighting sighting) {
+        if (mJournal == null) return;
+        EddystoneFrame frame = sighting.frame;
+        try {
+            mJournal.append(sighting.timestamp + mWallClockOffset, frame.idHigh, frame.idLow,
+                    sighting.rssi, frame.txPower);
+        } catch (IOException e) {
+            Log.w(TAG, "Sighting journal failed, disabling", e);
+            closeJournal();
+        }
+    }
+
+    /* Group commit of the batch just ingested, on the ingestion thread */
+    private void commitJournal() {
+        if (mJournal == null) return;
+        mJournal.commit();
+        mWallClockOffset = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+        if (mJournal.getSealedSegmentCount() > JOURNAL_MAX_SEALED) {
+            try {
+                mJournal.compact();
+            } catch (IOException e) {
+                Log.w(TAG, "Sighting journal compaction failed", e);
+            }
         }
     }
 
-    private int getUnreadCount() {
-        int count = 0;
-        for (Boolean marker : mDetectedBeacons.values()) {
-            if (!marker) count++;
+    private void closeJournal() {
+        if (mJournal == null) return;
+        if (DEBUG_SCAN) Log.d(TAG, mJournal.toString());
+        try {
+            mJournal.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to close sighting journal", e);
         }
+        mJournal = null;
+    }
 
-        return count;
+    /* Append a raw scan result to the trace, on the main thread */
+    private void traceResult(ScanResult result, ScanRecord record) {
+        try {
+            mTrace.write(result.getTimestampNanos(),
+                    BeaconSighting.parseAddress(result.getDevice().getAddress()),
+                    result.getRssi(), record.getBytes());
+        } catch (IOException e) {
+            Log.w(TAG, "Scan trace failed, stopping", e);
+            closeTrace();
+        }
     }
 
+    private void closeTrace() {
+        if (mTrace == null) return;
+        Log.d(TAG, mTrace.toString());
+        try {
+            mTrace.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to close scan trace", e);
+        }
+        mTrace = null;
+    }
+
+    /* Compute the EIDs of any beacons whose epoch has rolled over */
+    private void refreshEids() {
+        synchronized (mDetectedBeacons) {
+            int computed = mEidResolver.refresh(System.currentTimeMillis());
+            if (DEBUG_SCAN && computed > 0) Log.d(TAG, "Computed " + computed + " EIDs");
+        }
+    }
+
+    /* Drop beacons that have gone quiet, on the ingestion thread */
+    private void expireBeacons() {
+        synchronized (mDetectedBeacons) {
+            long now = SystemClock.elapsedRealtime();
+            if (mSeenFilter != null) {
+                int unread = mSeenFilter.getUnreadCount();
+                for (int lost = mSeenFilter.advance(now); lost > 0; lost--) {
+                    mScanScheduler.onLost(now);
+                }
+                if (mSeenFilter.getUnreadCount() != unread) {
+                    mNotifier.update(mSeenFilter.getUnreadCount());
+                }
+                return;
+            }
+
+            mDwell.advance(now);
+            if (mExpiryWheel.advance(now, mExpiryListener) > 0) {
+                //The dispatcher skips the post if neither count changed
+                updateNotification();
+            }
+        }
+    }
+
+    /* New beacons, and how many are close by; called with mDetectedBeacons held */
+    private void updateNotification() {
+        mNotifier.update(mDetectedBeacons.getUnreadCount(),
+                mSignalEngine.getZoneCount(BeaconSignalEngine.ZONE_IMMEDIATE)
+                        + mSignalEngine.getZoneCount(BeaconSignalEngine.ZONE_NEAR));
+    }
+
+    /* Called with mDetectedBeacons held */
+    private ExpiryWheel.Listener mExpiryListener = new ExpiryWheel.Listener() {
+        @Override
+        public void onLost(int handle) {
+            if (DEBUG_SCAN) {
+                StringBuilder sb = new StringBuilder("Lost beacon ");
+                EddystoneFrame.appendHex(sb, mDetectedBeacons.getKeyHigh(handle), 16);
+                EddystoneFrame.appendHex(sb, mDetectedBeacons.getKeyLow(handle), 16);
+                Log.d(TAG, sb.toString());
+            }
+            long now = SystemClock.elapsedRealtime();
+            if (sEvents.hasSubscribers(BeaconEvent.LOST)) {
+                sEvents.publish(new BeaconEvent(BeaconEvent.LOST,
+                        mDetectedBeacons.getKeyHigh(handle), mDetectedBeacons.getKeyLow(handle),
+                        now, 0, 0, null));
+            }
+            int visit = mVisitedBeacons.find(mDetectedBeacons.getKeyHigh(handle),
+                    mDetectedBeacons.getKeyLow(handle));
+            if (visit != BeaconRegistry.NOT_FOUND) {
+                mDwell.onLost(visit, now);
+            }
+            mDetectedBeacons.remove(handle);
+            mSignalEngine.reset(handle);
+            mScanScheduler.onLost(now);
+        }
+    };
+
+    /* Called with mDetectedBeacons held */
+    private DwellAggregator.Listener mDwellListener = new DwellAggregator.Listener() {
+        @Override
+        public void onSessionEnd(int handle, long start, long end) {
+            if (DEBUG_SCAN) {
+                StringBuilder sb = new StringBuilder("Visit to ");
+                EddystoneFrame.appendHex(sb, mVisitedBeacons.getKeyHigh(handle), 16);
+                EddystoneFrame.appendHex(sb, mVisitedBeacons.getKeyLow(handle), 16);
+                sb.append(" ended after ").append(end - start).append("ms");
+                Log.d(TAG, sb.toString());
+            }
+        }
+
+        @Override
+        public void onWindow(int handle, long windowStart, int visits, int sightings) {
+            if (sEvents.hasSubscribers(BeaconEvent.WINDOW)) {
+                sEvents.publish(new BeaconEvent(BeaconEvent.WINDOW,
+                        mVisitedBeacons.getKeyHigh(handle), mVisitedBeacons.getKeyLow(handle),
+                        SystemClock.elapsedRealtime(), 0, 0, new DwellWindow(windowStart,
+                        visits, sightings, mDwell.getSlidingVisits(handle))));
+            }
+        }
+
+        @Override
+        public void onWindowSummary(long windowStart, int visits, int activeBeacons,
+                                    long medianDwell) {
+            sWindowVisits.add(visits);
+            sWindowBeacons.record(activeBeacons);
+            if (medianDwell > 0) sWindowMedianDwell.record(medianDwell);
+            if (DEBUG_SCAN) {
+                Log.d(TAG, "Footfall: " + visits + " new visits, " + activeBeacons
+                        + " beacons seen, median dwell " + medianDwell + "ms");
+            }
+        }
+
+        @Override
+        public void onReleased(int handle) {
+            //Its windows are all reported, the handle can go to another beacon
+            mVisitedBeacons.remove(handle);
+        }
+    };
+
+    private void markAllRead() {
+        synchronized (mDetectedBeacons) {
+            mDetectedBeacons.markAllRead();
+            if (mSeenFilter != null) mSeenFilter.markAllRead();
+        }
+    }
+
+    /* Beacon state updates, off the main thread */
+    private ScanIngestionQueue.Sink mIngestionSink = new ScanIngestionQueue.Sink() {
+        @Override
+        public void onSighting(BeaconSighting sighting) {
+            switch (sighting.frame.type) {
+                case EddystoneFrame.TYPE_UID:
+                    processUidPacket(sighting);
+                    journalSighting(sighting);
+                    touchFleetAddress(sighting);
+                    break;
+                case EddystoneFrame.TYPE_TLM:
+                    processTlmPacket(sighting);
+                    break;
+                case EddystoneFrame.TYPE_URL:
+                    processUrlPacket(sighting);
+                    break;
+                case EddystoneFrame.TYPE_EID:
+                    if (resolveEid(sighting)) {
+                        processUidPacket(sighting);
+                        journalSighting(sighting);
+                    }
+                    break;
+            }
+        }
+
+        @Override
+        public void onBatchComplete(int count) {
+            if (count > 0) {
+                if (DEBUG_SCAN) Log.d(TAG, "Drained " + count + " sightings");
+                commitJournal();
+            }
+            refreshEids();
+            expireBeacons();
+            //Fleet devices that went quiet are forgotten even if nothing else is heard
+            mFleetExpiry.advance(SystemClock.elapsedRealtime(), mFleetExpiryListener);
+            evaluateScanSchedule();
+        }
+    };
+
     /* Process each unique BLE scan result */
     private ScanCallback mScanCallback = new ScanCallback() {
-        private Handler mCallbackHandler =
-                new Handler(Looper.getMainLooper());
-
         @Override
         public void onScanResult(int callbackType, ScanResult result) {
             processResult(result);
@@ -236,43 +1055,50 @@ public class EddystoneScannerService extends Service {
         @Override
         public void onScanFailed(int errorCode) {
             Log.w(TAG, "Scan Error Code: " + errorCode);
+            Metrics.getDefault().counter("scan.failed." + errorCode).increment();
         }
 
         @Override
         public void onBatchScanResults(List<ScanResult> results) {
+            sScanBatchSizes.record(results.size());
             for (ScanResult result : results) {
                 processResult(result);
             }
         }
 
+        // Reused for every result; callbacks arrive serially
+        private final EddystoneFrame mFrame = new EddystoneFrame();
+
         private void processResult(ScanResult result) {
+            sScanResults.increment();
             ScanRecord record = result.getScanRecord();
             if (record == null) {
                 Log.w(TAG, "Invalid scan record.");
                 return;
             }
-            final byte[] data = record.getServiceData(UID_SERVICE);
-            if (data == null) {
+            if (mTrace != null) {
+                traceResult(result, record);
+            }
+            if (!EddystoneFrameDecoder.decodeScanRecord(record.getBytes(), mFrame)) {
                 Log.w(TAG, "Invalid Eddystone scan result.");
                 return;
             }
 
-            final String deviceAddress = result.getDevice().getAddress();
-            final int rssi = result.getRssi();
-            byte frameType = data[0];
-            switch (frameType) {
-                case TYPE_UID:
-                    mCallbackHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            processUidPacket(deviceAddress, rssi, data);
-                        }
-                    });
+            switch (mFrame.type) {
+                case EddystoneFrame.TYPE_UID:
+                    //Hardware filters may be broader than the namespace set
+                    if (!mFilterSet.matches(mFrame.idHigh, mFrame.idLow)) return;
+                    mIngestionQueue.offer(result.getTimestampNanos() / 1000000,
+                            BeaconSighting.parseAddress(result.getDevice().getAddress()),
+                            result.getRssi(), mFrame);
+                    break;
+                case EddystoneFrame.TYPE_TLM:
+                case EddystoneFrame.TYPE_URL:
+                case EddystoneFrame.TYPE_EID:
+                    mIngestionQueue.offer(result.getTimestampNanos() / 1000000,
+                            BeaconSighting.parseAddress(result.getDevice().getAddress()),
+                            result.getRssi(), mFrame);
                     break;
-                case TYPE_TLM:
-                case TYPE_URL:
-                    //Do nothing, ignoring these
-                    return;
                 default:
                     Log.w(TAG, "Invalid Eddystone scan result.");
             }
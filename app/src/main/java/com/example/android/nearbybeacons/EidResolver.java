@@ -0,0 +1,511 @@
+package com.example.android.nearbybeacons;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Resolves Eddystone-EID ephemeral ids to the registered beacons that
+ * broadcast them.
+ *
+ * Each registered beacon has its 16-byte identity key, rotation exponent
+ * K (the id changes every 2^K seconds) and the offset of its clock from
+ * Unix time, and maps to a stable 128-bit id of our choosing, e.g. the
+ * UID it would otherwise advertise. The EIDs of each beacon's current
+ * epoch and the epochs either side of it are precomputed with AES, as in
+ * the Eddystone-EID specification, and kept in an open-addressing table
+ * of primitive arrays, so {@link #resolve(long)} is a single lookup and
+ * a beacon whose clock has drifted by up to one epoch still resolves.
+ *
+ * {@link #refresh(long)} brings the table up to date. Newly registered
+ * beacons get all three EIDs; a beacon whose epoch has just rolled over
+ * only needs the one for its new next epoch, the other two having been
+ * computed already. Rollovers are kept in a heap, so a refresh only
+ * touches the beacons that are due. Large batches, such as the first
+ * refresh after registering a fleet, are computed in parallel on the
+ * supplied pool.
+ *
+ * This class is not thread-safe and has no Android dependencies.
+ */
+public class EidResolver {
+
+    public static final int NOT_FOUND = -1;
+
+    // Epochs precomputed per beacon: previous, current and next
+    private static final int EPOCHS = 3;
+    private static final int MAX_ROTATION_EXPONENT = 15;
+    private static final int KEY_LENGTH = 16;
+    private static final long NONE = -1;
+    private static final int INITIAL_CAPACITY = 16;
+    // Below this many beacons a refresh is not worth splitting up
+    private static final int PARALLEL_THRESHOLD = 256;
+    private static final int LEAF_SIZE = 128;
+    // Heap entries pack the rollover second above the beacon handle
+    private static final int HANDLE_BITS = 24;
+    private static final long HANDLE_MASK = (1L << HANDLE_BITS) - 1;
+
+    private final ForkJoinPool mPool;
+    // Assigns beacon handles by stable id
+    private final BeaconRegistry mBeacons = new BeaconRegistry();
+
+    // Per beacon handle
+    private byte[] mIdentityKeys;
+    private int[] mRotationExponents;
+    private long[] mClockOffsets;
+    // Epoch the EIDs are centred on, NONE until first computed
+    private long[] mEpochs;
+    private long[] mNextRollover;
+    // EPOCHS per handle, indexed by epoch % EPOCHS
+    private long[] mEids;
+    private boolean[] mEidsValid;
+
+    // Open-addressing table of EID to beacon handle, NOT_FOUND marks empty
+    private long[] mTableEids;
+    private int[] mTableHandles;
+    private int mTableMask;
+    private int mTableSize;
+
+    // Min-heap of packed (rollover second, handle), may hold stale entries
+    private long[] mHeap = new long[INITIAL_CAPACITY];
+    private int mHeapSize;
+
+    // Beacons to compute in the current refresh, and their first new epoch
+    private int[] mDue = new int[INITIAL_CAPACITY];
+    private long[] mDueFrom = new long[INITIAL_CAPACITY];
+    private int mDueCount;
+    private Cipher mCipher;
+
+    private long mComputed;
+    private long mResolved;
+    private long mMisses;
+
+    /** @param pool Computes large refreshes in parallel; may be null to compute inline */
+    public EidResolver(ForkJoinPool pool) {
+        mPool = pool;
+        mIdentityKeys = new byte[INITIAL_CAPACITY * KEY_LENGTH];
+        mRotationExponents = new int[INITIAL_CAPACITY];
+        mClockOffsets = new long[INITIAL_CAPACITY];
+        mEpochs = new long[INITIAL_CAPACITY];
+        mNextRollover = new long[INITIAL_CAPACITY];
+        mEids = new long[INITIAL_CAPACITY * EPOCHS];
+        mEidsValid = new boolean[INITIAL_CAPACITY * EPOCHS];
+        allocateTable(INITIAL_CAPACITY * EPOCHS * 2);
+    }
+
+    /**
+     * Register a beacon, or replace the keys of one already registered
+     * with the same id. Its EIDs resolve after the next refresh.
+     *
+     * @param identityKey 16-byte AES identity key
+     * @param rotationExponent K, 0 to 15
+     * @param clockOffsetSeconds Beacon time minus Unix time, in seconds
+     * @return the beacon's handle
+     */
+    public int register(byte[] identityKey, int rotationExponent, long clockOffsetSeconds,
+                        long idHigh, long idLow) {
+        if (identityKey.length != KEY_LENGTH || rotationExponent < 0
+                || rotationExponent > MAX_ROTATION_EXPONENT) {
+            throw new IllegalArgumentException("Invalid EID registration");
+        }
+        int handle = mBeacons.find(idHigh, idLow);
+        if (handle == BeaconRegistry.NOT_FOUND) {
+            handle = mBeacons.add(idHigh, idLow);
+            ensureCapacity(handle);
+        } else {
+            removeEids(handle);
+        }
+        System.arraycopy(identityKey, 0, mIdentityKeys, handle * KEY_LENGTH, KEY_LENGTH);
+        mRotationExponents[handle] = rotationExponent;
+        mClockOffsets[handle] = clockOffsetSeconds;
+        mEpochs[handle] = NONE;
+        //Due at the next refresh, whatever the time
+        mNextRollover[handle] = 0;
+        heapPush(handle, 0);
+        return handle;
+    }
+
+    /**
+     * Register a beacon from a string of the form
+     * "identity key/K/clock offset/id", the key and id in hex (32 digits
+     * each) and the offset in seconds, e.g.
+     * "0123456789abcdef0123456789abcdef/10/-3600/d89bed6e130ee5cf1ba1000000000001".
+     */
+    public int register(String spec) {
+        String[] parts = spec.split("/");
+        if (parts.length != 4 || parts[0].length() != KEY_LENGTH * 2
+                || parts[3].length() != 32) {
+            throw new IllegalArgumentException("Invalid EID beacon: " + spec);
+        }
+        try {
+            byte[] key = new byte[KEY_LENGTH];
+            for (int i = 0; i < KEY_LENGTH; i++) {
+                key[i] = (byte) parseHex(spec, parts[0].substring(i * 2, i * 2 + 2));
+            }
+            return register(key, Integer.parseInt(parts[1]), Long.parseLong(parts[2]),
+                    parseHex(spec, parts[3].substring(0, 16)),
+                    parseHex(spec, parts[3].substring(16)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid EID beacon: " + spec);
+        }
+    }
+
+    /** Stop resolving a beacon's EIDs */
+    public void unregister(int handle) {
+        if (!mBeacons.isLive(handle)) return;
+        removeEids(handle);
+        //Its heap entry goes stale and is dropped when reached
+        mNextRollover[handle] = NONE;
+        mBeacons.remove(handle);
+    }
+
+    /** @return handle of the beacon broadcasting this EID, or NOT_FOUND */
+    public int resolve(long eid) {
+        int slot = slotFor(eid);
+        int handle;
+        while ((handle = mTableHandles[slot]) != NOT_FOUND) {
+            if (mTableEids[slot] == eid) {
+                mResolved++;
+                return handle;
+            }
+            slot = (slot + 1) & mTableMask;
+        }
+        mMisses++;
+        return NOT_FOUND;
+    }
+
+    public long getIdHigh(int handle) {
+        return mBeacons.getKeyHigh(handle);
+    }
+
+    public long getIdLow(int handle) {
+        return mBeacons.getKeyLow(handle);
+    }
+
+    /** Number of registered beacons */
+    public int size() {
+        return mBeacons.size();
+    }
+
+    /**
+     * Compute the EIDs of newly registered beacons and those whose epoch
+     * has rolled over.
+     *
+     * @param now Unix time in milliseconds
+     * @return number of EIDs computed
+     */
+    public int refresh(long now) {
+        long seconds = now / 1000;
+        mDueCount = 0;
+        int eids = 0;
+        while (mHeapSize > 0 && (mHeap[0] >>> HANDLE_BITS) <= seconds) {
+            long top = heapPop();
+            int handle = (int) (top & HANDLE_MASK);
+            if (mNextRollover[handle] != top >>> HANDLE_BITS) continue;
+            mNextRollover[handle] = NONE;
+
+            long epoch = epochOf(handle, seconds);
+            long from;
+            if (mEpochs[handle] != NONE && epoch == mEpochs[handle] + 1) {
+                //Previous and current were computed as current and next
+                from = epoch + 1;
+                removeEid(handle, epoch - 2);
+            } else {
+                from = Math.max(epoch - 1, 0);
+                removeEids(handle);
+            }
+            mEpochs[handle] = epoch;
+            addDue(handle, from);
+            eids += (int) (epoch + 2 - from);
+        }
+        if (mDueCount == 0) return 0;
+
+        if (mPool != null && mDueCount >= PARALLEL_THRESHOLD) {
+            mPool.invoke(new ComputeTask(0, mDueCount));
+        } else {
+            if (mCipher == null) mCipher = newCipher();
+            computeEids(mCipher, 0, mDueCount, new byte[KEY_LENGTH], new byte[KEY_LENGTH]);
+        }
+
+        //The table is single-threaded, so fill it in afterwards
+        for (int i = 0; i < mDueCount; i++) {
+            int handle = mDue[i];
+            for (long epoch = mDueFrom[i]; epoch <= mEpochs[handle] + 1; epoch++) {
+                addEid(handle, epoch);
+            }
+            long rollover = ((mEpochs[handle] + 1) << mRotationExponents[handle])
+                    - mClockOffsets[handle];
+            mNextRollover[handle] = rollover;
+            heapPush(handle, rollover);
+        }
+        mComputed += eids;
+        return eids;
+    }
+
+    /** Unregister every beacon */
+    public void clear() {
+        mBeacons.clear();
+        Arrays.fill(mTableHandles, NOT_FOUND);
+        mTableSize = 0;
+        mHeapSize = 0;
+        Arrays.fill(mEidsValid, false);
+    }
+
+    @Override
+    public String toString() {
+        return "EidResolver[" + size() + " beacons, "
+                + mTableSize + " EIDs, "
+                + mComputed + " computed, "
+                + mResolved + " resolved, "
+                + mMisses + " unresolved]";
+    }
+
+    /**
+     * Compute the EIDs of the given range of due beacons into mEids.
+     * Each beacon is only touched by one caller, so ranges can run in
+     * parallel given their own cipher and buffers.
+     */
+    private void computeEids(Cipher cipher, int start, int end, byte[] block,
+                             byte[] output) {
+        byte[] tempKey = new byte[KEY_LENGTH];
+        try {
+            for (int i = start; i < end; i++) {
+                int handle = mDue[i];
+                int exponent = mRotationExponents[handle];
+                SecretKeySpec identityKey = new SecretKeySpec(mIdentityKeys,
+                        handle * KEY_LENGTH, KEY_LENGTH, "AES");
+                long tempKeyPeriod = NONE;
+                for (long epoch = mDueFrom[i]; epoch <= mEpochs[handle] + 1; epoch++) {
+                    int timestamp = (int) (epoch << exponent);
+                    //The temporary key only changes every 2^16 seconds
+                    if ((timestamp >>> 16) != tempKeyPeriod) {
+                        tempKeyPeriod = timestamp >>> 16;
+                        Arrays.fill(block, (byte) 0);
+                        block[11] = (byte) 0xFF;
+                        block[14] = (byte) (timestamp >>> 24);
+                        block[15] = (byte) (timestamp >>> 16);
+                        cipher.init(Cipher.ENCRYPT_MODE, identityKey);
+                        cipher.doFinal(block, 0, KEY_LENGTH, tempKey, 0);
+                        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(tempKey, "AES"));
+                    }
+                    Arrays.fill(block, (byte) 0);
+                    block[11] = (byte) exponent;
+                    block[12] = (byte) (timestamp >>> 24);
+                    block[13] = (byte) (timestamp >>> 16);
+                    block[14] = (byte) (timestamp >>> 8);
+                    block[15] = (byte) timestamp;
+                    cipher.doFinal(block, 0, KEY_LENGTH, output, 0);
+                    mEids[handle * EPOCHS + ringSlot(epoch)] = readLong(output);
+                }
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES unavailable", e);
+        }
+    }
+
+    /* Splits the due beacons until each piece is small enough to compute */
+    private class ComputeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int mStart;
+        private final int mEnd;
+
+        ComputeTask(int start, int end) {
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEnd - mStart <= LEAF_SIZE) {
+                computeEids(newCipher(), mStart, mEnd, new byte[KEY_LENGTH],
+                        new byte[KEY_LENGTH]);
+                return;
+            }
+            int middle = (mStart + mEnd) >>> 1;
+            invokeAll(new ComputeTask(mStart, middle), new ComputeTask(middle, mEnd));
+        }
+    }
+
+    private long epochOf(int handle, long seconds) {
+        long beaconTime = (seconds + mClockOffsets[handle]) & 0xFFFFFFFFL;
+        return beaconTime >>> mRotationExponents[handle];
+    }
+
+    private void addDue(int handle, long from) {
+        if (mDueCount == mDue.length) {
+            mDue = Arrays.copyOf(mDue, mDueCount * 2);
+            mDueFrom = Arrays.copyOf(mDueFrom, mDueCount * 2);
+        }
+        mDue[mDueCount] = handle;
+        mDueFrom[mDueCount] = from;
+        mDueCount++;
+    }
+
+    private void addEid(int handle, long epoch) {
+        int index = handle * EPOCHS + ringSlot(epoch);
+        long eid = mEids[index];
+        int slot = slotFor(eid);
+        while (mTableHandles[slot] != NOT_FOUND) {
+            if (mTableEids[slot] == eid) {
+                //Another beacon has the same EID; the first one keeps it
+                return;
+            }
+            slot = (slot + 1) & mTableMask;
+        }
+        mTableEids[slot] = eid;
+        mTableHandles[slot] = handle;
+        mEidsValid[index] = true;
+        mTableSize++;
+        if (mTableSize * 2 > mTableHandles.length) {
+            allocateTable(mTableHandles.length * 2);
+        }
+    }
+
+    private void removeEids(int handle) {
+        for (int i = 0; i < EPOCHS; i++) {
+            removeEntry(handle, handle * EPOCHS + i);
+        }
+    }
+
+    private void removeEid(int handle, long epoch) {
+        if (epoch >= 0) removeEntry(handle, handle * EPOCHS + ringSlot(epoch));
+    }
+
+    private void removeEntry(int handle, int index) {
+        if (!mEidsValid[index]) return;
+        mEidsValid[index] = false;
+        long eid = mEids[index];
+        int slot = slotFor(eid);
+        while (mTableHandles[slot] != NOT_FOUND) {
+            if (mTableEids[slot] == eid && mTableHandles[slot] == handle) {
+                deleteSlot(slot);
+                mTableSize--;
+                return;
+            }
+            slot = (slot + 1) & mTableMask;
+        }
+    }
+
+    /* Backward-shift deletion, as in BeaconRegistry */
+    private void deleteSlot(int slot) {
+        int gap = slot;
+        int next = (gap + 1) & mTableMask;
+        while (mTableHandles[next] != NOT_FOUND) {
+            int home = slotFor(mTableEids[next]);
+            //Move the entry back if its home slot is not between gap and next
+            if (((next - home) & mTableMask) >= ((next - gap) & mTableMask)) {
+                mTableEids[gap] = mTableEids[next];
+                mTableHandles[gap] = mTableHandles[next];
+                gap = next;
+            }
+            next = (next + 1) & mTableMask;
+        }
+        mTableHandles[gap] = NOT_FOUND;
+    }
+
+    private void allocateTable(int size) {
+        long[] oldEids = mTableEids;
+        int[] oldHandles = mTableHandles;
+        mTableEids = new long[size];
+        mTableHandles = new int[size];
+        mTableMask = size - 1;
+        Arrays.fill(mTableHandles, NOT_FOUND);
+        if (oldHandles == null) return;
+        for (int i = 0; i < oldHandles.length; i++) {
+            if (oldHandles[i] == NOT_FOUND) continue;
+            int slot = slotFor(oldEids[i]);
+            while (mTableHandles[slot] != NOT_FOUND) {
+                slot = (slot + 1) & mTableMask;
+            }
+            mTableEids[slot] = oldEids[i];
+            mTableHandles[slot] = oldHandles[i];
+        }
+    }
+
+    private int slotFor(long eid) {
+        return (int) BeaconRegistry.mix(eid) & mTableMask;
+    }
+
+    private void heapPush(int handle, long second) {
+        if (mHeapSize == mHeap.length) {
+            mHeap = Arrays.copyOf(mHeap, mHeapSize * 2);
+        }
+        long entry = (second << HANDLE_BITS) | handle;
+        int i = mHeapSize++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (mHeap[parent] <= entry) break;
+            mHeap[i] = mHeap[parent];
+            i = parent;
+        }
+        mHeap[i] = entry;
+    }
+
+    private long heapPop() {
+        long top = mHeap[0];
+        long last = mHeap[--mHeapSize];
+        int i = 0;
+        int half = mHeapSize >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < mHeapSize && mHeap[child + 1] < mHeap[child]) child++;
+            if (last <= mHeap[child]) break;
+            mHeap[i] = mHeap[child];
+            i = child;
+        }
+        if (mHeapSize > 0) mHeap[i] = last;
+        return top;
+    }
+
+    private void ensureCapacity(int handle) {
+        if (handle >= HANDLE_MASK) {
+            throw new IllegalStateException("Too many EID beacons");
+        }
+        if (handle < mEpochs.length) return;
+
+        int size = Math.max(handle + 1, mEpochs.length * 2);
+        mIdentityKeys = Arrays.copyOf(mIdentityKeys, size * KEY_LENGTH);
+        mRotationExponents = Arrays.copyOf(mRotationExponents, size);
+        mClockOffsets = Arrays.copyOf(mClockOffsets, size);
+        mEpochs = Arrays.copyOf(mEpochs, size);
+        mNextRollover = Arrays.copyOf(mNextRollover, size);
+        mEids = Arrays.copyOf(mEids, size * EPOCHS);
+        mEidsValid = Arrays.copyOf(mEidsValid, size * EPOCHS);
+    }
+
+    private static int ringSlot(long epoch) {
+        return (int) (epoch % EPOCHS);
+    }
+
+    private static Cipher newCipher() {
+        try {
+            return Cipher.getInstance("AES/ECB/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES unavailable", e);
+        }
+    }
+
+    private static long readLong(byte[] data) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (data[i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static long parseHex(String spec, String digits) {
+        long value = 0;
+        for (int i = 0; i < digits.length(); i++) {
+            int digit = Character.digit(digits.charAt(i), 16);
+            if (digit < 0) {
+                throw new IllegalArgumentException("Invalid EID beacon: " + spec);
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+}
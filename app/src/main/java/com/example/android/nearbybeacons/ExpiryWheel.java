@@ -0,0 +1,174 @@
+package com.example.android.nearbybeacons;
+
+import java.util.Arrays;
+
+/**
+ * Hashed timing wheel that reports beacons which have not been seen for
+ * a grace period, indexed by {@link BeaconRegistry} handle.
+ *
+ * Each tracked handle sits in an intrusive doubly-linked list in the
+ * bucket for its deadline tick, so refreshing a beacon (unlink, relink)
+ * and expiring it are both O(1), with no timer object per beacon.
+ * Deadlines further out than one revolution simply stay in their bucket
+ * until a later pass finds them due.
+ *
+ * Time is always passed in by the caller, in milliseconds on any
+ * monotonic clock, so the wheel can be driven by a virtual clock.
+ * This class is not thread-safe and has no Android dependencies.
+ */
+public class ExpiryWheel {
+
+    /** Receives handles whose grace period has elapsed */
+    public interface Listener {
+        void onLost(int handle);
+    }
+
+    private static final int NONE = -1;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final long mTickMillis;
+    private final long mGraceMillis;
+    private final int[] mBuckets;
+    private final int mMask;
+
+    // Per-handle list links and deadlines
+    private int[] mNext;
+    private int[] mPrev;
+    private int[] mBucketOf;
+    private long[] mDeadline;
+
+    private long mCurrentTick = NONE;
+    private int mSize;
+
+    /**
+     * @param tickMillis Resolution of expiry
+     * @param wheelSize Number of buckets, rounded up to a power of two
+     * @param graceMillis Default time after the last sighting before a
+     *                    beacon is reported lost
+     */
+    public ExpiryWheel(long tickMillis, int wheelSize, long graceMillis) {
+        mTickMillis = tickMillis;
+        mGraceMillis = graceMillis;
+
+        int size = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1;
+        mBuckets = new int[size];
+        Arrays.fill(mBuckets, NONE);
+        mMask = size - 1;
+
+        mNext = new int[INITIAL_CAPACITY];
+        mPrev = new int[INITIAL_CAPACITY];
+        mBucketOf = new int[INITIAL_CAPACITY];
+        mDeadline = new long[INITIAL_CAPACITY];
+        Arrays.fill(mBucketOf, NONE);
+    }
+
+    /** Record a sighting, pushing the deadline out by the default grace period */
+    public void touch(int handle, long now) {
+        touch(handle, now, mGraceMillis);
+    }
+
+    /** Record a sighting with a specific grace period for this beacon */
+    public void touch(int handle, long now, long graceMillis) {
+        ensureCapacity(handle);
+        if (mCurrentTick == NONE) {
+            mCurrentTick = now / mTickMillis;
+        }
+
+        unlink(handle);
+        long deadline = now + graceMillis;
+        mDeadline[handle] = deadline;
+        //Never file a deadline behind the wheel's current position
+        long tick = Math.max(ceilTick(deadline), mCurrentTick);
+        link(handle, (int) (tick & mMask));
+    }
+
+    /** Stop tracking a handle without reporting it */
+    public void remove(int handle) {
+        if (handle < mBucketOf.length) {
+            unlink(handle);
+        }
+    }
+
+    public boolean isTracked(int handle) {
+        return handle < mBucketOf.length && mBucketOf[handle] != NONE;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Move the wheel forward to the given time, reporting (and no
+     * longer tracking) every handle whose deadline has passed.
+     *
+     * @return number of handles reported lost
+     */
+    public int advance(long now, Listener listener) {
+        long target = now / mTickMillis;
+        if (mCurrentTick == NONE) {
+            mCurrentTick = target;
+        }
+        if (target < mCurrentTick) return 0;
+
+        //Past one full revolution every bucket has been visited
+        long first = Math.max(mCurrentTick, target - mMask);
+        int lost = 0;
+        for (long tick = first; tick <= target; tick++) {
+            int handle = mBuckets[(int) (tick & mMask)];
+            while (handle != NONE) {
+                int next = mNext[handle];
+                if (mDeadline[handle] <= now) {
+                    unlink(handle);
+                    listener.onLost(handle);
+                    lost++;
+                }
+                handle = next;
+            }
+        }
+        mCurrentTick = target;
+
+        return lost;
+    }
+
+    private long ceilTick(long time) {
+        return (time + mTickMillis - 1) / mTickMillis;
+    }
+
+    private void link(int handle, int bucket) {
+        int head = mBuckets[bucket];
+        mNext[handle] = head;
+        mPrev[handle] = NONE;
+        if (head != NONE) mPrev[head] = handle;
+        mBuckets[bucket] = handle;
+        mBucketOf[handle] = bucket;
+        mSize++;
+    }
+
+    private void unlink(int handle) {
+        int bucket = mBucketOf[handle];
+        if (bucket == NONE) return;
+
+        int next = mNext[handle];
+        int prev = mPrev[handle];
+        if (prev != NONE) {
+            mNext[prev] = next;
+        } else {
+            mBuckets[bucket] = next;
+        }
+        if (next != NONE) mPrev[next] = prev;
+        mBucketOf[handle] = NONE;
+        mSize--;
+    }
+
+    private void ensureCapacity(int handle) {
+        if (handle < mBucketOf.length) return;
+
+        int size = Math.max(handle + 1, mBucketOf.length * 2);
+        int oldSize = mBucketOf.length;
+        mNext = Arrays.copyOf(mNext, size);
+        mPrev = Arrays.copyOf(mPrev, size);
+        mDeadline = Arrays.copyOf(mDeadline, size);
+        mBucketOf = Arrays.copyOf(mBucketOf, size);
+        Arrays.fill(mBucketOf, oldSize, size, NONE);
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.android.nearbybeacons;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * {@link UrlResolver} that follows HTTP redirects one hop at a time with
+ * HEAD requests, without downloading any content.
+ *
+ * This class has no Android dependencies.
+ */
+public class HttpUrlResolver implements UrlResolver {
+
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int READ_TIMEOUT_MS = 5000;
+
+    private final int mMaxRedirects;
+
+    /** @param maxRedirects Hops followed before giving up */
+    public HttpUrlResolver(int maxRedirects) {
+        mMaxRedirects = maxRedirects;
+    }
+
+    @Override
+    public String resolve(String url) throws IOException {
+        URL current = new URL(url);
+        for (int hop = 0; hop <= mMaxRedirects; hop++) {
+            HttpURLConnection connection = (HttpURLConnection) current.openConnection();
+            try {
+                connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+                connection.setReadTimeout(READ_TIMEOUT_MS);
+                connection.setInstanceFollowRedirects(false);
+                connection.setRequestMethod("HEAD");
+                int status = connection.getResponseCode();
+                String location = connection.getHeaderField("Location");
+                close(connection);
+
+                if (status < 300 || status >= 400 || location == null) {
+                    if (status >= 400) {
+                        throw new BeaconApiClient.HttpException(status,
+                                connection.getResponseMessage());
+                    }
+                    return current.toString();
+                }
+                //Location may be relative to the current URL
+                current = new URL(current, location);
+            } catch (IOException e) {
+                connection.disconnect();
+                throw e;
+            }
+        }
+        throw new IOException("Too many redirects from " + url);
+    }
+
+    /* A HEAD response has no body, but closing returns the connection to the pool */
+    private static void close(HttpURLConnection connection) throws IOException {
+        InputStream in = connection.getResponseCode() < 400
+                ? connection.getInputStream() : connection.getErrorStream();
+        if (in != null) in.close();
+    }
+}
@@ -0,0 +1,217 @@
+package com.example.android.nearbybeacons;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes a short edit script turning one list into another.
+ *
+ * Items are matched by equals/hashCode, and must be unique within each
+ * list. Items only in the old list are removed, items only in the new
+ * list are inserted, and of the items in both, the longest run that is
+ * already in the right relative order stays put while the rest are
+ * moved, so the number of moves is minimal. Items in both lists that
+ * are equal but not the same instance, e.g. a newer version of an
+ * item, are reported as changed once everything is in place.
+ *
+ * Operations are reported in the order they must be applied; each
+ * position refers to the list as left by the operations before it.
+ * Runs in O(n log n) time.
+ *
+ * This class has no Android dependencies.
+ */
+public class ListDiff {
+
+    /** Receives the edit script */
+    public interface Callback {
+        /** Remove the item at this position */
+        void onRemove(int position);
+
+        /** Insert the new list's item at newIndex at this position */
+        void onInsert(int position, int newIndex);
+
+        /** Remove the item at from, then insert it at to */
+        void onMove(int from, int to);
+
+        /** Replace the item at this position with the new list's item there */
+        void onChange(int position);
+    }
+
+    private ListDiff() {
+        //No instances
+    }
+
+    /**
+     * Report the operations turning oldList into newList.
+     *
+     * @return number of operations reported
+     */
+    public static <T> int diff(List<T> oldList, List<T> newList, Callback callback) {
+        int oldSize = oldList.size();
+        int newSize = newList.size();
+
+        Map<T, Integer> newIndex = new HashMap<>(newSize * 2);
+        for (int i = 0; i < newSize; i++) {
+            newIndex.put(newList.get(i), i);
+        }
+
+        //Removals, back to front so earlier positions stay valid
+        int ops = 0;
+        int[] kept = new int[oldSize];
+        int[] keptFrom = new int[oldSize];
+        int keptCount = 0;
+        for (int i = 0; i < oldSize; i++) {
+            Integer target = newIndex.get(oldList.get(i));
+            if (target != null) {
+                keptFrom[keptCount] = i;
+                kept[keptCount++] = target;
+            }
+        }
+        for (int i = oldSize - 1; i >= 0; i--) {
+            if (!newIndex.containsKey(oldList.get(i))) {
+                callback.onRemove(i);
+                ops++;
+            }
+        }
+
+        //Kept items (by old order) that do not need to move
+        boolean[] stays = longestIncreasing(kept, keptCount);
+
+        //The new-list index of each old item, -1 for inserted items
+        int[] oldOf = new int[newSize];
+        Arrays.fill(oldOf, -1);
+        for (int j = 0; j < keptCount; j++) {
+            oldOf[kept[j]] = j;
+        }
+
+        /*
+         * Give every item state a slot in one total order that the working
+         * list respects throughout: each item that stays starts a group,
+         * followed by the items placed after it in the new list and then
+         * by the moving items still waiting behind it in the old list.
+         */
+        int[] lisRank = new int[keptCount];
+        int groups = 1;
+        for (int j = 0; j < keptCount; j++) {
+            lisRank[j] = stays[j] ? groups++ : groups - 1;
+        }
+        int[] placedGroup = new int[newSize];
+        int group = 0;
+        for (int p = 0; p < newSize; p++) {
+            int j = oldOf[p];
+            if (j >= 0 && stays[j]) {
+                group = lisRank[j];
+            }
+            placedGroup[p] = group;
+        }
+
+        int[] groupStart = new int[groups + 1];
+        for (int j = 0; j < keptCount; j++) {
+            groupStart[lisRank[j] + 1]++;
+        }
+        for (int p = 0; p < newSize; p++) {
+            int j = oldOf[p];
+            if (j < 0 || !stays[j]) groupStart[placedGroup[p] + 1]++;
+        }
+        for (int g = 0; g < groups; g++) {
+            groupStart[g + 1] += groupStart[g];
+        }
+
+        int[] next = Arrays.copyOf(groupStart, groups);
+        int[] oldSlot = new int[keptCount];
+        int[] newSlot = new int[newSize];
+        for (int j = 0; j < keptCount; j++) {
+            if (stays[j]) oldSlot[j] = next[lisRank[j]]++;
+        }
+        for (int p = 0; p < newSize; p++) {
+            int j = oldOf[p];
+            if (j >= 0 && stays[j]) {
+                newSlot[p] = oldSlot[j];
+            } else {
+                newSlot[p] = next[placedGroup[p]]++;
+            }
+        }
+        for (int j = 0; j < keptCount; j++) {
+            if (!stays[j]) oldSlot[j] = next[lisRank[j]]++;
+        }
+
+        //Fenwick tree over slots of the items currently in the list
+        int[] tree = new int[groupStart[groups] + 1];
+        for (int j = 0; j < keptCount; j++) {
+            add(tree, oldSlot[j], 1);
+        }
+
+        //Insertions and moves, front to back in the new list
+        for (int p = 0; p < newSize; p++) {
+            int j = oldOf[p];
+            if (j >= 0 && stays[j]) continue;
+
+            if (j < 0) {
+                callback.onInsert(count(tree, newSlot[p]), p);
+            } else {
+                int from = count(tree, oldSlot[j]);
+                add(tree, oldSlot[j], -1);
+                callback.onMove(from, count(tree, newSlot[p]));
+            }
+            add(tree, newSlot[p], 1);
+            ops++;
+        }
+
+        //The list now matches the new one position for position
+        for (int p = 0; p < newSize; p++) {
+            int j = oldOf[p];
+            if (j >= 0 && oldList.get(keptFrom[j]) != newList.get(p)) {
+                callback.onChange(p);
+                ops++;
+            }
+        }
+
+        return ops;
+    }
+
+    /* Flags the members of one longest strictly increasing subsequence */
+    private static boolean[] longestIncreasing(int[] values, int count) {
+        //tails[k]: index of the smallest tail of an increasing run of length k + 1
+        int[] tails = new int[count];
+        int[] previous = new int[count];
+        int length = 0;
+        for (int i = 0; i < count; i++) {
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (values[tails[mid]] < values[i]) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            previous[i] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = i;
+            if (low == length) length++;
+        }
+
+        boolean[] member = new boolean[count];
+        for (int i = length > 0 ? tails[length - 1] : -1; i >= 0; i = previous[i]) {
+            member[i] = true;
+        }
+        return member;
+    }
+
+    private static void add(int[] tree, int slot, int delta) {
+        for (int i = slot + 1; i < tree.length; i += i & -i) {
+            tree[i] += delta;
+        }
+    }
+
+    /* Number of occupied slots before this one */
+    private static int count(int[] tree, int slot) {
+        int sum = 0;
+        for (int i = slot; i > 0; i -= i & -i) {
+            sum += tree[i];
+        }
+        return sum;
+    }
+}
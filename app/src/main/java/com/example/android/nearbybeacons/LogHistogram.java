@@ -0,0 +1,107 @@
+package com.example.android.nearbybeacons;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-size histogram of non-negative longs with log-linear buckets.
+ *
+ * Values below 2^subBucketBits are counted exactly; above that, every
+ * power of two is split into 2^subBucketBits buckets, so percentiles
+ * are accurate to within half a bucket (1 / 2^(subBucketBits + 1) of
+ * the value). Memory is fixed at construction, however many values are
+ * recorded; values beyond 2^maxBits are clamped into the last bucket.
+ *
+ * This class is not thread-safe and has no Android dependencies.
+ */
+public class LogHistogram {
+
+    private final int mSubBucketBits;
+    private final long mMaxValue;
+    private final int[] mCounts;
+    private long mTotal;
+
+    /**
+     * @param subBucketBits Precision, e.g. 3 for about 6%
+     * @param maxBits Largest value recorded exactly is 2^maxBits - 1
+     */
+    public LogHistogram(int subBucketBits, int maxBits) {
+        mSubBucketBits = subBucketBits;
+        mMaxValue = (1L << maxBits) - 1;
+        mCounts = new int[bucketCount(subBucketBits, maxBits)];
+    }
+
+    /** Number of buckets used for the given precision and range */
+    public static int bucketCount(int subBucketBits, int maxBits) {
+        return (maxBits - subBucketBits + 1) << subBucketBits;
+    }
+
+    /** Bucket holding the given value */
+    public static int bucketOf(long value, int subBucketBits) {
+        if (value < (1L << subBucketBits)) return (int) value;
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - subBucketBits;
+        return ((shift + 1) << subBucketBits)
+                + (int) ((value >>> shift) - (1L << subBucketBits));
+    }
+
+    /** Smallest value counted in the given bucket */
+    public static long lowestValueOf(int bucket, int subBucketBits) {
+        int shift = (bucket >> subBucketBits) - 1;
+        if (shift < 0) return bucket;
+        long mantissa = (bucket & ((1 << subBucketBits) - 1)) + (1L << subBucketBits);
+        return mantissa << shift;
+    }
+
+    /** Middle of the range of values counted in the given bucket */
+    public static long representativeValueOf(int bucket, int subBucketBits) {
+        int shift = (bucket >> subBucketBits) - 1;
+        long lowest = lowestValueOf(bucket, subBucketBits);
+        return shift <= 0 ? lowest : lowest + (1L << (shift - 1));
+    }
+
+    public void record(long value) {
+        mCounts[bucketOf(Math.min(Math.max(value, 0), mMaxValue), mSubBucketBits)]++;
+        mTotal++;
+    }
+
+    /** Add all the counts of a histogram with the same layout */
+    public void add(LogHistogram other) {
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] += other.mCounts[i];
+        }
+        mTotal += other.mTotal;
+    }
+
+    /* Used to copy counts in from a ConcurrentLogHistogram */
+    void addToBucket(int bucket, long count) {
+        mCounts[bucket] += (int) count;
+        mTotal += count;
+    }
+
+    public long getCount() {
+        return mTotal;
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return the estimated value at that percentile, or 0 if empty
+     */
+    public long getPercentile(double percentile) {
+        if (mTotal == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(mTotal * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return Math.min(representativeValueOf(i, mSubBucketBits), mMaxValue);
+            }
+        }
+        return mMaxValue;
+    }
+
+    public void clear() {
+        Arrays.fill(mCounts, 0);
+        mTotal = 0;
+    }
+}
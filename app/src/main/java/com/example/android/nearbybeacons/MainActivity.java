@@ -6,15 +6,21 @@ import android.content.Intent;
 import android.content.IntentSender;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.app.ActivityCompat;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
+import android.view.Choreographer;
+import android.view.LayoutInflater;
 import android.view.View;
+import android.view.ViewGroup;
 import android.widget.AdapterView;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.ListView;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import com.google.android.gms.common.ConnectionResult;
@@ -27,6 +33,15 @@ import com.google.android.gms.nearby.messages.MessageListener;
 import com.google.android.gms.nearby.messages.Strategy;
 import com.google.android.gms.nearby.messages.SubscribeOptions;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 public class MainActivity extends AppCompatActivity implements
         AdapterView.OnItemClickListener,
         GoogleApiClient.ConnectionCallbacks,
@@ -37,9 +52,32 @@ public class MainActivity extends AppCompatActivity implements
 
     private static final int REQUEST_RESOLVE_ERROR = 100;
     private static final int REQUEST_PERMISSION = 42;
+    // Found and lost offers in flight to the list model
+    private static final int OFFER_EVENT_BUFFER = 512;
+    // Offers shown at launch, from when the activity last stopped
+    private static final String SNAPSHOT_FILE = "offers.snapshot";
+    // Shown offers not found again this long after subscribing are dropped
+    private static final long RECONCILE_GRACE_MS = 10000;
+
+    // Read by the background scanner when it starts
+    private static volatile boolean sForeground;
+
+    /** Whether the activity is currently started */
+    public static boolean isInForeground() {
+        return sForeground;
+    }
 
     private GoogleApiClient mGoogleApiClient;
-    private ArrayAdapter<OfferBeacon> mAdapter;
+    private OfferAdapter mAdapter;
+    // Found messages, diffed in the background and applied once per frame
+    private BatchedListModel<OfferBeacon> mModel;
+    private ExecutorService mDiffExecutor;
+    private Handler mMainHandler;
+    // Only used on the main thread
+    private boolean mFramePosted;
+    private BeaconFlow.Subscription mOfferSubscription;
+    // Shown offers not yet confirmed by a live event, by section; diff executor only
+    private final HashMap<String, OfferBeacon> mUnconfirmed = new HashMap<>();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -48,7 +86,7 @@ public class MainActivity extends AppCompatActivity implements
 
         ListView list = (ListView) findViewById(R.id.list);
 
-        mAdapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1);
+        mAdapter = new OfferAdapter(LayoutInflater.from(this));
         list.setAdapter(mAdapter);
         list.setOnItemClickListener(this);
 
@@ -59,6 +97,16 @@ public class MainActivity extends AppCompatActivity implements
                 .addApi(Nearby.MESSAGES_API)
                 .build();
 
+        mMainHandler = new Handler();
+        mDiffExecutor = Executors.newSingleThreadExecutor();
+        mModel = new BatchedListModel<>(mDiffExecutor, new BatchedListModel.Listener() {
+            @Override
+            public void onUpdateReady() {
+                mMainHandler.post(mScheduleFrame);
+            }
+        });
+        restoreSnapshot();
+
         //When launching from a notification link
         if (BeaconService.ACTION_DISMISS.equals(getIntent().getAction())) {
             //Fire a clear action to the service
@@ -74,6 +122,14 @@ public class MainActivity extends AppCompatActivity implements
         super.onStart();
         //Initiate connection to Play Services
         mGoogleApiClient.connect();
+        notifyScanner(true);
+        //Whatever is shown now has to be found again, ahead of any new events
+        mDiffExecutor.execute(mBeginReconcile);
+        //Offers from every source reach the list through the event bus
+        BeaconEventBus.getDefault()
+                .stream(BeaconEvent.OFFER_FOUND | BeaconEvent.OFFER_LOST, mDiffExecutor)
+                .buffer(OFFER_EVENT_BUFFER)
+                .subscribe(mOfferSubscriber);
 
         //The location permission is required on API 23+ to obtain BLE scan results
         int result = ActivityCompat
@@ -89,18 +145,39 @@ public class MainActivity extends AppCompatActivity implements
     @Override
     protected void onStop() {
         super.onStop();
+        notifyScanner(false);
+        mOfferSubscription.cancel();
+        mMainHandler.removeCallbacks(mEndReconcile);
+        //The list stays as it is; save it to show at the next launch, once
+        //a restore still queued on the diff executor has run
+        mDiffExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                saveSnapshot(mModel.getItems());
+            }
+        });
         //Tear down Play Services connection
         if (mGoogleApiClient.isConnected()) {
             Log.d(TAG, "Un-subscribing…");
             Nearby.Messages.unsubscribe(
                     mGoogleApiClient,
                     mMessageListener);
-            mAdapter.clear();
 
             mGoogleApiClient.disconnect();
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mDiffExecutor.shutdown();
+        mMainHandler.removeCallbacks(mScheduleFrame);
+        mMainHandler.removeCallbacks(mEndReconcile);
+        if (mFramePosted) {
+            Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+        }
+    }
+
     // This is called in response to a button tap in the system permissions dialog.
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
@@ -137,30 +214,226 @@ public class MainActivity extends AppCompatActivity implements
         // Called each time a new message is discovered nearby.
         @Override
         public void onFound(Message message) {
-            Log.i(TAG, "Found message: " + message);
-            final OfferBeacon beacon = new OfferBeacon(message);
-            runOnUiThread(new Runnable() {
+            OfferBeacon beacon = OfferBeacon.from(message);
+            Log.i(TAG, "Found message: " + beacon);
+            BeaconEventBus events = BeaconEventBus.getDefault();
+            if (events.hasSubscribers(BeaconEvent.OFFER_FOUND)) {
+                events.publish(BeaconEvent.forOffer(BeaconEvent.OFFER_FOUND,
+                        beacon, SystemClock.elapsedRealtime()));
+            }
+        }
+
+        // Called when the publisher (beacon) is no longer nearby.
+        @Override
+        public void onLost(Message message) {
+            OfferBeacon beacon = OfferBeacon.from(message);
+            Log.i(TAG, "Lost message: " + beacon);
+            BeaconEventBus events = BeaconEventBus.getDefault();
+            if (events.hasSubscribers(BeaconEvent.OFFER_LOST)) {
+                events.publish(BeaconEvent.forOffer(BeaconEvent.OFFER_LOST,
+                        beacon, SystemClock.elapsedRealtime()));
+            }
+        }
+    };
+
+    /* Offer events from the bus, on the diff executor */
+    private BeaconFlow.Subscriber<BeaconEvent> mOfferSubscriber =
+            new BeaconFlow.Subscriber<BeaconEvent>() {
+        @Override
+        public void onSubscribe(BeaconFlow.Subscription subscription) {
+            mOfferSubscription = subscription;
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(BeaconEvent event) {
+            OfferBeacon beacon = (OfferBeacon) event.payload;
+            OfferBeacon shown = mUnconfirmed.remove(beacon.section);
+            if (event.type == BeaconEvent.OFFER_FOUND) {
+                if (shown == null || !shown.offer.equals(beacon.offer)) {
+                    //A new section, or a new offer for one shown: replace it in place
+                    mModel.put(beacon);
+                }
+            } else {
+                mModel.remove(beacon);
+            }
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            Log.w(TAG, "Offer events failed", error);
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    };
+
+    /* Warm start */
+
+    /*
+     * Show the offers saved when last stopped, before the first frame.
+     * Only the header is checked here; the list decodes the rows it shows,
+     * and the model gets every offer decoded on the diff executor.
+     */
+    private void restoreSnapshot() {
+        File file = new File(getFilesDir(), SNAPSHOT_FILE);
+        try {
+            final OfferSnapshot snapshot = OfferSnapshot.open(file);
+            mAdapter.restore(snapshot.asList());
+            mDiffExecutor.execute(new Runnable() {
                 @Override
                 public void run() {
-                    mAdapter.add(beacon);
+                    mModel.restore(snapshot.getAll());
                 }
             });
+            Log.d(TAG, "Restored " + snapshot);
+        } catch (FileNotFoundException e) {
+            //First launch
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding offer snapshot", e);
+            file.delete();
         }
+    }
 
-        // Called when the publisher (beacon) is no longer nearby.
+    /* Called on the diff executor */
+    private void saveSnapshot(List<OfferBeacon> offers) {
+        try {
+            OfferSnapshot.write(new File(getFilesDir(), SNAPSHOT_FILE), offers);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to save offer snapshot", e);
+        }
+    }
+
+    /* On the diff executor, before any events from the new subscription */
+    private Runnable mBeginReconcile = new Runnable() {
         @Override
-        public void onLost(Message message) {
-            Log.i(TAG, "Lost message: " + message);
-            final OfferBeacon beacon = new OfferBeacon(message);
-            runOnUiThread(new Runnable() {
+        public void run() {
+            mUnconfirmed.clear();
+            for (OfferBeacon offer : mModel.getItems()) {
+                mUnconfirmed.put(offer.section, offer);
+            }
+        }
+    };
+
+    /* Posted once subscribed; drops whatever was not found again */
+    private Runnable mEndReconcile = new Runnable() {
+        @Override
+        public void run() {
+            mDiffExecutor.execute(new Runnable() {
                 @Override
                 public void run() {
-                    mAdapter.remove(beacon);
+                    for (OfferBeacon offer : mUnconfirmed.values()) {
+                        mModel.remove(offer);
+                    }
+                    mUnconfirmed.clear();
                 }
             });
         }
     };
 
+    /* List updates, coalesced to at most one per frame */
+
+    private Runnable mScheduleFrame = new Runnable() {
+        @Override
+        public void run() {
+            if (mFramePosted) return;
+            mFramePosted = true;
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        }
+    };
+
+    private Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFramePosted = false;
+            BatchedListModel.Update<OfferBeacon> update = mModel.takeUpdate();
+            if (update != null) {
+                mAdapter.apply(update);
+            }
+        }
+    };
+
+    private static class OfferAdapter extends BaseAdapter implements ListDiff.Callback {
+        private final LayoutInflater mInflater;
+        private List<OfferBeacon> mItems = new ArrayList<>();
+        // Whether mItems is still the snapshot shown at launch, decoded as shown
+        private boolean mSnapshot;
+        // Source of inserted items while an update is applied
+        private List<OfferBeacon> mUpdateItems;
+
+        OfferAdapter(LayoutInflater inflater) {
+            mInflater = inflater;
+        }
+
+        /* Replay the update's edits, then refresh the list view once */
+        void apply(BatchedListModel.Update<OfferBeacon> update) {
+            if (mSnapshot) {
+                //The edits are against the same offers the model decoded; take them whole
+                mItems = new ArrayList<>(update.getItems());
+                mSnapshot = false;
+            } else {
+                mUpdateItems = update.getItems();
+                update.dispatch(this);
+                mUpdateItems = null;
+            }
+            notifyDataSetChanged();
+        }
+
+        /* Show a snapshot the model is being restored with; read-only until the first update */
+        void restore(List<OfferBeacon> items) {
+            mItems = items;
+            mSnapshot = true;
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public void onRemove(int position) {
+            mItems.remove(position);
+        }
+
+        @Override
+        public void onInsert(int position, int newIndex) {
+            mItems.add(position, mUpdateItems.get(newIndex));
+        }
+
+        @Override
+        public void onMove(int from, int to) {
+            mItems.add(to, mItems.remove(from));
+        }
+
+        @Override
+        public void onChange(int position) {
+            mItems.set(position, mUpdateItems.get(position));
+        }
+
+        @Override
+        public int getCount() {
+            return mItems.size();
+        }
+
+        @Override
+        public OfferBeacon getItem(int position) {
+            return mItems.get(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            TextView view = (TextView) convertView;
+            if (view == null) {
+                view = (TextView) mInflater.inflate(android.R.layout.simple_list_item_1,
+                        parent, false);
+            }
+            view.setText(mItems.get(position).toString());
+            return view;
+        }
+    }
+
     /* API Client Callbacks */
 
     @Override
@@ -191,6 +464,8 @@ public class MainActivity extends AppCompatActivity implements
 
     private void subscribe() {
         Log.d(TAG, "Subscribing…");
+        mMainHandler.removeCallbacks(mEndReconcile);
+        mMainHandler.postDelayed(mEndReconcile, RECONCILE_GRACE_MS);
         SubscribeOptions options = new SubscribeOptions.Builder()
                 .setStrategy(Strategy.BLE_ONLY)
                 .build();
@@ -256,6 +531,21 @@ public class MainActivity extends AppCompatActivity implements
     }
 
 
+    /*
+     * Let the background scanner know whether we are visible; one that
+     * is not running yet picks this up when it starts
+     */
+    @SuppressWarnings("deprecation")
+    private void notifyScanner(boolean foreground) {
+        sForeground = foreground;
+        if (!EddystoneScannerService.isRunning()) return;
+
+        Intent intent = new Intent(this, EddystoneScannerService.class);
+        intent.setAction(foreground ? EddystoneScannerService.ACTION_FOREGROUND
+                : EddystoneScannerService.ACTION_BACKGROUND);
+        startService(intent);
+    }
+
     private void showToast(String text) {
         Toast.makeText(this, text, Toast.LENGTH_SHORT).show();
     }
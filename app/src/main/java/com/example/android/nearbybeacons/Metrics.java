@@ -0,0 +1,202 @@
+package com.example.android.nearbybeacons;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Named counters and histograms for the scanning and observing paths.
+ *
+ * Look metrics up once, keep the instance, and update it on the hot
+ * path: a counter increment or histogram record is a single atomic add.
+ * {@link #snapshot()} copies everything for inspection, and a periodic
+ * dump appends snapshots to a text file on the device, with counter
+ * rates over the period and histogram percentiles.
+ *
+ * This class is thread-safe and has no Android dependencies.
+ */
+public class Metrics {
+
+    // Histograms: about 6% precision, values up to 2^32
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int MAX_BITS = 32;
+    // The dump file is rotated to a single ".old" copy beyond this size
+    private static final long MAX_DUMP_BYTES = 256 * 1024;
+
+    private static final Metrics sDefault = new Metrics();
+
+    /** The process-wide instance shared by the services */
+    public static Metrics getDefault() {
+        return sDefault;
+    }
+
+    /** Values of every metric at one moment */
+    public static class Snapshot {
+        /** Wall clock time the snapshot was taken */
+        public final long timeMillis;
+        private final long mNanos;
+        private final Map<String, Long> mCounters;
+        private final Map<String, LogHistogram> mHistograms;
+
+        Snapshot(long timeMillis, long nanos, Map<String, Long> counters,
+                 Map<String, LogHistogram> histograms) {
+            this.timeMillis = timeMillis;
+            mNanos = nanos;
+            mCounters = Collections.unmodifiableMap(counters);
+            mHistograms = Collections.unmodifiableMap(histograms);
+        }
+
+        /** Counter values by name, sorted */
+        public Map<String, Long> getCounters() {
+            return mCounters;
+        }
+
+        /** Histogram copies by name, sorted */
+        public Map<String, LogHistogram> getHistograms() {
+            return mHistograms;
+        }
+
+        public long getCounter(String name) {
+            Long value = mCounters.get(name);
+            return value != null ? value : 0;
+        }
+
+        /** Per second increase of a counter since an earlier snapshot */
+        public double getRate(String name, Snapshot since) {
+            double seconds = (mNanos - since.mNanos) / 1e9;
+            return seconds > 0 ? (getCounter(name) - since.getCounter(name)) / seconds : 0;
+        }
+
+        /** Write as text, with rates since an earlier snapshot if given */
+        public void writeTo(PrintWriter out, Snapshot since) {
+            out.println("# " + new Date(timeMillis));
+            for (Map.Entry<String, Long> counter : mCounters.entrySet()) {
+                out.print(counter.getKey() + " " + counter.getValue());
+                if (since != null) {
+                    out.printf(" (%.1f/s)", getRate(counter.getKey(), since));
+                }
+                out.println();
+            }
+            for (Map.Entry<String, LogHistogram> entry : mHistograms.entrySet()) {
+                LogHistogram histogram = entry.getValue();
+                out.println(entry.getKey() + " count " + histogram.getCount()
+                        + " p50 " + histogram.getPercentile(50)
+                        + " p90 " + histogram.getPercentile(90)
+                        + " p99 " + histogram.getPercentile(99)
+                        + " max " + histogram.getPercentile(100));
+            }
+        }
+    }
+
+    private final ConcurrentMap<String, StripedCounter> mCounters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ConcurrentLogHistogram> mHistograms =
+            new ConcurrentHashMap<>();
+
+    // Guarded by this
+    private ScheduledExecutorService mDumpExecutor;
+    private File mDumpFile;
+    private Snapshot mLastDump;
+
+    /** The counter with this name, created on first use */
+    public StripedCounter counter(String name) {
+        StripedCounter counter = mCounters.get(name);
+        if (counter == null) {
+            StripedCounter created = new StripedCounter();
+            counter = mCounters.putIfAbsent(name, created);
+            if (counter == null) counter = created;
+        }
+        return counter;
+    }
+
+    /** The histogram with this name, created on first use */
+    public ConcurrentLogHistogram histogram(String name) {
+        ConcurrentLogHistogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            ConcurrentLogHistogram created =
+                    new ConcurrentLogHistogram(SUB_BUCKET_BITS, MAX_BITS);
+            histogram = mHistograms.putIfAbsent(name, created);
+            if (histogram == null) histogram = created;
+        }
+        return histogram;
+    }
+
+    public Snapshot snapshot() {
+        Map<String, Long> counters = new TreeMap<>();
+        for (Map.Entry<String, StripedCounter> entry : mCounters.entrySet()) {
+            counters.put(entry.getKey(), entry.getValue().get());
+        }
+        Map<String, LogHistogram> histograms = new TreeMap<>();
+        for (Map.Entry<String, ConcurrentLogHistogram> entry : mHistograms.entrySet()) {
+            histograms.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return new Snapshot(System.currentTimeMillis(), System.nanoTime(),
+                counters, histograms);
+    }
+
+    /**
+     * Append a snapshot to the file now and then every period, on a
+     * background thread, until {@link #stopDump()}. Replaces any dump
+     * already running.
+     */
+    public synchronized void startDump(File file, long periodMillis) {
+        stopDump();
+        mDumpFile = file;
+        mDumpExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MetricsDump");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mDumpExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                dump();
+            }
+        }, 0, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Stop the periodic dump, writing one last snapshot */
+    public synchronized void stopDump() {
+        if (mDumpExecutor == null) return;
+        mDumpExecutor.shutdownNow();
+        mDumpExecutor = null;
+        dump();
+        mDumpFile = null;
+        mLastDump = null;
+    }
+
+    private synchronized void dump() {
+        if (mDumpFile == null) return;
+        if (mDumpFile.length() > MAX_DUMP_BYTES) {
+            File old = new File(mDumpFile.getPath() + ".old");
+            old.delete();
+            mDumpFile.renameTo(old);
+        }
+
+        Snapshot snapshot = snapshot();
+        PrintWriter out = null;
+        try {
+            out = new PrintWriter(new FileWriter(mDumpFile, true));
+            snapshot.writeTo(out, mLastDump);
+            out.println();
+        } catch (IOException e) {
+            //Nothing to report to; try again next period
+        } finally {
+            if (out != null) out.close();
+        }
+        mLastDump = snapshot;
+    }
+}
@@ -0,0 +1,296 @@
+package com.example.android.nearbybeacons;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable set of Eddystone UID namespaces, optionally narrowed to
+ * instance id prefixes, that the scanner is interested in.
+ *
+ * Rules are written as a 20 hex digit namespace, optionally followed by
+ * "/" and up to 12 hex digits of instance prefix, e.g.
+ * "d89bed6e130ee5cf1ba1" or "d89bed6e130ee5cf1ba1/0a3f". They are parsed
+ * once by {@link #compile(String[])} into an open-addressing table keyed
+ * by namespace, so matching a frame costs one hash probe plus a mask
+ * compare per instance rule of that namespace, regardless of how many
+ * namespaces are configured. A set compiled from no rules matches
+ * nothing; {@link #MATCH_ALL} has to be asked for explicitly.
+ *
+ * The set can also describe itself as a bounded number of hardware scan
+ * filters; see {@link #getHardwareFilters(int)}.
+ *
+ * This class is thread-safe and has no Android dependencies.
+ */
+public class NamespaceFilterSet {
+
+    /** Empty set that matches every UID frame */
+    public static final NamespaceFilterSet MATCH_ALL =
+            new NamespaceFilterSet(true, new long[0], new int[0], new int[1], new int[1],
+                    new long[0], new long[0]);
+
+    /** Empty set that matches no UID frame */
+    public static final NamespaceFilterSet MATCH_NONE =
+            new NamespaceFilterSet(false, new long[0], new int[0], new int[1], new int[1],
+                    new long[0], new long[0]);
+
+    // Length of a UID frame's service data as matched by hardware filters
+    private static final int SERVICE_DATA_LENGTH = 18;
+    private static final int NAMESPACE_OFFSET = 2;
+    private static final int INSTANCE_OFFSET = 12;
+    private static final int NAMESPACE_DIGITS = 20;
+    private static final int INSTANCE_DIGITS = 12;
+    private static final long INSTANCE_MASK = 0xFFFFFFFFFFFFL;
+
+    /** Service data pattern and mask for one hardware scan filter */
+    public static class HardwareFilter {
+        public final byte[] data;
+        public final byte[] mask;
+
+        HardwareFilter(byte[] data, byte[] mask) {
+            this.data = data;
+            this.mask = mask;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof HardwareFilter)) return false;
+            HardwareFilter other = (HardwareFilter) o;
+            return Arrays.equals(data, other.data) && Arrays.equals(mask, other.mask);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(data) + Arrays.hashCode(mask);
+        }
+    }
+
+    // What a set without namespaces matches
+    private final boolean mMatchAll;
+    // Per-namespace entries, rules for entry i are [mRuleStart[i], mRuleStart[i + 1])
+    private final long[] mNamespaceHigh;
+    private final int[] mNamespaceLow;
+    private final int[] mRuleStart;
+    // Open-addressing table of (entry + 1), 0 marks an empty slot
+    private final int[] mTable;
+    // Instance prefix rules; a zero mask matches the whole namespace
+    private final long[] mRulePrefix;
+    private final long[] mRuleMask;
+
+    private NamespaceFilterSet(boolean matchAll, long[] namespaceHigh, int[] namespaceLow,
+                               int[] ruleStart, int[] table, long[] rulePrefix,
+                               long[] ruleMask) {
+        mMatchAll = matchAll;
+        mNamespaceHigh = namespaceHigh;
+        mNamespaceLow = namespaceLow;
+        mRuleStart = ruleStart;
+        mTable = table;
+        mRulePrefix = rulePrefix;
+        mRuleMask = ruleMask;
+    }
+
+    /**
+     * Parse and compile a set of rules. No rules, or null, gives
+     * {@link #MATCH_NONE}.
+     *
+     * @throws IllegalArgumentException if a rule is malformed
+     */
+    public static NamespaceFilterSet compile(String[] rules) {
+        if (rules == null || rules.length == 0) return MATCH_NONE;
+
+        //Parse, then sort so each namespace's rules are adjacent
+        int count = rules.length;
+        long[][] parsed = new long[count][];
+        for (int i = 0; i < count; i++) {
+            parsed[i] = parseRule(rules[i]);
+        }
+        Arrays.sort(parsed, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                for (int i = 0; i < 2; i++) {
+                    if (a[i] != b[i]) return a[i] < b[i] ? -1 : 1;
+                }
+                return 0;
+            }
+        });
+
+        int namespaces = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || !sameNamespace(parsed[i], parsed[i - 1])) namespaces++;
+        }
+
+        long[] namespaceHigh = new long[namespaces];
+        int[] namespaceLow = new int[namespaces];
+        int[] ruleStart = new int[namespaces + 1];
+        long[] rulePrefix = new long[count];
+        long[] ruleMask = new long[count];
+        int entry = -1;
+        int ruleCount = 0;
+        for (int i = 0; i < count; i++) {
+            long[] rule = parsed[i];
+            if (entry < 0 || !sameNamespace(rule, parsed[i - 1])) {
+                entry++;
+                namespaceHigh[entry] = rule[0];
+                namespaceLow[entry] = (int) rule[1];
+                ruleStart[entry] = ruleCount;
+            } else if (ruleMask[ruleStart[entry]] == 0) {
+                //Namespace already matches in full
+                continue;
+            }
+            if (rule[3] == 0) {
+                //Whole namespace supersedes any instance prefixes
+                ruleCount = ruleStart[entry];
+            }
+            rulePrefix[ruleCount] = rule[2];
+            ruleMask[ruleCount] = rule[3];
+            ruleCount++;
+        }
+        ruleStart[namespaces] = ruleCount;
+
+        int[] table = new int[Integer.highestOneBit(Math.max(namespaces, 2) * 2 - 1) << 1];
+        int mask = table.length - 1;
+        for (int i = 0; i < namespaces; i++) {
+            int slot = slotFor(namespaceHigh[i], namespaceLow[i], mask);
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+        }
+
+        return new NamespaceFilterSet(false, namespaceHigh, namespaceLow, ruleStart, table,
+                Arrays.copyOf(rulePrefix, ruleCount), Arrays.copyOf(ruleMask, ruleCount));
+    }
+
+    /** Whether a UID frame with this id passes the filter */
+    public boolean matches(long idHigh, long idLow) {
+        if (mNamespaceHigh.length == 0) return mMatchAll;
+
+        int namespaceLow = (int) (idLow >>> 48);
+        int mask = mTable.length - 1;
+        int slot = slotFor(idHigh, namespaceLow, mask);
+        int entry;
+        while ((entry = mTable[slot]) != 0) {
+            entry--;
+            if (mNamespaceHigh[entry] == idHigh && mNamespaceLow[entry] == namespaceLow) {
+                long instance = idLow & INSTANCE_MASK;
+                for (int i = mRuleStart[entry]; i < mRuleStart[entry + 1]; i++) {
+                    if ((instance & mRuleMask[i]) == mRulePrefix[i]) return true;
+                }
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    /** Number of distinct namespaces */
+    public int getNamespaceCount() {
+        return mNamespaceHigh.length;
+    }
+
+    /** Number of rules after merging */
+    public int getRuleCount() {
+        return mRulePrefix.length;
+    }
+
+    /**
+     * Describe the set as at most {@code slots} hardware filters on the
+     * UID frame service data. Uses one filter per rule if they fit, else
+     * one per namespace, else a single filter on the frame type; anything
+     * broader than the set must then be rejected with {@link #matches}.
+     * A set that matches nothing needs no filters at all.
+     *
+     * @throws IllegalArgumentException if slots is less than one
+     */
+    public List<HardwareFilter> getHardwareFilters(int slots) {
+        if (slots < 1) {
+            throw new IllegalArgumentException("Need at least one filter slot: " + slots);
+        }
+        List<HardwareFilter> filters = new ArrayList<>();
+        int namespaces = mNamespaceHigh.length;
+        if (namespaces == 0 && !mMatchAll) return filters;
+        if (namespaces == 0 || namespaces > slots) {
+            byte[] mask = new byte[SERVICE_DATA_LENGTH];
+            mask[0] = (byte) 0xFF;
+            filters.add(new HardwareFilter(new byte[SERVICE_DATA_LENGTH], mask));
+            return filters;
+        }
+
+        boolean perRule = mRulePrefix.length <= slots;
+        for (int i = 0; i < namespaces; i++) {
+            int end = perRule ? mRuleStart[i + 1] : mRuleStart[i] + 1;
+            for (int r = mRuleStart[i]; r < end; r++) {
+                byte[] data = new byte[SERVICE_DATA_LENGTH];
+                byte[] mask = new byte[SERVICE_DATA_LENGTH];
+                mask[0] = (byte) 0xFF;
+                putBytes(data, NAMESPACE_OFFSET, mNamespaceHigh[i], 8);
+                putBytes(data, NAMESPACE_OFFSET + 8, mNamespaceLow[i], 2);
+                Arrays.fill(mask, NAMESPACE_OFFSET, INSTANCE_OFFSET, (byte) 0xFF);
+                if (perRule) {
+                    putBytes(data, INSTANCE_OFFSET, mRulePrefix[r], 6);
+                    putBytes(mask, INSTANCE_OFFSET, mRuleMask[r], 6);
+                }
+                filters.add(new HardwareFilter(data, mask));
+            }
+        }
+        return filters;
+    }
+
+    @Override
+    public String toString() {
+        if (mNamespaceHigh.length == 0) {
+            return "NamespaceFilterSet[" + (mMatchAll ? "all" : "none") + "]";
+        }
+        return "NamespaceFilterSet[" + mNamespaceHigh.length + " namespaces, "
+                + mRulePrefix.length + " rules]";
+    }
+
+    /* {namespace high, namespace low, instance prefix, instance mask} */
+    private static long[] parseRule(String rule) {
+        int split = rule.indexOf('/');
+        String namespace = split < 0 ? rule : rule.substring(0, split);
+        String instance = split < 0 ? "" : rule.substring(split + 1);
+        if (namespace.length() != NAMESPACE_DIGITS || instance.length() > INSTANCE_DIGITS) {
+            throw new IllegalArgumentException("Invalid namespace rule: " + rule);
+        }
+
+        long prefix = parseHex(rule, instance);
+        int bits = instance.length() * 4;
+        long mask = bits == 0 ? 0 : (INSTANCE_MASK >>> (48 - bits)) << (48 - bits);
+        return new long[] {
+                parseHex(rule, namespace.substring(0, 16)),
+                parseHex(rule, namespace.substring(16)),
+                prefix << (48 - bits),
+                mask
+        };
+    }
+
+    private static long parseHex(String rule, String digits) {
+        long value = 0;
+        for (int i = 0; i < digits.length(); i++) {
+            int digit = Character.digit(digits.charAt(i), 16);
+            if (digit < 0) {
+                throw new IllegalArgumentException("Invalid namespace rule: " + rule);
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private static boolean sameNamespace(long[] a, long[] b) {
+        return a[0] == b[0] && a[1] == b[1];
+    }
+
+    private static int slotFor(long namespaceHigh, int namespaceLow, int mask) {
+        return (int) BeaconRegistry.mix(namespaceHigh * 31 + namespaceLow) & mask;
+    }
+
+    private static void putBytes(byte[] out, int offset, long value, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            out[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.android.nearbybeacons;
+
+/**
+ * Decides when {@link NotificationDispatcher} publishes: updates are
+ * coalesced over a debounce window, posts are at least a minimum interval
+ * apart, and nothing is published unless the counts shown would change.
+ *
+ * Time is always passed in by the caller, in milliseconds on any
+ * monotonic clock. This class is not thread-safe and has no Android
+ * dependencies.
+ */
+public class NotificationCoalescer {
+
+    /** Returned by {@link #update} when a publish is already scheduled */
+    public static final long ALREADY_SCHEDULED = -1;
+    /** Nearby count for services that do not estimate proximity */
+    public static final int NEARBY_UNKNOWN = -1;
+
+    private static final long NOT_POSTED = -1;
+
+    private final long mDebounceMillis;
+    private final long mMinIntervalMillis;
+
+    private int mPendingCount;
+    private int mPendingNearby = NEARBY_UNKNOWN;
+    private boolean mScheduled;
+    private int mPostedCount;
+    private int mPostedNearby = NEARBY_UNKNOWN;
+    private long mLastPostTime = NOT_POSTED;
+    private long mRequested;
+    private long mPosted;
+    private long mSuppressed;
+
+    /**
+     * @param debounceMillis How long to wait for further updates
+     * @param minIntervalMillis Minimum time between two posts
+     */
+    public NotificationCoalescer(long debounceMillis, long minIntervalMillis) {
+        mDebounceMillis = debounceMillis;
+        mMinIntervalMillis = minIntervalMillis;
+    }
+
+    /**
+     * Record the counts the notification should show.
+     *
+     * @return When to call {@link #publish}, or {@link #ALREADY_SCHEDULED}
+     *         if an earlier update's publish will carry this one
+     */
+    public long update(int count, int nearby, long now) {
+        mRequested++;
+        mPendingCount = count;
+        mPendingNearby = nearby;
+        if (mScheduled) {
+            //Superseded by this update before it was published
+            mSuppressed++;
+            return ALREADY_SCHEDULED;
+        }
+
+        long when = now + mDebounceMillis;
+        if (mLastPostTime != NOT_POSTED) {
+            when = Math.max(when, mLastPostTime + mMinIntervalMillis);
+        }
+        mScheduled = true;
+        return when;
+    }
+
+    /**
+     * Called at the time {@link #update} asked for.
+     *
+     * @return true if the pending counts should be posted now, a count of
+     *         zero meaning the notification is removed
+     */
+    public boolean publish(long now) {
+        if (!mScheduled) return false;
+        mScheduled = false;
+        if (mPendingCount == mPostedCount
+                && (mPendingNearby == mPostedNearby || mPendingCount == 0)) {
+            mSuppressed++;
+            return false;
+        }
+
+        mPostedCount = mPendingCount;
+        mPostedNearby = mPendingNearby;
+        mLastPostTime = now;
+        mPosted++;
+        return true;
+    }
+
+    /** The notification was removed; drop any pending update */
+    public void cancel() {
+        mScheduled = false;
+        mPendingCount = 0;
+        mPostedCount = 0;
+        mPostedNearby = NEARBY_UNKNOWN;
+    }
+
+    /** Drop any pending update, leaving what was posted as it is */
+    public void release() {
+        mScheduled = false;
+    }
+
+    /** New beacon count of the last post */
+    public int getPostedCount() {
+        return mPostedCount;
+    }
+
+    /** Nearby count of the last post, or {@link #NEARBY_UNKNOWN} */
+    public int getPostedNearby() {
+        return mPostedNearby;
+    }
+
+    public long getRequestedCount() {
+        return mRequested;
+    }
+
+    public long getPublishedCount() {
+        return mPosted;
+    }
+
+    /** Updates that were coalesced away or would not have changed anything */
+    public long getSuppressedCount() {
+        return mSuppressed;
+    }
+
+    @Override
+    public String toString() {
+        return "NotificationCoalescer[" + mRequested + " requested, "
+                + mPosted + " posted, "
+                + mSuppressed + " suppressed]";
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.android.nearbybeacons;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Posts the "Beacons Detected" notification on behalf of a service.
+ *
+ * Count updates may come from any thread and are coalesced: the latest
+ * count is published on the main thread once a short debounce window has
+ * passed, and never more often than the minimum interval allows. Nothing
+ * is published if the counts shown would not change; see
+ * {@link NotificationCoalescer}. Services that estimate proximity can
+ * also report how many beacons are nearby, which is shown alongside the
+ * count of new ones. The PendingIntents and builder are created once and
+ * reused for every post.
+ */
+public class NotificationDispatcher {
+
+    /** Nearby count for services that do not estimate proximity */
+    public static final int NEARBY_UNKNOWN = NotificationCoalescer.NEARBY_UNKNOWN;
+
+    private static final StripedCounter sPostedMetric =
+            Metrics.getDefault().counter("notification.posted");
+
+    private final NotificationManager mNotificationManager;
+    private final int mNotificationId;
+    private final Handler mHandler;
+    // Guarded by this
+    private final Notification.Builder mBuilder;
+    private final NotificationCoalescer mCoalescer;
+
+    /**
+     * @param service Owner of the notification, which also receives
+     *                {@code dismissAction} when it is dismissed
+     * @param dismissAction Action sent to MainActivity and the service
+     * @param debounceMillis How long to wait for further updates
+     * @param minIntervalMillis Minimum time between two posts
+     */
+    public NotificationDispatcher(Service service, String dismissAction, int notificationId,
+                                  long debounceMillis, long minIntervalMillis) {
+        mNotificationManager =
+                (NotificationManager) service.getSystemService(Context.NOTIFICATION_SERVICE);
+        mNotificationId = notificationId;
+        mCoalescer = new NotificationCoalescer(debounceMillis, minIntervalMillis);
+        mHandler = new Handler(Looper.getMainLooper());
+
+        Intent contentAction = new Intent(service, MainActivity.class);
+        contentAction.setAction(dismissAction);
+        PendingIntent content = PendingIntent.getActivity(service, -1, contentAction, 0);
+
+        Intent deleteAction = new Intent(service, service.getClass());
+        deleteAction.setAction(dismissAction);
+        PendingIntent delete = PendingIntent.getService(service, -1, deleteAction, 0);
+
+        mBuilder = new Notification.Builder(service)
+                .setContentTitle("Beacons Detected")
+                .setSmallIcon(R.drawable.ic_stat_scan)
+                .setContentIntent(content)
+                .setDeleteIntent(delete)
+                .setOnlyAlertOnce(true);
+    }
+
+    /**
+     * Request that the notification show this many new beacons.
+     * A count of zero removes it.
+     */
+    public void update(int count) {
+        update(count, NEARBY_UNKNOWN);
+    }
+
+    /**
+     * Request that the notification show this many new beacons, and how
+     * many beacons are in the immediate or near zone. A count of zero
+     * removes it.
+     */
+    public synchronized void update(int count, int nearby) {
+        long when = mCoalescer.update(count, nearby, SystemClock.uptimeMillis());
+        if (when != NotificationCoalescer.ALREADY_SCHEDULED) {
+            mHandler.postAtTime(mFlush, when);
+        }
+    }
+
+    /** Remove the notification now, dropping any pending update */
+    public synchronized void cancel() {
+        mHandler.removeCallbacks(mFlush);
+        mCoalescer.cancel();
+        mNotificationManager.cancel(mNotificationId);
+    }
+
+    /** Drop any pending update, leaving the notification as it is */
+    public synchronized void release() {
+        mHandler.removeCallbacks(mFlush);
+        mCoalescer.release();
+    }
+
+    public synchronized long getRequestedCount() {
+        return mCoalescer.getRequestedCount();
+    }
+
+    public synchronized long getPostedCount() {
+        return mCoalescer.getPublishedCount();
+    }
+
+    /** Updates that were coalesced away or would not have changed anything */
+    public synchronized long getSuppressedCount() {
+        return mCoalescer.getSuppressedCount();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "NotificationDispatcher[" + mCoalescer.getRequestedCount() + " requested, "
+                + mCoalescer.getPublishedCount() + " posted, "
+                + mCoalescer.getSuppressedCount() + " suppressed]";
+    }
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            //Posting under the lock keeps it ordered with cancel()
+            synchronized (NotificationDispatcher.this) {
+                if (!mCoalescer.publish(SystemClock.uptimeMillis())) return;
+
+                int count = mCoalescer.getPostedCount();
+                int nearby = mCoalescer.getPostedNearby();
+                if (count > 0) {
+                    String text = String.format("%d New Beacons In Range", count);
+                    if (nearby != NEARBY_UNKNOWN) {
+                        text += String.format(", %d Nearby", nearby);
+                    }
+                    mBuilder.setContentText(text).setNumber(count);
+                    mNotificationManager.notify(mNotificationId, mBuilder.build());
+                } else {
+                    mNotificationManager.cancel(mNotificationId);
+                }
+                sPostedMetric.increment();
+            }
+        }
+    };
+}
@@ -0,0 +1,266 @@
+package com.example.android.nearbybeacons;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects advertised ids for the getforobserved endpoint and sends them
+ * as a single request, either once the batching window has elapsed since
+ * the first id arrived or as soon as the batch reaches its size cap.
+ * Results are routed back to each caller's {@link Callback}.
+ *
+ * Requests are sent from a pool of background threads owned by the
+ * batcher, so a slow or retrying batch does not hold up the next one.
+ * Every callback of a batch is called exactly once, whether the request
+ * succeeds, fails or the transport throws. This class has no Android
+ * dependencies.
+ */
+public class ObservationBatcher {
+
+    private static final Logger LOG = Logger.getLogger("ObservationBatcher");
+
+    /** Performs the actual lookup for one batch */
+    public interface Transport {
+        /**
+         * @return attachments for each advertised id, in request order;
+         *         an entry is null if the API returned nothing for that id
+         */
+        List<List<byte[]>> getForObserved(List<byte[]> advertisedIds)
+                throws IOException;
+    }
+
+    /** Receives the result for a single submitted id */
+    public interface Callback {
+        void onAttachments(byte[] advertisedId, List<byte[]> attachments);
+
+        void onError(byte[] advertisedId, IOException error);
+    }
+
+    private final Transport mTransport;
+    private final int mMaxBatchSize;
+    private final long mWindowMillis;
+    private final ScheduledExecutorService mExecutor;
+
+    // Guarded by this
+    private List<Observation> mPending = new ArrayList<>();
+    private long mBatchNumber;
+
+    // Statistics, guarded by this
+    private final long mStartNanos = System.nanoTime();
+    private final long[] mBatchSizes;
+    private long mRequestCount;
+    private long mObservationCount;
+    private long mErrorCount;
+    private long mTotalLatencyNanos;
+    private long mMaxLatencyNanos;
+
+    public ObservationBatcher(Transport transport, int maxBatchSize, long windowMillis) {
+        this(transport, maxBatchSize, windowMillis, 1);
+    }
+
+    /**
+     * @param maxConcurrent Batches sent at once, typically the transport's
+     *                      own concurrency limit
+     */
+    public ObservationBatcher(Transport transport, int maxBatchSize, long windowMillis,
+                              int maxConcurrent) {
+        mTransport = transport;
+        mMaxBatchSize = maxBatchSize;
+        mWindowMillis = windowMillis;
+        mExecutor = Executors.newScheduledThreadPool(maxConcurrent);
+        mBatchSizes = new long[maxBatchSize + 1];
+    }
+
+    /**
+     * Queue an advertised id for the next batch. Duplicate ids within the
+     * same batch are sent once and answered to every caller.
+     */
+    public void submit(byte[] advertisedId, Callback callback) {
+        synchronized (this) {
+            for (Observation pending : mPending) {
+                if (Arrays.equals(pending.advertisedId, advertisedId)) {
+                    pending.callbacks.add(callback);
+                    return;
+                }
+            }
+
+            mPending.add(new Observation(advertisedId, callback));
+            if (mPending.size() >= mMaxBatchSize) {
+                mExecutor.execute(new Flush(takePending()));
+            } else if (mPending.size() == 1) {
+                mExecutor.schedule(new WindowFlush(mBatchNumber),
+                        mWindowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /** Send anything pending and stop the background threads */
+    public void shutdown() {
+        synchronized (this) {
+            if (!mPending.isEmpty()) {
+                mExecutor.execute(new Flush(takePending()));
+            }
+        }
+        mExecutor.shutdown();
+    }
+
+    public synchronized long getRequestCount() {
+        return mRequestCount;
+    }
+
+    public synchronized long getObservationCount() {
+        return mObservationCount;
+    }
+
+    public synchronized long getErrorCount() {
+        return mErrorCount;
+    }
+
+    /** @return count of requests sent, indexed by batch size */
+    public synchronized long[] getBatchSizeHistogram() {
+        return mBatchSizes.clone();
+    }
+
+    public synchronized double getRequestsPerSecond() {
+        double elapsed = (System.nanoTime() - mStartNanos) / 1e9;
+        return elapsed > 0 ? mRequestCount / elapsed : 0;
+    }
+
+    public synchronized double getAverageLatencyMillis() {
+        return mRequestCount > 0 ? mTotalLatencyNanos / 1e6 / mRequestCount : 0;
+    }
+
+    public synchronized double getMaxLatencyMillis() {
+        return mMaxLatencyNanos / 1e6;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sizes = new StringBuilder();
+        for (int size = 1; size < mBatchSizes.length; size++) {
+            if (mBatchSizes[size] == 0) continue;
+            if (sizes.length() > 0) sizes.append(", ");
+            sizes.append(size).append('=').append(mBatchSizes[size]);
+        }
+
+        return String.format("%d requests (%.2f/s), %d observations, %d errors, "
+                        + "latency avg %.1fms max %.1fms, batch sizes {%s}",
+                mRequestCount, getRequestsPerSecond(), mObservationCount, mErrorCount,
+                getAverageLatencyMillis(), getMaxLatencyMillis(), sizes);
+    }
+
+    /* Caller holds lock */
+    private List<Observation> takePending() {
+        List<Observation> batch = mPending;
+        mPending = new ArrayList<>();
+        mBatchNumber++;
+        return batch;
+    }
+
+    private synchronized void recordRequest(int size, long latencyNanos, boolean failed) {
+        mRequestCount++;
+        mObservationCount += size;
+        mBatchSizes[Math.min(size, mBatchSizes.length - 1)]++;
+        mTotalLatencyNanos += latencyNanos;
+        mMaxLatencyNanos = Math.max(mMaxLatencyNanos, latencyNanos);
+        if (failed) mErrorCount++;
+    }
+
+    /* Flush a batch when its window expires, unless it already went out full */
+    private class WindowFlush implements Runnable {
+        private final long mBatch;
+
+        WindowFlush(long batch) {
+            mBatch = batch;
+        }
+
+        @Override
+        public void run() {
+            List<Observation> batch;
+            synchronized (ObservationBatcher.this) {
+                if (mBatch != mBatchNumber || mPending.isEmpty()) return;
+                batch = takePending();
+            }
+            new Flush(batch).run();
+        }
+    }
+
+    private class Flush implements Runnable {
+        private final List<Observation> mBatch;
+
+        Flush(List<Observation> batch) {
+            mBatch = batch;
+        }
+
+        @Override
+        public void run() {
+            List<byte[]> ids = new ArrayList<>(mBatch.size());
+            for (Observation observation : mBatch) {
+                ids.add(observation.advertisedId);
+            }
+
+            long start = System.nanoTime();
+            List<List<byte[]>> results;
+            try {
+                results = mTransport.getForObserved(ids);
+                if (results.size() != ids.size()) {
+                    throw new IOException("Expected " + ids.size() + " results, got "
+                            + results.size());
+                }
+            } catch (IOException e) {
+                fail(start, e);
+                return;
+            } catch (RuntimeException e) {
+                //e.g. a malformed response; without this the batch would never be answered
+                fail(start, new IOException("Lookup failed", e));
+                return;
+            }
+            recordRequest(ids.size(), System.nanoTime() - start, false);
+
+            for (int i = 0; i < mBatch.size(); i++) {
+                Observation observation = mBatch.get(i);
+                List<byte[]> attachments = results.get(i);
+                if (attachments == null) {
+                    attachments = new ArrayList<>();
+                }
+                for (Callback callback : observation.callbacks) {
+                    try {
+                        callback.onAttachments(observation.advertisedId, attachments);
+                    } catch (RuntimeException e) {
+                        LOG.log(Level.WARNING, "Callback failed", e);
+                    }
+                }
+            }
+        }
+
+        private void fail(long start, IOException error) {
+            recordRequest(mBatch.size(), System.nanoTime() - start, true);
+            for (Observation observation : mBatch) {
+                for (Callback callback : observation.callbacks) {
+                    try {
+                        callback.onError(observation.advertisedId, error);
+                    } catch (RuntimeException e) {
+                        LOG.log(Level.WARNING, "Callback failed", e);
+                    }
+                }
+            }
+        }
+    }
+
+    private static class Observation {
+        final byte[] advertisedId;
+        final List<Callback> callbacks = new ArrayList<>(1);
+
+        Observation(byte[] advertisedId, Callback callback) {
+            this.advertisedId = advertisedId;
+            callbacks.add(callback);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.example.android.nearbybeacons;
+
+import android.util.Base64;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Streaming encoder and decoder for the beaconinfo:getforobserved
+ * request and response bodies.
+ *
+ * Requests are written token by token straight to the connection, and
+ * responses are read incrementally, keeping only the advertised id and
+ * decoded attachment bytes of each beacon rather than a document tree.
+ */
+public class ObservedCodec {
+
+    // SimpleDateFormat is not thread-safe; guarded by itself
+    private static final SimpleDateFormat sTimestampFormat;
+    static {
+        sTimestampFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        sTimestampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    private ObservedCodec() {
+        //No instances
+    }
+
+    /**
+     * Write a request body observing each of the given 16-byte ids
+     * at the given time.
+     */
+    public static void writeRequest(OutputStream out, List<byte[]> advertisedIds,
+                                    String namespacedType, long timestamp)
+            throws IOException {
+        String formatted;
+        synchronized (sTimestampFormat) {
+            formatted = sTimestampFormat.format(new Date(timestamp));
+        }
+
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, "UTF-8"));
+        writer.beginObject();
+        writer.name("observations").beginArray();
+        for (byte[] advertisedId : advertisedIds) {
+            writer.beginObject();
+            writer.name("advertisedId").beginObject()
+                    .name("type").value("EDDYSTONE")
+                    .name("id").value(encodeId(advertisedId))
+                    .endObject();
+            writer.name("timestampMs").value(formatted);
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.name("namespacedTypes").value(namespacedType);
+        writer.endObject();
+        writer.flush();
+    }
+
+    /**
+     * Read a response body.
+     *
+     * The stream is left open for the caller to finish and close.
+     *
+     * @return decoded attachment data of each beacon in the response,
+     *         keyed by the base64 advertised id (see {@link #encodeId(byte[])})
+     */
+    public static Map<String, List<byte[]>> readResponse(InputStream in)
+            throws IOException {
+        Map<String, List<byte[]>> parsed = new HashMap<>();
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("beacons".equals(reader.nextName())
+                        && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        readBeacon(reader, parsed);
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException e) {
+            //JsonReader reports unexpected tokens this way
+            throw new IOException("Malformed observed response", e);
+        }
+
+        return parsed;
+    }
+
+    public static String encodeId(byte[] advertisedId) {
+        return Base64.encodeToString(advertisedId, Base64.NO_WRAP);
+    }
+
+    private static void readBeacon(JsonReader reader, Map<String, List<byte[]>> parsed)
+            throws IOException {
+        String id = null;
+        List<byte[]> attachments = new ArrayList<>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("advertisedId".equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if ("id".equals(reader.nextName())) {
+                        id = reader.nextString();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if ("attachments".equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if ("data".equals(reader.nextName())) {
+                            attachments.add(Base64.decode(reader.nextString(), Base64.NO_WRAP));
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (id != null) {
+            parsed.put(id, attachments);
+        }
+    }
+}
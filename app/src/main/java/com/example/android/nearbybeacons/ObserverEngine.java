@@ -0,0 +1,385 @@
+package com.example.android.nearbybeacons;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs beacon lookups concurrently on a caller-supplied executor.
+ *
+ * Lookups are identified by a key (typically the advertised id). While a
+ * lookup is in flight, further requests for the same key share its
+ * future instead of starting another. Each lookup also belongs to a
+ * namespace, and at most a fixed number of lookups per namespace are in
+ * flight at once so one busy namespace cannot starve the rest. Lookups
+ * can be cancelled by key, e.g. when the beacon is lost.
+ *
+ * A lookup is a {@link Task} that may finish after it returns, e.g. once
+ * a batched request comes back. It holds its namespace's permit until it
+ * finishes, but an executor thread only while the task is starting.
+ * Lookups over their namespace's limit wait in a queue rather than on a
+ * thread, and a namespace's state is dropped once nothing in it is
+ * running or waiting. Lookups that have not finished within the optional
+ * timeout fail with a {@link TimeoutException}.
+ *
+ * This class has no Android dependencies.
+ */
+public class ObserverEngine<V> {
+
+    /** Notified when a lookup finishes for any reason, on the thread that finished it */
+    public interface Listener<V> {
+        void onComplete(String key, Future<V> result);
+    }
+
+    /** Finishes a lookup; only the first call has any effect */
+    public interface Completion<V> {
+        void complete(V value);
+
+        void fail(Throwable error);
+    }
+
+    /**
+     * A lookup that reports its result through its {@link Completion},
+     * either before {@link #start} returns or later from another thread
+     */
+    public interface Task<V> {
+        /** Runs on the executor; the lookup holds its namespace's permit until it finishes */
+        void start(Completion<V> completion) throws Exception;
+    }
+
+    private final Executor mExecutor;
+    private final ScheduledExecutorService mTimer;
+    private final long mTimeoutMillis;
+    private final int mNamespaceLimit;
+    private final Listener<V> mListener;
+
+    private final ConcurrentMap<String, Lookup> mInFlight = new ConcurrentHashMap<>();
+    // Namespaces with lookups running or waiting; guarded by itself
+    private final Map<String, Namespace> mNamespaces = new HashMap<>();
+
+    private final AtomicLong mSubmitted = new AtomicLong();
+    private final AtomicLong mShared = new AtomicLong();
+    private final AtomicLong mCancelled = new AtomicLong();
+    private final AtomicLong mTimedOut = new AtomicLong();
+
+    /**
+     * @param executor Runs the lookups
+     * @param namespaceLimit Maximum concurrent lookups per namespace
+     * @param listener Optional completion listener, may be null
+     */
+    public ObserverEngine(Executor executor, int namespaceLimit, Listener<V> listener) {
+        this(executor, null, 0, namespaceLimit, listener);
+    }
+
+    /**
+     * @param executor Runs the lookups
+     * @param timer Fails lookups that exceed the timeout; may be null for no timeout
+     * @param timeoutMillis Longest a lookup may take, from submission
+     * @param namespaceLimit Maximum concurrent lookups per namespace
+     * @param listener Optional completion listener, may be null
+     */
+    public ObserverEngine(Executor executor, ScheduledExecutorService timer,
+                          long timeoutMillis, int namespaceLimit, Listener<V> listener) {
+        mExecutor = executor;
+        mTimer = timer;
+        mTimeoutMillis = timeoutMillis;
+        mNamespaceLimit = namespaceLimit;
+        mListener = listener;
+    }
+
+    /**
+     * Start a lookup for the given key, or join the one already in flight.
+     * The lookup finishes when the callable returns.
+     */
+    public Future<V> submit(String key, String namespace, final Callable<V> task) {
+        return submit(key, namespace, new Task<V>() {
+            @Override
+            public void start(Completion<V> completion) throws Exception {
+                completion.complete(task.call());
+            }
+        });
+    }
+
+    /**
+     * Start a lookup for the given key, or join the one already in flight.
+     * The lookup finishes when the task completes it.
+     */
+    public Future<V> submit(String key, String namespace, Task<V> task) {
+        mSubmitted.incrementAndGet();
+
+        Lookup lookup = new Lookup(key, namespace, task);
+        Lookup existing = mInFlight.putIfAbsent(key, lookup);
+        if (existing != null) {
+            mShared.incrementAndGet();
+            return existing;
+        }
+
+        if (mTimer != null && mTimeoutMillis > 0) {
+            lookup.mTimeout = mTimer.schedule(lookup.mExpire,
+                    mTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        admit(lookup);
+        return lookup;
+    }
+
+    /**
+     * Cancel the in-flight lookup for this key, interrupting its task if
+     * running. A result it reports later is ignored.
+     *
+     * @return true if a lookup was cancelled
+     */
+    public boolean cancel(String key) {
+        Lookup lookup = mInFlight.get(key);
+        return lookup != null && lookup.cancel(true);
+    }
+
+    public int getInFlightCount() {
+        return mInFlight.size();
+    }
+
+    public long getSubmittedCount() {
+        return mSubmitted.get();
+    }
+
+    /** Submissions that joined an existing in-flight lookup */
+    public long getSharedCount() {
+        return mShared.get();
+    }
+
+    public long getCancelledCount() {
+        return mCancelled.get();
+    }
+
+    public long getTimedOutCount() {
+        return mTimedOut.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ObserverEngine[" + mSubmitted.get() + " submitted, "
+                + mShared.get() + " shared, "
+                + mCancelled.get() + " cancelled, "
+                + mTimedOut.get() + " timed out, "
+                + mInFlight.size() + " in flight]";
+    }
+
+    /** Namespaces with lookups running or waiting */
+    public int getNamespaceCount() {
+        synchronized (mNamespaces) {
+            return mNamespaces.size();
+        }
+    }
+
+    /* Run the lookup if its namespace has a permit free, otherwise queue it */
+    private void admit(Lookup lookup) {
+        synchronized (mNamespaces) {
+            //Cancelled or timed out already, and released with nothing to free
+            if (lookup.isDone()) return;
+            Namespace namespace = mNamespaces.get(lookup.mNamespace);
+            if (namespace == null) {
+                namespace = new Namespace();
+                mNamespaces.put(lookup.mNamespace, namespace);
+            }
+            if (namespace.mRunning == mNamespaceLimit) {
+                namespace.mWaiting.add(lookup);
+                return;
+            }
+            namespace.mRunning++;
+            lookup.mAdmitted = true;
+        }
+        mExecutor.execute(lookup);
+    }
+
+    /*
+     * A lookup has finished: give its permit to the next one waiting in
+     * its namespace, or take it off the queue if it never started
+     */
+    private void release(Lookup lookup) {
+        Lookup next = null;
+        synchronized (mNamespaces) {
+            Namespace namespace = mNamespaces.get(lookup.mNamespace);
+            if (namespace == null) return;
+            if (lookup.mAdmitted) {
+                next = namespace.mWaiting.poll();
+                if (next != null) {
+                    next.mAdmitted = true;
+                } else {
+                    namespace.mRunning--;
+                }
+            } else {
+                namespace.mWaiting.remove(lookup);
+            }
+            if (namespace.mRunning == 0 && namespace.mWaiting.isEmpty()) {
+                mNamespaces.remove(lookup.mNamespace);
+            }
+        }
+        if (next != null) {
+            mExecutor.execute(next);
+        }
+    }
+
+    /* Permits in use and lookups waiting for one; guarded by mNamespaces */
+    private class Namespace {
+        int mRunning;
+        final ArrayDeque<Lookup> mWaiting = new ArrayDeque<>();
+    }
+
+    /* Future of one lookup; its state is guarded by this */
+    private class Lookup implements Future<V>, Completion<V>, Runnable {
+        private final String mKey;
+        final String mNamespace;
+        private final Task<V> mTask;
+        // Holds a namespace permit; guarded by mNamespaces
+        boolean mAdmitted;
+
+        private boolean mDone;
+        private boolean mCancelled;
+        private V mValue;
+        private Throwable mError;
+        // Thread running the task's start, to interrupt on cancel
+        private Thread mRunner;
+        volatile ScheduledFuture<?> mTimeout;
+
+        final Runnable mExpire = new Runnable() {
+            @Override
+            public void run() {
+                finish(null, new TimeoutException("Lookup timed out: " + mKey), mTimedOut);
+            }
+        };
+
+        Lookup(String key, String namespace, Task<V> task) {
+            mKey = key;
+            mNamespace = namespace;
+            mTask = task;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (mDone) return;
+                mRunner = Thread.currentThread();
+            }
+            try {
+                mTask.start(this);
+            } catch (Throwable e) {
+                fail(e);
+            } finally {
+                synchronized (this) {
+                    mRunner = null;
+                }
+                //Don't leak a cancellation's interrupt into the executor's next task
+                Thread.interrupted();
+            }
+        }
+
+        @Override
+        public void complete(V value) {
+            finish(value, null, null);
+        }
+
+        @Override
+        public void fail(Throwable error) {
+            finish(null, error, null);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (this) {
+                if (!settle(null, null, ObserverEngine.this.mCancelled)) return false;
+                //Settled first, so whatever the task makes of the interrupt is ignored
+                if (mayInterruptIfRunning && mRunner != null) {
+                    mRunner.interrupt();
+                }
+            }
+            finished();
+            return true;
+        }
+
+        /* Settle the lookup once and tell the listener; returns false if it already was */
+        private boolean finish(V value, Throwable error, AtomicLong counter) {
+            if (!settle(value, error, counter)) return false;
+            finished();
+            return true;
+        }
+
+        /*
+         * Record the outcome, counting it against the given counter for a
+         * cancellation or timeout, and wake waiters. The engine's counts
+         * are up to date by the time they wake.
+         */
+        private synchronized boolean settle(V value, Throwable error, AtomicLong counter) {
+            if (mDone) return false;
+            mDone = true;
+            mValue = value;
+            mError = error;
+            mCancelled = counter == ObserverEngine.this.mCancelled;
+            mInFlight.remove(mKey, this);
+            if (counter != null) {
+                counter.incrementAndGet();
+            }
+            notifyAll();
+            return true;
+        }
+
+        /* Stop the timeout, free the permit and tell the listener, outside the lock */
+        private void finished() {
+            ScheduledFuture<?> timeout = mTimeout;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            release(this);
+            if (mListener != null) {
+                mListener.onComplete(mKey, this);
+            }
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return mCancelled;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return mDone;
+        }
+
+        @Override
+        public synchronized V get() throws InterruptedException, ExecutionException {
+            while (!mDone) {
+                wait();
+            }
+            return getResult();
+        }
+
+        @Override
+        public synchronized V get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (!mDone) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) throw new TimeoutException();
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return getResult();
+        }
+
+        /* Caller holds lock */
+        private V getResult() throws ExecutionException {
+            if (mCancelled) throw new CancellationException();
+            if (mError != null) throw new ExecutionException(mError);
+            return mValue;
+        }
+    }
+}
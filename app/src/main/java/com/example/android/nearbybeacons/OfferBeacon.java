@@ -5,20 +5,47 @@ import com.google.android.gms.nearby.messages.Message;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.nio.charset.Charset;
+
+/**
+ * Immutable offer parsed from a beacon message. Beacons are identified
+ * by their section alone.
+ */
 public class OfferBeacon {
 
     private static final String TYPE = "offer";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Recurring messages are parsed once
+    private static final OfferBeaconPool sPool = new OfferBeaconPool(512);
 
     public final String section;
     public final String offer;
 
+    /**
+     * Interned equivalent of {@code new OfferBeacon(message)}: repeated
+     * content returns the same instance without parsing it again.
+     */
+    public static OfferBeacon from(Message message) {
+        checkType(message);
+        return sPool.get(message.getContent());
+    }
+
+    public static OfferBeaconPool getPool() {
+        return sPool;
+    }
+
     public OfferBeacon(Message message) {
-        if (!TYPE.equals(message.getType())) {
-            throw new IllegalArgumentException(
-                    "Incorrect beacon message type: " + message.getType());
-        }
+        this(checkType(message).getContent());
+    }
 
-        String json = new String(message.getContent());
+    OfferBeacon(String section, String offer) {
+        this.section = section;
+        this.offer = offer;
+    }
+
+    OfferBeacon(byte[] content) {
+        String json = new String(content, UTF_8);
         try {
             JSONObject parsed = new JSONObject(json);
             section = parsed.getString("section");
@@ -28,12 +55,25 @@ public class OfferBeacon {
         }
     }
 
+    private static Message checkType(Message message) {
+        if (!TYPE.equals(message.getType())) {
+            throw new IllegalArgumentException(
+                    "Incorrect beacon message type: " + message.getType());
+        }
+        return message;
+    }
+
     @Override
     public boolean equals(Object object) {
         return (object instanceof OfferBeacon
                 && ((OfferBeacon) object).section.equals(section));
     }
 
+    @Override
+    public int hashCode() {
+        return section.hashCode();
+    }
+
     @Override
     public String toString() {
         return section;
@@ -0,0 +1,121 @@
+package com.example.android.nearbybeacons;
+
+import java.util.Arrays;
+
+/**
+ * Bounded intern pool of parsed {@link OfferBeacon}s, keyed by the raw
+ * message content.
+ *
+ * The pool is a two-way set-associative table addressed by a 64-bit
+ * hash of the content bytes. A hit is confirmed by comparing the bytes,
+ * and returns the instance parsed the first time without allocating; a
+ * miss parses the content and evicts the less recently used entry of
+ * its set. Memory use is fixed by the capacity.
+ *
+ * This class is thread-safe.
+ */
+public class OfferBeaconPool {
+
+    private static final int WAYS = 2;
+
+    private final int mSetMask;
+    // Per entry, entry index is set * WAYS + way
+    private final long[] mHashes;
+    private final byte[][] mContents;
+    private final OfferBeacon[] mBeacons;
+    // Most recently used way of each set
+    private final byte[] mRecent;
+
+    // Guarded by this
+    private long mHits;
+    private long mMisses;
+    private long mCollisions;
+
+    /**
+     * @param capacity Maximum number of entries, rounded up to a power of two
+     */
+    public OfferBeaconPool(int capacity) {
+        int sets = Integer.highestOneBit(Math.max(capacity / WAYS, 1) * 2 - 1);
+        mSetMask = sets - 1;
+        mHashes = new long[sets * WAYS];
+        mContents = new byte[sets * WAYS][];
+        mBeacons = new OfferBeacon[sets * WAYS];
+        mRecent = new byte[sets];
+    }
+
+    /**
+     * @return the interned beacon for this offer content
+     * @throws IllegalArgumentException if the content is not a valid offer
+     */
+    public OfferBeacon get(byte[] content) {
+        long hash = hash(content);
+        int set = (int) hash & mSetMask;
+        synchronized (this) {
+            for (int way = 0; way < WAYS; way++) {
+                int entry = set * WAYS + way;
+                if (mHashes[entry] == hash && mContents[entry] != null) {
+                    if (Arrays.equals(mContents[entry], content)) {
+                        mRecent[set] = (byte) way;
+                        mHits++;
+                        return mBeacons[entry];
+                    }
+                    mCollisions++;
+                }
+            }
+            mMisses++;
+        }
+
+        //Parse outside the lock; a racing miss for the same content is harmless
+        byte[] copy = content.clone();
+        OfferBeacon beacon = new OfferBeacon(copy);
+        synchronized (this) {
+            int way = 1 - mRecent[set];
+            int entry = set * WAYS + way;
+            mHashes[entry] = hash;
+            mContents[entry] = copy;
+            mBeacons[entry] = beacon;
+            mRecent[set] = (byte) way;
+        }
+        return beacon;
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    /** Lookups that matched a hash but not the content */
+    public synchronized long getCollisionCount() {
+        return mCollisions;
+    }
+
+    public synchronized float getHitRate() {
+        long total = mHits + mMisses;
+        return total > 0 ? (float) mHits / total : 0f;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(mContents, null);
+        Arrays.fill(mBeacons, null);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "OfferBeaconPool[" + mHits + " hits, "
+                + mMisses + " misses, "
+                + mCollisions + " collisions]";
+    }
+
+    /* 64-bit FNV-1a, finished with a mix so the low bits pick sets well */
+    private static long hash(byte[] content) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : content) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return BeaconRegistry.mix(hash);
+    }
+}
@@ -0,0 +1,218 @@
+package com.example.android.nearbybeacons;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Compact binary snapshot of a list of offers, so the list last shown
+ * can be shown again at launch before any beacon has been found.
+ *
+ * The file is a header (magic, version, entry count), a table of entry
+ * offsets, then the entries: a section and an offer, each a 16-bit
+ * length and UTF-8 bytes. Opening maps the file and checks the header
+ * and table, without decoding any strings; entries are decoded when
+ * asked for, by index, or through {@link #asList()} as a list shows them.
+ * Writes go to a temporary file that is synced to disk and then replaces
+ * the snapshot, so a reader never sees a partial one, even after a crash.
+ *
+ * Instances are immutable and thread-safe; the class has no Android
+ * dependencies.
+ */
+public class OfferSnapshot {
+
+    static final int MAGIC = 0x4F465253; //"OFRS"
+    static final int VERSION = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int HEADER_SIZE = 12;
+    private static final int MAX_STRING_BYTES = 0xFFFF;
+
+    private final ByteBuffer mBuffer;
+    private final int mCount;
+
+    private OfferSnapshot(ByteBuffer buffer, int count) {
+        mBuffer = buffer;
+        mCount = count;
+    }
+
+    /**
+     * Write the offers, in order, replacing any previous snapshot.
+     * Offers too long for the format are left out.
+     */
+    public static void write(File file, List<OfferBeacon> beacons) throws IOException {
+        List<byte[]> strings = new ArrayList<>(beacons.size() * 2);
+        for (OfferBeacon beacon : beacons) {
+            byte[] section = beacon.section.getBytes(UTF_8);
+            byte[] offer = beacon.offer.getBytes(UTF_8);
+            if (section.length > MAX_STRING_BYTES || offer.length > MAX_STRING_BYTES) continue;
+            strings.add(section);
+            strings.add(offer);
+        }
+        int count = strings.size() / 2;
+
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            FileOutputStream stream = new FileOutputStream(temp);
+            out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            int offset = HEADER_SIZE + count * 4;
+            for (int i = 0; i < count; i++) {
+                out.writeInt(offset);
+                offset += 4 + strings.get(i * 2).length + strings.get(i * 2 + 1).length;
+            }
+            for (byte[] string : strings) {
+                out.writeShort(string.length);
+                out.write(string);
+            }
+            out.flush();
+            //On disk before the rename, or a crash could leave an empty snapshot
+            stream.getFD().sync();
+            out.close();
+            out = null;
+
+            if (!temp.renameTo(file)) {
+                throw new IOException("Unable to replace " + file);
+            }
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    //Already failing
+                }
+            }
+            temp.delete();
+        }
+    }
+
+    /**
+     * Map a snapshot written by {@link #write(File, List)}.
+     *
+     * @throws IOException if it is missing, unreadable or malformed
+     */
+    public static OfferSnapshot open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer =
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new OfferSnapshot(buffer, checkLayout(buffer));
+        } finally {
+            //The mapping stays valid once the file is closed
+            raf.close();
+        }
+    }
+
+    /** Number of offers in the snapshot */
+    public int size() {
+        return mCount;
+    }
+
+    public String getSection(int index) {
+        return readString(entryOffset(index));
+    }
+
+    public String getOffer(int index) {
+        int offset = entryOffset(index);
+        return readString(offset + 2 + (mBuffer.getShort(offset) & 0xFFFF));
+    }
+
+    public OfferBeacon get(int index) {
+        int offset = entryOffset(index);
+        String section = readString(offset);
+        return new OfferBeacon(section,
+                readString(offset + 2 + (mBuffer.getShort(offset) & 0xFFFF)));
+    }
+
+    /**
+     * The offers as a read-only list that decodes each one when it is
+     * asked for, so only the rows actually shown are ever decoded.
+     */
+    public List<OfferBeacon> asList() {
+        return new OfferList();
+    }
+
+    /** Decode every offer, in order */
+    public List<OfferBeacon> getAll() {
+        List<OfferBeacon> beacons = new ArrayList<>(mCount);
+        for (int i = 0; i < mCount; i++) {
+            beacons.add(get(i));
+        }
+        return beacons;
+    }
+
+    @Override
+    public String toString() {
+        return "OfferSnapshot[" + mCount + " offers, " + mBuffer.capacity() + " bytes]";
+    }
+
+    private class OfferList extends AbstractList<OfferBeacon> implements RandomAccess {
+        @Override
+        public OfferBeacon get(int index) {
+            return OfferSnapshot.this.get(index);
+        }
+
+        @Override
+        public int size() {
+            return mCount;
+        }
+    }
+
+    /* Check the header, and that every entry lies within the file */
+    private static int checkLayout(ByteBuffer buffer) throws IOException {
+        int size = buffer.capacity();
+        if (size < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not an offer snapshot");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported snapshot version " + buffer.getInt(4));
+        }
+        int count = buffer.getInt(8);
+        if (count < 0 || count > (size - HEADER_SIZE) / 8) {
+            throw new IOException("Invalid snapshot entry count " + count);
+        }
+        for (int i = 0; i < count; i++) {
+            int offset = buffer.getInt(HEADER_SIZE + i * 4);
+            if (offset < HEADER_SIZE + count * 4 || offset > size - 4) {
+                throw new IOException("Invalid snapshot entry " + i);
+            }
+            int offerOffset = offset + 2 + (buffer.getShort(offset) & 0xFFFF);
+            if (offerOffset > size - 2
+                    || offerOffset + 2 + (buffer.getShort(offerOffset) & 0xFFFF) > size) {
+                throw new IOException("Truncated snapshot entry " + i);
+            }
+        }
+        return count;
+    }
+
+    private int entryOffset(int index) {
+        if (index < 0 || index >= mCount) {
+            throw new IndexOutOfBoundsException("Snapshot entry " + index + " of " + mCount);
+        }
+        return mBuffer.getInt(HEADER_SIZE + index * 4);
+    }
+
+    private String readString(int offset) {
+        int length = mBuffer.getShort(offset) & 0xFFFF;
+        byte[] bytes = new byte[length];
+        ByteBuffer view = mBuffer.duplicate();
+        view.position(offset + 2);
+        view.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
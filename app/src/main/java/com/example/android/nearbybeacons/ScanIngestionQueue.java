@@ -0,0 +1,278 @@
+package com.example.android.nearbybeacons;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded hand-off between the BLE scan callback and the code that
+ * updates beacon state.
+ *
+ * The scan callback (the single producer) copies each advertisement into
+ * a preallocated ring of {@link BeaconSighting} slots, and a dedicated
+ * consumer thread drains them in batches. Nothing is allocated per
+ * advertisement, and the callback never waits on beacon processing.
+ * When the ring is full, the configured {@link OverflowPolicy} decides
+ * what gives. A sink that throws loses only the sighting it was given;
+ * the failure is logged and counted, and draining carries on.
+ *
+ * This class has no Android dependencies.
+ */
+public class ScanIngestionQueue {
+
+    private static final Logger LOG = Logger.getLogger("ScanIngestion");
+
+    public enum OverflowPolicy {
+        /** Discard the oldest pending sighting to make room */
+        DROP_OLDEST,
+        /**
+         * Once the ring is full, overwrite a pending sighting of the same
+         * frame type from the same device, if one exists, otherwise
+         * discard the oldest. Until then every sighting is queued, so a
+         * consumer that keeps up sees each one.
+         */
+        COALESCE
+    }
+
+    /** Receives drained sightings on the consumer thread */
+    public interface Sink {
+        /** Called for each sighting; the instance is reused afterwards */
+        void onSighting(BeaconSighting sighting);
+
+        /**
+         * Called after each batch has been delivered, and with a count
+         * of zero whenever the consumer thread's idle interval passes
+         * without any sightings
+         */
+        void onBatchComplete(int count);
+    }
+
+    private final BeaconSighting[] mSlots;
+    private final BeaconSighting[] mBatch;
+    private final int mMask;
+    private final OverflowPolicy mPolicy;
+
+    // Guarded by this
+    private long mHead;
+    private long mTail;
+    private long mEnqueued;
+    private long mDropped;
+    private long mCoalesced;
+    private long mDrained;
+    private long mFailed;
+
+    private volatile boolean mRunning;
+    private Thread mConsumer;
+
+    /**
+     * @param capacity Number of slots, rounded up to a power of two
+     * @param maxBatch Largest number of sightings delivered per batch
+     */
+    public ScanIngestionQueue(int capacity, int maxBatch, OverflowPolicy policy) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mSlots = new BeaconSighting[size];
+        for (int i = 0; i < size; i++) {
+            mSlots[i] = new BeaconSighting();
+        }
+        mBatch = new BeaconSighting[Math.min(maxBatch, size)];
+        for (int i = 0; i < mBatch.length; i++) {
+            mBatch[i] = new BeaconSighting();
+        }
+        mMask = size - 1;
+        mPolicy = policy;
+    }
+
+    /**
+     * Enqueue a copy of the given frame. Called from the producer thread.
+     *
+     * @return false if an older sighting had to be dropped or coalesced
+     */
+    public boolean offer(long timestamp, long address, int rssi, EddystoneFrame frame) {
+        synchronized (this) {
+            boolean clean = true;
+            if (mHead - mTail == mSlots.length) {
+                clean = false;
+                if (mPolicy == OverflowPolicy.COALESCE) {
+                    BeaconSighting pending = findPending(address, frame.type);
+                    if (pending != null) {
+                        fill(pending, timestamp, address, rssi, frame);
+                        mCoalesced++;
+                        return false;
+                    }
+                }
+                mTail++;
+                mDropped++;
+            }
+
+            fill(mSlots[(int) (mHead & mMask)], timestamp, address, rssi, frame);
+            mHead++;
+            mEnqueued++;
+            if (mHead - mTail == 1) {
+                //Queue was empty, consumer may be waiting
+                notify();
+            }
+            return clean;
+        }
+    }
+
+    /**
+     * Deliver up to one batch of pending sightings to the sink on the
+     * calling thread. Slots are copied out under the lock, so the producer
+     * is never blocked while the sink runs.
+     *
+     * The batch buffer belongs to whichever thread drains, so while a
+     * consumer thread is running no other thread may call this; tests
+     * call it directly instead of starting one.
+     *
+     * @return number of sightings delivered
+     */
+    int drain(Sink sink) {
+        int count;
+        synchronized (this) {
+            if (mConsumer != null && mConsumer != Thread.currentThread()) {
+                throw new IllegalStateException("Draining while the consumer thread runs");
+            }
+            count = (int) Math.min(mHead - mTail, mBatch.length);
+            for (int i = 0; i < count; i++) {
+                mBatch[i].set(mSlots[(int) (mTail & mMask)]);
+                mTail++;
+            }
+            mDrained += count;
+        }
+
+        if (count > 0) {
+            for (int i = 0; i < count; i++) {
+                try {
+                    sink.onSighting(mBatch[i]);
+                } catch (RuntimeException e) {
+                    failed("sighting", e);
+                }
+            }
+            completeBatch(sink, count);
+        }
+
+        return count;
+    }
+
+    /** Start a background thread that drains into the given sink */
+    public void start(Sink sink) {
+        start(sink, 0);
+    }
+
+    /**
+     * Start a background thread that drains into the given sink, and
+     * also calls it back at least every {@code idleMillis} while idle
+     * (if greater than zero) so it can do periodic housekeeping.
+     */
+    public synchronized void start(final Sink sink, final long idleMillis) {
+        if (mConsumer != null) return;
+
+        mRunning = true;
+        mConsumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (mRunning) {
+                    if (!awaitPending(idleMillis)) break;
+                    if (drain(sink) == 0) {
+                        completeBatch(sink, 0);
+                    }
+                }
+            }
+        }, "ScanIngestion");
+        mConsumer.setDaemon(true);
+        mConsumer.start();
+    }
+
+    /** Stop the consumer thread; pending sightings are discarded */
+    public void stop() {
+        Thread consumer;
+        synchronized (this) {
+            mRunning = false;
+            consumer = mConsumer;
+            mConsumer = null;
+            notifyAll();
+        }
+        if (consumer != null && consumer != Thread.currentThread()) {
+            try {
+                consumer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return (int) (mHead - mTail);
+    }
+
+    public synchronized long getEnqueuedCount() {
+        return mEnqueued;
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    public synchronized long getCoalescedCount() {
+        return mCoalesced;
+    }
+
+    public synchronized long getDrainedCount() {
+        return mDrained;
+    }
+
+    /** Number of sink calls that threw */
+    public synchronized long getFailedCount() {
+        return mFailed;
+    }
+
+    private void completeBatch(Sink sink, int count) {
+        try {
+            sink.onBatchComplete(count);
+        } catch (RuntimeException e) {
+            failed("batch", e);
+        }
+    }
+
+    private void failed(String stage, RuntimeException e) {
+        synchronized (this) {
+            mFailed++;
+        }
+        LOG.log(Level.WARNING, "Sink failed on " + stage, e);
+    }
+
+    /* Block until there is something to drain, the idle time passes, or we are stopped */
+    private synchronized boolean awaitPending(long idleMillis) {
+        long deadline = System.currentTimeMillis() + idleMillis;
+        while (mRunning && mHead == mTail) {
+            try {
+                if (idleMillis > 0) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) break;
+                    wait(remaining);
+                } else {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return mRunning;
+    }
+
+    /* Newest pending slot from the given device, or null. Caller holds lock. */
+    private BeaconSighting findPending(long address, int type) {
+        for (long i = mHead - 1; i >= mTail; i--) {
+            BeaconSighting slot = mSlots[(int) (i & mMask)];
+            if (slot.address == address && slot.frame.type == type) return slot;
+        }
+        return null;
+    }
+
+    private static void fill(BeaconSighting slot, long timestamp, long address,
+                             int rssi, EddystoneFrame frame) {
+        slot.timestamp = timestamp;
+        slot.address = address;
+        slot.rssi = rssi;
+        slot.frame.set(frame);
+    }
+}
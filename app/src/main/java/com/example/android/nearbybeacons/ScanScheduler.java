@@ -0,0 +1,300 @@
+package com.example.android.nearbybeacons;
+
+/**
+ * Decides how hard the BLE radio should work, based on what the scanner
+ * has been seeing.
+ *
+ * The scheduler is a small state machine driven by sightings, lost
+ * beacons, screen and foreground state and periodic calls to
+ * {@link #evaluate(long)}:
+ *
+ * <ul>
+ * <li>INTERACTIVE - the app is in the foreground, scan at low latency</li>
+ * <li>BUSY - beacons are coming and going while the screen is on,
+ * scan balanced</li>
+ * <li>QUIET - known beacons only, scan at low power with batched reports</li>
+ * <li>DUTY_ON / DUTY_OFF - nothing seen for a while, scan in short
+ * low power windows separated by periods with the radio off</li>
+ * </ul>
+ *
+ * It also accounts approximate radio-on time (scan window / scan interval
+ * of each mode) and the latency of each new discovery, so policies can be
+ * compared on simulated advertisement traces.
+ *
+ * Time is always passed in by the caller, in milliseconds on any
+ * monotonic clock. This class is not thread-safe and has no Android
+ * dependencies.
+ */
+public class ScanScheduler {
+
+    // Same values as the ScanSettings.SCAN_MODE_* constants
+    public static final int MODE_LOW_POWER = 0;
+    public static final int MODE_BALANCED = 1;
+    public static final int MODE_LOW_LATENCY = 2;
+
+    public static final int STATE_INTERACTIVE = 0;
+    public static final int STATE_BUSY = 1;
+    public static final int STATE_QUIET = 2;
+    public static final int STATE_DUTY_ON = 3;
+    public static final int STATE_DUTY_OFF = 4;
+
+    // Discoveries plus losses within the churn window that make us busy
+    private static final int BUSY_CHURN = 3;
+    private static final long CHURN_WINDOW_MS = 10000;
+    // Stay busy this long after churn drops off
+    private static final long BUSY_HOLD_MS = 30000;
+    // Start duty cycling after this long without any sighting
+    private static final long QUIET_TIMEOUT_MS = 60000;
+    private static final long DUTY_ON_MS = 10000;
+    private static final long DUTY_OFF_MS = 50000;
+    // Hardware batching delay when quiet, if supported
+    private static final long QUIET_REPORT_DELAY_MS = 5000;
+
+    // Approximate window/interval of the platform scan modes, per mille
+    private static final int[] DUTY_PER_MILLE = {100, 250, 1000};
+
+    private final boolean mBatchingSupported;
+
+    private int mState = STATE_QUIET;
+    private long mStateSince;
+    private boolean mForeground;
+    private boolean mScreenOn = true;
+
+    private long mLastSighting;
+    private long mLastChurn;
+    // Churn events in the current and previous half windows
+    private int mChurnCurrent;
+    private int mChurnPrevious;
+    private long mChurnWindowStart;
+
+    private boolean mStarted;
+    private long mAccountedUntil;
+    private long mRadioOnMillis;
+    private final long[] mStateMillis = new long[5];
+    private long mDiscoveries;
+    private long mDiscoveryLatencyTotal;
+    private long mDiscoveryLatencyMax;
+    private long mTransitions;
+
+    /**
+     * @param batchingSupported Whether the controller can batch scan
+     *                          results (offloaded scan batching)
+     */
+    public ScanScheduler(boolean batchingSupported) {
+        mBatchingSupported = batchingSupported;
+    }
+
+    /** Set whether the app is in the foreground */
+    public void setForeground(boolean foreground, long now) {
+        start(now);
+        mForeground = foreground;
+    }
+
+    /** Set whether the screen is on; churn is ignored while it is off */
+    public void setScreenOn(boolean screenOn, long now) {
+        start(now);
+        mScreenOn = screenOn;
+    }
+
+    /**
+     * Record a sighting delivered to the app.
+     *
+     * @param appearedAt For a new beacon, when it started advertising if
+     *                   known (e.g. from a trace), otherwise the radio
+     *                   timestamp of the sighting
+     * @param isNew Whether this is the first sighting of the beacon
+     */
+    public void onSighting(long now, long appearedAt, boolean isNew) {
+        start(now);
+        mLastSighting = now;
+        if (isNew) {
+            long latency = Math.max(0, now - appearedAt);
+            mDiscoveries++;
+            mDiscoveryLatencyTotal += latency;
+            mDiscoveryLatencyMax = Math.max(mDiscoveryLatencyMax, latency);
+            addChurn(now);
+        }
+    }
+
+    /** Record that a beacon has gone out of range */
+    public void onLost(long now) {
+        start(now);
+        addChurn(now);
+    }
+
+    /**
+     * Move the state machine forward to the given time.
+     *
+     * @return true if the scan settings or on/off state changed and the
+     *         scan needs to be restarted
+     */
+    public boolean evaluate(long now) {
+        start(now);
+        account(now);
+        rollChurn(now);
+
+        int next;
+        if (mForeground && mScreenOn) {
+            next = STATE_INTERACTIVE;
+        } else if (mScreenOn && (mChurnCurrent + mChurnPrevious >= BUSY_CHURN
+                || (mState == STATE_BUSY && now - mLastChurn < BUSY_HOLD_MS))) {
+            next = STATE_BUSY;
+        } else if (now - mLastSighting < QUIET_TIMEOUT_MS) {
+            next = STATE_QUIET;
+        } else if (mState == STATE_DUTY_ON) {
+            next = now - mStateSince >= DUTY_ON_MS ? STATE_DUTY_OFF : STATE_DUTY_ON;
+        } else if (mState == STATE_DUTY_OFF) {
+            next = now - mStateSince >= DUTY_OFF_MS ? STATE_DUTY_ON : STATE_DUTY_OFF;
+        } else {
+            //Quiet timeout just passed, keep listening for one window first
+            next = STATE_DUTY_ON;
+        }
+
+        if (next == mState) return false;
+
+        boolean changed = getScanMode(next) != getScanMode(mState)
+                || getReportDelay(next) != getReportDelay(mState)
+                || (next == STATE_DUTY_OFF) != (mState == STATE_DUTY_OFF);
+        mState = next;
+        mStateSince = now;
+        mTransitions++;
+        return changed;
+    }
+
+    /** Time at which {@link #evaluate(long)} should next be called at the latest */
+    public long getNextEvaluation(long now) {
+        switch (mState) {
+            case STATE_DUTY_ON:
+                return mStateSince + DUTY_ON_MS;
+            case STATE_DUTY_OFF:
+                return mStateSince + DUTY_OFF_MS;
+            default:
+                return now + CHURN_WINDOW_MS / 2;
+        }
+    }
+
+    /** One of the STATE_* constants */
+    public int getState() {
+        return mState;
+    }
+
+    /** Whether the radio should be scanning at all */
+    public boolean isScanning() {
+        return mState != STATE_DUTY_OFF;
+    }
+
+    /** One of the MODE_* constants */
+    public int getScanMode() {
+        return getScanMode(mState);
+    }
+
+    /** Report delay for batched results, 0 to deliver immediately */
+    public long getReportDelay() {
+        return getReportDelay(mState);
+    }
+
+    /** Approximate time the radio has spent receiving */
+    public long getRadioOnMillis() {
+        return mRadioOnMillis;
+    }
+
+    /** Time spent in the given state */
+    public long getStateMillis(int state) {
+        return mStateMillis[state];
+    }
+
+    public long getDiscoveryCount() {
+        return mDiscoveries;
+    }
+
+    public long getAverageDiscoveryLatency() {
+        return mDiscoveries > 0 ? mDiscoveryLatencyTotal / mDiscoveries : 0;
+    }
+
+    public long getMaxDiscoveryLatency() {
+        return mDiscoveryLatencyMax;
+    }
+
+    public static String getStateName(int state) {
+        switch (state) {
+            case STATE_INTERACTIVE:
+                return "interactive";
+            case STATE_BUSY:
+                return "busy";
+            case STATE_QUIET:
+                return "quiet";
+            case STATE_DUTY_ON:
+                return "duty-on";
+            case STATE_DUTY_OFF:
+                return "duty-off";
+            default:
+                return "unknown";
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ScanScheduler[" + getStateName(mState) + ", "
+                + mTransitions + " transitions, "
+                + mRadioOnMillis + "ms radio on, "
+                + mDiscoveries + " discoveries, "
+                + getAverageDiscoveryLatency() + "ms avg latency, "
+                + mDiscoveryLatencyMax + "ms max latency]";
+    }
+
+    private int getScanMode(int state) {
+        switch (state) {
+            case STATE_INTERACTIVE:
+                return MODE_LOW_LATENCY;
+            case STATE_BUSY:
+                return MODE_BALANCED;
+            default:
+                return MODE_LOW_POWER;
+        }
+    }
+
+    private long getReportDelay(int state) {
+        if (!mBatchingSupported) return 0;
+        return state == STATE_QUIET || state == STATE_DUTY_ON ? QUIET_REPORT_DELAY_MS : 0;
+    }
+
+    private void start(long now) {
+        if (mStarted) return;
+        mStarted = true;
+        mStateSince = now;
+        mAccountedUntil = now;
+        mLastSighting = now;
+        mChurnWindowStart = now;
+    }
+
+    private void account(long now) {
+        long elapsed = now - mAccountedUntil;
+        if (elapsed <= 0) return;
+
+        mStateMillis[mState] += elapsed;
+        if (isScanning()) {
+            mRadioOnMillis += elapsed * DUTY_PER_MILLE[getScanMode()] / 1000;
+        }
+        mAccountedUntil = now;
+    }
+
+    private void addChurn(long now) {
+        rollChurn(now);
+        mChurnCurrent++;
+        mLastChurn = now;
+    }
+
+    /* Two half windows approximate a sliding count without keeping events */
+    private void rollChurn(long now) {
+        long half = CHURN_WINDOW_MS / 2;
+        while (now - mChurnWindowStart >= half) {
+            mChurnPrevious = mChurnCurrent;
+            mChurnCurrent = 0;
+            mChurnWindowStart += half;
+            if (mChurnPrevious == 0 && now - mChurnWindowStart >= half) {
+                //Nothing left to roll, skip ahead
+                mChurnWindowStart = now - (now - mChurnWindowStart) % half;
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.android.nearbybeacons;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Replays a trace written by {@link ScanTraceWriter}, either as fast as
+ * possible or paced against the recorded timestamps at any speed.
+ *
+ * Every record is delivered through the same reusable buffer, so replay
+ * does not allocate per record. A record cut short at the end of the
+ * trace, as left by a crash while recording, ends the replay quietly.
+ *
+ * This class is not thread-safe and has no Android dependencies.
+ */
+public class ScanTraceReader {
+
+    /** Receives records in trace order */
+    public interface Visitor {
+        /**
+         * @param scanRecord Reused buffer holding the raw scan record in
+         *                   its first {@code length} bytes
+         */
+        void onScanResult(long timestampNanos, long address, int rssi,
+                          byte[] scanRecord, int length);
+    }
+
+    private final DataInputStream mIn;
+    private final byte[] mScanRecord = new byte[ScanTraceWriter.MAX_RECORD_LENGTH];
+    // The record just read
+    private long mTimestamp;
+    private long mAddress;
+    private int mRssi;
+    private int mLength;
+    private long mRecords;
+    private boolean mTruncated;
+
+    /** @throws IOException if the stream does not start with a trace header */
+    public ScanTraceReader(InputStream in) throws IOException {
+        mIn = new DataInputStream(new BufferedInputStream(in));
+        if (mIn.readInt() != ScanTraceWriter.MAGIC) {
+            throw new IOException("Not a scan trace");
+        }
+        int version = mIn.readInt();
+        if (version != ScanTraceWriter.VERSION) {
+            throw new IOException("Unsupported scan trace version " + version);
+        }
+    }
+
+    /** Deliver every remaining record as fast as possible */
+    public long replay(Visitor visitor) throws IOException {
+        return replay(visitor, 0);
+    }
+
+    /**
+     * Deliver every remaining record, waiting between records so that
+     * the trace plays back at the given multiple of real time. Stops
+     * early if the thread is interrupted.
+     *
+     * @param speed 1 for real time, 10 for ten times faster, 0 for no waiting
+     * @return number of records delivered
+     */
+    public long replay(Visitor visitor, double speed) throws IOException {
+        long start = mRecords;
+        long traceStart = 0;
+        long wallStart = 0;
+        while (readRecord()) {
+            if (speed > 0) {
+                if (mRecords == start + 1) {
+                    traceStart = mTimestamp;
+                    wallStart = System.nanoTime();
+                }
+                long due = wallStart + (long) ((mTimestamp - traceStart) / speed);
+                if (!waitUntil(due)) break;
+            }
+            visitor.onScanResult(mTimestamp, mAddress, mRssi, mScanRecord, mLength);
+        }
+        return mRecords - start;
+    }
+
+    public long getRecordCount() {
+        return mRecords;
+    }
+
+    /** Whether the trace ended partway through a record */
+    public boolean isTruncated() {
+        return mTruncated;
+    }
+
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    @Override
+    public String toString() {
+        return "ScanTraceReader[" + mRecords + " records"
+                + (mTruncated ? ", truncated]" : "]");
+    }
+
+    /* Read the next record into the fields, false at the end of the trace */
+    private boolean readRecord() throws IOException {
+        int first = mIn.read();
+        if (first < 0) return false;
+
+        try {
+            long delta = readVarLong(first);
+            long address = 0;
+            for (int i = 0; i < 6; i++) {
+                address = (address << 8) | mIn.readUnsignedByte();
+            }
+            mRssi = mIn.readByte();
+            mLength = mIn.readUnsignedByte();
+            mIn.readFully(mScanRecord, 0, mLength);
+            mTimestamp += (delta >>> 1) ^ -(delta & 1);
+            mAddress = address;
+        } catch (EOFException e) {
+            mTruncated = true;
+            return false;
+        }
+        mRecords++;
+        return true;
+    }
+
+    private long readVarLong(int first) throws IOException {
+        long value = first & 0x7F;
+        int shift = 7;
+        int b = first;
+        while ((b & 0x80) != 0) {
+            if (shift > 63) throw new IOException("Corrupt scan trace");
+            b = mIn.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        }
+        return value;
+    }
+
+    private static boolean waitUntil(long due) {
+        if (Thread.currentThread().isInterrupted()) return false;
+        long remaining;
+        while ((remaining = due - System.nanoTime()) > 0) {
+            try {
+                Thread.sleep(remaining / 1000000, (int) (remaining % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+}
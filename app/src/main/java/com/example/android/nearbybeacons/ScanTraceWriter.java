@@ -0,0 +1,89 @@
+package com.example.android.nearbybeacons;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Records raw scan results to a compact binary trace, for replaying
+ * them later with {@link ScanTraceReader}.
+ *
+ * The trace starts with a header of magic and version (4 bytes each),
+ * followed by one record per result: the zigzag varint delta of the
+ * timestamp in nanoseconds from the previous record, the 6-byte device
+ * address, the RSSI (1 signed byte), the scan record length (1 byte)
+ * and the raw scan record bytes. A typical Eddystone result takes
+ * around 40 bytes.
+ *
+ * This class is not thread-safe and has no Android dependencies.
+ */
+public class ScanTraceWriter {
+
+    static final int MAGIC = 0x53435452; //"SCTR"
+    static final int VERSION = 1;
+    /** Longest scan record that can be stored */
+    public static final int MAX_RECORD_LENGTH = 255;
+
+    private final DataOutputStream mOut;
+    private long mLastTimestamp;
+    private long mRecords;
+
+    public ScanTraceWriter(OutputStream out) throws IOException {
+        mOut = new DataOutputStream(new BufferedOutputStream(out));
+        mOut.writeInt(MAGIC);
+        mOut.writeInt(VERSION);
+    }
+
+    /**
+     * Append one scan result. Longer scan records are truncated to
+     * {@link #MAX_RECORD_LENGTH}.
+     *
+     * @param timestampNanos Monotonic time the result was received
+     * @param address Device address, packed by {@link BeaconSighting#parseAddress(String)}
+     */
+    public void write(long timestampNanos, long address, int rssi, byte[] scanRecord)
+            throws IOException {
+        writeVarLong(zigzag(timestampNanos - mLastTimestamp));
+        mLastTimestamp = timestampNanos;
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            mOut.write((int) (address >>> shift));
+        }
+        mOut.write(rssi);
+        int length = scanRecord != null ? Math.min(scanRecord.length, MAX_RECORD_LENGTH) : 0;
+        mOut.write(length);
+        if (length > 0) {
+            mOut.write(scanRecord, 0, length);
+        }
+        mRecords++;
+    }
+
+    public long getRecordCount() {
+        return mRecords;
+    }
+
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    public void close() throws IOException {
+        mOut.close();
+    }
+
+    @Override
+    public String toString() {
+        return "ScanTraceWriter[" + mRecords + " records, " + mOut.size() + " bytes]";
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            mOut.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        mOut.write((int) value);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+}
@@ -0,0 +1,319 @@
+package com.example.android.nearbybeacons;
+
+import java.util.Arrays;
+
+/**
+ * Approximate, fixed-size alternative to {@link BeaconRegistry} for
+ * deployments with far more distinct beacons than are worth keeping.
+ * Tracks which ids have been seen recently and how many of them are
+ * unread, without storing the ids.
+ *
+ * Entries are fingerprints in a ring of cuckoo filters, one per
+ * generation. Sightings go into the newest generation, moving the entry
+ * forward if it was found in an older one. Every generation period the
+ * oldest generation is dropped and reused, so an id that has not been
+ * seen for (generations - 1) to (generations) periods is forgotten, the
+ * same way a lost beacon is removed from the registry. Each fingerprint
+ * carries an unread flag, so the unread count is exact for the entries
+ * held.
+ *
+ * A new id is taken for one already seen with the probability given by
+ * {@link #getFalsePositiveRate()}, which only ever makes the unread count
+ * low. The rate grows with the number of generations and how full they
+ * run, and halves with each fingerprint bit. Memory is fixed at two bytes
+ * per slot.
+ *
+ * This class is not thread-safe and has no Android dependencies.
+ */
+public class SeenFilter {
+
+    private static final int SLOTS_PER_BUCKET = 4;
+    private static final double MAX_LOAD = 0.95;
+    private static final int MAX_KICKS = 500;
+    private static final int UNREAD = 0x8000;
+    private static final long NONE = Long.MIN_VALUE;
+
+    private final int mFingerprintMask;
+    private final int mBucketMask;
+    private final long mGenerationMillis;
+    // Fingerprint slots per generation, 0 marks an empty slot
+    private final short[][] mSlots;
+    private final int[] mCounts;
+    private final int[] mUnreadCounts;
+    private int mCurrent;
+    private long mGenerationStart = NONE;
+    private long mRandom = 0x2545F4914F6CDD1DL;
+
+    private long mInserted;
+    private long mRefreshed;
+    private long mDropped;
+    private long mRotations;
+
+    /**
+     * @param capacity Ids each generation can hold, rounded up
+     * @param generations Number of generations retained, at least 2
+     * @param generationMillis How long each generation is the newest
+     * @param fingerprintBits Bits kept per id, 4 to 15; more means fewer
+     *                        false positives
+     */
+    public SeenFilter(int capacity, int generations, long generationMillis,
+                      int fingerprintBits) {
+        if (generations < 2 || fingerprintBits < 4 || fingerprintBits > 15) {
+            throw new IllegalArgumentException("Invalid filter configuration");
+        }
+        int buckets = (int) Math.ceil(capacity / (SLOTS_PER_BUCKET * MAX_LOAD));
+        buckets = Integer.highestOneBit(Math.max(buckets, 2) - 1) << 1;
+        mBucketMask = buckets - 1;
+        mFingerprintMask = (1 << fingerprintBits) - 1;
+        mGenerationMillis = generationMillis;
+        mSlots = new short[generations][buckets * SLOTS_PER_BUCKET];
+        mCounts = new int[generations];
+        mUnreadCounts = new int[generations];
+    }
+
+    /**
+     * Record a sighting of this id.
+     *
+     * @return true if the id was not seen in any retained generation, in
+     *         which case it now counts as unread
+     */
+    public boolean add(long idHigh, long idLow) {
+        long hash = hash(idHigh, idLow);
+        int fingerprint = fingerprintOf(hash);
+        int bucket = (int) hash & mBucketMask;
+        int alternate = alternateBucket(bucket, fingerprint);
+
+        if (findSlot(mCurrent, bucket, alternate, fingerprint) >= 0) {
+            return false;
+        }
+        //Newest to oldest, and move anything found into the newest
+        int generations = mSlots.length;
+        for (int age = 1; age < generations; age++) {
+            int generation = (mCurrent - age + generations) % generations;
+            int slot = findSlot(generation, bucket, alternate, fingerprint);
+            if (slot >= 0) {
+                int value = mSlots[generation][slot] & 0xFFFF;
+                deleteSlot(generation, slot);
+                insert(mCurrent, bucket, value);
+                mRefreshed++;
+                return false;
+            }
+        }
+
+        insert(mCurrent, bucket, fingerprint | UNREAD);
+        mInserted++;
+        return true;
+    }
+
+    /** Whether this id has (probably) been seen in a retained generation */
+    public boolean mightContain(long idHigh, long idLow) {
+        long hash = hash(idHigh, idLow);
+        int fingerprint = fingerprintOf(hash);
+        int bucket = (int) hash & mBucketMask;
+        int alternate = alternateBucket(bucket, fingerprint);
+        for (int generation = 0; generation < mSlots.length; generation++) {
+            if (findSlot(generation, bucket, alternate, fingerprint) >= 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Forget this id, e.g. when it is reported lost. Another id sharing
+     * its fingerprint may be forgotten instead.
+     *
+     * @return false if it was not found
+     */
+    public boolean remove(long idHigh, long idLow) {
+        long hash = hash(idHigh, idLow);
+        int fingerprint = fingerprintOf(hash);
+        int bucket = (int) hash & mBucketMask;
+        int alternate = alternateBucket(bucket, fingerprint);
+        for (int generation = 0; generation < mSlots.length; generation++) {
+            int slot = findSlot(generation, bucket, alternate, fingerprint);
+            if (slot >= 0) {
+                deleteSlot(generation, slot);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Move time forward, dropping the generations that have aged out.
+     *
+     * @return number of ids forgotten
+     */
+    public int advance(long now) {
+        if (mGenerationStart == NONE) {
+            mGenerationStart = now;
+            return 0;
+        }
+        int rotations = 0;
+        int forgotten = 0;
+        while (now - mGenerationStart >= mGenerationMillis && rotations < mSlots.length) {
+            forgotten += rotate();
+            mGenerationStart += mGenerationMillis;
+            rotations++;
+        }
+        if (now - mGenerationStart >= mGenerationMillis) {
+            //Everything has aged out, start over from now
+            mGenerationStart = now;
+        }
+        return forgotten;
+    }
+
+    /** Mark every current entry as read */
+    public void markAllRead() {
+        for (int generation = 0; generation < mSlots.length; generation++) {
+            if (mUnreadCounts[generation] == 0) continue;
+            short[] slots = mSlots[generation];
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] &= ~UNREAD;
+            }
+            mUnreadCounts[generation] = 0;
+        }
+    }
+
+    public int getUnreadCount() {
+        int unread = 0;
+        for (int count : mUnreadCounts) {
+            unread += count;
+        }
+        return unread;
+    }
+
+    /** Number of ids currently held */
+    public int size() {
+        int size = 0;
+        for (int count : mCounts) {
+            size += count;
+        }
+        return size;
+    }
+
+    /** Chance that an id not held is reported as seen, at the current load */
+    public double getFalsePositiveRate() {
+        double perBucketSlot = 1.0 / mFingerprintMask;
+        double rate = 0;
+        int slotsPerGeneration = mSlots[0].length;
+        for (int count : mCounts) {
+            //Two buckets are checked in each generation
+            double occupied = 2.0 * SLOTS_PER_BUCKET * count / slotsPerGeneration;
+            rate += occupied * perBucketSlot;
+        }
+        return Math.min(rate, 1);
+    }
+
+    public long getMemoryBytes() {
+        return (long) mSlots.length * mSlots[0].length * 2;
+    }
+
+    public void clear() {
+        for (int generation = 0; generation < mSlots.length; generation++) {
+            Arrays.fill(mSlots[generation], (short) 0);
+            mCounts[generation] = 0;
+            mUnreadCounts[generation] = 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SeenFilter[" + size() + " held, "
+                + getUnreadCount() + " unread, "
+                + mInserted + " inserted, "
+                + mRefreshed + " refreshed, "
+                + mDropped + " dropped, "
+                + mRotations + " rotations, "
+                + getMemoryBytes() / 1024 + "KB]";
+    }
+
+    /* Drop the oldest generation and make it the newest */
+    private int rotate() {
+        mCurrent = (mCurrent + 1) % mSlots.length;
+        int forgotten = mCounts[mCurrent];
+        Arrays.fill(mSlots[mCurrent], (short) 0);
+        mCounts[mCurrent] = 0;
+        mUnreadCounts[mCurrent] = 0;
+        mRotations++;
+        return forgotten;
+    }
+
+    private int findSlot(int generation, int bucket, int alternate, int fingerprint) {
+        short[] slots = mSlots[generation];
+        int base = bucket * SLOTS_PER_BUCKET;
+        for (int i = base; i < base + SLOTS_PER_BUCKET; i++) {
+            if ((slots[i] & mFingerprintMask) == fingerprint) return i;
+        }
+        base = alternate * SLOTS_PER_BUCKET;
+        for (int i = base; i < base + SLOTS_PER_BUCKET; i++) {
+            if ((slots[i] & mFingerprintMask) == fingerprint) return i;
+        }
+        return -1;
+    }
+
+    private void deleteSlot(int generation, int slot) {
+        if ((mSlots[generation][slot] & UNREAD) != 0) mUnreadCounts[generation]--;
+        mSlots[generation][slot] = 0;
+        mCounts[generation]--;
+    }
+
+    /* Cuckoo insertion; if the table is too full an older entry is dropped */
+    private void insert(int generation, int bucket, int value) {
+        short[] slots = mSlots[generation];
+        mCounts[generation]++;
+        if ((value & UNREAD) != 0) mUnreadCounts[generation]++;
+
+        int fingerprint = value & mFingerprintMask;
+        if (placeInBucket(slots, bucket, value)
+                || placeInBucket(slots, alternateBucket(bucket, fingerprint), value)) {
+            return;
+        }
+
+        for (int kick = 0; kick < MAX_KICKS; kick++) {
+            int slot = bucket * SLOTS_PER_BUCKET + (int) (nextRandom() & (SLOTS_PER_BUCKET - 1));
+            int victim = slots[slot] & 0xFFFF;
+            slots[slot] = (short) value;
+            value = victim;
+            bucket = alternateBucket(bucket, value & mFingerprintMask);
+            if (placeInBucket(slots, bucket, value)) return;
+        }
+
+        //The entry left over is forgotten
+        mCounts[generation]--;
+        if ((value & UNREAD) != 0) mUnreadCounts[generation]--;
+        mDropped++;
+    }
+
+    private static boolean placeInBucket(short[] slots, int bucket, int value) {
+        int base = bucket * SLOTS_PER_BUCKET;
+        for (int i = base; i < base + SLOTS_PER_BUCKET; i++) {
+            if (slots[i] == 0) {
+                slots[i] = (short) value;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int fingerprintOf(long hash) {
+        int fingerprint = (int) (hash >>> 40) & mFingerprintMask;
+        return fingerprint != 0 ? fingerprint : 1;
+    }
+
+    /* Symmetric, so either bucket leads to the other */
+    private int alternateBucket(int bucket, int fingerprint) {
+        return (bucket ^ (int) BeaconRegistry.mix(fingerprint)) & mBucketMask;
+    }
+
+    private long nextRandom() {
+        //xorshift64
+        mRandom ^= mRandom << 13;
+        mRandom ^= mRandom >>> 7;
+        mRandom ^= mRandom << 17;
+        return mRandom;
+    }
+
+    private static long hash(long idHigh, long idLow) {
+        return BeaconRegistry.mix(idHigh * 0x9E3779B97F4A7C15L ^ BeaconRegistry.mix(idLow));
+    }
+}
@@ -0,0 +1,388 @@
+package com.example.android.nearbybeacons;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of beacon sightings, stored as fixed-width
+ * records in memory-mapped segment files.
+ *
+ * Appends only copy 32 bytes into the mapped segment; nothing reaches
+ * the disk until {@link #commit()}, which flushes everything appended
+ * since the last commit at once (group commit). A full segment is
+ * committed and sealed, and a new one is started.
+ *
+ * Each record carries a CRC, and segments are preallocated with zeros,
+ * so after a crash the active segment is scanned on open and cut at the
+ * first record that does not check out. {@link #compact()} rewrites the
+ * sealed segments keeping only the latest sighting of each beacon.
+ *
+ * Segment layout: a 32-byte header (magic, version, record size), then
+ * records of timestamp (8), id high (8), id low (8), RSSI (1), TX power
+ * (1), reserved (2) and CRC32 of the preceding 28 bytes (4), big-endian.
+ *
+ * This class is not thread-safe and has no Android dependencies.
+ */
+public class SightingJournal {
+
+    /** Receives records in journal order */
+    public interface Visitor {
+        void onSighting(long timestamp, long idHigh, long idLow, int rssi, int txPower);
+    }
+
+    public static final int RECORD_SIZE = 32;
+
+    private static final int MAGIC = 0x534a4e4c; //"SJNL"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = RECORD_SIZE;
+    private static final int CHECKED_SIZE = 28;
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mDirectory;
+    private final int mSegmentRecords;
+
+    // Sealed segment sequence numbers, oldest first
+    private final List<Long> mSealed = new ArrayList<>();
+
+    private long mActiveSequence;
+    private FileChannel mActiveChannel;
+    private MappedByteBuffer mActive;
+    private int mActiveRecords;
+
+    private final byte[] mRecord = new byte[RECORD_SIZE];
+    private final ByteBuffer mRecordBuffer = ByteBuffer.wrap(mRecord);
+    private final CRC32 mCrc = new CRC32();
+
+    private int mUncommitted;
+    private long mAppended;
+    private long mCommits;
+    private long mRecovered;
+    private long mTruncated;
+
+    /**
+     * Open the journal in the given directory, recovering the tail of the
+     * active segment if the last session ended without closing it.
+     *
+     * @param segmentRecords Records per segment before rolling over
+     */
+    public SightingJournal(File directory, int segmentRecords) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        mDirectory = directory;
+        mSegmentRecords = segmentRecords;
+
+        long[] sequences = listSegments();
+        if (sequences.length == 0) {
+            openActive(1, false);
+            return;
+        }
+        for (int i = 0; i < sequences.length - 1; i++) {
+            mSealed.add(sequences[i]);
+        }
+        openActive(sequences[sequences.length - 1], true);
+    }
+
+    /** Add a sighting; it is durable once {@link #commit()} returns */
+    public void append(long timestamp, long idHigh, long idLow, int rssi, int txPower)
+            throws IOException {
+        if (mActiveRecords == mSegmentRecords) {
+            rollOver();
+        }
+
+        encode(timestamp, idHigh, idLow, rssi, txPower);
+        mActive.position(HEADER_SIZE + mActiveRecords * RECORD_SIZE);
+        mActive.put(mRecord);
+        mActiveRecords++;
+        mUncommitted++;
+        mAppended++;
+    }
+
+    /** Flush everything appended so far to the disk */
+    public void commit() {
+        if (mUncommitted == 0) return;
+        mActive.force();
+        mUncommitted = 0;
+        mCommits++;
+    }
+
+    /** Appended records not yet committed */
+    public int getUncommittedCount() {
+        return mUncommitted;
+    }
+
+    public int getSealedSegmentCount() {
+        return mSealed.size();
+    }
+
+    /** Visit every record, oldest first, including uncommitted ones */
+    public void replay(Visitor visitor) throws IOException {
+        replaySealed(visitor);
+        for (int i = 0; i < mActiveRecords; i++) {
+            readRecord(mActive, i, visitor);
+        }
+    }
+
+    private void replaySealed(Visitor visitor) throws IOException {
+        for (long sequence : mSealed) {
+            RandomAccessFile file = new RandomAccessFile(segmentFile(sequence), "r");
+            try {
+                FileChannel channel = file.getChannel();
+                MappedByteBuffer buffer =
+                        channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                int records = checkHeader(buffer, sequence);
+                for (int i = 0; i < records && readRecord(buffer, i, visitor); i++) {
+                    //Visited in readRecord
+                }
+            } finally {
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * Rewrite all sealed segments as one, keeping only the latest
+     * sighting of each beacon. The active segment is left alone.
+     *
+     * If interrupted by a crash, the journal may keep some superseded
+     * records until the next compaction, but never loses the latest.
+     */
+    public void compact() throws IOException {
+        if (mSealed.isEmpty()) return;
+
+        List<Long> sealed = new ArrayList<>(mSealed);
+        Latest latest = new Latest();
+        replaySealed(latest);
+
+        long target = sealed.get(sealed.size() - 1);
+        File temp = new File(mDirectory, SEGMENT_PREFIX + format(target) + TEMP_SUFFIX);
+        Segment out = createSegment(temp, latest.mCount);
+        for (int i = 0; i < latest.mCount; i++) {
+            int handle = latest.mOrder[i];
+            encode(latest.mTimestamp[handle], latest.mBeacons.getKeyHigh(handle),
+                    latest.mBeacons.getKeyLow(handle), latest.mRssi[handle],
+                    latest.mTxPower[handle]);
+            out.map.position(HEADER_SIZE + i * RECORD_SIZE);
+            out.map.put(mRecord);
+        }
+        out.map.force();
+        out.channel.close();
+
+        //The rename is the commit point; older segments only hold duplicates
+        if (!temp.renameTo(segmentFile(target))) {
+            throw new IOException("Cannot replace " + segmentFile(target));
+        }
+        for (int i = 0; i < sealed.size() - 1; i++) {
+            if (!segmentFile(sealed.get(i)).delete()) {
+                throw new IOException("Cannot delete " + segmentFile(sealed.get(i)));
+            }
+        }
+        mSealed.clear();
+        mSealed.add(target);
+    }
+
+    /** Commit and release the active segment */
+    public void close() throws IOException {
+        commit();
+        mActiveChannel.close();
+    }
+
+    @Override
+    public String toString() {
+        return "SightingJournal[" + mAppended + " appended, "
+                + mCommits + " commits, "
+                + (mSealed.size() + 1) + " segments, "
+                + mRecovered + " recovered, "
+                + mTruncated + " truncated]";
+    }
+
+    private void rollOver() throws IOException {
+        commit();
+        mActiveChannel.close();
+        mSealed.add(mActiveSequence);
+        openActive(mActiveSequence + 1, false);
+    }
+
+    private void openActive(long sequence, boolean recover) throws IOException {
+        File file = segmentFile(sequence);
+        Segment segment;
+        if (recover) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            FileChannel channel = raf.getChannel();
+            segment = new Segment(channel,
+                    channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+        } else {
+            segment = createSegment(file, mSegmentRecords);
+        }
+
+        mActiveSequence = sequence;
+        mActiveChannel = segment.channel;
+        mActive = segment.map;
+        mActiveRecords = 0;
+        if (!recover) return;
+
+        //Find the tail: the first record that fails its check
+        int capacity = checkHeader(mActive, sequence);
+        while (mActiveRecords < capacity && readRecord(mActive, mActiveRecords, null)) {
+            mActiveRecords++;
+        }
+        mRecovered = mActiveRecords;
+
+        //Zero anything after it so a torn write cannot resurface later
+        byte[] zero = new byte[RECORD_SIZE];
+        for (int i = mActiveRecords; i < capacity; i++) {
+            mActive.position(HEADER_SIZE + i * RECORD_SIZE);
+            mActive.get(mRecord);
+            if (!Arrays.equals(mRecord, zero)) {
+                mActive.position(HEADER_SIZE + i * RECORD_SIZE);
+                mActive.put(zero);
+                mTruncated++;
+            }
+        }
+        mActive.force();
+
+        if (mActiveRecords == capacity) {
+            rollOver();
+        }
+    }
+
+    /* Latest sighting per beacon, in order of first appearance */
+    private static class Latest implements Visitor {
+        final BeaconRegistry mBeacons = new BeaconRegistry();
+        int[] mOrder = new int[16];
+        int mCount;
+        long[] mTimestamp = new long[16];
+        int[] mRssi = new int[16];
+        int[] mTxPower = new int[16];
+
+        @Override
+        public void onSighting(long timestamp, long idHigh, long idLow, int rssi, int txPower) {
+            int handle = mBeacons.find(idHigh, idLow);
+            if (handle == BeaconRegistry.NOT_FOUND) {
+                handle = mBeacons.add(idHigh, idLow);
+                if (handle >= mTimestamp.length) {
+                    int size = Math.max(handle + 1, mTimestamp.length * 2);
+                    mTimestamp = Arrays.copyOf(mTimestamp, size);
+                    mRssi = Arrays.copyOf(mRssi, size);
+                    mTxPower = Arrays.copyOf(mTxPower, size);
+                    mOrder = Arrays.copyOf(mOrder, size);
+                }
+                mOrder[mCount++] = handle;
+            } else if (timestamp < mTimestamp[handle]) {
+                return;
+            }
+            mTimestamp[handle] = timestamp;
+            mRssi[handle] = rssi;
+            mTxPower[handle] = txPower;
+        }
+    }
+
+    private static class Segment {
+        final FileChannel channel;
+        final MappedByteBuffer map;
+
+        Segment(FileChannel channel, MappedByteBuffer map) {
+            this.channel = channel;
+            this.map = map;
+        }
+    }
+
+    /* Create a zero-filled segment with a header, mapped read-write */
+    private Segment createSegment(File file, int records) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        raf.setLength(HEADER_SIZE + (long) records * RECORD_SIZE);
+        FileChannel channel = raf.getChannel();
+        MappedByteBuffer map =
+                channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        map.putInt(0, MAGIC);
+        map.putInt(4, VERSION);
+        map.putInt(8, RECORD_SIZE);
+        map.force();
+        return new Segment(channel, map);
+    }
+
+    /* @return record capacity of the segment */
+    private static int checkHeader(ByteBuffer buffer, long sequence) throws IOException {
+        if (buffer.capacity() < HEADER_SIZE
+                || buffer.getInt(0) != MAGIC
+                || buffer.getInt(4) != VERSION
+                || buffer.getInt(8) != RECORD_SIZE) {
+            throw new IOException("Corrupt journal segment " + sequence);
+        }
+        return (buffer.capacity() - HEADER_SIZE) / RECORD_SIZE;
+    }
+
+    private void encode(long timestamp, long idHigh, long idLow, int rssi, int txPower) {
+        mRecordBuffer.clear();
+        mRecordBuffer.putLong(timestamp)
+                .putLong(idHigh)
+                .putLong(idLow)
+                .put((byte) rssi)
+                .put((byte) txPower)
+                .putShort((short) 0);
+        mCrc.reset();
+        mCrc.update(mRecord, 0, CHECKED_SIZE);
+        mRecordBuffer.putInt((int) mCrc.getValue());
+    }
+
+    /* @return false if the record is empty or torn */
+    private boolean readRecord(ByteBuffer buffer, int index, Visitor visitor) {
+        buffer.position(HEADER_SIZE + index * RECORD_SIZE);
+        buffer.get(mRecord);
+        mCrc.reset();
+        mCrc.update(mRecord, 0, CHECKED_SIZE);
+        if (mRecordBuffer.getInt(CHECKED_SIZE) != (int) mCrc.getValue()) return false;
+
+        if (visitor != null) {
+            visitor.onSighting(mRecordBuffer.getLong(0), mRecordBuffer.getLong(8),
+                    mRecordBuffer.getLong(16), mRecord[24], mRecord[25]);
+        }
+        return true;
+    }
+
+    private long[] listSegments() {
+        String[] names = mDirectory.list();
+        if (names == null) return new long[0];
+
+        long[] sequences = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    long sequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length()), 16);
+                    sequences[count++] = sequence;
+                } catch (NumberFormatException e) {
+                    //Not one of ours
+                }
+            } else if (name.endsWith(TEMP_SUFFIX)) {
+                //Left over from an interrupted compaction
+                new File(mDirectory, name).delete();
+            }
+        }
+        sequences = Arrays.copyOf(sequences, count);
+        Arrays.sort(sequences);
+        return sequences;
+    }
+
+    private File segmentFile(long sequence) {
+        return new File(mDirectory, SEGMENT_PREFIX + format(sequence) + SEGMENT_SUFFIX);
+    }
+
+    private static String format(long sequence) {
+        StringBuilder sb = new StringBuilder(16);
+        EddystoneFrame.appendHex(sb, sequence, 16);
+        return sb.toString();
+    }
+}
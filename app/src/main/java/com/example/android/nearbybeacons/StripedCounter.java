@@ -0,0 +1,44 @@
+package com.example.android.nearbybeacons;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter for hot paths updated from several threads.
+ *
+ * Each thread adds to one of a fixed set of cells chosen by its id, and
+ * cells sit on separate cache lines, so threads incrementing at the same
+ * time rarely contend. Reads sum every cell and so only see a moment in
+ * time when nothing is incrementing.
+ *
+ * This class has no Android dependencies.
+ */
+public class StripedCounter {
+
+    private static final int STRIPES = 8;
+    // Longs per cache line, so each cell gets a line of its own
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray mCells = new AtomicLongArray(STRIPES * PADDING);
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long delta) {
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        mCells.getAndAdd(stripe * PADDING, delta);
+    }
+
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += mCells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(get());
+    }
+}
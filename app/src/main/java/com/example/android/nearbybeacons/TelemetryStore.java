@@ -0,0 +1,382 @@
+package com.example.android.nearbybeacons;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Append-only store of Eddystone-TLM samples, kept per device in
+ * compressed column chunks.
+ *
+ * Each device (keyed by its packed address) has a series of chunks of
+ * up to {@link #CHUNK_SAMPLES} samples. Within a chunk the timestamp,
+ * advertising count and uptime columns are delta-of-delta encoded, and
+ * the battery and temperature columns are XOR encoded against the
+ * previous value, in the style of Gorilla: a sample that repeats the
+ * previous interval and readings costs a handful of bits. Every chunk
+ * also keeps its time and battery ranges, so a range scan only decodes
+ * chunks that can match.
+ *
+ * Timestamps are in milliseconds on any clock, and must not go
+ * backwards for a device. This class is not thread-safe and has no
+ * Android dependencies.
+ */
+public class TelemetryStore {
+
+    /** Receives samples from a scan, in time order per device */
+    public interface Visitor {
+        /**
+         * @param temperature Signed 8.8 fixed point degrees Celsius, or
+         *                    {@link EddystoneFrame#TEMPERATURE_UNSUPPORTED}
+         */
+        void onSample(long address, long timestamp, int batteryMillivolts, int temperature,
+                      long advertisingCount, long uptimeTenths);
+    }
+
+    public static final int CHUNK_SAMPLES = 256;
+
+    private final BeaconRegistry mDevices = new BeaconRegistry();
+    // Chunks by device handle, oldest first
+    private final List<List<Chunk>> mSeries = new ArrayList<>();
+
+    private long mSamples;
+    private long mChunkCount;
+
+    /** Add a sample decoded from a TLM frame */
+    public void append(long address, long timestamp, EddystoneFrame tlm) {
+        append(address, timestamp, tlm.batteryMillivolts, tlm.temperature,
+                tlm.advertisingCount, tlm.uptimeTenths);
+    }
+
+    public void append(long address, long timestamp, int batteryMillivolts, int temperature,
+                       long advertisingCount, long uptimeTenths) {
+        int handle = mDevices.findAddress(address);
+        if (handle == BeaconRegistry.NOT_FOUND) {
+            handle = mDevices.addAddress(address);
+        }
+        while (mSeries.size() <= handle) {
+            mSeries.add(new ArrayList<Chunk>());
+        }
+
+        List<Chunk> chunks = mSeries.get(handle);
+        Chunk chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (chunk == null || chunk.mCount == CHUNK_SAMPLES) {
+            if (chunk != null) chunk.seal();
+            chunk = new Chunk();
+            chunks.add(chunk);
+            mChunkCount++;
+        }
+        chunk.append(timestamp, batteryMillivolts, temperature, advertisingCount, uptimeTenths);
+        mSamples++;
+    }
+
+    /** Every sample taken between {@code from} and {@code to}, inclusive */
+    public void scan(long from, long to, Visitor visitor) {
+        scan(from, to, false, 0, visitor);
+    }
+
+    /**
+     * Samples between {@code from} and {@code to}, inclusive, reporting a
+     * battery voltage below the given level. Samples from beacons that do
+     * not report their battery (0 mV) never match.
+     */
+    public void scanBatteryBelow(int millivolts, long from, long to, Visitor visitor) {
+        scan(from, to, true, millivolts, visitor);
+    }
+
+    private void scan(long from, long to, boolean batteryFilter, int millivolts,
+                      Visitor visitor) {
+        for (int handle = 0; handle < mSeries.size(); handle++) {
+            List<Chunk> chunks = mSeries.get(handle);
+            if (chunks.isEmpty()) continue;
+            long address = mDevices.getKeyLow(handle);
+            for (int i = 0; i < chunks.size(); i++) {
+                Chunk chunk = chunks.get(i);
+                if (chunk.mLastTimestamp < from) continue;
+                if (chunk.mFirstTimestamp > to) break;
+                if (batteryFilter && chunk.mMinBattery >= millivolts) continue;
+                chunk.scan(address, from, to, batteryFilter, millivolts, visitor);
+            }
+        }
+    }
+
+    /** Drop whole chunks whose samples are all older than the cutoff */
+    public void prune(long before) {
+        for (List<Chunk> chunks : mSeries) {
+            int drop = 0;
+            while (drop < chunks.size() && chunks.get(drop).mLastTimestamp < before) {
+                mSamples -= chunks.get(drop).mCount;
+                drop++;
+            }
+            if (drop > 0) {
+                chunks.subList(0, drop).clear();
+                mChunkCount -= drop;
+            }
+        }
+    }
+
+    public int getDeviceCount() {
+        return mDevices.size();
+    }
+
+    /** Samples currently held */
+    public long getSampleCount() {
+        return mSamples;
+    }
+
+    /** Compressed size of the samples currently held */
+    public long getByteCount() {
+        long bits = 0;
+        for (List<Chunk> chunks : mSeries) {
+            for (Chunk chunk : chunks) {
+                bits += chunk.mBitLength;
+            }
+        }
+        return (bits + 7) / 8;
+    }
+
+    @Override
+    public String toString() {
+        long samples = getSampleCount();
+        long bytes = getByteCount();
+        return "TelemetryStore[" + mDevices.size() + " devices, "
+                + samples + " samples, "
+                + mChunkCount + " chunks, "
+                + bytes + " bytes"
+                + (samples > 0 ? String.format(", %.1f bytes/sample]", (double) bytes / samples)
+                : "]");
+    }
+
+    /* One block of compressed samples for a single device */
+    private static final class Chunk {
+        long[] mBits = new long[16];
+        int mBitLength;
+        int mCount;
+        long mFirstTimestamp;
+        long mLastTimestamp;
+        int mMinBattery = Integer.MAX_VALUE;
+
+        // Encoder state: the previous sample and deltas
+        private long mTimestampDelta;
+        private long mPrevAdvertisingCount;
+        private long mAdvertisingDelta;
+        private long mPrevUptime;
+        private long mUptimeDelta;
+        private int mPrevBattery;
+        private int mBatteryLeading;
+        private int mBatteryTrailing;
+        private int mPrevTemperature;
+        private int mTemperatureLeading;
+        private int mTemperatureTrailing;
+
+        void append(long timestamp, int battery, int temperature,
+                    long advertisingCount, long uptime) {
+            battery &= 0xFFFF;
+            temperature &= 0xFFFF;
+            if (mCount == 0) {
+                writeBits(timestamp, 64);
+                writeBits(battery, 16);
+                writeBits(temperature, 16);
+                writeBits(advertisingCount, 32);
+                writeBits(uptime, 32);
+                mFirstTimestamp = timestamp;
+                mBatteryLeading = mTemperatureLeading = -1;
+            } else {
+                long delta = timestamp - mLastTimestamp;
+                writeDeltaOfDelta(delta - mTimestampDelta);
+                mTimestampDelta = delta;
+                writeXor(battery ^ mPrevBattery, true);
+                writeXor(temperature ^ mPrevTemperature, false);
+                delta = advertisingCount - mPrevAdvertisingCount;
+                writeDeltaOfDelta(delta - mAdvertisingDelta);
+                mAdvertisingDelta = delta;
+                delta = uptime - mPrevUptime;
+                writeDeltaOfDelta(delta - mUptimeDelta);
+                mUptimeDelta = delta;
+            }
+
+            mLastTimestamp = timestamp;
+            mPrevBattery = battery;
+            mPrevTemperature = temperature;
+            mPrevAdvertisingCount = advertisingCount;
+            mPrevUptime = uptime;
+            if (battery > 0) mMinBattery = Math.min(mMinBattery, battery);
+            mCount++;
+        }
+
+        /* Release the unused tail of the buffer once the chunk is full */
+        void seal() {
+            mBits = Arrays.copyOf(mBits, (mBitLength + 63) >>> 6);
+        }
+
+        void scan(long address, long from, long to, boolean batteryFilter, int millivolts,
+                  Visitor visitor) {
+            Reader in = new Reader(mBits);
+            long timestamp = in.read(64);
+            int battery = (int) in.read(16);
+            int temperature = (int) in.read(16);
+            long advertisingCount = in.read(32);
+            long uptime = in.read(32);
+            long timestampDelta = 0;
+            long advertisingDelta = 0;
+            long uptimeDelta = 0;
+
+            for (int i = 0; i < mCount; i++) {
+                if (i > 0) {
+                    timestampDelta += in.readDeltaOfDelta();
+                    timestamp += timestampDelta;
+                    battery = in.readXor(battery, true);
+                    temperature = in.readXor(temperature, false);
+                    advertisingDelta += in.readDeltaOfDelta();
+                    advertisingCount += advertisingDelta;
+                    uptimeDelta += in.readDeltaOfDelta();
+                    uptime += uptimeDelta;
+                }
+                if (timestamp > to) return;
+                if (timestamp < from) continue;
+                if (!batteryFilter || (battery > 0 && battery < millivolts)) {
+                    visitor.onSample(address, timestamp, battery,
+                            temperature == EddystoneFrame.TEMPERATURE_UNSUPPORTED
+                                    ? temperature : (short) temperature,
+                            advertisingCount, uptime);
+                }
+            }
+        }
+
+        /*
+         * '0' for no change, then '10', '110', '1110' with 7, 12 and 20
+         * bit signed values, and '1111' with the full 64 bits
+         */
+        private void writeDeltaOfDelta(long dod) {
+            if (dod == 0) {
+                writeBits(0, 1);
+            } else if (dod >= -64 && dod < 64) {
+                writeBits(0x2, 2);
+                writeBits(dod, 7);
+            } else if (dod >= -2048 && dod < 2048) {
+                writeBits(0x6, 3);
+                writeBits(dod, 12);
+            } else if (dod >= -524288 && dod < 524288) {
+                writeBits(0xE, 4);
+                writeBits(dod, 20);
+            } else {
+                writeBits(0xF, 4);
+                writeBits(dod, 64);
+            }
+        }
+
+        /*
+         * '0' for no change; '10' with the changed bits if they fit the
+         * previous window; '11', 4 bits of leading zeros, 4 bits of
+         * length - 1 and the changed bits otherwise. Values are 16 bits.
+         */
+        private void writeXor(int xor, boolean battery) {
+            if (xor == 0) {
+                writeBits(0, 1);
+                return;
+            }
+            int leading = Integer.numberOfLeadingZeros(xor) - 16;
+            int trailing = Integer.numberOfTrailingZeros(xor);
+            int prevLeading = battery ? mBatteryLeading : mTemperatureLeading;
+            int prevTrailing = battery ? mBatteryTrailing : mTemperatureTrailing;
+            if (prevLeading >= 0 && leading >= prevLeading && trailing >= prevTrailing) {
+                writeBits(0x2, 2);
+                writeBits(xor >>> prevTrailing, 16 - prevLeading - prevTrailing);
+                return;
+            }
+
+            int length = 16 - leading - trailing;
+            writeBits(0x3, 2);
+            writeBits(leading, 4);
+            writeBits(length - 1, 4);
+            writeBits(xor >>> trailing, length);
+            if (battery) {
+                mBatteryLeading = leading;
+                mBatteryTrailing = trailing;
+            } else {
+                mTemperatureLeading = leading;
+                mTemperatureTrailing = trailing;
+            }
+        }
+
+        private void writeBits(long value, int count) {
+            int word = mBitLength >>> 6;
+            if (word + 1 >= mBits.length) {
+                mBits = Arrays.copyOf(mBits, mBits.length * 2);
+            }
+            if (count < 64) value &= (1L << count) - 1;
+            int used = mBitLength & 63;
+            int free = 64 - used;
+            if (count <= free) {
+                mBits[word] |= value << (free - count);
+            } else {
+                mBits[word] |= value >>> (count - free);
+                mBits[word + 1] |= value << (64 - (count - free));
+            }
+            mBitLength += count;
+        }
+    }
+
+    /* Decodes the bit layout written by Chunk */
+    private static final class Reader {
+        private final long[] mBits;
+        private int mPosition;
+        private int mBatteryLeading;
+        private int mBatteryTrailing;
+        private int mTemperatureLeading;
+        private int mTemperatureTrailing;
+
+        Reader(long[] bits) {
+            mBits = bits;
+        }
+
+        long read(int count) {
+            int word = mPosition >>> 6;
+            int used = mPosition & 63;
+            int free = 64 - used;
+            long value;
+            if (count <= free) {
+                value = mBits[word] >>> (free - count);
+            } else {
+                value = (mBits[word] << (count - free))
+                        | (mBits[word + 1] >>> (64 - (count - free)));
+            }
+            mPosition += count;
+            return count < 64 ? value & ((1L << count) - 1) : value;
+        }
+
+        long readSigned(int count) {
+            long value = read(count);
+            return (value << (64 - count)) >> (64 - count);
+        }
+
+        long readDeltaOfDelta() {
+            if (read(1) == 0) return 0;
+            if (read(1) == 0) return readSigned(7);
+            if (read(1) == 0) return readSigned(12);
+            if (read(1) == 0) return readSigned(20);
+            return read(64);
+        }
+
+        int readXor(int previous, boolean battery) {
+            if (read(1) == 0) return previous;
+            if (read(1) == 0) {
+                int leading = battery ? mBatteryLeading : mTemperatureLeading;
+                int trailing = battery ? mBatteryTrailing : mTemperatureTrailing;
+                return previous ^ ((int) read(16 - leading - trailing) << trailing);
+            }
+
+            int leading = (int) read(4);
+            int length = (int) read(4) + 1;
+            int trailing = 16 - leading - length;
+            if (battery) {
+                mBatteryLeading = leading;
+                mBatteryTrailing = trailing;
+            } else {
+                mTemperatureLeading = leading;
+                mTemperatureTrailing = trailing;
+            }
+            return previous ^ ((int) read(length) << trailing);
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package com.example.android.nearbybeacons;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+/**
+ * Expands Eddystone-URL frames and resolves the URLs they carry.
+ *
+ * Each distinct encoded URL is expanded once (scheme prefix and TLD
+ * codes) and kept in a bounded cache, so a repeat sighting of a URL
+ * beacon costs a hash of its few bytes and a table probe, and returns
+ * the same String every time. The cache is four-way set-associative,
+ * evicting the least recently used entry of a set.
+ *
+ * The first sighting of a URL starts resolving it with the supplied
+ * {@link UrlResolver}, and the result is kept until its TTL passes,
+ * after which the next sighting resolves it again. Lookups run on an
+ * {@link ObserverEngine}, so concurrent requests for one URL share a
+ * single resolution, and at most a few run against any one host.
+ *
+ * Resolving a URL makes a request to whatever host a frame names, so
+ * only URLs from trusted beacons (as the caller decides, e.g. our own
+ * fleet) or on an allowed host are resolved; the rest are only
+ * expanded. Resolutions against one host are also spaced at least a
+ * minimum interval apart, and a URL refused for that reason is tried
+ * again on a later sighting.
+ *
+ * This class is thread-safe and has no Android dependencies.
+ */
+public class UrlFrameEngine {
+
+    /** Notified on a resolver thread as each resolution completes */
+    public interface Listener {
+        void onResolved(String url, String resolved);
+
+        void onResolveFailed(String url, IOException error);
+    }
+
+    private static final String[] SCHEMES = {
+            "http://www.", "https://www.", "http://", "https://"
+    };
+    private static final String[] EXPANSIONS = {
+            ".com/", ".org/", ".edu/", ".net/", ".info/", ".biz/", ".gov/",
+            ".com", ".org", ".edu", ".net", ".info", ".biz", ".gov"
+    };
+    // Bytes outside the printable range that are not expansion codes
+    private static final int FIRST_RESERVED = 0x0E;
+    private static final int FIRST_PRINTABLE = 0x21;
+    private static final int LAST_PRINTABLE = 0x7E;
+
+    private static final int WAYS = 4;
+    private static final int UNRESOLVED = 0;
+    private static final int RESOLVING = 1;
+    private static final int RESOLVED = 2;
+    private static final int FAILED = 3;
+
+    private final UrlResolver mResolver;
+    private final ObserverEngine<String> mEngine;
+    private final Listener mListener;
+    private final long mTtlMillis;
+    private final long mFailureTtlMillis;
+    private final int mSetMask;
+    private final Set<String> mAllowedHosts;
+    private final long mHostIntervalMillis;
+    // Earliest time of the next resolution per host, least recently used first
+    private final LinkedHashMap<String, Long> mHostNextResolve;
+
+    // Per entry, entry index is set * WAYS + way; guarded by this
+    private final long[] mHashes;
+    private final byte[][] mEncoded;
+    private final String[] mUrls;
+    private final String[] mHosts;
+    private final String[] mResolved;
+    private final int[] mStates;
+    private final long[] mExpiry;
+    private final long[] mLastUsed;
+    private final StringBuilder mExpandBuffer = new StringBuilder(64);
+    private long mUseCounter;
+
+    private long mHits;
+    private long mMisses;
+    private long mResolutions;
+    private long mFailures;
+    private long mUntrusted;
+    private long mThrottled;
+
+    /**
+     * @param capacity Distinct URLs kept, rounded up to a power of two
+     * @param ttlMillis How long a resolved URL is trusted
+     * @param failureTtlMillis How long to wait before retrying a failure
+     * @param executor Runs the resolver
+     * @param hostLimit Maximum concurrent resolutions per host
+     * @param allowedHosts Hosts whose URLs are resolved from any beacon
+     * @param hostIntervalMillis Minimum time between resolutions against one host
+     * @param listener Optional, may be null
+     */
+    public UrlFrameEngine(int capacity, long ttlMillis, long failureTtlMillis,
+                          UrlResolver resolver, Executor executor, int hostLimit,
+                          Collection<String> allowedHosts, long hostIntervalMillis,
+                          Listener listener) {
+        int sets = Integer.highestOneBit(Math.max(capacity / WAYS, 1) * 2 - 1);
+        mSetMask = sets - 1;
+        mHashes = new long[sets * WAYS];
+        mEncoded = new byte[sets * WAYS][];
+        mUrls = new String[sets * WAYS];
+        mHosts = new String[sets * WAYS];
+        mResolved = new String[sets * WAYS];
+        mStates = new int[sets * WAYS];
+        mExpiry = new long[sets * WAYS];
+        mLastUsed = new long[sets * WAYS];
+        mTtlMillis = ttlMillis;
+        mFailureTtlMillis = failureTtlMillis;
+        mAllowedHosts = new HashSet<>();
+        for (String host : allowedHosts) {
+            mAllowedHosts.add(host.toLowerCase(Locale.US));
+        }
+        mHostIntervalMillis = hostIntervalMillis;
+        final int maxHosts = sets * WAYS;
+        mHostNextResolve = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxHosts;
+            }
+        };
+        mResolver = resolver;
+        mListener = listener;
+        mEngine = new ObserverEngine<>(executor, hostLimit, null);
+    }
+
+    /**
+     * Handle a URL frame sighting, resolving the URL if it is new or its
+     * last result has expired, and it may be resolved.
+     *
+     * @param trusted Whether the frame came from a beacon whose URLs may
+     *                be resolved whatever their host
+     * @return the expanded URL, or null if the frame is not a valid URL
+     */
+    public String onFrame(EddystoneFrame frame, long now, boolean trusted) {
+        if (frame.type != EddystoneFrame.TYPE_URL) return null;
+
+        long hash = hash(frame.urlScheme, frame.url, frame.urlLength);
+        int set = (int) hash & mSetMask;
+        String url;
+        String host;
+        Resolution resolution;
+        synchronized (this) {
+            int entry = find(set, hash, frame);
+            if (entry < 0) {
+                mMisses++;
+                mExpandBuffer.setLength(0);
+                if (!expandInto(frame.urlScheme, frame.url, frame.urlLength, mExpandBuffer)) {
+                    return null;
+                }
+                url = mExpandBuffer.toString();
+                entry = insert(set, hash, frame, url);
+            } else {
+                mHits++;
+                url = mUrls[entry];
+            }
+            mLastUsed[entry] = ++mUseCounter;
+
+            int state = mStates[entry];
+            if (state == RESOLVING || (state != UNRESOLVED && now < mExpiry[entry])) {
+                return url;
+            }
+            host = mHosts[entry];
+            if (!trusted && !mAllowedHosts.contains(host)) {
+                mUntrusted++;
+                return url;
+            }
+            if (!reserveHost(host, now)) {
+                mThrottled++;
+                return url;
+            }
+            mStates[entry] = RESOLVING;
+            resolution = new Resolution(url, now);
+        }
+
+        mEngine.submit(url, host, resolution);
+        return url;
+    }
+
+    /** The resolved form of a URL seen before, or null if not (yet) known */
+    public synchronized String getResolved(EddystoneFrame frame) {
+        if (frame.type != EddystoneFrame.TYPE_URL) return null;
+        long hash = hash(frame.urlScheme, frame.url, frame.urlLength);
+        int entry = find((int) hash & mSetMask, hash, frame);
+        return entry >= 0 ? mResolved[entry] : null;
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    /** Sightings whose URL was not resolved because of its source and host */
+    public synchronized long getUntrustedCount() {
+        return mUntrusted;
+    }
+
+    /** Resolutions put off because their host was asked too recently */
+    public synchronized long getThrottledCount() {
+        return mThrottled;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "UrlFrameEngine[" + mHits + " hits, "
+                + mMisses + " misses, "
+                + mResolutions + " resolved, "
+                + mFailures + " failed, "
+                + mUntrusted + " untrusted, "
+                + mThrottled + " throttled, "
+                + mEngine + "]";
+    }
+
+    /**
+     * Expand an encoded Eddystone URL.
+     *
+     * @return the URL, or null if the scheme or any byte is invalid
+     */
+    public static String expand(int scheme, byte[] encoded, int length) {
+        StringBuilder sb = new StringBuilder(length + 16);
+        return expandInto(scheme, encoded, length, sb) ? sb.toString() : null;
+    }
+
+    private static boolean expandInto(int scheme, byte[] encoded, int length,
+                                      StringBuilder out) {
+        if (scheme < 0 || scheme >= SCHEMES.length) return false;
+        out.append(SCHEMES[scheme]);
+        for (int i = 0; i < length; i++) {
+            int b = encoded[i] & 0xFF;
+            if (b < FIRST_RESERVED) {
+                out.append(EXPANSIONS[b]);
+            } else if (b >= FIRST_PRINTABLE && b <= LAST_PRINTABLE) {
+                out.append((char) b);
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int find(int set, long hash, EddystoneFrame frame) {
+        for (int way = 0; way < WAYS; way++) {
+            int entry = set * WAYS + way;
+            if (mHashes[entry] == hash && mEncoded[entry] != null
+                    && matches(mEncoded[entry], frame)) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    /* Replace the empty or least recently used way of the set */
+    private int insert(int set, long hash, EddystoneFrame frame, String url) {
+        int victim = set * WAYS;
+        for (int way = 1; way < WAYS; way++) {
+            int entry = set * WAYS + way;
+            if (mLastUsed[entry] < mLastUsed[victim]) victim = entry;
+        }
+
+        byte[] encoded = new byte[frame.urlLength + 1];
+        encoded[0] = (byte) frame.urlScheme;
+        System.arraycopy(frame.url, 0, encoded, 1, frame.urlLength);
+        mHashes[victim] = hash;
+        mEncoded[victim] = encoded;
+        mUrls[victim] = url;
+        mHosts[victim] = getHost(url).toLowerCase(Locale.US);
+        mResolved[victim] = null;
+        mStates[victim] = UNRESOLVED;
+        mExpiry[victim] = 0;
+        return victim;
+    }
+
+    /* Claim the host's next resolution slot if it is due; caller holds lock */
+    private boolean reserveHost(String host, long now) {
+        if (mHostIntervalMillis <= 0) return true;
+        Long next = mHostNextResolve.get(host);
+        if (next != null && now < next) return false;
+        mHostNextResolve.put(host, now + mHostIntervalMillis);
+        return true;
+    }
+
+    /*
+     * Record a result against every entry for the URL still held. Frames
+     * encoding one URL differently share a single resolution, so entries
+     * other than the one that asked may be waiting on it too.
+     */
+    private synchronized void complete(String url, String resolved, long expiry) {
+        if (resolved != null) {
+            mResolutions++;
+        } else {
+            mFailures++;
+        }
+        for (int entry = 0; entry < mUrls.length; entry++) {
+            if (url.equals(mUrls[entry])) {
+                mResolved[entry] = resolved;
+                mStates[entry] = resolved != null ? RESOLVED : FAILED;
+                mExpiry[entry] = expiry;
+            }
+        }
+    }
+
+    private static boolean matches(byte[] encoded, EddystoneFrame frame) {
+        if (encoded.length != frame.urlLength + 1 || encoded[0] != frame.urlScheme) {
+            return false;
+        }
+        for (int i = 0; i < frame.urlLength; i++) {
+            if (encoded[i + 1] != frame.url[i]) return false;
+        }
+        return true;
+    }
+
+    /* Host part of an expanded URL, which always has a scheme */
+    private static String getHost(String url) {
+        int start = url.indexOf("://") + 3;
+        int end = url.indexOf('/', start);
+        return end < 0 ? url.substring(start) : url.substring(start, end);
+    }
+
+    /* 64-bit FNV-1a over the scheme and encoded bytes */
+    private static long hash(int scheme, byte[] encoded, int length) {
+        long hash = 0xcbf29ce484222325L;
+        hash ^= scheme & 0xFF;
+        hash *= 0x100000001b3L;
+        for (int i = 0; i < length; i++) {
+            hash ^= encoded[i] & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return BeaconRegistry.mix(hash);
+    }
+
+    /* Runs the resolver and stores the outcome against the entries for its URL */
+    private class Resolution implements Callable<String> {
+        private final String mUrl;
+        private final long mSubmitted;
+
+        Resolution(String url, long submitted) {
+            mUrl = url;
+            mSubmitted = submitted;
+        }
+
+        @Override
+        public String call() throws IOException {
+            String resolved;
+            try {
+                resolved = mResolver.resolve(mUrl);
+            } catch (IOException e) {
+                complete(mUrl, null, mSubmitted + mFailureTtlMillis);
+                if (mListener != null) mListener.onResolveFailed(mUrl, e);
+                throw e;
+            }
+            complete(mUrl, resolved, mSubmitted + mTtlMillis);
+            if (mListener != null) mListener.onResolved(mUrl, resolved);
+            return resolved;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.example.android.nearbybeacons;
+
+import java.io.IOException;
+
+/**
+ * Turns a URL advertised by a beacon, typically a short link, into the
+ * URL it ultimately points to. Called on a background thread.
+ */
+public interface UrlResolver {
+    /** @return the final URL, or the input if it does not redirect */
+    String resolve(String url) throws IOException;
+}
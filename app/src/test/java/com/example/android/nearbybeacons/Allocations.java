@@ -0,0 +1,63 @@
+package com.example.android.nearbybeacons;
+
+import java.lang.reflect.Method;
+
+/**
+ * Bytes allocated by the current thread, where the JVM can report it
+ * (HotSpot and OpenJDK can), for tests of allocation-free paths.
+ *
+ * The management classes are not in android.jar, which local tests are
+ * compiled against, so they are reached by reflection.
+ */
+final class Allocations {
+
+    private static Object sThreads;
+    private static Method sAllocatedBytes;
+    static {
+        try {
+            Object threads = Class.forName("java.lang.management.ManagementFactory")
+                    .getMethod("getThreadMXBean").invoke(null);
+            Class<?> type = Class.forName("com.sun.management.ThreadMXBean");
+            if (type.isInstance(threads)
+                    && (Boolean) type.getMethod("isThreadAllocatedMemorySupported")
+                    .invoke(threads)) {
+                type.getMethod("setThreadAllocatedMemoryEnabled", boolean.class)
+                        .invoke(threads, true);
+                sAllocatedBytes = type.getMethod("getThreadAllocatedBytes", long.class);
+                sThreads = threads;
+            }
+        } catch (ReflectiveOperationException | LinkageError e) {
+            //Not supported
+        }
+    }
+
+    private Allocations() {
+        //No instances
+    }
+
+    static boolean isSupported() {
+        return sThreads != null;
+    }
+
+    /** Bytes allocated by running the task the given number of times */
+    static long measure(Runnable task, int times) {
+        long id = Thread.currentThread().getId();
+        //Warm up first, so class loading and compilation are not counted
+        for (int i = 0; i < 20000; i++) {
+            task.run();
+        }
+        long before = allocatedBytes(id);
+        for (int i = 0; i < times; i++) {
+            task.run();
+        }
+        return allocatedBytes(id) - before;
+    }
+
+    private static long allocatedBytes(long threadId) {
+        try {
+            return (Long) sAllocatedBytes.invoke(sThreads, threadId);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
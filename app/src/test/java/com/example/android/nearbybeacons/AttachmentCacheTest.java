@@ -0,0 +1,198 @@
+package com.example.android.nearbybeacons;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AttachmentCacheTest {
+
+    private static final String TYPE = "beacons/offer";
+    private static final long HOUR = 60 * 60 * 1000;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void hitsFreshAndNegativeEntries() throws IOException {
+        AttachmentCache cache = cache(16, HOUR);
+        assertNull(cache.get(id(1), TYPE));
+        cache.put(id(1), TYPE, attachments("a", "bc"));
+        cache.put(id(2), TYPE, Collections.<byte[]>emptyList());
+
+        AttachmentCache.Entry entry = cache.get(id(1), TYPE);
+        assertTrue(entry.isFresh(System.currentTimeMillis()));
+        assertFalse(entry.isNegative());
+        assertEquals(2, entry.attachments.size());
+        assertArrayEquals("bc".getBytes("UTF-8"), entry.attachments.get(1));
+        assertTrue(cache.get(id(2), TYPE).isNegative());
+        //The type is part of the key
+        assertNull(cache.get(id(1), "beacons/other"));
+
+        assertEquals("AttachmentCache[1 hits, 0 stale, 1 negative, 0 from disk, 2 misses, "
+                + "0 evictions]", cache.toString());
+    }
+
+    /** Past its TTL an entry is served as stale until its deadline, then dropped */
+    @Test
+    public void servesStaleEntriesUntilTheirDeadline() throws IOException {
+        AttachmentCache stale = new AttachmentCache(directory("stale"), 16, 16, 0, 0, HOUR);
+        stale.put(id(1), TYPE, attachments("a"));
+        AttachmentCache.Entry entry = stale.get(id(1), TYPE);
+        assertFalse(entry.isFresh(System.currentTimeMillis()));
+        assertEquals(1, stale.getStaleHitCount());
+
+        AttachmentCache expired =
+                new AttachmentCache(directory("expired"), 16, 16, -2 * HOUR, -2 * HOUR, HOUR);
+        expired.put(id(1), TYPE, attachments("a"));
+        assertNull(expired.get(id(1), TYPE));
+        assertEquals(1, expired.getMissCount());
+        assertEquals(1, expired.getEvictionCount());
+    }
+
+    @Test
+    public void negativeEntriesHaveTheirOwnTtl() throws IOException {
+        AttachmentCache cache = new AttachmentCache(directory("cache"), 16, 16, HOUR, 0, HOUR);
+        cache.put(id(1), TYPE, Collections.<byte[]>emptyList());
+        cache.put(id(2), TYPE, attachments("a"));
+        assertFalse(cache.get(id(1), TYPE).isFresh(System.currentTimeMillis()));
+        assertTrue(cache.get(id(2), TYPE).isFresh(System.currentTimeMillis()));
+    }
+
+    /** Entries evicted from memory, or from a process that died, come back from disk */
+    @Test
+    public void readsBackFromDisk() throws IOException {
+        File directory = directory("cache");
+        AttachmentCache cache = new AttachmentCache(directory, 2, 100, HOUR, HOUR, HOUR);
+        for (int i = 0; i < 3; i++) {
+            cache.put(id(i), TYPE, attachments("attachment " + i));
+        }
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals("attachment 0", string(cache.get(id(0), TYPE).attachments.get(0)));
+        assertEquals(1, cache.getDiskHitCount());
+        //Back in memory; both reads count as hits
+        cache.get(id(0), TYPE);
+        assertEquals(1, cache.getDiskHitCount());
+        assertEquals(2, cache.getHitCount());
+
+        AttachmentCache restarted = new AttachmentCache(directory, 2, 100, HOUR, HOUR, HOUR);
+        assertEquals("attachment 2", string(restarted.get(id(2), TYPE).attachments.get(0)));
+        assertEquals(1, restarted.getDiskHitCount());
+        //Written under another type, so not this one
+        assertNull(restarted.get(id(2), "beacons/other"));
+    }
+
+    @Test
+    public void deletesCorruptFiles() throws IOException {
+        File directory = directory("cache");
+        AttachmentCache cache = new AttachmentCache(directory, 16, 100, HOUR, HOUR, HOUR);
+        cache.put(id(1), TYPE, attachments("first"));
+        cache.put(id(2), TYPE, attachments("second"));
+        File[] files = directory.listFiles();
+        assertEquals(2, files.length);
+        Arrays.sort(files);
+
+        //One cut short, the other claiming more attachments than the file could hold
+        RandomAccessFile truncated = new RandomAccessFile(files[0], "rw");
+        truncated.setLength(truncated.length() - 1);
+        truncated.close();
+        DataOutputStream huge = new DataOutputStream(new FileOutputStream(files[1]));
+        huge.writeInt(1);
+        huge.writeUTF(TYPE);
+        huge.writeLong(Long.MAX_VALUE);
+        huge.writeLong(Long.MAX_VALUE);
+        huge.writeInt(Integer.MAX_VALUE);
+        huge.close();
+
+        AttachmentCache restarted = new AttachmentCache(directory, 16, 100, HOUR, HOUR, HOUR);
+        assertNull(restarted.get(id(1), TYPE));
+        assertNull(restarted.get(id(2), TYPE));
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void trimsTheDiskStore() throws IOException {
+        File directory = directory("cache");
+        AttachmentCache cache = new AttachmentCache(directory, 16, 10, HOUR, HOUR, HOUR);
+        for (int i = 0; i < 64; i++) {
+            cache.put(id(i), TYPE, attachments("a"));
+        }
+        assertEquals(10, directory.listFiles().length);
+    }
+
+    /** Readers and writers on shared keys only ever see complete entries */
+    @Test
+    public void staysConsistentAcrossThreads() throws Exception {
+        final AttachmentCache cache =
+                new AttachmentCache(directory("cache"), 8, 1000, HOUR, HOUR, HOUR);
+        final AtomicReference<String> failure = new AtomicReference<>();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 2000; i++) {
+                        int beacon = (i * 7 + thread) % 32;
+                        if (i % 3 == 0) {
+                            cache.put(id(beacon), TYPE, attachments("beacon " + beacon,
+                                    "thread " + thread));
+                            continue;
+                        }
+                        AttachmentCache.Entry entry = cache.get(id(beacon), TYPE);
+                        if (entry != null && (entry.attachments.size() != 2
+                                || !string(entry.attachments.get(0))
+                                .equals("beacon " + beacon))) {
+                            failure.set("Beacon " + beacon + " read " + entry.attachments);
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+    }
+
+    private AttachmentCache cache(int maxMemoryEntries, long ttl) throws IOException {
+        return new AttachmentCache(directory("cache"), maxMemoryEntries, 100, ttl, ttl, HOUR);
+    }
+
+    private File directory(String name) {
+        return new File(mFolder.getRoot(), name);
+    }
+
+    private static byte[] id(int beacon) {
+        return ScanTraces.advertisedId(beacon);
+    }
+
+    private static List<byte[]> attachments(String... values) {
+        List<byte[]> list = new ArrayList<>();
+        for (String value : values) {
+            list.add(value.getBytes());
+        }
+        return list;
+    }
+
+    private static String string(byte[] data) {
+        return new String(data);
+    }
+}
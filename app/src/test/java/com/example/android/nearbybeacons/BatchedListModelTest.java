@@ -0,0 +1,227 @@
+package com.example.android.nearbybeacons;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BatchedListModelTest {
+
+    /* Runs queued diffs only when asked, like a busy background thread */
+    private static class ManualExecutor implements Executor {
+        final Queue<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    private final ManualExecutor mExecutor = new ManualExecutor();
+    private final AtomicInteger mReady = new AtomicInteger();
+    private final BatchedListModel<String> mModel = new BatchedListModel<>(mExecutor,
+            new BatchedListModel.Listener() {
+                @Override
+                public void onUpdateReady() {
+                    mReady.incrementAndGet();
+                }
+            });
+    // What the display shows
+    private final List<String> mDisplayed = new ArrayList<>();
+
+    @Test
+    public void batchesMutationsIntoOneUpdate() {
+        for (int i = 0; i < 100; i++) {
+            mModel.add("item " + i);
+        }
+        mModel.remove("item 50");
+        //One diff is scheduled for the whole burst
+        assertEquals(1, mExecutor.tasks.size());
+        mExecutor.runAll();
+        assertEquals(1, mReady.get());
+
+        BatchedListModel.Update<String> update = apply();
+        assertEquals(99, update.getOperationCount());
+        assertEquals(mModel.getItems(), mDisplayed);
+        assertEquals("BatchedListModel[99 items, 1 diffs, 1 applied]", mModel.toString());
+        assertNull(mModel.takeUpdate());
+    }
+
+    @Test
+    public void diffsAgainstWhatIsDisplayed() {
+        mModel.add("a");
+        mModel.add("b");
+        mModel.add("c");
+        mExecutor.runAll();
+        apply();
+
+        mModel.remove("b");
+        mModel.add("d");
+        mModel.add("b");
+        mExecutor.runAll();
+        BatchedListModel.Update<String> update = apply();
+        //b moves to the end, d is inserted before it
+        assertEquals(2, update.getOperationCount());
+        assertEquals(Arrays.asList("a", "c", "d", "b"), mDisplayed);
+    }
+
+    @Test
+    public void skipsUpdatesThatChangeNothing() {
+        mModel.add("a");
+        mExecutor.runAll();
+        apply();
+
+        mModel.remove("a");
+        mModel.add("a");
+        mExecutor.runAll();
+        assertNull(mModel.takeUpdate());
+        assertEquals(1, mReady.get());
+    }
+
+    @Test
+    public void rejectsDuplicatesAndMissingItems() {
+        assertTrue(mModel.add("a"));
+        assertFalse(mModel.add(new String("a")));
+        assertFalse(mModel.remove("b"));
+        assertEquals(1, mModel.size());
+        mModel.clear();
+        assertEquals(0, mModel.size());
+    }
+
+    @Test
+    public void putReplacesInPlace() {
+        String first = new String("offer");
+        String second = new String("offer");
+        mModel.add("before");
+        assertTrue(mModel.put(first));
+        mModel.add("after");
+        mExecutor.runAll();
+        apply();
+
+        assertFalse(mModel.put(first));
+        assertTrue(mModel.put(second));
+        mExecutor.runAll();
+        BatchedListModel.Update<String> update = apply();
+        assertEquals(1, update.getOperationCount());
+        assertSame(second, mDisplayed.get(1));
+        assertSame(second, mModel.getItems().get(1));
+    }
+
+    @Test
+    public void restoresWithoutUpdate() {
+        mModel.restore(Arrays.asList("a", "b"));
+        mDisplayed.addAll(Arrays.asList("a", "b"));
+        assertTrue(mExecutor.tasks.isEmpty());
+
+        mModel.add("c");
+        mExecutor.runAll();
+        assertEquals(1, apply().getOperationCount());
+        assertEquals(Arrays.asList("a", "b", "c"), mDisplayed);
+    }
+
+    @Test
+    public void diffsFromTheUpdateTheDisplayTook() {
+        mModel.add("a");
+        mExecutor.runAll();
+        //The model moves on before the display takes the first update
+        mModel.add("b");
+        apply();
+        mExecutor.runAll();
+        apply();
+        assertEquals(Arrays.asList("a", "b"), mDisplayed);
+    }
+
+    /**
+     * Several threads mutating while a background thread diffs and a
+     * display thread applies updates as they come; once it all settles
+     * the display matches the model.
+     */
+    @Test
+    public void displayCatchesUpUnderConcurrentMutation() throws Exception {
+        ExecutorService diffThread = Executors.newSingleThreadExecutor();
+        final BatchedListModel<Integer> model = new BatchedListModel<>(diffThread,
+                new BatchedListModel.Listener() {
+                    @Override
+                    public void onUpdateReady() {
+                    }
+                });
+
+        final CountDownLatch done = new CountDownLatch(4);
+        for (int t = 0; t < 4; t++) {
+            final int seed = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    for (int i = 0; i < 20000; i++) {
+                        Integer item = random.nextInt(500);
+                        if (random.nextBoolean()) {
+                            model.add(item);
+                        } else {
+                            model.remove(item);
+                        }
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        List<Integer> displayed = new ArrayList<>();
+        int applied = 0;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (System.nanoTime() < deadline) {
+            boolean settled = done.getCount() == 0;
+            BatchedListModel.Update<Integer> update = model.takeUpdate();
+            if (update != null) {
+                ListDiffTest.Applier<Integer> applier =
+                        new ListDiffTest.Applier<>(displayed, update.getItems());
+                update.dispatch(applier);
+                applier.assertApplied();
+                displayed = applier.list;
+                applied++;
+            } else if (settled && displayed.equals(model.getItems())) {
+                break;
+            }
+            Thread.sleep(1);
+        }
+        diffThread.shutdown();
+
+        assertEquals(model.getItems(), displayed);
+        assertTrue(applied > 0);
+    }
+
+    /* Take the pending update and apply it to the displayed list */
+    private BatchedListModel.Update<String> apply() {
+        BatchedListModel.Update<String> update = mModel.takeUpdate();
+        ListDiffTest.Applier<String> applier =
+                new ListDiffTest.Applier<>(mDisplayed, update.getItems());
+        update.dispatch(applier);
+        applier.assertApplied();
+        mDisplayed.clear();
+        mDisplayed.addAll(applier.list);
+        return update;
+    }
+}
@@ -0,0 +1,219 @@
+package com.example.android.nearbybeacons;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BeaconApiClientTest {
+
+    private StubServer mServer;
+    private URL mUrl;
+
+    @Before
+    public void setUp() throws IOException {
+        //Echoes the decoded request body
+        mServer = new StubServer(new StubServer.Responder() {
+            @Override
+            public byte[] respond(byte[] body) {
+                return body;
+            }
+        });
+        mUrl = mServer.url("/v1beta1/beaconinfo:getforobserved");
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    @Test
+    public void sendsAndReadsGzippedBodies() throws IOException {
+        BeaconApiClient client = new BeaconApiClient(1, 1, 10, 100, true);
+        byte[] body = ScanTraces.observedResponse(8192);
+        assertArrayEquals(body, post(client, body));
+        assertEquals(1, mServer.getGzipRequestCount());
+    }
+
+    @Test
+    public void sendsPlainBodiesWhenAsked() throws IOException {
+        BeaconApiClient client = new BeaconApiClient(1, 1, 10, 100, false);
+        byte[] body = "{\"observations\":[]}".getBytes("UTF-8");
+        assertArrayEquals(body, post(client, body));
+        assertEquals(0, mServer.getGzipRequestCount());
+    }
+
+    @Test
+    public void reusesConnectionAcrossRequestsAndErrors() throws IOException {
+        BeaconApiClient client = new BeaconApiClient(1, 2, 10, 100, true);
+        for (int i = 0; i < 10; i++) {
+            post(client, new byte[]{(byte) i});
+        }
+        //Error bodies are read too, so the connection goes back to the pool
+        mServer.failNext(503, -1);
+        post(client, new byte[]{1});
+        mServer.failNext(404, -1);
+        try {
+            post(client, new byte[]{2});
+            fail();
+        } catch (BeaconApiClient.HttpException expected) {
+        }
+        post(client, new byte[]{3});
+
+        assertEquals(14, mServer.getRequestCount());
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void retriesServerErrorsAndThrottling() throws IOException {
+        BeaconApiClient client = new BeaconApiClient(1, 4, 10, 100, true);
+        mServer.failNext(503, -1);
+        mServer.failNext(429, -1);
+        mServer.failNext(500, -1);
+        assertArrayEquals(new byte[]{7}, post(client, new byte[]{7}));
+        assertEquals(4, mServer.getRequestCount());
+        assertEquals(3, client.getRetryCount());
+        assertEquals(1, client.getRequestCount());
+        assertEquals(0, client.getFailureCount());
+    }
+
+    @Test
+    public void givesUpAfterLastAttempt() throws IOException {
+        BeaconApiClient client = new BeaconApiClient(1, 3, 10, 100, true);
+        for (int i = 0; i < 3; i++) {
+            mServer.failNext(502, -1);
+        }
+        try {
+            post(client, new byte[]{1});
+            fail();
+        } catch (BeaconApiClient.HttpException e) {
+            assertEquals(502, e.statusCode);
+        }
+        assertEquals(3, mServer.getRequestCount());
+        assertEquals(2, client.getRetryCount());
+        assertEquals(1, client.getFailureCount());
+    }
+
+    @Test
+    public void doesNotRetryClientErrors() throws IOException {
+        BeaconApiClient client = new BeaconApiClient(1, 4, 10, 100, true);
+        mServer.failNext(400, 1);
+        try {
+            post(client, new byte[]{1});
+            fail();
+        } catch (BeaconApiClient.HttpException e) {
+            assertEquals(400, e.statusCode);
+        }
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(0, client.getRetryCount());
+    }
+
+    @Test
+    public void honorsRetryAfter() throws IOException {
+        BeaconApiClient client = new BeaconApiClient(1, 2, 1, 5000, true);
+        mServer.failNext(429, 1);
+        long start = System.nanoTime();
+        post(client, new byte[]{1});
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        assertTrue("Retried after " + elapsedMillis + "ms", elapsedMillis >= 950);
+    }
+
+    @Test
+    public void capsRetryAfterAtMaxBackoff() throws IOException {
+        BeaconApiClient client = new BeaconApiClient(1, 2, 1, 100, true);
+        mServer.failNext(503, 3600);
+        long start = System.nanoTime();
+        post(client, new byte[]{1});
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        assertTrue("Retried after " + elapsedMillis + "ms",
+                elapsedMillis >= 95 && elapsedMillis < 2000);
+    }
+
+    @Test
+    public void boundsRequestsInFlight() throws Exception {
+        final BeaconApiClient client = new BeaconApiClient(2, 1, 10, 100, true);
+        mServer.setLatency(30);
+        List<Future<byte[]>> results = postConcurrently(client, 8, 16);
+        for (Future<byte[]> result : results) {
+            assertEquals(1, result.get().length);
+        }
+        assertEquals(2, mServer.getMaxInFlight());
+        assertEquals(16, client.getRequestCount());
+    }
+
+    /**
+     * Many callers through one client, with latency and a share of
+     * retryable errors injected; everything should still succeed.
+     */
+    @Test
+    public void reportsThroughputUnderLatencyAndErrors() throws Exception {
+        final int requests = 200;
+        BeaconApiClient client = new BeaconApiClient(4, 8, 5, 50, true);
+        mServer.setLatency(5);
+        for (int i = 0; i < requests / 10; i++) {
+            mServer.failNext(i % 2 == 0 ? 503 : 429, -1);
+        }
+
+        long start = System.nanoTime();
+        List<Future<byte[]>> results = postConcurrently(client, 8, requests);
+        for (Future<byte[]> result : results) {
+            assertEquals(1, result.get().length);
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        assertEquals(requests, client.getRequestCount());
+        assertEquals(requests / 10, client.getRetryCount());
+        assertEquals(0, client.getFailureCount());
+        assertTrue(mServer.getMaxInFlight() <= 4);
+        //Kept alive rather than one per request
+        assertTrue(mServer.getConnectionCount() <= 8);
+        System.out.println(String.format("BeaconApiClient over stub server: %.0f requests/s, "
+                + "%d connections, %s", requests / elapsed, mServer.getConnectionCount(), client));
+    }
+
+    private List<Future<byte[]>> postConcurrently(final BeaconApiClient client, int threads,
+                                                  int requests) {
+        ExecutorService callers = Executors.newFixedThreadPool(threads);
+        List<Future<byte[]>> results = new ArrayList<>();
+        for (int i = 0; i < requests; i++) {
+            final byte[] body = {(byte) i};
+            results.add(callers.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    return post(client, body);
+                }
+            }));
+        }
+        callers.shutdown();
+        return results;
+    }
+
+    private byte[] post(BeaconApiClient client, final byte[] body) throws IOException {
+        return client.post(mUrl, new BeaconApiClient.BodyWriter() {
+            @Override
+            public void write(OutputStream out) throws IOException {
+                out.write(body);
+            }
+        }, new BeaconApiClient.ResponseReader<byte[]>() {
+            @Override
+            public byte[] read(InputStream in) throws IOException {
+                return StubServer.readAll(in);
+            }
+        });
+    }
+}
@@ -0,0 +1,346 @@
+package com.example.android.nearbybeacons;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class BeaconEventBusTest {
+
+    /* Delivers on the publishing thread */
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            task.run();
+        }
+    };
+
+    /* Holds tasks until run, counting them */
+    private static class QueuedExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<>();
+        int executed;
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+                executed++;
+            }
+        }
+    }
+
+    /* Records events as "type id" and requests as told */
+    private static class Recorder implements BeaconFlow.Subscriber<BeaconEvent> {
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        final long initialRequest;
+        BeaconFlow.Subscription subscription;
+        Throwable error;
+
+        Recorder(long initialRequest) {
+            this.initialRequest = initialRequest;
+        }
+
+        @Override
+        public void onSubscribe(BeaconFlow.Subscription subscription) {
+            this.subscription = subscription;
+            if (initialRequest > 0) subscription.request(initialRequest);
+        }
+
+        @Override
+        public void onNext(BeaconEvent event) {
+            events.add(BeaconEvent.getTypeName(event.type) + " " + event.idLow
+                    + (event.timestamp != 0 ? "@" + event.timestamp : ""));
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            this.error = error;
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+
+    private final BeaconEventBus mBus = new BeaconEventBus();
+
+    @Test
+    public void deliversOnlyWhatWasRequested() {
+        Recorder recorder = new Recorder(2);
+        mBus.stream(BeaconEvent.ALL, DIRECT).subscribe(recorder);
+        for (int i = 0; i < 5; i++) {
+            mBus.publish(event(BeaconEvent.FOUND, i, 0));
+        }
+        assertEquals(Arrays.asList("found 0", "found 1"), recorder.events);
+        recorder.subscription.request(10);
+        assertEquals(5, recorder.events.size());
+        mBus.publish(event(BeaconEvent.LOST, 0, 0));
+        assertEquals("lost 0", recorder.events.get(5));
+    }
+
+    @Test
+    public void routesByTypeAndStopsOnCancel() {
+        assertFalse(mBus.hasSubscribers(BeaconEvent.ALL));
+        Recorder found = new Recorder(Long.MAX_VALUE);
+        Recorder telemetry = new Recorder(Long.MAX_VALUE);
+        mBus.stream(BeaconEvent.FOUND | BeaconEvent.LOST, DIRECT).subscribe(found);
+        mBus.stream(BeaconEvent.TELEMETRY, DIRECT).subscribe(telemetry);
+        assertTrue(mBus.hasSubscribers(BeaconEvent.TELEMETRY));
+        assertFalse(mBus.hasSubscribers(BeaconEvent.UPDATED));
+
+        mBus.publish(event(BeaconEvent.FOUND, 1, 0));
+        mBus.publish(event(BeaconEvent.TELEMETRY, 1, 0));
+        mBus.publish(event(BeaconEvent.UPDATED, 1, 0));
+        assertEquals(Collections.singletonList("found 1"), found.events);
+        assertEquals(Collections.singletonList("telemetry 1"), telemetry.events);
+        //Nobody wanted the update
+        assertEquals("BeaconEventBus[2 published, 2 subscribers, 0 conflated or sampled, "
+                + "0 dropped]", mBus.toString());
+
+        telemetry.subscription.cancel();
+        assertFalse(mBus.hasSubscribers(BeaconEvent.TELEMETRY));
+        mBus.publish(event(BeaconEvent.TELEMETRY, 2, 0));
+        assertEquals(1, telemetry.events.size());
+        assertEquals(1, mBus.getSubscriberCount());
+    }
+
+    @Test
+    public void dropsTheOldestWhenABufferIsFull() {
+        Recorder recorder = new Recorder(0);
+        mBus.stream(BeaconEvent.ALL, DIRECT).buffer(4).subscribe(recorder);
+        for (int i = 0; i < 10; i++) {
+            mBus.publish(event(BeaconEvent.FOUND, i, 0));
+        }
+        recorder.subscription.request(Long.MAX_VALUE);
+        assertEquals(Arrays.asList("found 6", "found 7", "found 8", "found 9"),
+                recorder.events);
+        assertTrue(mBus.toString(), mBus.toString().endsWith(" 6 dropped]"));
+    }
+
+    /** Pending updates and telemetry are replaced in place; found and lost never are */
+    @Test
+    public void conflatesPendingEventsPerBeacon() {
+        Recorder recorder = new Recorder(0);
+        mBus.stream(BeaconEvent.ALL, DIRECT).conflate().subscribe(recorder);
+        mBus.publish(event(BeaconEvent.FOUND, 1, 1));
+        mBus.publish(event(BeaconEvent.UPDATED, 1, 2));
+        mBus.publish(event(BeaconEvent.UPDATED, 2, 3));
+        mBus.publish(event(BeaconEvent.FOUND, 1, 4));
+        mBus.publish(event(BeaconEvent.UPDATED, 1, 5));
+        mBus.publish(event(BeaconEvent.TELEMETRY, 1, 6));
+        mBus.publish(event(BeaconEvent.TELEMETRY, 1, 7));
+        recorder.subscription.request(4);
+        assertEquals(Arrays.asList("found 1@1", "updated 1@5", "updated 2@3", "found 1@4"),
+                recorder.events);
+
+        //The telemetry is still pending; a delivered update is not replaced
+        mBus.publish(event(BeaconEvent.UPDATED, 1, 8));
+        mBus.publish(event(BeaconEvent.TELEMETRY, 1, 9));
+        recorder.subscription.request(Long.MAX_VALUE);
+        assertEquals(Arrays.asList("telemetry 1@9", "updated 1@8"),
+                recorder.events.subList(4, 6));
+        assertTrue(mBus.toString(), mBus.toString().contains(" 3 conflated or sampled"));
+    }
+
+    @Test
+    public void samplesUpdatesPerBeacon() {
+        Recorder recorder = new Recorder(Long.MAX_VALUE);
+        mBus.stream(BeaconEvent.ALL, DIRECT).sample(1000).subscribe(recorder);
+        long[] times = {1, 500, 999, 1001, 1500, 2001};
+        for (long time : times) {
+            mBus.publish(event(BeaconEvent.UPDATED, 1, time));
+            mBus.publish(event(BeaconEvent.TELEMETRY, 2, time));
+        }
+        assertEquals(Arrays.asList("updated 1@1", "telemetry 2@1", "updated 1@1001",
+                "telemetry 2@1001", "updated 1@2001", "telemetry 2@2001"), recorder.events);
+
+        //Lost forgets the beacon, so it is sampled afresh if found again
+        recorder.events.clear();
+        mBus.publish(event(BeaconEvent.UPDATED, 1, 2100));
+        mBus.publish(event(BeaconEvent.LOST, 1, 2200));
+        mBus.publish(event(BeaconEvent.FOUND, 1, 2300));
+        mBus.publish(event(BeaconEvent.UPDATED, 1, 2400));
+        assertEquals(Arrays.asList("lost 1@2200", "found 1@2300", "updated 1@2400"),
+                recorder.events);
+    }
+
+    /** Telemetry never sees a LOST, so its keys go once delivered or the interval passes */
+    @Test
+    public void forgetsBeaconsWithoutLost() {
+        Recorder conflated = new Recorder(0);
+        mBus.stream(BeaconEvent.TELEMETRY, DIRECT).conflate().subscribe(conflated);
+        for (int i = 0; i < 100; i++) {
+            mBus.publish(event(BeaconEvent.TELEMETRY, i, i));
+        }
+        assertEquals(100, mBus.getTrackedCount());
+        conflated.subscription.request(60);
+        assertEquals(40, mBus.getTrackedCount());
+        conflated.subscription.request(Long.MAX_VALUE);
+        assertEquals(0, mBus.getTrackedCount());
+        conflated.subscription.cancel();
+
+        //Dropped events free their keys too
+        Recorder small = new Recorder(0);
+        mBus.stream(BeaconEvent.TELEMETRY, DIRECT).buffer(4).conflate().subscribe(small);
+        for (int i = 0; i < 100; i++) {
+            mBus.publish(event(BeaconEvent.TELEMETRY, i, i));
+        }
+        assertEquals(4, mBus.getTrackedCount());
+        small.subscription.cancel();
+
+        Recorder sampled = new Recorder(Long.MAX_VALUE);
+        mBus.stream(BeaconEvent.TELEMETRY, DIRECT).sample(1000).subscribe(sampled);
+        for (int i = 0; i < 100; i++) {
+            mBus.publish(event(BeaconEvent.TELEMETRY, i, i));
+        }
+        //Still within their intervals
+        mBus.publish(event(BeaconEvent.TELEMETRY, 0, 500));
+        assertEquals(100, mBus.getTrackedCount());
+        assertEquals(100, sampled.events.size());
+        mBus.publish(event(BeaconEvent.TELEMETRY, 0, 5000));
+        assertEquals(1, mBus.getTrackedCount());
+        assertEquals(101, sampled.events.size());
+    }
+
+    @Test
+    public void failsOnNonPositiveRequests() {
+        Recorder recorder = new Recorder(0);
+        mBus.stream(BeaconEvent.ALL, DIRECT).subscribe(recorder);
+        assertNull(recorder.error);
+        recorder.subscription.request(0);
+        assertTrue(recorder.error instanceof IllegalArgumentException);
+        assertEquals(0, mBus.getSubscriberCount());
+    }
+
+    /** Events cross to the consumer's executor in batches, not a task each */
+    @Test
+    public void deliversInBatches() {
+        QueuedExecutor executor = new QueuedExecutor();
+        Recorder recorder = new Recorder(Long.MAX_VALUE);
+        mBus.stream(BeaconEvent.ALL, executor).buffer(1024).subscribe(recorder);
+        executor.runAll();
+        executor.executed = 0;
+        for (int i = 0; i < 200; i++) {
+            mBus.publish(event(BeaconEvent.UPDATED, i, 0));
+        }
+        assertEquals(1, executor.tasks.size());
+        executor.runAll();
+        assertEquals(200, recorder.events.size());
+        assertEquals("updated 199", recorder.events.get(199));
+        //A task yields after each batch of 64
+        assertEquals(4, executor.executed);
+    }
+
+    /**
+     * A stalled subscriber neither slows the publisher nor the other
+     * subscribers, and each subscriber sees every publisher's events in
+     * order.
+     */
+    @Test
+    public void slowSubscribersDoNotStallOthers() throws Exception {
+        ExecutorService consumers = Executors.newFixedThreadPool(3);
+        final CountDownLatch stall = new CountDownLatch(1);
+        BeaconFlow.Subscriber<BeaconEvent> stalled = new Recorder(Long.MAX_VALUE) {
+            @Override
+            public void onNext(BeaconEvent event) {
+                try {
+                    stall.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        mBus.stream(BeaconEvent.ALL, consumers).buffer(16).subscribe(stalled);
+        Recorder[] recorders = {new Recorder(Long.MAX_VALUE), new Recorder(Long.MAX_VALUE)};
+        for (Recorder recorder : recorders) {
+            mBus.stream(BeaconEvent.ALL, consumers).buffer(1 << 16).subscribe(recorder);
+        }
+
+        Thread[] publishers = new Thread[2];
+        for (int p = 0; p < publishers.length; p++) {
+            final int publisher = p;
+            publishers[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 20000; i++) {
+                        mBus.publish(event(BeaconEvent.UPDATED, publisher, i + 1));
+                    }
+                }
+            });
+            publishers[p].start();
+        }
+        for (Thread publisher : publishers) {
+            publisher.join(10000);
+            assertFalse(publisher.isAlive());
+        }
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while ((recorders[0].events.size() < 40000 || recorders[1].events.size() < 40000)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        stall.countDown();
+        consumers.shutdown();
+        assertTrue(consumers.awaitTermination(5, TimeUnit.SECONDS));
+
+        for (Recorder recorder : recorders) {
+            assertEquals(40000, recorder.events.size());
+            long[] last = new long[2];
+            for (String event : recorder.events) {
+                String[] parts = event.split("[ @]");
+                int publisher = Integer.parseInt(parts[1]);
+                long sequence = Long.parseLong(parts[2]);
+                assertEquals(event, last[publisher] + 1, sequence);
+                last[publisher] = sequence;
+            }
+        }
+        assertTrue(mBus.toString(), mBus.toString().contains("40000 published"));
+    }
+
+    @Test
+    public void publishesWithoutAllocating() {
+        assumeTrue(Allocations.isSupported());
+        final int[] received = new int[1];
+        BeaconFlow.Subscriber<BeaconEvent> counter = new Recorder(Long.MAX_VALUE) {
+            @Override
+            public void onNext(BeaconEvent event) {
+                received[0]++;
+            }
+        };
+        mBus.stream(BeaconEvent.UPDATED, DIRECT).conflate().subscribe(counter);
+        final BeaconEvent[] events = new BeaconEvent[16];
+        for (int i = 0; i < events.length; i++) {
+            events[i] = event(BeaconEvent.UPDATED, i, i);
+        }
+        final int[] next = new int[1];
+        long allocated = Allocations.measure(new Runnable() {
+            @Override
+            public void run() {
+                mBus.publish(events[next[0]++ & 15]);
+            }
+        }, 1000000);
+        assertTrue("Allocated " + allocated + " bytes", allocated < 100000);
+        assertEquals(next[0], received[0]);
+    }
+
+    private static BeaconEvent event(int type, long idLow, long timestamp) {
+        return new BeaconEvent(type, ScanTraces.NAMESPACE_HIGH, idLow, timestamp, -60, 1, null);
+    }
+}
@@ -0,0 +1,164 @@
+package com.example.android.nearbybeacons;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BeaconRegistryTest {
+
+    @Test
+    public void addsAndFinds() {
+        BeaconRegistry registry = new BeaconRegistry();
+        int a = registry.add(1, 2);
+        int b = registry.add(1, 3);
+        assertTrue(a != b);
+        assertEquals(BeaconRegistry.NOT_FOUND, registry.add(1, 2));
+        assertEquals(a, registry.find(1, 2));
+        assertEquals(b, registry.find(1, 3));
+        assertEquals(BeaconRegistry.NOT_FOUND, registry.find(2, 1));
+        assertEquals(1, registry.getKeyHigh(a));
+        assertEquals(3, registry.getKeyLow(b));
+        assertEquals(2, registry.size());
+        assertEquals(2, registry.getUnreadCount());
+    }
+
+    @Test
+    public void addressesAreKeys() {
+        BeaconRegistry registry = new BeaconRegistry();
+        int handle = registry.addAddress(0xAABBCCDDEEFFL);
+        assertEquals(handle, registry.findAddress(0xAABBCCDDEEFFL));
+        assertEquals(BeaconRegistry.NOT_FOUND, registry.findAddress(0xAABBCCDDEEFEL));
+    }
+
+    @Test
+    public void handlesStayStableAndAreReused() {
+        BeaconRegistry registry = new BeaconRegistry(4);
+        int[] handles = new int[1000];
+        for (int i = 0; i < handles.length; i++) {
+            handles[i] = registry.add(7, i);
+        }
+        //Growth keeps every handle
+        for (int i = 0; i < handles.length; i++) {
+            assertEquals(handles[i], registry.find(7, i));
+        }
+        assertEquals(1000, registry.getHandleLimit());
+
+        registry.remove(handles[10]);
+        assertFalse(registry.isLive(handles[10]));
+        assertEquals(BeaconRegistry.NOT_FOUND, registry.find(7, 10));
+        assertEquals(handles[10], registry.add(8, 0));
+        assertEquals(1000, registry.getHandleLimit());
+    }
+
+    @Test
+    public void tracksUnread() {
+        BeaconRegistry registry = new BeaconRegistry();
+        int a = registry.add(0, 1);
+        int b = registry.add(0, 2);
+        registry.markRead(a);
+        registry.markRead(a);
+        assertEquals(1, registry.getUnreadCount());
+        assertFalse(registry.isUnread(a));
+        assertTrue(registry.isUnread(b));
+
+        registry.markAllRead();
+        assertEquals(0, registry.getUnreadCount());
+        assertFalse(registry.isUnread(b));
+        int c = registry.add(0, 3);
+        assertTrue(registry.isUnread(c));
+        assertEquals(1, registry.getUnreadCount());
+
+        registry.remove(c);
+        assertEquals(0, registry.getUnreadCount());
+        registry.remove(a);
+        assertEquals(0, registry.getUnreadCount());
+    }
+
+    @Test
+    public void clearEmptiesEverything() {
+        BeaconRegistry registry = new BeaconRegistry();
+        for (int i = 0; i < 50; i++) {
+            registry.add(i, i);
+        }
+        registry.clear();
+        assertEquals(0, registry.size());
+        assertEquals(0, registry.getUnreadCount());
+        assertEquals(0, registry.getHandleLimit());
+        assertEquals(BeaconRegistry.NOT_FOUND, registry.find(3, 3));
+        int handle = registry.add(3, 3);
+        assertTrue(registry.isUnread(handle));
+        assertEquals(1, registry.getUnreadCount());
+    }
+
+    @Test
+    public void matchesAMapUnderRandomChurn() {
+        Random random = new Random(3);
+        BeaconRegistry registry = new BeaconRegistry();
+        //Key to handle, and the unread keys
+        Map<Long, Integer> model = new HashMap<>();
+        HashSet<Long> unread = new HashSet<>();
+        List<Long> keys = new ArrayList<>();
+
+        for (int step = 0; step < 200000; step++) {
+            //Few distinct keys in a tight range, so probes collide and deletes shift
+            long key = random.nextInt(2000);
+            int op = random.nextInt(10);
+            if (op < 5) {
+                int handle = registry.add(key >>> 4, key);
+                if (model.containsKey(key)) {
+                    assertEquals(BeaconRegistry.NOT_FOUND, handle);
+                } else {
+                    assertTrue(handle >= 0);
+                    assertFalse(model.containsValue(handle));
+                    model.put(key, handle);
+                    unread.add(key);
+                    keys.add(key);
+                }
+            } else if (op < 8) {
+                Integer handle = model.remove(key);
+                if (handle != null) {
+                    registry.remove(handle);
+                    unread.remove(key);
+                }
+            } else if (op < 9) {
+                Integer handle = model.get(key);
+                if (handle != null) {
+                    registry.markRead(handle);
+                    unread.remove(key);
+                }
+            } else if (random.nextInt(100) == 0) {
+                registry.markAllRead();
+                unread.clear();
+            }
+
+            if (step % 1000 == 0) {
+                for (long k : keys) {
+                    Integer handle = model.get(k);
+                    int found = registry.find(k >>> 4, k);
+                    assertEquals(handle != null ? (int) handle : BeaconRegistry.NOT_FOUND, found);
+                    if (handle != null) assertEquals(unread.contains(k), registry.isUnread(found));
+                }
+            }
+            assertEquals(model.size(), registry.size());
+            assertEquals(unread.size(), registry.getUnreadCount());
+        }
+    }
+
+    @Test
+    public void offersDeduplicateBySection() {
+        HashSet<OfferBeacon> offers = new HashSet<>();
+        assertTrue(offers.add(new OfferBeacon("Shoes", "10% off")));
+        assertFalse(offers.add(new OfferBeacon("Shoes", "20% off")));
+        assertTrue(offers.add(new OfferBeacon("Hats", "10% off")));
+        assertEquals(2, offers.size());
+    }
+}
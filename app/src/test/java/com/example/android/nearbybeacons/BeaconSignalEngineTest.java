@@ -0,0 +1,147 @@
+package com.example.android.nearbybeacons;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class BeaconSignalEngineTest {
+
+    private static final int TX_POWER = -20;
+    // RSSI at one meter for TX_POWER
+    private static final int ONE_METER = TX_POWER - 41;
+
+    @Test
+    public void estimatesDistanceFromFirstSample() {
+        BeaconSignalEngine engine = new BeaconSignalEngine(0.5f, 16f, 2f, 3);
+        assertTrue(engine.addSample(0, ONE_METER, TX_POWER));
+        assertEquals(ONE_METER, engine.getRssi(0), 0f);
+        assertEquals(1f, engine.getDistance(0), 0.001f);
+        assertEquals(BeaconSignalEngine.ZONE_NEAR, engine.getZone(0));
+        assertEquals(1, engine.getZoneCount(BeaconSignalEngine.ZONE_NEAR));
+        assertEquals(1, engine.getSampleCount(0));
+
+        //20dB less is ten times as far with an exponent of 2
+        assertTrue(engine.addSample(1, ONE_METER - 20, TX_POWER));
+        assertEquals(10f, engine.getDistance(1), 0.01f);
+        assertEquals(BeaconSignalEngine.ZONE_FAR, engine.getZone(1));
+        assertTrue(engine.addSample(2, ONE_METER + 10, TX_POWER));
+        assertEquals(BeaconSignalEngine.ZONE_IMMEDIATE, engine.getZone(2));
+    }
+
+    @Test
+    public void smoothsNoisyRssi() {
+        BeaconSignalEngine engine = new BeaconSignalEngine(0.05f, 36f, 2.5f, 3);
+        Random random = new Random(9);
+        double rawError = 0;
+        double smoothedError = 0;
+        for (int i = 0; i < 2000; i++) {
+            int rssi = -70 + (int) Math.round(random.nextGaussian() * 6);
+            engine.addSample(0, rssi, TX_POWER);
+            if (i >= 100) {
+                rawError += (rssi + 70) * (rssi + 70);
+                smoothedError += (engine.getRssi(0) + 70) * (engine.getRssi(0) + 70);
+            }
+        }
+        assertEquals(-70f, engine.getRssi(0), 1.5f);
+        assertTrue(smoothedError * 10 < rawError);
+    }
+
+    @Test
+    public void followsRealChanges() {
+        BeaconSignalEngine engine = new BeaconSignalEngine(0.5f, 16f, 2.5f, 1);
+        for (int i = 0; i < 50; i++) {
+            engine.addSample(0, -80, TX_POWER);
+        }
+        for (int i = 0; i < 50; i++) {
+            engine.addSample(0, -50, TX_POWER);
+        }
+        assertEquals(-50f, engine.getRssi(0), 0.5f);
+    }
+
+    @Test
+    public void debouncesZoneChanges() {
+        //Little measurement noise, so the estimate follows each sample
+        BeaconSignalEngine engine = new BeaconSignalEngine(100f, 0.001f, 2f, 3);
+        int far = ONE_METER - 20;
+        engine.addSample(0, ONE_METER, TX_POWER);
+
+        assertFalse(engine.addSample(0, far, TX_POWER));
+        assertFalse(engine.addSample(0, far, TX_POWER));
+        //A sample back in the current zone starts the count again
+        assertFalse(engine.addSample(0, ONE_METER, TX_POWER));
+        assertFalse(engine.addSample(0, far, TX_POWER));
+        assertFalse(engine.addSample(0, far, TX_POWER));
+        assertEquals(BeaconSignalEngine.ZONE_NEAR, engine.getZone(0));
+        assertTrue(engine.addSample(0, far, TX_POWER));
+        assertEquals(BeaconSignalEngine.ZONE_FAR, engine.getZone(0));
+        assertEquals(0, engine.getZoneCount(BeaconSignalEngine.ZONE_NEAR));
+        assertEquals(1, engine.getZoneCount(BeaconSignalEngine.ZONE_FAR));
+    }
+
+    @Test
+    public void resetForgetsHandle() {
+        BeaconSignalEngine engine = new BeaconSignalEngine(0.5f, 16f, 2f, 3);
+        engine.addSample(5, ONE_METER - 20, TX_POWER);
+        engine.reset(5);
+        assertEquals(0, engine.getSampleCount(5));
+        assertEquals(BeaconSignalEngine.ZONE_UNKNOWN, engine.getZone(5));
+        assertEquals(0, engine.getZoneCount(BeaconSignalEngine.ZONE_FAR));
+
+        //A reused handle starts from its first sample, without debouncing
+        assertTrue(engine.addSample(5, ONE_METER + 10, TX_POWER));
+        assertEquals(ONE_METER + 10, engine.getRssi(5), 0f);
+        assertEquals(BeaconSignalEngine.ZONE_IMMEDIATE, engine.getZone(5));
+
+        //Handles never seen are unknown
+        engine.reset(100000);
+        assertEquals(BeaconSignalEngine.ZONE_UNKNOWN, engine.getZone(100000));
+        assertEquals(0, engine.getSampleCount(100000));
+    }
+
+    @Test
+    public void zoneCountsMatchZones() {
+        BeaconSignalEngine engine = new BeaconSignalEngine(2f, 4f, 2.5f, 2);
+        Random random = new Random(3);
+        int beacons = 500;
+        for (int i = 0; i < 200000; i++) {
+            int handle = random.nextInt(beacons);
+            if (random.nextInt(100) == 0) {
+                engine.reset(handle);
+            } else {
+                engine.addSample(handle, -40 - random.nextInt(60), TX_POWER);
+            }
+        }
+
+        int[] counts = new int[BeaconSignalEngine.ZONE_FAR + 1];
+        for (int handle = 0; handle < beacons; handle++) {
+            counts[engine.getZone(handle)]++;
+        }
+        for (int zone = BeaconSignalEngine.ZONE_IMMEDIATE; zone <= BeaconSignalEngine.ZONE_FAR;
+             zone++) {
+            assertEquals(BeaconSignalEngine.getZoneName(zone), counts[zone],
+                    engine.getZoneCount(zone));
+        }
+    }
+
+    @Test
+    public void addsSamplesWithoutAllocating() {
+        assumeTrue(Allocations.isSupported());
+        final BeaconSignalEngine engine = new BeaconSignalEngine(0.5f, 16f, 2.5f, 3);
+        final int beacons = 1000;
+        engine.addSample(beacons - 1, -60, TX_POWER);
+        final int[] next = new int[1];
+        long allocated = Allocations.measure(new Runnable() {
+            @Override
+            public void run() {
+                int i = next[0]++;
+                engine.addSample(i % beacons, -45 - (i * 7) % 50, TX_POWER);
+            }
+        }, 1000000);
+        assertTrue("Allocated " + allocated + " bytes", allocated < 100000);
+    }
+}
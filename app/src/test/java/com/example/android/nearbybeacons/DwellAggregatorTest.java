@@ -0,0 +1,248 @@
+package com.example.android.nearbybeacons;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class DwellAggregatorTest {
+
+    private static final long MINUTE = 60 * 1000;
+    private static final long GAP = 10000;
+
+    /* Everything the aggregator reported, as strings, and the medians separately */
+    private static class Recorder implements DwellAggregator.Listener {
+        final List<String> events = new ArrayList<>();
+        final List<Long> medians = new ArrayList<>();
+
+        @Override
+        public void onSessionEnd(int handle, long start, long end) {
+            events.add("end " + handle + " " + start + "-" + end);
+        }
+
+        @Override
+        public void onWindow(int handle, long windowStart, int visits, int sightings) {
+            events.add("window " + handle + " @" + windowStart + " " + visits + "/" + sightings);
+        }
+
+        @Override
+        public void onWindowSummary(long windowStart, int visits, int activeBeacons,
+                                    long medianDwell) {
+            events.add("summary @" + windowStart + " " + visits + "/" + activeBeacons);
+            medians.add(medianDwell);
+        }
+
+        @Override
+        public void onReleased(int handle) {
+            events.add("released " + handle);
+        }
+    }
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final Recorder mRecorder = new Recorder();
+    private final DwellAggregator mAggregator = new DwellAggregator(GAP, MINUTE, 3, mRecorder);
+
+    @Test
+    public void endsVisitsAfterTheGap() {
+        mAggregator.onSighting(0, 1000);
+        mAggregator.onSighting(0, 2000);
+        mAggregator.onSighting(0, 3000);
+        mAggregator.advance(3000 + GAP - 2000);
+        assertTrue(mAggregator.isInSession(0));
+
+        mAggregator.advance(3000 + 2 * GAP);
+        assertFalse(mAggregator.isInSession(0));
+        assertEquals(Arrays.asList("end 0 1000-3000"), mRecorder.events);
+
+        mAggregator.onSighting(0, 30000);
+        mAggregator.onSighting(0, 34000);
+        mAggregator.onLost(0, 35000);
+        assertEquals("end 0 30000-34000", mRecorder.events.get(1));
+        assertEquals(2, mAggregator.getSessionCount(0));
+        assertEquals(2, mAggregator.getCompletedSessionCount());
+        assertEquals(4000, mAggregator.getDwellPercentile(0, 100), 4000 * 0.07);
+        assertEquals(2000, mAggregator.getDwellPercentile(0), 2000 * 0.07);
+        //Nothing for handles never seen
+        assertEquals(0, mAggregator.getSessionCount(7));
+        assertEquals(0, mAggregator.getDwellPercentile(7, 50));
+        mAggregator.onLost(7, 35000);
+    }
+
+    @Test
+    public void reportsTumblingWindows() {
+        mAggregator.onSighting(0, 0);
+        mAggregator.onSighting(0, 5000);
+        mAggregator.onSighting(1, 30000);
+        mAggregator.onSighting(1, 32000);
+        mAggregator.onSighting(0, 45000);
+        mAggregator.advance(MINUTE);
+
+        assertEquals(Arrays.asList(
+                "end 0 0-5000",
+                "end 1 30000-32000",
+                "end 0 45000-45000",
+                "window 0 @0 2/3",
+                "window 1 @0 1/2",
+                "summary @0 3/2"), mRecorder.events);
+        assertEquals(2000, mRecorder.medians.get(0), 2000 * 0.07);
+        assertEquals(2, mAggregator.getSessionCount(0));
+        assertEquals(0, mAggregator.getWindowVisits(0));
+    }
+
+    /** A visit that runs over a window boundary counts where it started, ends where it ends */
+    @Test
+    public void splitsVisitsAcrossWindows() {
+        mAggregator.onSighting(0, MINUTE - 2000);
+        mAggregator.onSighting(0, MINUTE + 3000);
+        mAggregator.advance(2 * MINUTE);
+        assertEquals(Arrays.asList(
+                "window 0 @0 1/1",
+                "summary @0 1/1",
+                "end 0 58000-63000",
+                "window 0 @60000 0/1",
+                "summary @60000 0/1"), mRecorder.events);
+        assertEquals(5000, mRecorder.medians.get(1), 5000 * 0.07);
+    }
+
+    @Test
+    public void skipsEmptyWindows() {
+        mAggregator.onSighting(0, 0);
+        mAggregator.advance(MINUTE);
+        mAggregator.onSighting(0, 10 * MINUTE);
+        mAggregator.flush();
+        assertEquals(Arrays.asList(
+                "end 0 0-0",
+                "window 0 @0 1/1",
+                "summary @0 1/1",
+                "released 0",
+                "end 0 600000-600000",
+                "window 0 @600000 1/1",
+                "summary @600000 1/1"), mRecorder.events);
+    }
+
+    @Test
+    public void countsVisitsOverSlidingWindows() {
+        for (int window = 0; window < 5; window++) {
+            mAggregator.onSighting(0, window * MINUTE + 1000);
+            mAggregator.onSighting(0, window * MINUTE + 2000);
+            mAggregator.onSighting(1, window * MINUTE + 1000);
+            //A second visit to one of them
+            mAggregator.onSighting(1, window * MINUTE + 1000 + 2 * GAP);
+        }
+        assertEquals(1, mAggregator.getWindowVisits(0));
+        assertEquals(2, mAggregator.getWindowVisits(1));
+        assertEquals(3, mAggregator.getSlidingVisits(0));
+        assertEquals(6, mAggregator.getSlidingVisits(1));
+        assertEquals(5, mAggregator.getSessionCount(0));
+        assertEquals(10, mAggregator.getSessionCount(1));
+    }
+
+    @Test
+    public void releasesBeaconsOnceIdle() {
+        mAggregator.onSighting(0, 0);
+        mAggregator.onSighting(1, 0);
+        for (int window = 1; window < 4; window++) {
+            mAggregator.onSighting(1, window * MINUTE);
+        }
+        //Beacon 0 left in the first window, which has now left the sliding count
+        assertTrue(mRecorder.events.contains("released 0"));
+        assertFalse(mRecorder.events.contains("released 1"));
+        assertEquals(0, mAggregator.getSessionCount(0));
+        assertEquals(0, mAggregator.getSlidingVisits(0));
+        assertEquals(4, mAggregator.getSessionCount(1));
+
+        //Its handle is free for another beacon
+        mAggregator.onSighting(0, 4 * MINUTE);
+        assertEquals(1, mAggregator.getSessionCount(0));
+    }
+
+    @Test
+    public void doesNotAllocatePerSighting() {
+        assumeTrue(Allocations.isSupported());
+        final DwellAggregator aggregator = new DwellAggregator(GAP, MINUTE, 5, null);
+        final long[] now = new long[1];
+        final int[] next = new int[1];
+        Runnable sighting = new Runnable() {
+            @Override
+            public void run() {
+                //64 beacons, each visiting for about a minute every couple of minutes
+                int beacon = next[0]++ & 63;
+                now[0] += 50;
+                if ((now[0] / MINUTE + beacon) % 2 == 0) {
+                    aggregator.onSighting(beacon, now[0]);
+                } else {
+                    aggregator.advance(now[0]);
+                }
+            }
+        };
+        for (int i = 0; i < 100000; i++) {
+            sighting.run();
+        }
+        long allocated = Allocations.measure(sighting, 1000000);
+        assertTrue("Allocated " + allocated + " bytes", allocated < 100000);
+    }
+
+    /**
+     * An hour of a shop's journal: shoppers lingering by a few beacons,
+     * with batched results arriving slightly out of order, replayed far
+     * faster than it was recorded.
+     */
+    @Test
+    public void replaysAJournal() throws IOException {
+        SightingJournal journal = new SightingJournal(mFolder.newFolder("journal"), 4096);
+        int sightings = 0;
+        int visits = 0;
+        for (long now = 0; now < 60 * MINUTE; now += 1000) {
+            for (int beacon = 0; beacon < 8; beacon++) {
+                //Someone is near each beacon for five minutes in every ten
+                if ((now / MINUTE + beacon) % 10 < 5) {
+                    journal.append(now, ScanTraces.NAMESPACE_HIGH, ScanTraces.idLow(beacon),
+                            -60, -20);
+                    sightings++;
+                    if (now == 0 || (now / MINUTE + beacon) % 10 == 0 && now % MINUTE == 0) {
+                        visits++;
+                    }
+                }
+            }
+        }
+        //A late batched result, a one-sighting visit to a beacon that was quiet
+        journal.append(60 * MINUTE - 5000, ScanTraces.NAMESPACE_HIGH, ScanTraces.idLow(0),
+                -60, -20);
+        visits++;
+        journal.commit();
+
+        Recorder recorder = new Recorder();
+        DwellAggregator aggregator = new DwellAggregator(GAP, MINUTE, 5, recorder);
+        DwellReplay replay = new DwellReplay(aggregator);
+        replay.run(journal);
+        journal.close();
+
+        assertEquals(sightings + 1, replay.getEventCount());
+        assertTrue(replay.toString(), replay.toString().contains(" 1 reordered,"));
+        BeaconRegistry beacons = replay.getBeacons();
+        int handle = beacons.find(ScanTraces.NAMESPACE_HIGH, ScanTraces.idLow(3));
+        assertTrue(handle != BeaconRegistry.NOT_FOUND);
+        assertEquals(visits, aggregator.getCompletedSessionCount());
+        //Most visits are whole: five minutes less the sighting interval
+        assertEquals(5 * MINUTE - 1000, aggregator.getDwellPercentile(50),
+                5 * MINUTE * 0.07);
+        int summaries = 0;
+        for (String event : recorder.events) {
+            if (event.startsWith("summary")) summaries++;
+        }
+        assertEquals(60, summaries);
+        //An hour of trace in well under a second
+        assertTrue(replay.toString(), replay.getEventRate() > sightings);
+    }
+}
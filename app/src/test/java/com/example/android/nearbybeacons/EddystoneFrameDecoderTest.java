@@ -0,0 +1,159 @@
+package com.example.android.nearbybeacons;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class EddystoneFrameDecoderTest {
+
+    private final EddystoneFrame mFrame = new EddystoneFrame();
+
+    @Test
+    public void decodesUid() {
+        byte[] record = ScanTraces.uidRecord(0x0102030405060708L, 0x090A0B0C0D0E0F10L, -21);
+        assertTrue(EddystoneFrameDecoder.decodeScanRecord(record, mFrame));
+        assertEquals(EddystoneFrame.TYPE_UID, mFrame.type);
+        assertEquals(-21, mFrame.txPower);
+        assertEquals(0x0102030405060708L, mFrame.idHigh);
+        assertEquals(0x090A0B0C0D0E0F10L, mFrame.idLow);
+        assertEquals(0x090A, mFrame.getNamespaceLow());
+        assertEquals(0x0B0C0D0E0F10L, mFrame.getInstance());
+        assertEquals("UID[0102030405060708090a:0b0c0d0e0f10]", mFrame.toString());
+    }
+
+    @Test
+    public void decodesUrl() {
+        //https://www.example.com/
+        byte[] encoded = {'e', 'x', 'a', 'm', 'p', 'l', 'e', 0x00};
+        assertTrue(EddystoneFrameDecoder.decodeScanRecord(
+                ScanTraces.urlRecord(1, encoded, -18), mFrame));
+        assertEquals(EddystoneFrame.TYPE_URL, mFrame.type);
+        assertEquals(-18, mFrame.txPower);
+        assertEquals(1, mFrame.urlScheme);
+        assertEquals(encoded.length, mFrame.urlLength);
+        assertEquals("https://www.example.com/",
+                UrlFrameEngine.expand(mFrame.urlScheme, mFrame.url, mFrame.urlLength));
+    }
+
+    @Test
+    public void decodesTlm() {
+        assertTrue(EddystoneFrameDecoder.decodeScanRecord(
+                ScanTraces.tlmRecord(2950, 0xFE80, 0xFFFFFFF0L, 123456), mFrame));
+        assertEquals(EddystoneFrame.TYPE_TLM, mFrame.type);
+        assertEquals(0, mFrame.tlmVersion);
+        assertEquals(2950, mFrame.batteryMillivolts);
+        //-1.5C in signed 8.8 fixed point
+        assertEquals(-1.5f, mFrame.getTemperatureCelsius(), 0f);
+        assertEquals(0xFFFFFFF0L, mFrame.advertisingCount);
+        assertEquals(123456, mFrame.uptimeTenths);
+    }
+
+    @Test
+    public void keepsUnsupportedTemperature() {
+        assertTrue(EddystoneFrameDecoder.decodeScanRecord(
+                ScanTraces.tlmRecord(3000, EddystoneFrame.TEMPERATURE_UNSUPPORTED, 0, 0), mFrame));
+        assertEquals(EddystoneFrame.TEMPERATURE_UNSUPPORTED, mFrame.temperature);
+    }
+
+    @Test
+    public void decodesEid() {
+        assertTrue(EddystoneFrameDecoder.decodeScanRecord(
+                ScanTraces.eidRecord(0x8877665544332211L, -30), mFrame));
+        assertEquals(EddystoneFrame.TYPE_EID, mFrame.type);
+        assertEquals(-30, mFrame.txPower);
+        assertEquals(0x8877665544332211L, mFrame.ephemeralId);
+    }
+
+    @Test
+    public void decodesServiceDataAlone() {
+        byte[] record = ScanTraces.uidRecord(1, 2, -20);
+        byte[] serviceData = Arrays.copyOfRange(record, 11, record.length);
+        assertTrue(EddystoneFrameDecoder.decodeServiceData(serviceData, mFrame));
+        assertEquals(1, mFrame.idHigh);
+        assertEquals(2, mFrame.idLow);
+    }
+
+    @Test
+    public void decodesRecordInReusedBuffer() {
+        byte[] record = ScanTraces.uidRecord(5, 6, -20);
+        byte[] buffer = new byte[ScanTraceWriter.MAX_RECORD_LENGTH];
+        Arrays.fill(buffer, (byte) 0x7F);
+        System.arraycopy(record, 0, buffer, 0, record.length);
+        assertTrue(EddystoneFrameDecoder.decodeScanRecord(buffer, record.length, mFrame));
+        assertEquals(6, mFrame.idLow);
+    }
+
+    @Test
+    public void rejectsShortFrames() {
+        byte[] record = ScanTraces.uidRecord(1, 2, -20);
+        //Shorten the service data field by one byte
+        byte[] truncated = Arrays.copyOf(record, record.length - 1);
+        truncated[7]--;
+        assertFalse(EddystoneFrameDecoder.decodeScanRecord(truncated, mFrame));
+
+        byte[] eid = ScanTraces.eidRecord(1, -20);
+        byte[] shortEid = Arrays.copyOf(eid, eid.length - 2);
+        shortEid[7] -= 2;
+        assertFalse(EddystoneFrameDecoder.decodeScanRecord(shortEid, mFrame));
+    }
+
+    @Test
+    public void rejectsTruncatedStructures() {
+        byte[] record = ScanTraces.uidRecord(1, 2, -20);
+        //The length byte still claims the full field
+        assertFalse(EddystoneFrameDecoder.decodeScanRecord(
+                Arrays.copyOf(record, record.length - 1), mFrame));
+        assertFalse(EddystoneFrameDecoder.decodeScanRecord(record, 5, mFrame));
+    }
+
+    @Test
+    public void ignoresOtherAdvertisements() {
+        assertFalse(EddystoneFrameDecoder.decodeScanRecord(null, mFrame));
+        assertFalse(EddystoneFrameDecoder.decodeScanRecord(new byte[0], mFrame));
+        //Padding only
+        assertFalse(EddystoneFrameDecoder.decodeScanRecord(new byte[31], mFrame));
+        //Service data for another uuid
+        byte[] other = ScanTraces.uidRecord(1, 2, -20);
+        other[9] = 0x0F;
+        assertFalse(EddystoneFrameDecoder.decodeScanRecord(other, mFrame));
+        //Unknown frame type
+        byte[] unknown = ScanTraces.uidRecord(1, 2, -20);
+        unknown[11] = 0x40;
+        assertFalse(EddystoneFrameDecoder.decodeScanRecord(unknown, mFrame));
+    }
+
+    @Test
+    public void truncatesLongUrls() {
+        byte[] encoded = new byte[25];
+        Arrays.fill(encoded, (byte) 'a');
+        assertTrue(EddystoneFrameDecoder.decodeScanRecord(
+                ScanTraces.urlRecord(0, encoded, -20), mFrame));
+        assertEquals(mFrame.url.length, mFrame.urlLength);
+    }
+
+    @Test
+    public void decodesWithoutAllocating() {
+        assumeTrue(Allocations.isSupported());
+        final byte[][] records = {
+                ScanTraces.uidRecord(1, 2, -20),
+                ScanTraces.tlmRecord(3000, 0x1780, 1, 2),
+                ScanTraces.urlRecord(2, new byte[]{'a', 0x07}, -20),
+                ScanTraces.eidRecord(3, -20)
+        };
+        final int[] decoded = new int[1];
+        long allocated = Allocations.measure(new Runnable() {
+            @Override
+            public void run() {
+                for (byte[] record : records) {
+                    if (EddystoneFrameDecoder.decodeScanRecord(record, mFrame)) decoded[0]++;
+                }
+            }
+        }, 100000);
+        assertTrue("Allocated " + allocated + " bytes", allocated < 100000);
+    }
+}
@@ -0,0 +1,193 @@
+package com.example.android.nearbybeacons;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class EidResolverTest {
+
+    private static final long NOW = 1700000000000L;
+    private static final int K = 10;
+
+    private final EidResolver mResolver = new EidResolver(null);
+
+    @Test
+    public void rejectsInvalidRegistrations() {
+        try {
+            mResolver.register(new byte[15], K, 0, 1, 1);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            mResolver.register(key(1), 16, 0, 1, 1);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        String[] specs = {
+                "0123456789abcdef0123456789abcdef/10/0",
+                "0123456789abcdef0123456789abcde/10/0/d89bed6e130ee5cf1ba1000000000001",
+                "0123456789abcdef0123456789abcdeg/10/0/d89bed6e130ee5cf1ba1000000000001",
+                "0123456789abcdef0123456789abcdef/x/0/d89bed6e130ee5cf1ba1000000000001",
+                "0123456789abcdef0123456789abcdef/10/0/d89bed6e130ee5cf1ba100000000000z"
+        };
+        for (String spec : specs) {
+            try {
+                mResolver.register(spec);
+                fail(spec);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        assertEquals(0, mResolver.size());
+    }
+
+    @Test
+    public void resolvesTheCurrentAndNeighbouringEpochs() throws Exception {
+        int handle = mResolver.register(key(1), K, 0, ScanTraces.NAMESPACE_HIGH, 7);
+        assertEquals(EidResolver.NOT_FOUND, mResolver.resolve(eid(key(1), K, NOW / 1000)));
+        assertEquals(3, mResolver.refresh(NOW));
+
+        long epoch = (NOW / 1000) >>> K;
+        for (long e = epoch - 1; e <= epoch + 1; e++) {
+            assertEquals(handle, mResolver.resolve(eid(key(1), K, e << K)));
+        }
+        assertEquals(EidResolver.NOT_FOUND, mResolver.resolve(eid(key(1), K, (epoch - 2) << K)));
+        assertEquals(EidResolver.NOT_FOUND, mResolver.resolve(eid(key(1), K, (epoch + 2) << K)));
+        assertEquals(ScanTraces.NAMESPACE_HIGH, mResolver.getIdHigh(handle));
+        assertEquals(7, mResolver.getIdLow(handle));
+        assertEquals("EidResolver[1 beacons, 3 EIDs, 3 computed, 3 resolved, 3 unresolved]",
+                mResolver.toString());
+    }
+
+    @Test
+    public void registersFromStrings() throws Exception {
+        int handle = mResolver.register(
+                "0123456789abcdef0123456789ABCDEF/8/-3600/d89bed6e130ee5cf1ba1000000000001");
+        mResolver.refresh(NOW);
+        byte[] key = {
+                0x01, 0x23, 0x45, 0x67, (byte) 0x89, (byte) 0xab, (byte) 0xcd, (byte) 0xef,
+                0x01, 0x23, 0x45, 0x67, (byte) 0x89, (byte) 0xab, (byte) 0xcd, (byte) 0xef
+        };
+        //The beacon's clock is an hour behind
+        assertEquals(handle, mResolver.resolve(eid(key, 8, NOW / 1000 - 3600)));
+        assertEquals(EidResolver.NOT_FOUND, mResolver.resolve(eid(key, 8, NOW / 1000)));
+        assertEquals(0xd89bed6e130ee5cfL, mResolver.getIdHigh(handle));
+        assertEquals(0x1ba1000000000001L, mResolver.getIdLow(handle));
+    }
+
+    /** Each rollover computes one new EID; a long gap computes all three */
+    @Test
+    public void refreshesIncrementallyAsEpochsRollOver() throws Exception {
+        int handle = mResolver.register(key(1), K, 0, 0, 1);
+        mResolver.refresh(NOW);
+        assertEquals(0, mResolver.refresh(NOW));
+
+        long epoch = (NOW / 1000) >>> K;
+        long rollover = ((epoch + 1) << K) * 1000;
+        assertEquals(0, mResolver.refresh(rollover - 1));
+        assertEquals(1, mResolver.refresh(rollover));
+        assertEquals(EidResolver.NOT_FOUND, mResolver.resolve(eid(key(1), K, (epoch - 1) << K)));
+        for (long e = epoch; e <= epoch + 2; e++) {
+            assertEquals(handle, mResolver.resolve(eid(key(1), K, e << K)));
+        }
+
+        long later = rollover + (10 << K) * 1000L;
+        assertEquals(3, mResolver.refresh(later));
+        assertEquals(handle, mResolver.resolve(eid(key(1), K, later / 1000)));
+        assertEquals(EidResolver.NOT_FOUND, mResolver.resolve(eid(key(1), K, epoch << K)));
+        assertTrue(mResolver.toString(), mResolver.toString().contains(" 3 EIDs"));
+    }
+
+    @Test
+    public void reRegisteringReplacesKeys() throws Exception {
+        int handle = mResolver.register(key(1), K, 0, 0, 1);
+        mResolver.refresh(NOW);
+        assertEquals(handle, mResolver.register(key(2), K, 0, 0, 1));
+        mResolver.refresh(NOW);
+        assertEquals(EidResolver.NOT_FOUND, mResolver.resolve(eid(key(1), K, NOW / 1000)));
+        assertEquals(handle, mResolver.resolve(eid(key(2), K, NOW / 1000)));
+        assertEquals(1, mResolver.size());
+
+        mResolver.unregister(handle);
+        assertEquals(EidResolver.NOT_FOUND, mResolver.resolve(eid(key(2), K, NOW / 1000)));
+        assertEquals(0, mResolver.size());
+        //Its pending rollover is dropped
+        assertEquals(0, mResolver.refresh(NOW + (1000L << K)));
+    }
+
+    /**
+     * A fleet of mixed rotation rates and clock offsets, computed in
+     * parallel and through many rollovers, resolves exactly as the
+     * specification computes it.
+     */
+    @Test
+    public void resolvesAFleetInParallel() throws Exception {
+        EidResolver resolver = new EidResolver(new ForkJoinPool(4));
+        Random random = new Random(23);
+        int beacons = 2000;
+        int[] exponents = new int[beacons];
+        long[] offsets = new long[beacons];
+        for (int i = 0; i < beacons; i++) {
+            exponents[i] = 4 + random.nextInt(8);
+            offsets[i] = random.nextInt(100000) - 50000;
+            assertEquals(i, resolver.register(key(i), exponents[i], offsets[i], 0, i));
+        }
+        assertEquals(beacons * 3, resolver.refresh(NOW));
+
+        for (long now = NOW; now < NOW + 3600 * 1000; now += 60 * 1000) {
+            resolver.refresh(now);
+            for (int n = 0; n < 100; n++) {
+                int i = random.nextInt(beacons);
+                long beaconTime = now / 1000 + offsets[i];
+                assertEquals(i, resolver.resolve(eid(key(i), exponents[i], beaconTime)));
+            }
+        }
+        assertTrue(resolver.toString(), resolver.toString().contains(beacons * 3 + " EIDs"));
+    }
+
+    /** The 100k beacon fleet builds and resolves, all three epochs each */
+    @Test
+    public void scalesToAHundredThousandBeacons() {
+        EidResolver resolver = new EidResolver(new ForkJoinPool());
+        int beacons = 100000;
+        for (int i = 0; i < beacons; i++) {
+            resolver.register(key(i), K, 0, 0, i);
+        }
+        assertEquals(beacons * 3, resolver.refresh(NOW));
+        assertEquals(beacons, resolver.size());
+        assertTrue(resolver.toString(), resolver.toString().contains(beacons * 3 + " EIDs"));
+        assertEquals(EidResolver.NOT_FOUND, resolver.resolve(0x0123456789abcdefL));
+    }
+
+    @Test
+    public void resolvesWithoutAllocating() throws Exception {
+        assumeTrue(Allocations.isSupported());
+        for (int i = 0; i < 1000; i++) {
+            mResolver.register(key(i), K, 0, 0, i);
+        }
+        mResolver.refresh(NOW);
+        final long eid = eid(key(500), K, NOW / 1000);
+        long allocated = Allocations.measure(new Runnable() {
+            @Override
+            public void run() {
+                mResolver.resolve(eid);
+                mResolver.resolve(eid + 1);
+            }
+        }, 1000000);
+        assertTrue("Allocated " + allocated + " bytes", allocated < 100000);
+    }
+
+    private static byte[] key(int seed) {
+        return ScanTraces.identityKey(seed);
+    }
+
+    private static long eid(byte[] identityKey, int exponent, long beaconTime)
+            throws Exception {
+        return ScanTraces.eid(identityKey, exponent, beaconTime);
+    }
+}
@@ -0,0 +1,185 @@
+package com.example.android.nearbybeacons;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/** All times here are from a virtual clock, in milliseconds */
+public class ExpiryWheelTest {
+
+    /* Handles reported lost, in order */
+    private static class Lost implements ExpiryWheel.Listener {
+        final List<Integer> handles = new ArrayList<>();
+
+        @Override
+        public void onLost(int handle) {
+            handles.add(handle);
+        }
+    }
+
+    private final Lost mLost = new Lost();
+
+    @Test
+    public void reportsAfterGracePeriod() {
+        ExpiryWheel wheel = new ExpiryWheel(100, 8, 1000);
+        wheel.touch(1, 0);
+        wheel.touch(2, 450);
+        assertEquals(2, wheel.size());
+
+        assertEquals(0, wheel.advance(999, mLost));
+        assertEquals(1, wheel.advance(1000, mLost));
+        assertEquals("[1]", mLost.handles.toString());
+        assertFalse(wheel.isTracked(1));
+        assertTrue(wheel.isTracked(2));
+
+        //Reported on the first tick at or after its deadline
+        assertEquals(0, wheel.advance(1400, mLost));
+        assertEquals(1, wheel.advance(1500, mLost));
+        assertEquals(0, wheel.size());
+        //Only once
+        assertEquals(0, wheel.advance(5000, mLost));
+        assertEquals("[1, 2]", mLost.handles.toString());
+    }
+
+    @Test
+    public void sightingsPushDeadlineBack() {
+        ExpiryWheel wheel = new ExpiryWheel(100, 8, 1000);
+        for (long now = 0; now <= 10000; now += 500) {
+            wheel.touch(3, now);
+            assertEquals(0, wheel.advance(now, mLost));
+        }
+        assertEquals(0, wheel.advance(10999, mLost));
+        assertEquals(1, wheel.advance(11000, mLost));
+    }
+
+    @Test
+    public void honorsGracePerBeacon() {
+        ExpiryWheel wheel = new ExpiryWheel(100, 16, 1000);
+        wheel.touch(1, 0, 300);
+        wheel.touch(2, 0, 5000);
+        wheel.touch(3, 0);
+        wheel.advance(300, mLost);
+        wheel.advance(1000, mLost);
+        assertEquals("[1, 3]", mLost.handles.toString());
+        wheel.advance(5000, mLost);
+        assertEquals("[1, 3, 2]", mLost.handles.toString());
+    }
+
+    @Test
+    public void keepsDeadlinesBeyondOneRevolution() {
+        //Four buckets cover 400ms; the grace period is many revolutions
+        ExpiryWheel wheel = new ExpiryWheel(100, 4, 10000);
+        wheel.touch(7, 0);
+        for (long now = 100; now < 10000; now += 100) {
+            assertEquals(0, wheel.advance(now, mLost));
+        }
+        assertEquals(1, wheel.advance(10000, mLost));
+    }
+
+    @Test
+    public void catchesUpAfterLongGaps() {
+        ExpiryWheel wheel = new ExpiryWheel(100, 8, 1000);
+        for (int handle = 0; handle < 100; handle++) {
+            wheel.touch(handle, handle * 37);
+        }
+        //Far more than one revolution at once, e.g. after the device slept
+        assertEquals(100, wheel.advance(1000000, mLost));
+        assertEquals(100, new HashSet<>(mLost.handles).size());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void ignoresClockGoingBack() {
+        ExpiryWheel wheel = new ExpiryWheel(100, 8, 1000);
+        wheel.touch(1, 5000);
+        assertEquals(0, wheel.advance(1000, mLost));
+        assertEquals(1, wheel.advance(6000, mLost));
+    }
+
+    @Test
+    public void removeStopsTracking() {
+        ExpiryWheel wheel = new ExpiryWheel(100, 8, 1000);
+        wheel.touch(1, 0);
+        wheel.touch(2, 0);
+        wheel.touch(3, 0);
+        wheel.remove(2);
+        //Never tracked
+        wheel.remove(1000);
+        assertEquals(2, wheel.size());
+        assertFalse(wheel.isTracked(2));
+        assertFalse(wheel.isTracked(1000));
+        wheel.advance(1000, mLost);
+        assertEquals(new HashSet<>(Arrays.asList(1, 3)),
+                new HashSet<>(mLost.handles));
+    }
+
+    /**
+     * Random sightings, removals and clock steps against a map of
+     * deadlines: a beacon is never reported early, and never later than
+     * the tick after its deadline.
+     */
+    @Test
+    public void matchesDeadlinesUnderChurn() {
+        long tick = 50;
+        ExpiryWheel wheel = new ExpiryWheel(tick, 16, 2000);
+        Map<Integer, Long> deadlines = new HashMap<>();
+        Random random = new Random(11);
+        long now = 0;
+        for (int step = 0; step < 100000; step++) {
+            int handle = random.nextInt(300);
+            int action = random.nextInt(10);
+            if (action < 6) {
+                long grace = random.nextInt(4) == 0 ? random.nextInt(20000) : 2000;
+                wheel.touch(handle, now, grace);
+                deadlines.put(handle, now + grace);
+            } else if (action < 7) {
+                wheel.remove(handle);
+                deadlines.remove(handle);
+            } else {
+                now += random.nextInt(10) == 0 ? random.nextInt(5000) : random.nextInt(60);
+                mLost.handles.clear();
+                wheel.advance(now, mLost);
+
+                Set<Integer> reported = new HashSet<>(mLost.handles);
+                assertEquals(mLost.handles.size(), reported.size());
+                for (int lost : reported) {
+                    assertTrue(deadlines.remove(lost) <= now);
+                }
+                for (long deadline : deadlines.values()) {
+                    assertTrue(deadline > now / tick * tick);
+                }
+            }
+            assertEquals(deadlines.size(), wheel.size());
+        }
+    }
+
+    @Test
+    public void touchAndAdvanceWithoutAllocating() {
+        assumeTrue(Allocations.isSupported());
+        final ExpiryWheel wheel = new ExpiryWheel(100, 64, 1000);
+        final int beacons = 1000;
+        wheel.touch(beacons - 1, 0);
+        final long[] now = new long[1];
+        long allocated = Allocations.measure(new Runnable() {
+            @Override
+            public void run() {
+                long time = now[0]++;
+                wheel.touch((int) (time % beacons), time);
+                wheel.advance(time, mLost);
+            }
+        }, 1000000);
+        assertTrue("Allocated " + allocated + " bytes", allocated < 100000);
+    }
+}
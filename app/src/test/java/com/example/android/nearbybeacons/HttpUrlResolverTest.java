@@ -0,0 +1,71 @@
+package com.example.android.nearbybeacons;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class HttpUrlResolverTest {
+
+    private StubServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new StubServer(new StubServer.Responder() {
+            @Override
+            public byte[] respond(byte[] body) {
+                return "content that is never downloaded".getBytes();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    @Test
+    public void returnsUrlsThatDoNotRedirect() throws IOException {
+        String url = mServer.url("/page").toString();
+        assertEquals(url, new HttpUrlResolver(3).resolve(url));
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void followsRelativeAndAbsoluteRedirects() throws IOException {
+        mServer.redirect("/short", "/middle");
+        mServer.redirect("/middle", mServer.url("/landing").toString());
+        assertEquals(mServer.url("/landing").toString(),
+                new HttpUrlResolver(3).resolve(mServer.url("/short").toString()));
+        assertEquals(3, mServer.getRequestCount());
+        //Each hop reuses the kept-alive connection
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void givesUpOnRedirectLoops() {
+        mServer.redirect("/a", "/b");
+        mServer.redirect("/b", "/a");
+        try {
+            new HttpUrlResolver(4).resolve(mServer.url("/a").toString());
+            fail();
+        } catch (IOException expected) {
+            assertEquals(5, mServer.getRequestCount());
+        }
+    }
+
+    @Test
+    public void failsOnErrorStatuses() throws IOException {
+        mServer.failNext(404, -1);
+        try {
+            new HttpUrlResolver(3).resolve(mServer.url("/gone").toString());
+            fail();
+        } catch (BeaconApiClient.HttpException e) {
+            assertEquals(404, e.statusCode);
+        }
+    }
+}
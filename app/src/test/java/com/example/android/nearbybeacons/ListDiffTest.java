@@ -0,0 +1,213 @@
+package com.example.android.nearbybeacons;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ListDiffTest {
+
+    /* Equal by id only, so a newer version of an item is equal to the older one */
+    static final class Item {
+        final int id;
+        final int version;
+
+        Item(int id, int version) {
+            this.id = id;
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Item && ((Item) o).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return id;
+        }
+
+        @Override
+        public String toString() {
+            return id + (version > 0 ? "v" + version : "");
+        }
+    }
+
+    /* Applies the edit script to a copy of the old list, counting each kind */
+    static final class Applier<T> implements ListDiff.Callback {
+        final List<T> list;
+        final List<T> target;
+        int removes;
+        int inserts;
+        int moves;
+        int changes;
+
+        Applier(List<T> from, List<T> to) {
+            list = new ArrayList<>(from);
+            target = to;
+        }
+
+        @Override
+        public void onRemove(int position) {
+            list.remove(position);
+            removes++;
+        }
+
+        @Override
+        public void onInsert(int position, int newIndex) {
+            assertTrue(position <= list.size());
+            list.add(position, target.get(newIndex));
+            inserts++;
+        }
+
+        @Override
+        public void onMove(int from, int to) {
+            list.add(to, list.remove(from));
+            moves++;
+        }
+
+        @Override
+        public void onChange(int position) {
+            list.set(position, target.get(position));
+            changes++;
+        }
+
+        /** Checks the result position for position, by instance */
+        void assertApplied() {
+            assertEquals(target.size(), list.size());
+            for (int i = 0; i < target.size(); i++) {
+                assertSame(target.get(i), list.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void insertsIntoEmptyList() {
+        Applier<Item> applier = diff(items(), items(1, 2, 3));
+        assertEquals(3, applier.inserts);
+        assertEquals(3, applier.inserts + applier.removes + applier.moves + applier.changes);
+    }
+
+    @Test
+    public void removesEverything() {
+        Applier<Item> applier = diff(items(1, 2, 3), items());
+        assertEquals(3, applier.removes);
+    }
+
+    @Test
+    public void leavesEqualListsAlone() {
+        List<Item> items = items(1, 2, 3, 4);
+        assertEquals(0, ListDiff.diff(items, new ArrayList<>(items), new Applier<>(items, items)));
+    }
+
+    @Test
+    public void movesOnlyWhatIsOutOfOrder() {
+        //Last to front is one move, not four
+        Applier<Item> applier = diff(items(1, 2, 3, 4, 5), items(5, 1, 2, 3, 4));
+        assertEquals(1, applier.moves);
+        assertEquals(0, applier.inserts + applier.removes);
+
+        //Reversal keeps one item in place
+        applier = diff(items(1, 2, 3, 4, 5), items(5, 4, 3, 2, 1));
+        assertEquals(4, applier.moves);
+    }
+
+    @Test
+    public void mixesRemovesInsertsAndMoves() {
+        Applier<Item> applier = diff(items(1, 2, 3, 4, 5, 6), items(7, 6, 2, 8, 4, 1));
+        assertEquals(2, applier.removes);
+        assertEquals(2, applier.inserts);
+        assertEquals(2, applier.moves);
+    }
+
+    @Test
+    public void reportsReplacedItemsAsChanged() {
+        List<Item> old = items(1, 2, 3);
+        List<Item> updated = new ArrayList<>(old);
+        updated.set(1, new Item(2, 1));
+        updated.add(0, updated.remove(2));
+        Applier<Item> applier = diff(old, updated);
+        assertEquals(1, applier.changes);
+        assertEquals(1, applier.moves);
+    }
+
+    /**
+     * Random edits of random lists: the script always produces the new
+     * list, and moves exactly the kept items outside a longest run
+     * already in order.
+     */
+    @Test
+    public void producesMinimalScripts() {
+        Random random = new Random(13);
+        for (int round = 0; round < 2000; round++) {
+            int size = random.nextInt(round < 1000 ? 12 : 200);
+            List<Item> old = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                old.add(new Item(i, 0));
+            }
+            Collections.shuffle(old, random);
+
+            List<Item> updated = new ArrayList<>();
+            for (Item item : old) {
+                int action = random.nextInt(10);
+                if (action == 0) continue;
+                updated.add(action == 1 ? new Item(item.id, 1) : item);
+            }
+            int inserts = random.nextInt(5);
+            for (int i = 0; i < inserts; i++) {
+                updated.add(random.nextInt(updated.size() + 1), new Item(size + i, 0));
+            }
+            int moves = updated.size() > 1 ? random.nextInt(4) : 0;
+            for (int i = 0; i < moves; i++) {
+                updated.add(random.nextInt(updated.size()),
+                        updated.remove(random.nextInt(updated.size())));
+            }
+
+            Applier<Item> applier = diff(old, updated);
+            int kept = updated.size() - applier.inserts;
+            assertEquals(old.size() - kept, applier.removes);
+            assertEquals(kept - longestInOrder(old, updated), applier.moves);
+        }
+    }
+
+    private static <T> Applier<T> diff(List<T> from, List<T> to) {
+        Applier<T> applier = new Applier<>(from, to);
+        int ops = ListDiff.diff(from, to, applier);
+        applier.assertApplied();
+        assertEquals(applier.removes + applier.inserts + applier.moves + applier.changes, ops);
+        return applier;
+    }
+
+    private static List<Item> items(int... ids) {
+        List<Item> items = new ArrayList<>();
+        for (int id : ids) {
+            items.add(new Item(id, 0));
+        }
+        return items;
+    }
+
+    /* Longest run of items in both lists that is in the same order in each, in O(n^2) */
+    private static int longestInOrder(List<Item> old, List<Item> updated) {
+        List<Integer> positions = new ArrayList<>();
+        for (Item item : old) {
+            int index = updated.indexOf(item);
+            if (index >= 0) positions.add(index);
+        }
+        int[] best = new int[positions.size()];
+        int longest = 0;
+        for (int i = 0; i < best.length; i++) {
+            best[i] = 1;
+            for (int j = 0; j < i; j++) {
+                if (positions.get(j) < positions.get(i)) best[i] = Math.max(best[i], best[j] + 1);
+            }
+            longest = Math.max(longest, best[i]);
+        }
+        return longest;
+    }
+}
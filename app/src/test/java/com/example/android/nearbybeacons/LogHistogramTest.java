@@ -0,0 +1,144 @@
+package com.example.android.nearbybeacons;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class LogHistogramTest {
+
+    @Test
+    public void countsSmallValuesExactly() {
+        LogHistogram histogram = new LogHistogram(3, 32);
+        for (int i = 0; i < 8; i++) {
+            histogram.record(i);
+        }
+        assertEquals(8, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(0));
+        assertEquals(3, histogram.getPercentile(50));
+        assertEquals(7, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void bucketsCoverEveryValueOnce() {
+        int bits = 3;
+        int buckets = LogHistogram.bucketCount(bits, 32);
+        for (int bucket = 0; bucket < buckets - 1; bucket++) {
+            long lowest = LogHistogram.lowestValueOf(bucket, bits);
+            long next = LogHistogram.lowestValueOf(bucket + 1, bits);
+            assertTrue(lowest < next);
+            assertEquals(bucket, LogHistogram.bucketOf(lowest, bits));
+            assertEquals(bucket, LogHistogram.bucketOf(next - 1, bits));
+            long middle = LogHistogram.representativeValueOf(bucket, bits);
+            assertTrue(middle >= lowest && middle < next);
+        }
+        assertEquals(buckets - 1, LogHistogram.bucketOf((1L << 32) - 1, bits));
+    }
+
+    @Test
+    public void percentilesWithinPrecision() {
+        Random random = new Random(19);
+        LogHistogram histogram = new LogHistogram(3, 32);
+        long[] values = new long[100000];
+        for (int i = 0; i < values.length; i++) {
+            //Spread over several orders of magnitude, like latencies
+            values[i] = (long) Math.exp(random.nextDouble() * 20);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (double percentile : new double[]{1, 10, 50, 90, 99, 99.9, 100}) {
+            long exact = values[(int) Math.ceil(values.length * percentile / 100) - 1];
+            long estimate = histogram.getPercentile(percentile);
+            //Half a bucket is 1/16 of the value
+            assertTrue(percentile + ": " + estimate + " for " + exact,
+                    Math.abs(estimate - exact) <= exact / 16 + 1);
+        }
+    }
+
+    @Test
+    public void clampsOutOfRangeValues() {
+        LogHistogram histogram = new LogHistogram(3, 10);
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(0, histogram.getPercentile(50));
+        //The middle of the last bucket, 960 to 1023
+        assertEquals(992, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void addsAndClears() {
+        LogHistogram a = new LogHistogram(3, 32);
+        LogHistogram b = new LogHistogram(3, 32);
+        assertEquals(0, a.getPercentile(50));
+        a.record(10);
+        b.record(1000);
+        b.record(1000);
+        a.add(b);
+        assertEquals(3, a.getCount());
+        assertEquals(10, a.getPercentile(33));
+        assertEquals(1000, a.getPercentile(34), 1000 / 16);
+        a.clear();
+        assertEquals(0, a.getCount());
+        assertEquals(0, a.getPercentile(100));
+    }
+
+    /** Threads recording at once lose nothing, and match a plain histogram */
+    @Test
+    public void recordsConcurrently() throws Exception {
+        final ConcurrentLogHistogram concurrent = new ConcurrentLogHistogram(3, 32);
+        LogHistogram expected = new LogHistogram(3, 32);
+        final long[][] values = new long[4][100000];
+        Random random = new Random(7);
+        for (long[] thread : values) {
+            for (int i = 0; i < thread.length; i++) {
+                thread[i] = random.nextInt(1 << 20);
+                expected.record(thread[i]);
+            }
+        }
+
+        final CountDownLatch done = new CountDownLatch(values.length);
+        for (final long[] thread : values) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (long value : thread) {
+                        concurrent.record(value);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+
+        LogHistogram snapshot = concurrent.snapshot();
+        assertEquals(400000, snapshot.getCount());
+        for (int percentile = 0; percentile <= 100; percentile += 5) {
+            assertEquals(expected.getPercentile(percentile), snapshot.getPercentile(percentile));
+        }
+        //The snapshot is a copy
+        concurrent.record(1);
+        assertEquals(400000, snapshot.getCount());
+    }
+
+    @Test
+    public void recordsWithoutAllocating() {
+        assumeTrue(Allocations.isSupported());
+        final ConcurrentLogHistogram concurrent = new ConcurrentLogHistogram(3, 32);
+        final LogHistogram histogram = new LogHistogram(3, 32);
+        final long[] next = new long[1];
+        long allocated = Allocations.measure(new Runnable() {
+            @Override
+            public void run() {
+                long value = next[0]++ * 7919;
+                concurrent.record(value);
+                histogram.record(value);
+            }
+        }, 1000000);
+        assertTrue("Allocated " + allocated + " bytes", allocated < 100000);
+    }
+}
@@ -0,0 +1,179 @@
+package com.example.android.nearbybeacons;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class MetricsTest {
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final Metrics mMetrics = new Metrics();
+
+    @Test
+    public void looksUpEachMetricOnce() {
+        assertSame(mMetrics.counter("scan.callbacks"), mMetrics.counter("scan.callbacks"));
+        assertSame(mMetrics.histogram("rest.latency"), mMetrics.histogram("rest.latency"));
+        assertFalse(mMetrics.counter("a") == mMetrics.counter("b"));
+    }
+
+    @Test
+    public void countsAcrossThreads() throws Exception {
+        final StripedCounter counter = mMetrics.counter("scan.callbacks");
+        final CountDownLatch done = new CountDownLatch(8);
+        for (int t = 0; t < 8; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        counter.increment();
+                    }
+                    counter.add(5);
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        assertEquals(800040, counter.get());
+        assertEquals("800040", counter.toString());
+    }
+
+    @Test
+    public void snapshotsCopyEveryMetric() {
+        mMetrics.counter("scan.failed.2").increment();
+        mMetrics.counter("scan.callbacks").add(3);
+        mMetrics.histogram("scan.batch").record(12);
+
+        Metrics.Snapshot snapshot = mMetrics.snapshot();
+        assertEquals(Arrays.asList("scan.callbacks", "scan.failed.2"),
+                Arrays.asList(snapshot.getCounters().keySet().toArray()));
+        assertEquals(3, snapshot.getCounter("scan.callbacks"));
+        assertEquals(0, snapshot.getCounter("notifications"));
+
+        mMetrics.counter("scan.callbacks").increment();
+        mMetrics.histogram("scan.batch").record(12);
+        assertEquals(3, snapshot.getCounter("scan.callbacks"));
+        assertEquals(1, snapshot.getHistograms().get("scan.batch").getCount());
+    }
+
+    @Test
+    public void ratesOverTheInterval() {
+        Map<String, LogHistogram> histograms = new HashMap<>();
+        Metrics.Snapshot before = new Metrics.Snapshot(0, 0, counters(100), histograms);
+        Metrics.Snapshot after = new Metrics.Snapshot(0, 2000000000L, counters(300), histograms);
+        assertEquals(100.0, after.getRate("scan.callbacks", before), 1e-9);
+        assertEquals(0.0, before.getRate("scan.callbacks", before), 1e-9);
+    }
+
+    @Test
+    public void writesCountersAndPercentiles() {
+        LogHistogram latency = new LogHistogram(3, 32);
+        for (int i = 1; i <= 100; i++) {
+            latency.record(i);
+        }
+        Map<String, LogHistogram> histograms = new TreeMap<>();
+        histograms.put("rest.latency", latency);
+        Metrics.Snapshot before = new Metrics.Snapshot(0, 0, counters(100), histograms);
+        Metrics.Snapshot after = new Metrics.Snapshot(0, 1000000000L, counters(150), histograms);
+
+        StringWriter text = new StringWriter();
+        PrintWriter out = new PrintWriter(text);
+        after.writeTo(out, before);
+        out.flush();
+        String[] lines = text.toString().split("\n");
+        assertTrue(lines[0].startsWith("# "));
+        assertEquals("scan.callbacks 150 (50.0/s)", lines[1]);
+        assertEquals("rest.latency count 100 p50 50 p90 92 p99 100 max 100", lines[2]);
+    }
+
+    @Test
+    public void dumpsPeriodically() throws Exception {
+        File file = new File(mFolder.getRoot(), "metrics.txt");
+        mMetrics.counter("scan.callbacks").add(10);
+        mMetrics.startDump(file, 60000);
+        //The first dump is written straight away
+        long deadline = System.currentTimeMillis() + 5000;
+        while (file.length() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        mMetrics.counter("scan.callbacks").add(10);
+        mMetrics.stopDump();
+
+        String[] dumps = read(file).split("\n\n");
+        assertEquals(2, dumps.length);
+        assertTrue(dumps[0], dumps[0].endsWith("\nscan.callbacks 10"));
+        //Only later dumps have a rate
+        assertTrue(dumps[1], dumps[1].contains("scan.callbacks 20 ("));
+
+        //Stopped for good
+        long length = file.length();
+        mMetrics.stopDump();
+        assertEquals(length, file.length());
+    }
+
+    @Test
+    public void rotatesLargeDumps() throws Exception {
+        File file = new File(mFolder.getRoot(), "metrics.txt");
+        RandomAccessFile full = new RandomAccessFile(file, "rw");
+        try {
+            full.setLength(300 * 1024);
+        } finally {
+            full.close();
+        }
+        mMetrics.counter("scan.callbacks").increment();
+        mMetrics.startDump(file, 60000);
+        mMetrics.stopDump();
+
+        assertEquals(300 * 1024, new File(file.getPath() + ".old").length());
+        assertTrue(file.length() < 1024);
+    }
+
+    @Test
+    public void updatesWithoutAllocating() {
+        assumeTrue(Allocations.isSupported());
+        final StripedCounter counter = mMetrics.counter("scan.callbacks");
+        final ConcurrentLogHistogram histogram = mMetrics.histogram("scan.latency");
+        long allocated = Allocations.measure(new Runnable() {
+            @Override
+            public void run() {
+                counter.increment();
+                histogram.record(1500);
+            }
+        }, 1000000);
+        assertTrue("Allocated " + allocated + " bytes", allocated < 100000);
+    }
+
+    private static Map<String, Long> counters(long callbacks) {
+        Map<String, Long> counters = new TreeMap<>();
+        counters.put("scan.callbacks", callbacks);
+        return counters;
+    }
+
+    private static String read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return new String(StubServer.readAll(in), "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.example.android.nearbybeacons;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class NamespaceFilterSetTest {
+
+    private static final String NAMESPACE = ScanTraces.NAMESPACE;
+    private static final long HIGH = ScanTraces.NAMESPACE_HIGH;
+
+    @Test
+    public void matchesWholeNamespace() {
+        NamespaceFilterSet set = NamespaceFilterSet.compile(new String[]{NAMESPACE});
+        assertTrue(set.matches(HIGH, ScanTraces.idLow(0)));
+        assertTrue(set.matches(HIGH, ScanTraces.NAMESPACE_LOW | 0xFFFFFFFFFFFFL));
+        //Last two bytes of the namespace differ
+        assertFalse(set.matches(HIGH, ScanTraces.idLow(1) ^ (1L << 48)));
+        assertFalse(set.matches(HIGH + 1, ScanTraces.idLow(1)));
+        assertEquals(1, set.getNamespaceCount());
+    }
+
+    @Test
+    public void matchesInstancePrefixes() {
+        NamespaceFilterSet set = NamespaceFilterSet.compile(new String[]{
+                NAMESPACE + "/0a3f",
+                NAMESPACE + "/123456789abc"
+        });
+        assertTrue(set.matches(HIGH, ScanTraces.NAMESPACE_LOW | 0x0a3f00000000L));
+        assertTrue(set.matches(HIGH, ScanTraces.NAMESPACE_LOW | 0x0a3fffffffffL));
+        assertFalse(set.matches(HIGH, ScanTraces.NAMESPACE_LOW | 0x0a4000000000L));
+        assertTrue(set.matches(HIGH, ScanTraces.NAMESPACE_LOW | 0x123456789abcL));
+        assertFalse(set.matches(HIGH, ScanTraces.NAMESPACE_LOW | 0x123456789abdL));
+        assertEquals(1, set.getNamespaceCount());
+        assertEquals(2, set.getRuleCount());
+    }
+
+    @Test
+    public void wholeNamespaceSupersedesPrefixes() {
+        String[][] orders = {
+                {NAMESPACE + "/01", NAMESPACE, NAMESPACE + "/02"},
+                {NAMESPACE, NAMESPACE + "/01"},
+                {NAMESPACE + "/01", NAMESPACE + "/02", NAMESPACE}
+        };
+        for (String[] rules : orders) {
+            NamespaceFilterSet set = NamespaceFilterSet.compile(rules);
+            assertEquals(1, set.getRuleCount());
+            assertTrue(set.matches(HIGH, ScanTraces.idLow(0x7777)));
+        }
+    }
+
+    @Test
+    public void acceptsEitherCase() {
+        NamespaceFilterSet set = NamespaceFilterSet.compile(
+                new String[]{NAMESPACE.toUpperCase() + "/0A"});
+        assertTrue(set.matches(HIGH, ScanTraces.NAMESPACE_LOW | 0x0a0000000001L));
+    }
+
+    @Test
+    public void rejectsMalformedRules() {
+        String[] malformed = {
+                "",
+                NAMESPACE.substring(1),
+                NAMESPACE + "0",
+                NAMESPACE.replace('e', 'g'),
+                NAMESPACE + "/0123456789abc",
+                NAMESPACE + "/xyz"
+        };
+        for (String rule : malformed) {
+            try {
+                NamespaceFilterSet.compile(new String[]{rule});
+                fail(rule);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        //An empty prefix is the whole namespace
+        assertEquals(1, NamespaceFilterSet.compile(new String[]{NAMESPACE + "/"}).getRuleCount());
+    }
+
+    @Test
+    public void failsClosedWithoutRules() {
+        assertSame(NamespaceFilterSet.MATCH_NONE, NamespaceFilterSet.compile(null));
+        assertSame(NamespaceFilterSet.MATCH_NONE, NamespaceFilterSet.compile(new String[0]));
+        assertFalse(NamespaceFilterSet.MATCH_NONE.matches(HIGH, ScanTraces.idLow(1)));
+        assertTrue(NamespaceFilterSet.MATCH_NONE.getHardwareFilters(4).isEmpty());
+
+        assertTrue(NamespaceFilterSet.MATCH_ALL.matches(HIGH, ScanTraces.idLow(1)));
+        assertTrue(NamespaceFilterSet.MATCH_ALL.matches(0, 0));
+        assertEquals(1, NamespaceFilterSet.MATCH_ALL.getHardwareFilters(4).size());
+    }
+
+    /** Hundreds of random namespaces and prefixes against a plain list of rules */
+    @Test
+    public void agreesWithLinearScan() {
+        Random random = new Random(5);
+        int count = 800;
+        String[] rules = new String[count];
+        long[][] parsed = new long[count][];
+        for (int i = 0; i < count; i++) {
+            //Some namespaces get several rules
+            long high = random.nextInt(400) * 0x9E3779B97F4A7C15L;
+            int low = random.nextInt(4);
+            int digits = random.nextInt(4) == 0 ? 0 : 1 + random.nextInt(12);
+            long prefix = random.nextLong() & ((1L << (digits * 4)) - 1);
+            rules[i] = String.format("%016x%04x", high, low)
+                    + (digits > 0 ? String.format("/%0" + digits + "x", prefix) : "");
+            int bits = digits * 4;
+            long mask = bits == 0 ? 0 : (0xFFFFFFFFFFFFL >>> (48 - bits)) << (48 - bits);
+            parsed[i] = new long[]{high, low, prefix << (48 - bits), mask};
+        }
+        NamespaceFilterSet set = NamespaceFilterSet.compile(rules);
+
+        int hits = 0;
+        for (int n = 0; n < 200000; n++) {
+            long[] rule = parsed[random.nextInt(count)];
+            long high = random.nextInt(8) == 0 ? random.nextLong() : rule[0];
+            //Keep the prefix often, so prefix rules are hit as well as missed
+            long instance = random.nextBoolean()
+                    ? rule[2] | (random.nextLong() & ~rule[3] & 0xFFFFFFFFFFFFL)
+                    : random.nextLong() & 0xFFFFFFFFFFFFL;
+            long idLow = (rule[1] + (random.nextInt(8) == 0 ? 1 : 0)) << 48 | instance;
+
+            boolean expected = false;
+            for (long[] candidate : parsed) {
+                if (candidate[0] == high && candidate[1] == idLow >>> 48
+                        && (instance & candidate[3]) == candidate[2]) {
+                    expected = true;
+                    break;
+                }
+            }
+            assertEquals(rules.length + " rules", expected, set.matches(high, idLow));
+            if (expected) hits++;
+        }
+        assertTrue(hits > 10000 && hits < 190000);
+    }
+
+    @Test
+    public void usesOneHardwareFilterPerRuleWhenTheyFit() {
+        NamespaceFilterSet set = NamespaceFilterSet.compile(new String[]{
+                NAMESPACE + "/0a", NAMESPACE + "/0b", "00000000000000000001"
+        });
+        List<NamespaceFilterSet.HardwareFilter> filters = set.getHardwareFilters(3);
+        assertEquals(3, filters.size());
+        assertAccepted(filters, HIGH, ScanTraces.NAMESPACE_LOW | 0x0a0000000000L, true);
+        //Rejected in hardware, not just in software
+        assertAccepted(filters, HIGH, ScanTraces.NAMESPACE_LOW | 0x0c0000000000L, false);
+        assertAccepted(filters, 0, 1L << 48, true);
+    }
+
+    @Test
+    public void widensToNamespacesThenFrameType() {
+        NamespaceFilterSet set = NamespaceFilterSet.compile(new String[]{
+                NAMESPACE + "/0a", NAMESPACE + "/0b", "00000000000000000001"
+        });
+        List<NamespaceFilterSet.HardwareFilter> filters = set.getHardwareFilters(2);
+        assertEquals(2, filters.size());
+        //Broader than the set; the software match narrows it again
+        assertAccepted(filters, HIGH, ScanTraces.NAMESPACE_LOW | 0x0c0000000000L, true);
+        assertAccepted(filters, HIGH + 1, ScanTraces.NAMESPACE_LOW, false);
+
+        filters = set.getHardwareFilters(1);
+        assertEquals(1, filters.size());
+        assertAccepted(filters, HIGH + 1, ScanTraces.NAMESPACE_LOW, true);
+        assertEquals(filters, NamespaceFilterSet.MATCH_ALL.getHardwareFilters(1));
+
+        try {
+            set.getHardwareFilters(0);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /** Whatever the slot limit, hardware never drops a frame the set matches */
+    @Test
+    public void hardwareFiltersCoverTheSet() {
+        Random random = new Random(8);
+        String[] rules = new String[40];
+        for (int i = 0; i < rules.length; i++) {
+            rules[i] = String.format("%016x%04x/%x", HIGH + random.nextInt(10),
+                    random.nextInt(2), random.nextInt(16));
+        }
+        NamespaceFilterSet set = NamespaceFilterSet.compile(rules);
+        for (int slots = 1; slots <= 48; slots++) {
+            List<NamespaceFilterSet.HardwareFilter> filters = set.getHardwareFilters(slots);
+            assertTrue(filters.size() <= slots);
+            for (int n = 0; n < 5000; n++) {
+                long high = HIGH + random.nextInt(12);
+                long idLow = ((long) random.nextInt(3) << 48) | random.nextLong() >>> 16;
+                if (set.matches(high, idLow)) {
+                    assertAccepted(filters, high, idLow, true);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void matchesWithoutAllocating() {
+        assumeTrue(Allocations.isSupported());
+        final NamespaceFilterSet set = NamespaceFilterSet.compile(new String[]{
+                NAMESPACE, NAMESPACE.replace('e', 'f') + "/0a"
+        });
+        final long[] next = new long[1];
+        long allocated = Allocations.measure(new Runnable() {
+            @Override
+            public void run() {
+                set.matches(HIGH, ScanTraces.idLow((int) next[0]++));
+            }
+        }, 1000000);
+        assertTrue("Allocated " + allocated + " bytes", allocated < 100000);
+    }
+
+    /* Whether some filter accepts the service data of a UID frame with this id */
+    private static void assertAccepted(List<NamespaceFilterSet.HardwareFilter> filters,
+                                       long idHigh, long idLow, boolean expected) {
+        byte[] record = ScanTraces.uidRecord(idHigh, idLow, ScanTraces.TX_POWER);
+        //Service data follows the 0xfeaa uuid
+        int offset = 11;
+        boolean accepted = false;
+        for (NamespaceFilterSet.HardwareFilter filter : filters) {
+            boolean match = true;
+            for (int i = 0; i < filter.data.length; i++) {
+                if ((record[offset + i] & filter.mask[i]) != (filter.data[i] & filter.mask[i])) {
+                    match = false;
+                    break;
+                }
+            }
+            accepted |= match;
+        }
+        assertEquals(String.format("%016x%016x", idHigh, idLow), expected, accepted);
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.android.nearbybeacons;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationCoalescerTest {
+
+    private static final int UNKNOWN = NotificationCoalescer.NEARBY_UNKNOWN;
+
+    private final NotificationCoalescer mCoalescer = new NotificationCoalescer(250, 1000);
+
+    /** A burst of 40 new beacons is one post of the final count */
+    @Test
+    public void coalescesBursts() {
+        assertEquals(250, mCoalescer.update(1, UNKNOWN, 0));
+        for (int count = 2; count <= 40; count++) {
+            assertEquals(NotificationCoalescer.ALREADY_SCHEDULED,
+                    mCoalescer.update(count, UNKNOWN, count * 5));
+        }
+        assertTrue(mCoalescer.publish(250));
+        assertEquals(40, mCoalescer.getPostedCount());
+        assertEquals(UNKNOWN, mCoalescer.getPostedNearby());
+        assertEquals(40, mCoalescer.getRequestedCount());
+        assertEquals(1, mCoalescer.getPublishedCount());
+        assertEquals(39, mCoalescer.getSuppressedCount());
+    }
+
+    @Test
+    public void limitsThePostRate() {
+        mCoalescer.update(1, UNKNOWN, 0);
+        mCoalescer.publish(250);
+        //Debounced, but no sooner than the interval after the last post
+        assertEquals(1250, mCoalescer.update(2, UNKNOWN, 300));
+        assertTrue(mCoalescer.publish(1250));
+        //Long after, only the debounce applies
+        assertEquals(5250, mCoalescer.update(3, UNKNOWN, 5000));
+    }
+
+    @Test
+    public void skipsPostsThatChangeNothing() {
+        mCoalescer.update(3, 1, 0);
+        assertTrue(mCoalescer.publish(250));
+        mCoalescer.update(3, 1, 2000);
+        assertFalse(mCoalescer.publish(2250));
+
+        //A change that is undone before it is published
+        mCoalescer.update(4, 1, 4000);
+        mCoalescer.update(3, 1, 4100);
+        assertFalse(mCoalescer.publish(4250));
+
+        //The nearby count alone is a change
+        mCoalescer.update(3, 2, 6000);
+        assertTrue(mCoalescer.publish(6250));
+        assertEquals(2, mCoalescer.getPostedNearby());
+        assertEquals("NotificationCoalescer[5 requested, 2 posted, 3 suppressed]",
+                mCoalescer.toString());
+    }
+
+    @Test
+    public void removesOnceForZero() {
+        mCoalescer.update(0, UNKNOWN, 0);
+        //Nothing was showing
+        assertFalse(mCoalescer.publish(250));
+
+        mCoalescer.update(2, 1, 1000);
+        assertTrue(mCoalescer.publish(1250));
+        mCoalescer.update(0, 1, 3000);
+        assertTrue(mCoalescer.publish(3250));
+        assertEquals(0, mCoalescer.getPostedCount());
+        //Zero is zero whatever is nearby
+        mCoalescer.update(0, 5, 5000);
+        assertFalse(mCoalescer.publish(5250));
+    }
+
+    @Test
+    public void dropsPendingUpdates() {
+        mCoalescer.update(2, UNKNOWN, 0);
+        mCoalescer.release();
+        assertFalse(mCoalescer.publish(250));
+        //Not scheduled any more, so the next update schedules again
+        assertEquals(1250, mCoalescer.update(2, UNKNOWN, 1000));
+        assertTrue(mCoalescer.publish(1250));
+
+        //After a cancel the same count is news again
+        mCoalescer.update(5, UNKNOWN, 3000);
+        mCoalescer.cancel();
+        assertFalse(mCoalescer.publish(3250));
+        assertEquals(0, mCoalescer.getPostedCount());
+        mCoalescer.update(2, UNKNOWN, 4000);
+        assertTrue(mCoalescer.publish(4250));
+    }
+}
@@ -0,0 +1,294 @@
+package com.example.android.nearbybeacons;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ObservationBatcherTest {
+
+    /* Answers each id with one attachment, its bytes reversed, and keeps the batches */
+    private static class EchoTransport implements ObservationBatcher.Transport {
+        final List<List<byte[]>> batches = Collections.synchronizedList(
+                new ArrayList<List<byte[]>>());
+
+        @Override
+        public List<List<byte[]>> getForObserved(List<byte[]> advertisedIds) {
+            batches.add(advertisedIds);
+            List<List<byte[]>> results = new ArrayList<>();
+            for (byte[] id : advertisedIds) {
+                results.add(Collections.singletonList(reverse(id)));
+            }
+            return results;
+        }
+    }
+
+    /* Counts down once per answer, keeping attachments and errors by id */
+    private static class Answers implements ObservationBatcher.Callback {
+        final CountDownLatch latch;
+        final ConcurrentHashMap<String, List<byte[]>> attachments = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<String, IOException> errors = new ConcurrentHashMap<>();
+
+        Answers(int expected) {
+            latch = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void onAttachments(byte[] advertisedId, List<byte[]> found) {
+            attachments.put(Arrays.toString(advertisedId), found);
+            latch.countDown();
+        }
+
+        @Override
+        public void onError(byte[] advertisedId, IOException error) {
+            errors.put(Arrays.toString(advertisedId), error);
+            latch.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void sendsFullBatchWithoutWaiting() throws InterruptedException {
+        EchoTransport transport = new EchoTransport();
+        ObservationBatcher batcher = new ObservationBatcher(transport, 4, 60000);
+        Answers answers = new Answers(4);
+        for (int i = 0; i < 4; i++) {
+            batcher.submit(id(i), answers);
+        }
+        answers.await();
+        batcher.shutdown();
+
+        assertEquals(1, transport.batches.size());
+        assertEquals(4, transport.batches.get(0).size());
+        for (int i = 0; i < 4; i++) {
+            assertArrayEquals(reverse(id(i)),
+                    answers.attachments.get(Arrays.toString(id(i))).get(0));
+        }
+        assertEquals(1, batcher.getBatchSizeHistogram()[4]);
+    }
+
+    @Test
+    public void sendsPartialBatchWhenWindowExpires() throws InterruptedException {
+        EchoTransport transport = new EchoTransport();
+        ObservationBatcher batcher = new ObservationBatcher(transport, 100, 50);
+        Answers answers = new Answers(3);
+        long start = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            batcher.submit(id(i), answers);
+        }
+        answers.await();
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        batcher.shutdown();
+
+        assertTrue("Answered after " + elapsedMillis + "ms", elapsedMillis >= 45);
+        assertEquals(1, transport.batches.size());
+        assertEquals(1, batcher.getBatchSizeHistogram()[3]);
+        assertEquals(3, batcher.getObservationCount());
+    }
+
+    @Test
+    public void answersDuplicatesFromOneLookup() throws InterruptedException {
+        EchoTransport transport = new EchoTransport();
+        ObservationBatcher batcher = new ObservationBatcher(transport, 100, 20);
+        Answers first = new Answers(1);
+        Answers second = new Answers(1);
+        batcher.submit(id(7), first);
+        batcher.submit(id(7), second);
+        first.await();
+        second.await();
+        batcher.shutdown();
+
+        assertEquals(1, transport.batches.size());
+        assertEquals(1, transport.batches.get(0).size());
+        assertEquals(1, first.attachments.size());
+        assertEquals(1, second.attachments.size());
+    }
+
+    @Test
+    public void failsEveryCallbackWhenLookupFails() throws InterruptedException {
+        assertBatchFails(new ObservationBatcher.Transport() {
+            @Override
+            public List<List<byte[]>> getForObserved(List<byte[]> advertisedIds)
+                    throws IOException {
+                throw new IOException("Offline");
+            }
+        });
+        assertBatchFails(new ObservationBatcher.Transport() {
+            @Override
+            public List<List<byte[]>> getForObserved(List<byte[]> advertisedIds) {
+                throw new IllegalStateException("Malformed response");
+            }
+        });
+        //One result short
+        assertBatchFails(new ObservationBatcher.Transport() {
+            @Override
+            public List<List<byte[]>> getForObserved(List<byte[]> advertisedIds) {
+                return new ArrayList<>(Collections.nCopies(advertisedIds.size() - 1,
+                        Collections.<byte[]>emptyList()));
+            }
+        });
+    }
+
+    @Test
+    public void answersMissingResultsWithNoAttachments() throws InterruptedException {
+        ObservationBatcher batcher = new ObservationBatcher(new ObservationBatcher.Transport() {
+            @Override
+            public List<List<byte[]>> getForObserved(List<byte[]> advertisedIds) {
+                return Collections.nCopies(advertisedIds.size(), null);
+            }
+        }, 2, 60000);
+        Answers answers = new Answers(2);
+        batcher.submit(id(1), answers);
+        batcher.submit(id(2), answers);
+        answers.await();
+        batcher.shutdown();
+
+        assertTrue(answers.attachments.get(Arrays.toString(id(1))).isEmpty());
+        assertTrue(answers.errors.isEmpty());
+    }
+
+    @Test
+    public void shutdownSendsPending() throws InterruptedException {
+        EchoTransport transport = new EchoTransport();
+        ObservationBatcher batcher = new ObservationBatcher(transport, 100, 60000);
+        Answers answers = new Answers(2);
+        batcher.submit(id(1), answers);
+        batcher.submit(id(2), answers);
+        batcher.shutdown();
+        answers.await();
+        assertEquals(1, transport.batches.size());
+    }
+
+    /**
+     * The batcher sending over BeaconApiClient to a local server with
+     * some latency, as BeaconObserverService does: many more lookups
+     * than requests, every answer routed to its own id.
+     */
+    @Test
+    public void batchesAgainstStubServer() throws Exception {
+        StubServer server = new StubServer(new StubServer.Responder() {
+            @Override
+            public byte[] respond(byte[] body) throws IOException {
+                //One line per id; the attachment is the id upper cased
+                return new String(body, "UTF-8").toUpperCase().getBytes("UTF-8");
+            }
+        });
+        server.setLatency(20);
+        try {
+            final int beacons = 50;
+            final int rounds = 20;
+            ObservationBatcher batcher = new ObservationBatcher(
+                    new HttpTransport(server), 20, 25, 4);
+            Answers answers = new Answers(beacons * rounds);
+            for (int round = 0; round < rounds; round++) {
+                for (int i = 0; i < beacons; i++) {
+                    //Each caller gets its own answer, so don't dedup across rounds
+                    batcher.submit(id(round * beacons + i), answers);
+                }
+                Thread.sleep(5);
+            }
+            answers.await();
+            batcher.shutdown();
+
+            assertTrue(answers.errors.isEmpty());
+            for (int i = 0; i < beacons * rounds; i++) {
+                byte[] attachment = answers.attachments.get(Arrays.toString(id(i))).get(0);
+                assertEquals(hex(id(i)).toUpperCase(), new String(attachment, "UTF-8"));
+            }
+            assertEquals(beacons * rounds, batcher.getObservationCount());
+            assertEquals(server.getRequestCount(), batcher.getRequestCount());
+            assertTrue(batcher.toString(), batcher.getRequestCount() <= beacons * rounds / 10);
+            assertTrue(batcher.getAverageLatencyMillis() >= 20);
+            System.out.println("ObservationBatcher over stub server: " + batcher);
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void assertBatchFails(ObservationBatcher.Transport transport)
+            throws InterruptedException {
+        ObservationBatcher batcher = new ObservationBatcher(transport, 3, 60000);
+        Answers answers = new Answers(3);
+        for (int i = 0; i < 3; i++) {
+            batcher.submit(id(i), answers);
+        }
+        answers.await();
+        batcher.shutdown();
+        assertEquals(3, answers.errors.size());
+        assertTrue(answers.attachments.isEmpty());
+        assertEquals(1, batcher.getErrorCount());
+    }
+
+    /* Sends ids one hex string per line, and reads one attachment per line back */
+    private static class HttpTransport implements ObservationBatcher.Transport {
+        private final StubServer mServer;
+        private final BeaconApiClient mClient = new BeaconApiClient(4, 3, 50, 1000, true);
+
+        HttpTransport(StubServer server) {
+            mServer = server;
+        }
+
+        @Override
+        public List<List<byte[]>> getForObserved(final List<byte[]> advertisedIds)
+                throws IOException {
+            return mClient.post(mServer.url("/v1beta1/beaconinfo:getforobserved"),
+                    new BeaconApiClient.BodyWriter() {
+                        @Override
+                        public void write(OutputStream out) throws IOException {
+                            for (byte[] id : advertisedIds) {
+                                out.write((hex(id) + "\n").getBytes("UTF-8"));
+                            }
+                        }
+                    }, new BeaconApiClient.ResponseReader<List<List<byte[]>>>() {
+                        @Override
+                        public List<List<byte[]>> read(InputStream in) throws IOException {
+                            BufferedReader reader =
+                                    new BufferedReader(new InputStreamReader(in, "UTF-8"));
+                            List<List<byte[]>> results = new ArrayList<>();
+                            String line;
+                            while ((line = reader.readLine()) != null) {
+                                results.add(Collections.singletonList(line.getBytes("UTF-8")));
+                            }
+                            return results;
+                        }
+                    });
+        }
+    }
+
+    private static byte[] id(int i) {
+        return new byte[]{0x0A, (byte) (i >> 8), (byte) i, (byte) 0xEF};
+    }
+
+    private static byte[] reverse(byte[] id) {
+        byte[] reversed = new byte[id.length];
+        for (int i = 0; i < id.length; i++) {
+            reversed[i] = id[id.length - 1 - i];
+        }
+        return reversed;
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,140 @@
+package com.example.android.nearbybeacons;
+
+import android.util.Base64;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ObservedCodecTest {
+
+    @Test
+    public void writesRequest() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ObservedCodec.writeRequest(out,
+                Arrays.asList(ScanTraces.advertisedId(1), ScanTraces.advertisedId(2)),
+                "nearbybeacons/offer", 1234L);
+
+        JSONObject request = new JSONObject(out.toString("UTF-8"));
+        JSONArray observations = request.getJSONArray("observations");
+        assertEquals(2, observations.length());
+        for (int i = 0; i < 2; i++) {
+            JSONObject observation = observations.getJSONObject(i);
+            JSONObject advertisedId = observation.getJSONObject("advertisedId");
+            assertEquals("EDDYSTONE", advertisedId.getString("type"));
+            assertEquals(ObservedCodec.encodeId(ScanTraces.advertisedId(i + 1)),
+                    advertisedId.getString("id"));
+            assertEquals("1970-01-01T00:00:01.234Z", observation.getString("timestampMs"));
+        }
+        assertEquals("nearbybeacons/offer", request.getString("namespacedTypes"));
+    }
+
+    @Test
+    public void readsAttachmentsOfEveryBeacon() throws Exception {
+        byte[] response = ScanTraces.observedResponse(4096);
+        Map<String, List<byte[]>> parsed = read(response);
+
+        //Checked against the document tree
+        JSONArray beacons = new JSONObject(new String(response, "UTF-8")).getJSONArray("beacons");
+        assertEquals(beacons.length(), parsed.size());
+        for (int i = 0; i < beacons.length(); i++) {
+            List<byte[]> attachments =
+                    parsed.get(ObservedCodec.encodeId(ScanTraces.advertisedId(i)));
+            assertEquals(1, attachments.size());
+            assertArrayEquals(ScanTraces.offerContent("Section " + i, "Offer " + i),
+                    attachments.get(0));
+        }
+    }
+
+    @Test
+    public void keepsBinaryAttachments() throws IOException {
+        //Every byte value, as base64
+        byte[] data = new byte[256];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        String id = ObservedCodec.encodeId(ScanTraces.advertisedId(0));
+        String json = "{\"beacons\":[{\"advertisedId\":{\"type\":\"EDDYSTONE\",\"id\":\"" + id
+                + "\"},\"attachments\":[{\"namespacedType\":\"a/b\",\"data\":\""
+                + Base64.encodeToString(data, Base64.NO_WRAP)
+                + "\"},{\"data\":\"\"}]}]}";
+
+        List<byte[]> attachments = read(json.getBytes("UTF-8")).get(id);
+        assertEquals(2, attachments.size());
+        assertArrayEquals(data, attachments.get(0));
+        assertEquals(0, attachments.get(1).length);
+    }
+
+    @Test
+    public void skipsUnknownFields() throws IOException {
+        String id = ObservedCodec.encodeId(ScanTraces.advertisedId(3));
+        String json = "{\"kind\":[1,{\"a\":[]}],\"beacons\":[{\"extra\":{\"b\":[true,null]},"
+                + "\"advertisedId\":{\"id\":\"" + id + "\",\"more\":{}},"
+                + "\"attachments\":[{\"namespacedType\":{\"nested\":1},\"data\":\"AQI=\"}]},"
+                + "{\"attachments\":[{\"data\":\"AQI=\"}]}],\"next\":\"x\"}";
+
+        Map<String, List<byte[]>> parsed = read(json.getBytes("UTF-8"));
+        //The beacon without an id is dropped
+        assertEquals(1, parsed.size());
+        assertArrayEquals(new byte[]{1, 2}, parsed.get(id).get(0));
+    }
+
+    @Test
+    public void readsBeaconsWithoutAttachments() throws IOException {
+        String id = ObservedCodec.encodeId(ScanTraces.advertisedId(4));
+        String json = "{\"beacons\":[{\"advertisedId\":{\"id\":\"" + id + "\"}}]}";
+        assertTrue(read(json.getBytes("UTF-8")).get(id).isEmpty());
+        assertTrue(read("{}".getBytes("UTF-8")).isEmpty());
+        assertTrue(read("{\"beacons\":null}".getBytes("UTF-8")).isEmpty());
+    }
+
+    @Test
+    public void rejectsMalformedResponses() {
+        String[] malformed = {
+                "[]",
+                "{\"beacons\":[{\"attachments\":{}}]}",
+                "{\"beacons\":[{\"advertisedId\":{\"id\":\"AQI=\"}"
+        };
+        for (String json : malformed) {
+            try {
+                read(json.getBytes("UTF-8"));
+                fail(json);
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void leavesStreamOpen() throws IOException {
+        final boolean[] closed = new boolean[1];
+        InputStream in = new FilterInputStream(
+                new ByteArrayInputStream(ScanTraces.observedResponse(100))) {
+            @Override
+            public void close() throws IOException {
+                closed[0] = true;
+                super.close();
+            }
+        };
+        assertFalse(ObservedCodec.readResponse(in).isEmpty());
+        assertFalse(closed[0]);
+    }
+
+    private static Map<String, List<byte[]>> read(byte[] response) throws IOException {
+        return ObservedCodec.readResponse(new ByteArrayInputStream(response));
+    }
+}
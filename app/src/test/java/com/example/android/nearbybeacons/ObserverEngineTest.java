@@ -0,0 +1,323 @@
+package com.example.android.nearbybeacons;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ObserverEngineTest {
+
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(16);
+    private final List<String> mCompleted =
+            Collections.synchronizedList(new ArrayList<String>());
+
+    private final ObserverEngine.Listener<String> mListener =
+            new ObserverEngine.Listener<String>() {
+        @Override
+        public void onComplete(String key, Future<String> result) {
+            mCompleted.add(key);
+        }
+    };
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void sharesLookupsInFlight() throws Exception {
+        ObserverEngine<String> engine = new ObserverEngine<>(mExecutor, 4, mListener);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        Callable<String> lookup = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                calls.incrementAndGet();
+                release.await();
+                return "attachments";
+            }
+        };
+        Future<String> first = engine.submit("beacon", "ns", lookup);
+        assertSame(first, engine.submit("beacon", "ns", lookup));
+        assertEquals(1, engine.getInFlightCount());
+        release.countDown();
+        assertEquals("attachments", first.get(5, TimeUnit.SECONDS));
+
+        //Finished, so the next request looks it up again
+        assertEquals(0, engine.getInFlightCount());
+        Future<String> second = engine.submit("beacon", "ns", lookup);
+        assertNotSame(first, second);
+        assertEquals("attachments", second.get(5, TimeUnit.SECONDS));
+        assertEquals(2, calls.get());
+        assertEquals(1, engine.getSharedCount());
+        //The listener hears after waiters wake, on the lookup's thread
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mCompleted.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(Collections.nCopies(2, "beacon"), mCompleted);
+    }
+
+    /** A busy namespace runs at its limit while others carry on */
+    @Test
+    public void limitsLookupsPerNamespace() throws Exception {
+        ObserverEngine<String> engine = new ObserverEngine<>(mExecutor, 2, null);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ConcurrentHashMap<String, AtomicInteger> running = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<String, AtomicInteger> peak = new ConcurrentHashMap<>();
+        List<Future<String>> busy = new ArrayList<>();
+        for (final String namespace : new String[]{"busy", "other"}) {
+            running.put(namespace, new AtomicInteger());
+            peak.put(namespace, new AtomicInteger());
+        }
+        for (int i = 0; i < 6; i++) {
+            busy.add(engine.submit("busy " + i, "busy", new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    int now = running.get("busy").incrementAndGet();
+                    peak.get("busy").set(Math.max(peak.get("busy").get(), now));
+                    release.await();
+                    running.get("busy").decrementAndGet();
+                    return "busy";
+                }
+            }));
+        }
+        Future<String> other = engine.submit("other", "other", new Callable<String>() {
+            @Override
+            public String call() {
+                return "other";
+            }
+        });
+        assertEquals("other", other.get(5, TimeUnit.SECONDS));
+        //The busy lookups may not all have started yet
+        long deadline = System.currentTimeMillis() + 5000;
+        while (running.get("busy").get() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(50);
+        assertEquals(2, running.get("busy").get());
+
+        release.countDown();
+        for (Future<String> future : busy) {
+            assertEquals("busy", future.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(2, peak.get("busy").get());
+    }
+
+    /**
+     * A task completing later from another thread keeps its namespace's
+     * permit until then, but not a thread: lookups waiting for a permit
+     * queue without one, so other namespaces run on a single thread
+     */
+    @Test
+    public void holdsPermitsUntilLookupsComplete() throws Exception {
+        ExecutorService single = Executors.newSingleThreadExecutor();
+        try {
+            ObserverEngine<String> engine = new ObserverEngine<>(single, 1, mListener);
+            final List<ObserverEngine.Completion<String>> pending = Collections.synchronizedList(
+                    new ArrayList<ObserverEngine.Completion<String>>());
+            ObserverEngine.Task<String> batched = new ObserverEngine.Task<String>() {
+                @Override
+                public void start(ObserverEngine.Completion<String> completion) {
+                    pending.add(completion);
+                }
+            };
+            Future<String> first = engine.submit("a", "ns", batched);
+            Future<String> second = engine.submit("b", "ns", batched);
+            Future<String> third = engine.submit("c", "ns", batched);
+            Future<String> other = engine.submit("d", "other", batched);
+            awaitSize(pending, 2);
+            //The first of "ns" and the one of "other"; the rest wait for the permit
+            assertEquals(2, pending.size());
+            assertFalse(first.isDone());
+
+            //A waiting lookup can be cancelled without ever starting
+            assertTrue(engine.cancel("c"));
+            pending.get(0).complete("batched");
+            pending.get(0).complete("ignored");
+            assertEquals("batched", first.get(5, TimeUnit.SECONDS));
+            awaitSize(pending, 3);
+            assertEquals(3, pending.size());
+            pending.get(2).fail(new IOException("Quota"));
+            try {
+                second.get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+            assertTrue(third.isCancelled());
+            //Permits are handed on just after waiters wake
+            awaitNamespaces(engine, 1);
+            assertEquals(1, engine.getNamespaceCount());
+            pending.get(1).complete("other");
+            assertEquals("other", other.get(5, TimeUnit.SECONDS));
+
+            //Idle namespaces are forgotten
+            awaitNamespaces(engine, 0);
+            assertEquals(0, engine.getNamespaceCount());
+            assertEquals(0, engine.getInFlightCount());
+            awaitSize(mCompleted, 4);
+            assertEquals(4, mCompleted.size());
+        } finally {
+            single.shutdownNow();
+        }
+    }
+
+    @Test
+    public void cancelsLookupsForLostBeacons() throws Exception {
+        ObserverEngine<String> engine = new ObserverEngine<>(mExecutor, 4, mListener);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        Future<String> future = engine.submit("lost", "ns", new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                started.countDown();
+                try {
+                    Thread.sleep(60000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    throw e;
+                }
+                return "too late";
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(engine.cancel("lost"));
+        assertFalse(engine.cancel("lost"));
+        assertFalse(engine.cancel("never submitted"));
+
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        assertTrue(future.isCancelled());
+        try {
+            future.get();
+            fail();
+        } catch (CancellationException expected) {
+        }
+        assertEquals(0, engine.getInFlightCount());
+        assertEquals(1, engine.getCancelledCount());
+        assertEquals(Collections.singletonList("lost"), mCompleted);
+    }
+
+    @Test
+    public void failsLookupsThatTakeTooLong() throws Exception {
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        try {
+            ObserverEngine<String> engine = new ObserverEngine<>(mExecutor, timer, 50, 4, null);
+            Future<String> hung = engine.submit("hung", "ns", new ObserverEngine.Task<String>() {
+                @Override
+                public void start(ObserverEngine.Completion<String> completion) {
+                    //Never completes
+                }
+            });
+            try {
+                hung.get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof TimeoutException);
+            }
+            assertEquals(1, engine.getTimedOutCount());
+            assertEquals(0, engine.getInFlightCount());
+        } finally {
+            timer.shutdownNow();
+        }
+    }
+
+    /**
+     * Thousands of simulated beacons sighted over and over from several
+     * threads: every sighting gets its own beacon's result, and no beacon
+     * is looked up more often than it was sighted while nothing was in
+     * flight for it.
+     */
+    @Test
+    public void handlesThousandsOfBeacons() throws Exception {
+        final ObserverEngine<String> engine = new ObserverEngine<>(mExecutor, 4, null);
+        final int beacons = 5000;
+        final AtomicInteger[] calls = new AtomicInteger[beacons];
+        for (int i = 0; i < beacons; i++) {
+            calls[i] = new AtomicInteger();
+        }
+        final AtomicInteger wrong = new AtomicInteger();
+        Thread[] scanners = new Thread[4];
+        for (int t = 0; t < scanners.length; t++) {
+            final int seed = t;
+            scanners[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    List<Future<String>> futures = new ArrayList<>();
+                    List<Integer> sighted = new ArrayList<>();
+                    for (int n = 0; n < 20000; n++) {
+                        final int beacon = (n * 31 + seed * 7919) % beacons;
+                        futures.add(engine.submit("beacon " + beacon, "ns " + beacon % 16,
+                                new Callable<String>() {
+                                    @Override
+                                    public String call() {
+                                        calls[beacon].incrementAndGet();
+                                        return "attachments " + beacon;
+                                    }
+                                }));
+                        sighted.add(beacon);
+                    }
+                    try {
+                        for (int n = 0; n < futures.size(); n++) {
+                            String result = futures.get(n).get(10, TimeUnit.SECONDS);
+                            if (!result.equals("attachments " + sighted.get(n))) {
+                                wrong.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception e) {
+                        wrong.incrementAndGet();
+                    }
+                }
+            });
+            scanners[t].start();
+        }
+        for (Thread scanner : scanners) {
+            scanner.join();
+        }
+        assertEquals(0, wrong.get());
+        long lookups = 0;
+        for (AtomicInteger count : calls) {
+            lookups += count.get();
+        }
+        assertEquals(80000, engine.getSubmittedCount());
+        assertEquals(80000, lookups + engine.getSharedCount());
+        assertEquals(0, engine.getInFlightCount());
+    }
+
+    private static void awaitNamespaces(ObserverEngine<?> engine, int count)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (engine.getNamespaceCount() > count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static void awaitSize(List<?> list, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (list.size() < size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+}
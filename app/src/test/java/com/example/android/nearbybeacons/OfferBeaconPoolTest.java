@@ -0,0 +1,158 @@
+package com.example.android.nearbybeacons;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class OfferBeaconPoolTest {
+
+    private final OfferBeaconPool mPool = new OfferBeaconPool(512);
+
+    @Test
+    public void parsesOnceForRepeatedContent() {
+        OfferBeacon first = mPool.get(ScanTraces.offerContent("Shoes", "10% off"));
+        assertEquals("Shoes", first.section);
+        assertEquals("10% off", first.offer);
+
+        //A fresh array with the same bytes, as Nearby delivers each message
+        for (int i = 0; i < 9; i++) {
+            assertSame(first, mPool.get(ScanTraces.offerContent("Shoes", "10% off")));
+        }
+        assertEquals(9, mPool.getHitCount());
+        assertEquals(1, mPool.getMissCount());
+        assertEquals(0.9f, mPool.getHitRate(), 1e-6f);
+        assertEquals("OfferBeaconPool[9 hits, 1 misses, 0 collisions]", mPool.toString());
+    }
+
+    @Test
+    public void keysByEveryByte() {
+        OfferBeacon tenPercent = mPool.get(ScanTraces.offerContent("Shoes", "10% off"));
+        OfferBeacon twentyPercent = mPool.get(ScanTraces.offerContent("Shoes", "20% off"));
+        assertNotSame(tenPercent, twentyPercent);
+        assertEquals("20% off", twentyPercent.offer);
+        //Same section, so the same beacon as far as the detected set goes
+        assertEquals(tenPercent, twentyPercent);
+        assertEquals(tenPercent.hashCode(), twentyPercent.hashCode());
+        assertEquals(0, mPool.getHitCount());
+    }
+
+    @Test
+    public void keepsItsOwnCopyOfTheContent() {
+        byte[] content = ScanTraces.offerContent("Shoes", "10% off");
+        OfferBeacon beacon = mPool.get(content);
+        //The caller reusing its buffer must not change what is pooled
+        content[content.length - 3] = 'X';
+        assertSame(beacon, mPool.get(ScanTraces.offerContent("Shoes", "10% off")));
+        assertEquals("10% ofX", mPool.get(content).offer);
+    }
+
+    @Test
+    public void rejectsInvalidContentEveryTime() {
+        byte[] content = "{\"section\":\"Shoes\"}".getBytes();
+        for (int i = 0; i < 2; i++) {
+            try {
+                mPool.get(content);
+                fail();
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        //Nothing was pooled for it
+        assertEquals(2, mPool.getMissCount());
+        assertEquals(0, mPool.getHitCount());
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsed() {
+        //One set of two entries
+        OfferBeaconPool pool = new OfferBeaconPool(2);
+        OfferBeacon a = pool.get(ScanTraces.offerContent("A", "a"));
+        OfferBeacon b = pool.get(ScanTraces.offerContent("B", "b"));
+        assertSame(a, pool.get(ScanTraces.offerContent("A", "a")));
+        pool.get(ScanTraces.offerContent("C", "c"));
+
+        assertSame(a, pool.get(ScanTraces.offerContent("A", "a")));
+        assertNotSame(b, pool.get(ScanTraces.offerContent("B", "b")));
+        assertEquals(2, pool.getHitCount());
+        assertEquals(4, pool.getMissCount());
+    }
+
+    @Test
+    public void staysWithinCapacity() {
+        //A working set well inside the pool is almost all hits
+        for (int round = 0; round < 100; round++) {
+            for (int i = 0; i < 64; i++) {
+                mPool.get(ScanTraces.offerContent("Section " + i, "Offer " + i));
+            }
+        }
+        assertTrue(mPool.getHitRate() > 0.95f);
+
+        //Far more distinct offers than entries cannot all stay
+        OfferBeaconPool small = new OfferBeaconPool(16);
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 1000; i++) {
+                small.get(ScanTraces.offerContent("Section " + i, "Offer " + i));
+            }
+        }
+        assertTrue(small.getHitRate() < 0.05f);
+    }
+
+    @Test
+    public void clearDropsEntriesButKeepsStats() {
+        OfferBeacon beacon = mPool.get(ScanTraces.offerContent("Shoes", "10% off"));
+        mPool.clear();
+        assertNotSame(beacon, mPool.get(ScanTraces.offerContent("Shoes", "10% off")));
+        assertEquals(2, mPool.getMissCount());
+    }
+
+    @Test
+    public void hitsWithoutAllocating() {
+        assumeTrue(Allocations.isSupported());
+        final byte[] content = ScanTraces.offerContent("Shoes", "10% off");
+        mPool.get(content);
+        long allocated = Allocations.measure(new Runnable() {
+            @Override
+            public void run() {
+                mPool.get(content);
+            }
+        }, 1000000);
+        assertTrue("Allocated " + allocated + " bytes", allocated < 100000);
+    }
+
+    /** Threads racing on the same offers always get a correctly parsed beacon */
+    @Test
+    public void servesConcurrentLookups() throws Exception {
+        final OfferBeaconPool pool = new OfferBeaconPool(8);
+        final CountDownLatch done = new CountDownLatch(4);
+        final AtomicReference<String> failure = new AtomicReference<>();
+        for (int t = 0; t < 4; t++) {
+            final int seed = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 20000; i++) {
+                        //More offers than entries, so lookups race with eviction
+                        int offer = (i * 7 + seed) % 12;
+                        OfferBeacon beacon = pool.get(
+                                ScanTraces.offerContent("Section " + offer, "Offer " + offer));
+                        if (!beacon.offer.equals("Offer " + offer)) {
+                            failure.set(beacon.offer + " for offer " + offer);
+                        }
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        assertNull(failure.get());
+        assertEquals(80000, pool.getHitCount() + pool.getMissCount());
+    }
+}
@@ -0,0 +1,182 @@
+package com.example.android.nearbybeacons;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class OfferSnapshotTest {
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void roundTripsOffersInOrder() throws IOException {
+        File file = new File(mFolder.getRoot(), "offers");
+        List<OfferBeacon> offers = Arrays.asList(
+                new OfferBeacon("Bakery", "2 for 1 on croissants"),
+                new OfferBeacon("Caf\u00e9", "\u20ac1 off, \u2615 included"),
+                new OfferBeacon("", ""));
+        OfferSnapshot.write(file, offers);
+
+        OfferSnapshot snapshot = OfferSnapshot.open(file);
+        assertEquals(3, snapshot.size());
+        assertEquals(Arrays.asList("Bakery/2 for 1 on croissants",
+                "Caf\u00e9/\u20ac1 off, \u2615 included", "/"), describe(snapshot.getAll()));
+        //Single fields, without decoding the rest
+        assertEquals("Caf\u00e9", snapshot.getSection(1));
+        assertEquals("2 for 1 on croissants", snapshot.getOffer(0));
+        assertEquals("Bakery", snapshot.get(0).section);
+        //A list view that decodes each offer as it is read
+        List<OfferBeacon> view = snapshot.asList();
+        assertEquals(3, view.size());
+        assertEquals("\u20ac1 off, \u2615 included", view.get(1).offer);
+        assertEquals(describe(snapshot.getAll()), describe(view));
+        assertEquals("OfferSnapshot[3 offers, " + file.length() + " bytes]",
+                snapshot.toString());
+    }
+
+    @Test
+    public void writesEmptySnapshots() throws IOException {
+        File file = new File(mFolder.getRoot(), "offers");
+        OfferSnapshot.write(file, Collections.<OfferBeacon>emptyList());
+        OfferSnapshot snapshot = OfferSnapshot.open(file);
+        assertEquals(0, snapshot.size());
+        assertEquals(0, snapshot.getAll().size());
+    }
+
+    @Test
+    public void leavesOutOffersTooLongToStore() throws IOException {
+        File file = new File(mFolder.getRoot(), "offers");
+        char[] longest = new char[0xFFFF];
+        Arrays.fill(longest, 'x');
+        OfferSnapshot.write(file, Arrays.asList(
+                new OfferBeacon("a", new String(longest) + "x"),
+                new OfferBeacon("b", new String(longest)),
+                new OfferBeacon(new String(longest) + "x", "c")));
+        OfferSnapshot snapshot = OfferSnapshot.open(file);
+        assertEquals(1, snapshot.size());
+        assertEquals("b", snapshot.getSection(0));
+        assertEquals(0xFFFF, snapshot.getOffer(0).length());
+    }
+
+    /** A rewrite replaces the old snapshot whole, leaving nothing else behind */
+    @Test
+    public void replacesPreviousSnapshots() throws IOException {
+        File file = new File(mFolder.getRoot(), "offers");
+        List<OfferBeacon> offers = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            offers.add(new OfferBeacon("Section " + i, "Offer " + i));
+        }
+        OfferSnapshot.write(file, offers);
+        OfferSnapshot.write(file, offers.subList(0, 2));
+
+        assertEquals(Collections.singletonList(file), Arrays.asList(mFolder.getRoot().listFiles()));
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+        assertEquals(Arrays.asList("Section 0/Offer 0", "Section 1/Offer 1"),
+                describe(OfferSnapshot.open(file).getAll()));
+    }
+
+    @Test
+    public void rejectsIndicesOutOfRange() throws IOException {
+        File file = new File(mFolder.getRoot(), "offers");
+        OfferSnapshot.write(file, Collections.singletonList(new OfferBeacon("a", "b")));
+        OfferSnapshot snapshot = OfferSnapshot.open(file);
+        for (int index : new int[]{-1, 1}) {
+            try {
+                snapshot.get(index);
+                fail(Integer.toString(index));
+            } catch (IndexOutOfBoundsException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void rejectsMissingAndMalformedFiles() throws IOException {
+        File file = new File(mFolder.getRoot(), "offers");
+        assertMalformed(file);
+
+        write(file, new byte[0]);
+        assertMalformed(file);
+        write(file, "not a snapshot at all".getBytes("UTF-8"));
+        assertMalformed(file);
+
+        OfferSnapshot.write(file, Arrays.asList(
+                new OfferBeacon("Bakery", "2 for 1"), new OfferBeacon("Deli", "Free olives")));
+        byte[] valid = readAll(file);
+        //Newer version
+        byte[] corrupt = valid.clone();
+        corrupt[7] = 2;
+        write(file, corrupt);
+        assertMalformed(file);
+        //More entries than could fit
+        corrupt = valid.clone();
+        corrupt[10] = 1;
+        write(file, corrupt);
+        assertMalformed(file);
+        //Entry offset pointing into the table
+        corrupt = valid.clone();
+        corrupt[15] = 0;
+        write(file, corrupt);
+        assertMalformed(file);
+        //String longer than the file
+        corrupt = valid.clone();
+        corrupt[20] = (byte) 0xFF;
+        write(file, corrupt);
+        assertMalformed(file);
+        //Cut short
+        write(file, Arrays.copyOf(valid, valid.length - 1));
+        assertMalformed(file);
+
+        write(file, valid);
+        assertEquals(2, OfferSnapshot.open(file).size());
+    }
+
+    private static void assertMalformed(File file) {
+        try {
+            OfferSnapshot.open(file);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    private static List<String> describe(List<OfferBeacon> offers) {
+        List<String> described = new ArrayList<>();
+        for (OfferBeacon offer : offers) {
+            described.add(offer.section + "/" + offer.offer);
+        }
+        return described;
+    }
+
+    private static void write(File file, byte[] content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] content = new byte[(int) raf.length()];
+            raf.readFully(content);
+            return content;
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.example.android.nearbybeacons;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ScanIngestionQueueTest {
+
+    /* Copies of everything delivered, and the batch sizes */
+    private static class Collector implements ScanIngestionQueue.Sink {
+        final List<BeaconSighting> sightings = new ArrayList<>();
+        final List<Integer> batches = new ArrayList<>();
+
+        @Override
+        public void onSighting(BeaconSighting sighting) {
+            BeaconSighting copy = new BeaconSighting();
+            copy.set(sighting);
+            sightings.add(copy);
+        }
+
+        @Override
+        public void onBatchComplete(int count) {
+            batches.add(count);
+        }
+    }
+
+    private final EddystoneFrame mFrame = new EddystoneFrame();
+
+    private boolean offer(ScanIngestionQueue queue, long timestamp, long address, int type) {
+        mFrame.type = type;
+        mFrame.idLow = timestamp;
+        return queue.offer(timestamp, address, -60, mFrame);
+    }
+
+    @Test
+    public void drainsInOrderInBatches() {
+        ScanIngestionQueue queue =
+                new ScanIngestionQueue(16, 4, ScanIngestionQueue.OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(offer(queue, i, i, EddystoneFrame.TYPE_UID));
+        }
+        assertEquals(10, queue.size());
+
+        Collector collector = new Collector();
+        assertEquals(4, queue.drain(collector));
+        assertEquals(4, queue.drain(collector));
+        assertEquals(2, queue.drain(collector));
+        assertEquals(0, queue.drain(collector));
+
+        assertEquals(10, collector.sightings.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, collector.sightings.get(i).timestamp);
+            assertEquals(i, collector.sightings.get(i).frame.idLow);
+        }
+        //An empty drain completes no batch
+        assertEquals("[4, 4, 2]", collector.batches.toString());
+        assertEquals(10, queue.getEnqueuedCount());
+        assertEquals(10, queue.getDrainedCount());
+        assertEquals(0, queue.getDroppedCount());
+    }
+
+    @Test
+    public void dropsOldestWhenFull() {
+        ScanIngestionQueue queue =
+                new ScanIngestionQueue(4, 8, ScanIngestionQueue.OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(offer(queue, i, 1, EddystoneFrame.TYPE_UID));
+        }
+        assertFalse(offer(queue, 4, 1, EddystoneFrame.TYPE_UID));
+        assertFalse(offer(queue, 5, 1, EddystoneFrame.TYPE_UID));
+
+        Collector collector = new Collector();
+        queue.drain(collector);
+        assertEquals(4, collector.sightings.size());
+        assertEquals(2, collector.sightings.get(0).timestamp);
+        assertEquals(5, collector.sightings.get(3).timestamp);
+        assertEquals(6, queue.getEnqueuedCount());
+        assertEquals(2, queue.getDroppedCount());
+    }
+
+    @Test
+    public void coalescesSameDeviceAndTypeWhenFull() {
+        ScanIngestionQueue queue =
+                new ScanIngestionQueue(4, 8, ScanIngestionQueue.OverflowPolicy.COALESCE);
+        offer(queue, 0, 0xA, EddystoneFrame.TYPE_UID);
+        offer(queue, 1, 0xA, EddystoneFrame.TYPE_TLM);
+        offer(queue, 2, 0xB, EddystoneFrame.TYPE_UID);
+        //Not full yet, so a repeat is queued rather than coalesced
+        assertTrue(offer(queue, 3, 0xA, EddystoneFrame.TYPE_UID));
+
+        //Replaces the newest pending UID sighting from A
+        assertFalse(offer(queue, 4, 0xA, EddystoneFrame.TYPE_UID));
+        //Nothing pending from C, so the oldest goes
+        assertFalse(offer(queue, 5, 0xC, EddystoneFrame.TYPE_UID));
+
+        Collector collector = new Collector();
+        queue.drain(collector);
+        assertEquals(4, collector.sightings.size());
+        assertEquals(1, collector.sightings.get(0).timestamp);
+        assertEquals(2, collector.sightings.get(1).timestamp);
+        assertEquals(4, collector.sightings.get(2).timestamp);
+        assertEquals(4, collector.sightings.get(2).frame.idLow);
+        assertEquals(5, collector.sightings.get(3).timestamp);
+        assertEquals(1, queue.getCoalescedCount());
+        assertEquals(1, queue.getDroppedCount());
+    }
+
+    @Test
+    public void sinkFailuresLoseOnlyTheirSighting() {
+        Logger.getLogger("ScanIngestion").setLevel(Level.OFF);
+        ScanIngestionQueue queue =
+                new ScanIngestionQueue(8, 8, ScanIngestionQueue.OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 5; i++) {
+            offer(queue, i, i, EddystoneFrame.TYPE_UID);
+        }
+
+        final List<Long> delivered = new ArrayList<>();
+        final int[] batches = new int[1];
+        assertEquals(5, queue.drain(new ScanIngestionQueue.Sink() {
+            @Override
+            public void onSighting(BeaconSighting sighting) {
+                if (sighting.timestamp % 2 == 1) throw new IllegalStateException("Odd");
+                delivered.add(sighting.timestamp);
+            }
+
+            @Override
+            public void onBatchComplete(int count) {
+                batches[0]++;
+                throw new IllegalStateException("Batch");
+            }
+        }));
+        assertEquals("[0, 2, 4]", delivered.toString());
+        assertEquals(1, batches[0]);
+        assertEquals(3, queue.getFailedCount());
+    }
+
+    @Test
+    public void consumerThreadDrainsSyntheticTrace() throws Exception {
+        final int records = 20000;
+        final ScanIngestionQueue queue =
+                new ScanIngestionQueue(256, 32, ScanIngestionQueue.OverflowPolicy.DROP_OLDEST);
+        final CountDownLatch done = new CountDownLatch(1);
+        final long[] seen = new long[2];
+        queue.start(new ScanIngestionQueue.Sink() {
+            private long mLast = -1;
+
+            @Override
+            public void onSighting(BeaconSighting sighting) {
+                //Whatever is dropped, the rest arrive in order
+                assertTrue(sighting.timestamp > mLast);
+                mLast = sighting.timestamp;
+                seen[0]++;
+                if (sighting.timestamp == records - 1) done.countDown();
+            }
+
+            @Override
+            public void onBatchComplete(int count) {
+                seen[1] += count;
+            }
+        });
+
+        produce(queue, ScanTraces.trace(100, records, 7));
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        queue.stop();
+
+        assertEquals(records, queue.getEnqueuedCount());
+        assertEquals(records, queue.getDrainedCount() + queue.getDroppedCount());
+        assertEquals(queue.getDrainedCount(), seen[0]);
+        assertEquals(seen[0], seen[1]);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void idleConsumerCallsBack() throws InterruptedException {
+        ScanIngestionQueue queue =
+                new ScanIngestionQueue(8, 8, ScanIngestionQueue.OverflowPolicy.DROP_OLDEST);
+        final CountDownLatch idle = new CountDownLatch(3);
+        queue.start(new ScanIngestionQueue.Sink() {
+            @Override
+            public void onSighting(BeaconSighting sighting) {
+            }
+
+            @Override
+            public void onBatchComplete(int count) {
+                if (count == 0) idle.countDown();
+            }
+        }, 10);
+        assertTrue(idle.await(5, TimeUnit.SECONDS));
+        //The consumer owns the batch buffer while it runs
+        try {
+            queue.drain(new Collector());
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        queue.stop();
+        assertEquals(0, queue.drain(new Collector()));
+    }
+
+    @Test
+    public void packsAddresses() {
+        long packed = BeaconSighting.parseAddress("00:1a:2B:3c:4D:ff");
+        assertEquals(0x001A2B3C4DFFL, packed);
+        assertEquals("00:1A:2B:3C:4D:FF", BeaconSighting.formatAddress(packed));
+    }
+
+    /* Decode each result of the trace and offer it, as the scan callback does */
+    private static void produce(final ScanIngestionQueue queue, byte[] trace)
+            throws IOException {
+        final EddystoneFrame frame = new EddystoneFrame();
+        final long[] index = new long[1];
+        new ScanTraceReader(new ByteArrayInputStream(trace)).replay(new ScanTraceReader.Visitor() {
+            @Override
+            public void onScanResult(long timestampNanos, long address, int rssi,
+                                     byte[] scanRecord, int length) {
+                assertTrue(EddystoneFrameDecoder.decodeScanRecord(scanRecord, length, frame));
+                //Sequence numbers as timestamps, so order can be checked
+                queue.offer(index[0]++, address, rssi, frame);
+            }
+        });
+    }
+}
@@ -0,0 +1,231 @@
+package com.example.android.nearbybeacons;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScanSchedulerTest {
+
+    private static final long MINUTE = 60 * 1000;
+
+    @Test
+    public void startsQuiet() {
+        ScanScheduler scheduler = new ScanScheduler(true);
+        assertFalse(scheduler.evaluate(0));
+        assertEquals(ScanScheduler.STATE_QUIET, scheduler.getState());
+        assertEquals(ScanScheduler.MODE_LOW_POWER, scheduler.getScanMode());
+        assertTrue(scheduler.isScanning());
+        assertEquals(5000, scheduler.getReportDelay());
+
+        //Without hardware batching results are always delivered at once
+        assertEquals(0, new ScanScheduler(false).getReportDelay());
+    }
+
+    @Test
+    public void scansAtLowLatencyInTheForeground() {
+        ScanScheduler scheduler = new ScanScheduler(true);
+        scheduler.setForeground(true, 0);
+        assertTrue(scheduler.evaluate(0));
+        assertEquals(ScanScheduler.STATE_INTERACTIVE, scheduler.getState());
+        assertEquals(ScanScheduler.MODE_LOW_LATENCY, scheduler.getScanMode());
+        assertEquals(0, scheduler.getReportDelay());
+
+        //Foreground behind a screen that is off is not interactive
+        scheduler.setScreenOn(false, 1000);
+        assertTrue(scheduler.evaluate(1000));
+        assertEquals(ScanScheduler.STATE_QUIET, scheduler.getState());
+        scheduler.setScreenOn(true, 2000);
+        assertTrue(scheduler.evaluate(2000));
+        assertEquals(ScanScheduler.STATE_INTERACTIVE, scheduler.getState());
+    }
+
+    /** Beacons coming and going make it busy until churn has been gone for the hold time */
+    @Test
+    public void scansBalancedWhileBusy() {
+        ScanScheduler scheduler = new ScanScheduler(true);
+        scheduler.onSighting(0, 0, true);
+        scheduler.onSighting(1000, 1000, true);
+        scheduler.onSighting(1500, 1500, false);
+        assertFalse(scheduler.evaluate(1500));
+        scheduler.onLost(2000);
+        assertTrue(scheduler.evaluate(2000));
+        assertEquals(ScanScheduler.STATE_BUSY, scheduler.getState());
+        assertEquals(ScanScheduler.MODE_BALANCED, scheduler.getScanMode());
+        assertEquals(0, scheduler.getReportDelay());
+
+        assertFalse(scheduler.evaluate(2000 + 29999));
+        assertEquals(ScanScheduler.STATE_BUSY, scheduler.getState());
+        assertTrue(scheduler.evaluate(2000 + 30000));
+        assertEquals(ScanScheduler.STATE_QUIET, scheduler.getState());
+    }
+
+    @Test
+    public void ignoresChurnWithTheScreenOff() {
+        ScanScheduler scheduler = new ScanScheduler(true);
+        scheduler.setScreenOn(false, 0);
+        for (int i = 0; i < 10; i++) {
+            scheduler.onSighting(i * 100, i * 100, true);
+        }
+        assertFalse(scheduler.evaluate(1000));
+        assertEquals(ScanScheduler.STATE_QUIET, scheduler.getState());
+    }
+
+    @Test
+    public void dutyCyclesWhenNothingIsSeen() {
+        ScanScheduler scheduler = new ScanScheduler(true);
+        scheduler.evaluate(0);
+        assertFalse(scheduler.evaluate(MINUTE - 1));
+        assertEquals(ScanScheduler.STATE_QUIET, scheduler.getState());
+
+        //Same mode and report delay, so the running scan carries on
+        assertFalse(scheduler.evaluate(MINUTE));
+        assertEquals(ScanScheduler.STATE_DUTY_ON, scheduler.getState());
+        assertEquals(MINUTE + 10000, scheduler.getNextEvaluation(MINUTE));
+
+        assertTrue(scheduler.evaluate(MINUTE + 10000));
+        assertEquals(ScanScheduler.STATE_DUTY_OFF, scheduler.getState());
+        assertFalse(scheduler.isScanning());
+        assertEquals(MINUTE + 60000, scheduler.getNextEvaluation(MINUTE + 10000));
+        assertFalse(scheduler.evaluate(MINUTE + 59999));
+        assertTrue(scheduler.evaluate(MINUTE + 60000));
+        assertEquals(ScanScheduler.STATE_DUTY_ON, scheduler.getState());
+
+        //A known beacon turning up again ends the cycle
+        scheduler.onSighting(MINUTE + 61000, MINUTE + 61000, false);
+        scheduler.evaluate(MINUTE + 61000);
+        assertEquals(ScanScheduler.STATE_QUIET, scheduler.getState());
+    }
+
+    @Test
+    public void accountsRadioTimeByMode() {
+        ScanScheduler scheduler = new ScanScheduler(false);
+        scheduler.evaluate(0);
+        scheduler.setForeground(true, 10000);
+        scheduler.evaluate(10000);
+        scheduler.setForeground(false, 20000);
+        scheduler.evaluate(20000);
+        scheduler.evaluate(90000);
+        scheduler.evaluate(100000);
+        scheduler.evaluate(150000);
+
+        assertEquals(20000 + 60000, scheduler.getStateMillis(ScanScheduler.STATE_QUIET));
+        assertEquals(10000, scheduler.getStateMillis(ScanScheduler.STATE_INTERACTIVE));
+        assertEquals(10000, scheduler.getStateMillis(ScanScheduler.STATE_DUTY_ON));
+        assertEquals(50000, scheduler.getStateMillis(ScanScheduler.STATE_DUTY_OFF));
+        //Low power listens a tenth of the time, low latency all of it, off not at all
+        assertEquals(8000 + 10000 + 1000, scheduler.getRadioOnMillis());
+    }
+
+    @Test
+    public void measuresDiscoveryLatency() {
+        ScanScheduler scheduler = new ScanScheduler(true);
+        scheduler.onSighting(5000, 2000, true);
+        scheduler.onSighting(6000, 2000, false);
+        scheduler.onSighting(9000, 8000, true);
+        //A radio timestamp after the delivery time counts as immediate
+        scheduler.onSighting(9000, 9500, true);
+        assertEquals(3, scheduler.getDiscoveryCount());
+        assertEquals(1333, scheduler.getAverageDiscoveryLatency());
+        assertEquals(3000, scheduler.getMaxDiscoveryLatency());
+        scheduler.evaluate(9000);
+        assertEquals("ScanScheduler[busy, 1 transitions, 400ms radio on, 3 discoveries, "
+                + "1333ms avg latency, 3000ms max latency]", scheduler.toString());
+    }
+
+    /**
+     * An hour at a shop with the app in the background: a few fixtures,
+     * a rush of shoppers' beacons, a long empty stretch and one late
+     * arrival. Everything is found, quickly while anything is happening,
+     * for far less radio time than scanning continuously at low power.
+     */
+    @Test
+    public void tradesLatencyForRadioTimeOverATrace() {
+        List<long[]> trace = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            trace.add(new long[]{i * 1000, 5 * MINUTE});
+        }
+        for (int i = 0; i < 12; i++) {
+            long appeared = 10 * MINUTE + i * 2000;
+            trace.add(new long[]{appeared, appeared + 2 * MINUTE});
+        }
+        trace.add(new long[]{40 * MINUTE + 7000, 45 * MINUTE});
+        ScanScheduler scheduler = new ScanScheduler(true);
+        simulate(scheduler, trace, 60 * MINUTE);
+
+        assertEquals(trace.size(), scheduler.getDiscoveryCount());
+        assertTrue(scheduler.getStateMillis(ScanScheduler.STATE_BUSY) > 0);
+        assertTrue(scheduler.getStateMillis(ScanScheduler.STATE_DUTY_OFF) > 30 * MINUTE);
+        //Only the late arrival, turning up while the radio was off, waits long
+        assertTrue(scheduler.toString(), scheduler.getMaxDiscoveryLatency() <= 60000);
+        assertTrue(scheduler.toString(), scheduler.getAverageDiscoveryLatency() <= 10000);
+        long continuousLowPower = 60 * MINUTE / 10;
+        assertTrue(scheduler.toString(),
+                scheduler.getRadioOnMillis() < continuousLowPower / 2);
+    }
+
+    /*
+     * Step through a trace of {appeared, left} intervals a second at a
+     * time, as the scanner service would see them. The radio hears a
+     * beacon after the mode's typical discovery time; with a report
+     * delay the result waits in the controller until the delay passes or
+     * the scan stops and is flushed. Known beacons are reported every
+     * step until they leave.
+     */
+    private static void simulate(ScanScheduler scheduler, List<long[]> trace, long end) {
+        int count = trace.size();
+        boolean[] seen = new boolean[count];
+        long[] audibleSince = new long[count];
+        long[] heardAt = new long[count];
+        Arrays.fill(audibleSince, -1);
+        Arrays.fill(heardAt, -1);
+        for (long now = 0; now < end; now += 1000) {
+            for (int i = 0; i < count; i++) {
+                long[] beacon = trace.get(i);
+                if (now < beacon[0] || now >= beacon[1]) {
+                    if (seen[i]) scheduler.onLost(now);
+                    seen[i] = false;
+                    audibleSince[i] = -1;
+                    heardAt[i] = -1;
+                } else if (seen[i]) {
+                    if (scheduler.isScanning()) scheduler.onSighting(now, beacon[0], false);
+                } else if (scheduler.isScanning()) {
+                    if (audibleSince[i] < 0) audibleSince[i] = now;
+                    if (heardAt[i] < 0 && now - audibleSince[i] >= discoveryTime(scheduler)) {
+                        heardAt[i] = now;
+                    }
+                    if (heardAt[i] >= 0 && now - heardAt[i] >= scheduler.getReportDelay()) {
+                        seen[i] = true;
+                        scheduler.onSighting(now, beacon[0], true);
+                    }
+                }
+            }
+            scheduler.evaluate(now);
+            if (!scheduler.isScanning()) {
+                for (int i = 0; i < count; i++) {
+                    if (heardAt[i] >= 0 && !seen[i]) {
+                        seen[i] = true;
+                        scheduler.onSighting(now, trace.get(i)[0], true);
+                    }
+                    audibleSince[i] = -1;
+                }
+            }
+        }
+    }
+
+    private static long discoveryTime(ScanScheduler scheduler) {
+        switch (scheduler.getScanMode()) {
+            case ScanScheduler.MODE_LOW_LATENCY:
+                return 0;
+            case ScanScheduler.MODE_BALANCED:
+                return 1000;
+            default:
+                return 5000;
+        }
+    }
+}
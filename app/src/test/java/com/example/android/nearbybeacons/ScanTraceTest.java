@@ -0,0 +1,112 @@
+package com.example.android.nearbybeacons;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ScanTraceTest {
+
+    /* Everything a visitor was given, copied out of the reused buffer */
+    private static class Recorder implements ScanTraceReader.Visitor {
+        final List<long[]> results = new ArrayList<>();
+        final List<byte[]> records = new ArrayList<>();
+
+        @Override
+        public void onScanResult(long timestampNanos, long address, int rssi,
+                                 byte[] scanRecord, int length) {
+            results.add(new long[]{timestampNanos, address, rssi});
+            records.add(Arrays.copyOf(scanRecord, length));
+        }
+    }
+
+    @Test
+    public void replaysWhatWasWritten() throws IOException {
+        byte[] uid = ScanTraces.uidRecord(ScanTraces.NAMESPACE_HIGH, ScanTraces.idLow(7), -20);
+        byte[] tlm = ScanTraces.tlmRecord(2900, 0x1780, 12, 34);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ScanTraceWriter writer = new ScanTraceWriter(bytes);
+        writer.write(5000000000L, 0xAABBCCDDEEFFL, -71, uid);
+        //Timestamps may go backwards, e.g. across batched results
+        writer.write(4999000000L, 0x112233445566L, -90, tlm);
+        writer.write(6000000000L, 0x010203040506L, -40, null);
+        writer.close();
+        assertEquals(3, writer.getRecordCount());
+
+        Recorder recorder = new Recorder();
+        ScanTraceReader reader = new ScanTraceReader(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(3, reader.replay(recorder));
+        assertFalse(reader.isTruncated());
+
+        assertArrayEquals(new long[]{5000000000L, 0xAABBCCDDEEFFL, -71}, recorder.results.get(0));
+        assertArrayEquals(new long[]{4999000000L, 0x112233445566L, -90}, recorder.results.get(1));
+        assertArrayEquals(new long[]{6000000000L, 0x010203040506L, -40}, recorder.results.get(2));
+        assertArrayEquals(uid, recorder.records.get(0));
+        assertArrayEquals(tlm, recorder.records.get(1));
+        assertEquals(0, recorder.records.get(2).length);
+    }
+
+    @Test
+    public void replayedRecordsDecode() throws IOException {
+        byte[] trace = ScanTraces.trace(16, 1000, 1);
+        final EddystoneFrame frame = new EddystoneFrame();
+        final int[] counts = new int[2];
+        new ScanTraceReader(new ByteArrayInputStream(trace)).replay(new ScanTraceReader.Visitor() {
+            @Override
+            public void onScanResult(long timestampNanos, long address, int rssi,
+                                     byte[] scanRecord, int length) {
+                assertTrue(EddystoneFrameDecoder.decodeScanRecord(scanRecord, length, frame));
+                if (frame.type == EddystoneFrame.TYPE_UID) {
+                    assertEquals(ScanTraces.NAMESPACE_HIGH, frame.idHigh);
+                    assertEquals(ScanTraces.address(ScanTraces.instanceOf(frame.idLow)),
+                            address);
+                    counts[0]++;
+                } else {
+                    assertEquals(EddystoneFrame.TYPE_TLM, frame.type);
+                    counts[1]++;
+                }
+            }
+        });
+        assertEquals(1000, counts[0] + counts[1]);
+        assertTrue(counts[0] > counts[1]);
+    }
+
+    @Test
+    public void tornFinalRecordEndsQuietly() throws IOException {
+        byte[] trace = ScanTraces.trace(4, 10, 1);
+        byte[] torn = Arrays.copyOf(trace, trace.length - 5);
+
+        ScanTraceReader reader = new ScanTraceReader(new ByteArrayInputStream(torn));
+        assertEquals(9, reader.replay(new Recorder()));
+        assertTrue(reader.isTruncated());
+    }
+
+    @Test
+    public void rejectsOtherFiles() {
+        try {
+            new ScanTraceReader(new ByteArrayInputStream(new byte[]{1, 2, 3, 4, 0, 0, 0, 1}));
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void replaysAtSpeed() throws IOException {
+        //One second of trace at 20x takes about 50ms
+        byte[] trace = ScanTraces.trace(4, 101, 1);
+        long start = System.nanoTime();
+        new ScanTraceReader(new ByteArrayInputStream(trace)).replay(new Recorder(), 20);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        assertTrue("Replayed in " + elapsedMillis + "ms", elapsedMillis >= 45);
+    }
+}
@@ -0,0 +1,228 @@
+package com.example.android.nearbybeacons;
+
+import android.util.Base64;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Synthetic Eddystone advertisements and scan traces, shared by the
+ * tests and the benchmarks.
+ *
+ * Beacon i of a trace has the namespace {@link #NAMESPACE} and the
+ * instance i, so {@link #instanceOf(long)} recovers i from its id.
+ */
+final class ScanTraces {
+
+    /** Namespace of every generated beacon, as 20 hex digits */
+    static final String NAMESPACE = "edd1ebeac04e5defa017";
+    static final long NAMESPACE_HIGH = 0xedd1ebeac04e5defL;
+    static final long NAMESPACE_LOW = 0xa017L << 48;
+
+    static final int TX_POWER = -20;
+    // Scan results are this far apart in generated traces
+    static final long RECORD_INTERVAL_NANOS = 10 * 1000 * 1000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private ScanTraces() {
+        //No instances
+    }
+
+    static long idLow(int instance) {
+        return NAMESPACE_LOW | instance;
+    }
+
+    static int instanceOf(long idLow) {
+        return (int) (idLow & 0xFFFFFFFFFFFFL);
+    }
+
+    /** Raw advertisement of a UID frame: flags, service list, service data */
+    static byte[] uidRecord(long idHigh, long idLow, int txPower) {
+        byte[] data = new byte[18];
+        data[0] = (byte) EddystoneFrame.TYPE_UID;
+        data[1] = (byte) txPower;
+        writeLong(data, 2, idHigh);
+        writeLong(data, 10, idLow);
+        return advertisement(data);
+    }
+
+    /** Raw advertisement of an unencrypted TLM frame */
+    static byte[] tlmRecord(int batteryMillivolts, int temperature, long advertisingCount,
+                            long uptimeTenths) {
+        byte[] data = new byte[14];
+        data[0] = (byte) EddystoneFrame.TYPE_TLM;
+        data[2] = (byte) (batteryMillivolts >> 8);
+        data[3] = (byte) batteryMillivolts;
+        data[4] = (byte) (temperature >> 8);
+        data[5] = (byte) temperature;
+        writeInt(data, 6, advertisingCount);
+        writeInt(data, 10, uptimeTenths);
+        return advertisement(data);
+    }
+
+    /** Raw advertisement of a URL frame carrying already encoded bytes */
+    static byte[] urlRecord(int scheme, byte[] encoded, int txPower) {
+        byte[] data = new byte[3 + encoded.length];
+        data[0] = (byte) EddystoneFrame.TYPE_URL;
+        data[1] = (byte) txPower;
+        data[2] = (byte) scheme;
+        System.arraycopy(encoded, 0, data, 3, encoded.length);
+        return advertisement(data);
+    }
+
+    /** Raw advertisement of an EID frame */
+    static byte[] eidRecord(long ephemeralId, int txPower) {
+        byte[] data = new byte[10];
+        data[0] = (byte) EddystoneFrame.TYPE_EID;
+        data[1] = (byte) txPower;
+        writeLong(data, 2, ephemeralId);
+        return advertisement(data);
+    }
+
+    /** A random but repeatable 16-byte EID identity key */
+    static byte[] identityKey(int seed) {
+        byte[] key = new byte[16];
+        new Random(seed).nextBytes(key);
+        return key;
+    }
+
+    /**
+     * The EID a beacon broadcasts at the given beacon time, computed
+     * step by step as in the Eddystone-EID specification.
+     */
+    static long eid(byte[] identityKey, int exponent, long beaconTime)
+            throws GeneralSecurityException {
+        int timestamp = (int) ((beaconTime >>> exponent) << exponent);
+        Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+        byte[] tempKeyData = new byte[16];
+        tempKeyData[11] = (byte) 0xFF;
+        tempKeyData[14] = (byte) (timestamp >>> 24);
+        tempKeyData[15] = (byte) (timestamp >>> 16);
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(identityKey, "AES"));
+        byte[] tempKey = cipher.doFinal(tempKeyData);
+
+        byte[] eidData = new byte[16];
+        eidData[11] = (byte) exponent;
+        eidData[12] = (byte) (timestamp >>> 24);
+        eidData[13] = (byte) (timestamp >>> 16);
+        eidData[14] = (byte) (timestamp >>> 8);
+        eidData[15] = (byte) timestamp;
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(tempKey, "AES"));
+        byte[] eid = cipher.doFinal(eidData);
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (eid[i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * A trace of the given number of results from this many beacons,
+     * each picked at random: mostly UID frames, one in five TLM frames
+     * from the same device, with a noisy RSSI.
+     */
+    static byte[] trace(int beacons, int records, long seed) throws IOException {
+        Random random = new Random(seed);
+        byte[][] uid = new byte[beacons][];
+        byte[][] tlm = new byte[beacons][];
+        for (int i = 0; i < beacons; i++) {
+            uid[i] = uidRecord(NAMESPACE_HIGH, idLow(i), TX_POWER);
+            tlm[i] = tlmRecord(3000 - i % 700, 0x1780, i * 1000L, i * 10L);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(records * 40);
+        ScanTraceWriter writer = new ScanTraceWriter(bytes);
+        for (int r = 0; r < records; r++) {
+            int beacon = random.nextInt(beacons);
+            int rssi = -55 - (beacon % 30) - random.nextInt(12);
+            byte[] record = random.nextInt(5) == 0 ? tlm[beacon] : uid[beacon];
+            writer.write(r * RECORD_INTERVAL_NANOS, address(beacon), rssi, record);
+        }
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    /** A made-up device address for the beacon, packed */
+    static long address(int beacon) {
+        return 0xC0FFEE000000L | beacon;
+    }
+
+    /** Nearby message content for an offer, as attached to a beacon */
+    static byte[] offerContent(String section, String offer) {
+        return ("{\"section\":\"" + section + "\",\"latest_offer\":\"" + offer + "\"}")
+                .getBytes(UTF_8);
+    }
+
+    /** The 16-byte advertised id of the beacon, namespace then instance */
+    static byte[] advertisedId(int beacon) {
+        byte[] id = new byte[16];
+        writeLong(id, 0, NAMESPACE_HIGH);
+        writeLong(id, 8, idLow(beacon));
+        return id;
+    }
+
+    /**
+     * A getforobserved response body of about the given size: one entry
+     * per beacon, in order from beacon 0, each with an offer attachment
+     * and the other fields the API returns.
+     */
+    static byte[] observedResponse(int size) {
+        StringBuilder json = new StringBuilder(size + 1024);
+        json.append("{\"beacons\":[");
+        for (int i = 0; json.length() < size; i++) {
+            if (i > 0) json.append(',');
+            json.append("{\"advertisedId\":{\"type\":\"EDDYSTONE\",\"id\":\"")
+                    .append(ObservedCodec.encodeId(advertisedId(i)))
+                    .append("\"},\"beaconName\":\"beacons/3!")
+                    .append(NAMESPACE).append(String.format("%012x", i))
+                    .append("\",\"description\":\"Aisle ").append(i)
+                    .append("\",\"attachments\":[{\"namespacedType\":\"nearbybeacons/offer\",")
+                    .append("\"data\":\"")
+                    .append(Base64.encodeToString(
+                            offerContent("Section " + i, "Offer " + i), Base64.NO_WRAP))
+                    .append("\"}]}");
+        }
+        json.append("]}");
+        return json.toString().getBytes(UTF_8);
+    }
+
+    private static byte[] advertisement(byte[] serviceData) {
+        byte[] record = new byte[3 + 4 + 4 + serviceData.length];
+        int i = 0;
+        //Flags
+        record[i++] = 2;
+        record[i++] = 0x01;
+        record[i++] = 0x06;
+        //Complete list of 16-bit service UUIDs: 0xfeaa
+        record[i++] = 3;
+        record[i++] = 0x03;
+        record[i++] = (byte) 0xAA;
+        record[i++] = (byte) 0xFE;
+        //Service data for 0xfeaa
+        record[i++] = (byte) (3 + serviceData.length);
+        record[i++] = 0x16;
+        record[i++] = (byte) 0xAA;
+        record[i++] = (byte) 0xFE;
+        System.arraycopy(serviceData, 0, record, i, serviceData.length);
+        return record;
+    }
+
+    private static void writeLong(byte[] data, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            data[offset + i] = (byte) (value >>> (56 - i * 8));
+        }
+    }
+
+    private static void writeInt(byte[] data, int offset, long value) {
+        for (int i = 0; i < 4; i++) {
+            data[offset + i] = (byte) (value >>> (24 - i * 8));
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.example.android.nearbybeacons;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class SeenFilterTest {
+
+    private static final long PERIOD = 1000;
+
+    private final SeenFilter mFilter = new SeenFilter(1024, 3, PERIOD, 15);
+
+    @Test
+    public void rejectsInvalidConfigurations() {
+        int[][] invalid = {{1, 15}, {3, 3}, {3, 16}};
+        for (int[] config : invalid) {
+            try {
+                new SeenFilter(1024, config[0], PERIOD, config[1]);
+                fail(Arrays.toString(config));
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void reportsEachIdNewOnce() {
+        assertTrue(add(1));
+        assertFalse(add(1));
+        assertTrue(add(2));
+        assertTrue(mFilter.mightContain(ScanTraces.NAMESPACE_HIGH, ScanTraces.idLow(2)));
+        assertFalse(mFilter.mightContain(ScanTraces.NAMESPACE_HIGH, ScanTraces.idLow(3)));
+        assertEquals(2, mFilter.size());
+        assertEquals(2, mFilter.getUnreadCount());
+
+        mFilter.markAllRead();
+        assertEquals(0, mFilter.getUnreadCount());
+        assertTrue(add(3));
+        assertEquals(1, mFilter.getUnreadCount());
+
+        assertTrue(mFilter.remove(ScanTraces.NAMESPACE_HIGH, ScanTraces.idLow(3)));
+        assertFalse(mFilter.remove(ScanTraces.NAMESPACE_HIGH, ScanTraces.idLow(3)));
+        assertEquals(0, mFilter.getUnreadCount());
+        assertTrue(add(3));
+
+        mFilter.clear();
+        assertEquals(0, mFilter.size());
+        assertTrue(add(1));
+    }
+
+    @Test
+    public void forgetsIdsNotSeenForAllGenerations() {
+        mFilter.advance(0);
+        add(1);
+        add(2);
+        assertEquals(0, mFilter.advance(1999));
+        //Seen again, so it moves to the newest generation
+        assertFalse(add(2));
+        assertEquals(2, mFilter.getUnreadCount());
+
+        assertEquals(1, mFilter.advance(3000));
+        assertFalse(mFilter.mightContain(ScanTraces.NAMESPACE_HIGH, ScanTraces.idLow(1)));
+        assertTrue(mFilter.mightContain(ScanTraces.NAMESPACE_HIGH, ScanTraces.idLow(2)));
+        assertEquals(1, mFilter.getUnreadCount());
+        assertTrue(add(1));
+
+        //A long gap forgets everything
+        assertEquals(2, mFilter.advance(100000));
+        assertEquals(0, mFilter.size());
+        assertEquals(0, mFilter.advance(100999));
+    }
+
+    @Test
+    public void keepsItsMemoryFixed() {
+        //As configured in the services
+        SeenFilter filter = new SeenFilter(16384, 3, PERIOD, 15);
+        long memory = filter.getMemoryBytes();
+        assertTrue(memory + " bytes", memory <= 256 * 1024);
+        for (int i = 0; i < 1000000; i++) {
+            filter.add(ScanTraces.NAMESPACE_HIGH, ScanTraces.idLow(i));
+        }
+        assertEquals(memory, filter.getMemoryBytes());
+        assertTrue(filter.size() <= memory / 2);
+    }
+
+    /** Measured false positives match the estimate, and halve with each bit */
+    @Test
+    public void falsePositiveRateFollowsFingerprintBits() {
+        double[] measured = new double[16];
+        for (int bits : new int[]{8, 12}) {
+            SeenFilter filter = new SeenFilter(16384, 3, PERIOD, bits);
+            for (int i = 0; i < 12000; i++) {
+                filter.add(ScanTraces.NAMESPACE_HIGH, ScanTraces.idLow(i));
+            }
+            int positives = 0;
+            int queries = 1000000;
+            for (int i = 0; i < queries; i++) {
+                if (filter.mightContain(ScanTraces.NAMESPACE_HIGH + 1, ScanTraces.idLow(i))) {
+                    positives++;
+                }
+            }
+            measured[bits] = (double) positives / queries;
+            double expected = filter.getFalsePositiveRate();
+            assertTrue(bits + " bits: " + measured[bits] + " for " + expected,
+                    measured[bits] > expected / 2 && measured[bits] < expected * 1.5);
+        }
+        assertTrue(measured[12] * 8 < measured[8]);
+    }
+
+    /**
+     * A day in a stadium, against the exact registry: each period sees
+     * about ten thousand ids, half of them from the period before. The
+     * exact model forgets an id after the same number of generation
+     * changes as the filter; the filter may only take a new id for a
+     * seen one, rarely, and its unread count stays within a fraction of
+     * a percent.
+     */
+    @Test
+    public void agreesWithExactRegistry() {
+        SeenFilter filter = new SeenFilter(16384, 3, PERIOD, 15);
+        BeaconRegistry exact = new BeaconRegistry();
+        long[] seenGeneration = new long[16];
+        Random random = new Random(20);
+
+        long newIds = 0;
+        long falsePositives = 0;
+        int firstId = 0;
+        filter.advance(0);
+        for (long generation = 0; generation < 24; generation++) {
+            long start = generation * PERIOD;
+            filter.advance(start);
+            //Drop what the filter has aged out
+            for (int handle = 0; handle < exact.getHandleLimit(); handle++) {
+                if (exact.isLive(handle) && generation - seenGeneration[handle] >= 3) {
+                    exact.remove(handle);
+                }
+            }
+
+            for (int n = 0; n < 40000; n++) {
+                int id = firstId + random.nextInt(10000);
+                long idLow = ScanTraces.idLow(id);
+                int handle = exact.find(ScanTraces.NAMESPACE_HIGH, idLow);
+                boolean isNew = handle == BeaconRegistry.NOT_FOUND;
+                if (isNew) {
+                    handle = exact.add(ScanTraces.NAMESPACE_HIGH, idLow);
+                    if (handle >= seenGeneration.length) {
+                        seenGeneration = Arrays.copyOf(seenGeneration, handle * 2);
+                    }
+                    newIds++;
+                }
+                seenGeneration[handle] = generation;
+
+                boolean filterNew = filter.add(ScanTraces.NAMESPACE_HIGH, idLow);
+                assertTrue("Missed a seen id", isNew || !filterNew);
+                if (isNew && !filterNew) falsePositives++;
+            }
+            firstId += 5000;
+
+            int unread = exact.getUnreadCount();
+            assertTrue(filter.getUnreadCount() <= unread);
+            assertTrue(filter.getUnreadCount() + " of " + unread,
+                    unread - filter.getUnreadCount() <= unread / 200 + 1);
+            if (generation % 5 == 4) {
+                exact.markAllRead();
+                filter.markAllRead();
+            }
+        }
+
+        assertTrue(newIds > 100000);
+        assertTrue(falsePositives + " in " + newIds, falsePositives < newIds / 1000);
+        assertTrue(filter.toString(), filter.toString().contains(" 0 dropped"));
+    }
+
+    @Test
+    public void addsWithoutAllocating() {
+        assumeTrue(Allocations.isSupported());
+        final SeenFilter filter = new SeenFilter(16384, 3, PERIOD, 15);
+        final int[] next = new int[1];
+        long allocated = Allocations.measure(new Runnable() {
+            @Override
+            public void run() {
+                filter.add(ScanTraces.NAMESPACE_HIGH, ScanTraces.idLow(next[0]++ & 0x1FFF));
+            }
+        }, 1000000);
+        assertTrue("Allocated " + allocated + " bytes", allocated < 100000);
+    }
+
+    private boolean add(int instance) {
+        return mFilter.add(ScanTraces.NAMESPACE_HIGH, ScanTraces.idLow(instance));
+    }
+}
@@ -0,0 +1,245 @@
+package com.example.android.nearbybeacons;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class SightingJournalTest {
+
+    private static final int HEADER_SIZE = SightingJournal.RECORD_SIZE;
+
+    /* Records replayed, each as "timestamp/instance/rssi/txPower" */
+    private static class Records implements SightingJournal.Visitor {
+        final List<String> list = new ArrayList<>();
+
+        @Override
+        public void onSighting(long timestamp, long idHigh, long idLow, int rssi, int txPower) {
+            assertEquals(ScanTraces.NAMESPACE_HIGH, idHigh);
+            list.add(timestamp + "/" + ScanTraces.instanceOf(idLow) + "/" + rssi + "/" + txPower);
+        }
+    }
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void replaysInAppendOrder() throws IOException {
+        SightingJournal journal = open(16);
+        append(journal, 1000, 3, -70);
+        append(journal, 1001, 1, -128);
+        append(journal, 1002, 3, 0);
+        assertEquals(Arrays.asList("1000/3/-70/-20", "1001/1/-128/-20", "1002/3/0/-20"),
+                replay(journal));
+        journal.close();
+    }
+
+    @Test
+    public void commitsInGroups() throws IOException {
+        SightingJournal journal = open(16);
+        journal.commit();
+        for (int i = 0; i < 5; i++) {
+            append(journal, i, i, -60);
+        }
+        assertEquals(5, journal.getUncommittedCount());
+        journal.commit();
+        assertEquals(0, journal.getUncommittedCount());
+        journal.commit();
+        assertEquals("SightingJournal[5 appended, 1 commits, 1 segments, 0 recovered, "
+                + "0 truncated]", journal.toString());
+        journal.close();
+    }
+
+    @Test
+    public void rollsOverFullSegments() throws IOException {
+        SightingJournal journal = open(4);
+        for (int i = 0; i < 10; i++) {
+            append(journal, i, i, -60);
+        }
+        assertEquals(2, journal.getSealedSegmentCount());
+        assertEquals(10, replay(journal).size());
+        //Sealing a segment commits it
+        assertEquals(2, journal.getUncommittedCount());
+        journal.close();
+        assertEquals(3, segments().length);
+    }
+
+    @Test
+    public void reopensWhereItLeftOff() throws IOException {
+        SightingJournal journal = open(4);
+        for (int i = 0; i < 6; i++) {
+            append(journal, i, i, -60);
+        }
+        List<String> before = replay(journal);
+        journal.close();
+
+        journal = open(4);
+        assertEquals(before, replay(journal));
+        assertEquals(1, journal.getSealedSegmentCount());
+        append(journal, 6, 6, -60);
+        assertEquals(7, replay(journal).size());
+        assertTrue(journal.toString().contains("2 recovered, 0 truncated"));
+        journal.close();
+    }
+
+    @Test
+    public void startsANewSegmentWhenTheLastIsFull() throws IOException {
+        SightingJournal journal = open(4);
+        for (int i = 0; i < 4; i++) {
+            append(journal, i, i, -60);
+        }
+        journal.close();
+
+        journal = open(4);
+        assertEquals(1, journal.getSealedSegmentCount());
+        assertEquals(4, replay(journal).size());
+        journal.close();
+    }
+
+    /** A crash mid-write: the torn record and anything after it are dropped */
+    @Test
+    public void recoversTheTail() throws IOException {
+        SightingJournal crashed = open(16);
+        for (int i = 0; i < 5; i++) {
+            append(crashed, 100 + i, i, -60);
+        }
+        crashed.commit();
+        //Never closed, as when the process dies
+
+        File segment = segments()[0];
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.seek(HEADER_SIZE + 2 * SightingJournal.RECORD_SIZE + 5);
+            file.write(0x55);
+        } finally {
+            file.close();
+        }
+
+        SightingJournal journal = open(16);
+        assertEquals(Arrays.asList("100/0/-60/-20", "101/1/-60/-20"), replay(journal));
+        assertTrue(journal.toString().contains("2 recovered, 3 truncated"));
+
+        //New records take the place of the dropped ones, and stay after reopening
+        append(journal, 200, 9, -50);
+        journal.close();
+        journal = open(16);
+        assertEquals(Arrays.asList("100/0/-60/-20", "101/1/-60/-20", "200/9/-50/-20"),
+                replay(journal));
+        journal.close();
+    }
+
+    @Test
+    public void compactsToTheLatestSightingPerBeacon() throws IOException {
+        SightingJournal journal = open(8);
+        for (int i = 0; i < 40; i++) {
+            append(journal, i, i % 5, -40 - i);
+        }
+        assertEquals(4, journal.getSealedSegmentCount());
+
+        journal.compact();
+        assertEquals(1, journal.getSealedSegmentCount());
+        //In order of first appearance, then the active segment untouched
+        List<String> expected = new ArrayList<>(Arrays.asList(
+                "30/0/-70/-20", "31/1/-71/-20", "27/2/-67/-20", "28/3/-68/-20", "29/4/-69/-20"));
+        for (int i = 32; i < 40; i++) {
+            expected.add(i + "/" + i % 5 + "/" + (-40 - i) + "/-20");
+        }
+        List<String> compacted = replay(journal);
+        assertEquals(expected, compacted);
+        journal.close();
+        assertEquals(2, segments().length);
+
+        journal = open(8);
+        assertEquals(compacted, replay(journal));
+        journal.close();
+    }
+
+    @Test
+    public void compactionKeepsTheLatestByTimestamp() throws IOException {
+        SightingJournal journal = open(2);
+        append(journal, 50, 1, -50);
+        append(journal, 10, 1, -10);
+        append(journal, 60, 2, -60);
+        journal.compact();
+        assertEquals(Arrays.asList("50/1/-50/-20", "60/2/-60/-20"), replay(journal));
+        journal.close();
+    }
+
+    @Test
+    public void removesInterruptedCompactions() throws IOException {
+        open(4).close();
+        File temp = new File(mFolder.getRoot(), "journal-0000000000000001.tmp");
+        assertTrue(temp.createNewFile());
+        open(4).close();
+        assertFalse(temp.exists());
+    }
+
+    @Test
+    public void rejectsCorruptSegments() throws IOException {
+        open(4).close();
+        RandomAccessFile file = new RandomAccessFile(segments()[0], "rw");
+        try {
+            file.writeInt(0);
+        } finally {
+            file.close();
+        }
+        try {
+            open(4);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void appendsWithoutAllocating() throws IOException {
+        assumeTrue(Allocations.isSupported());
+        final SightingJournal journal = open(200000);
+        final long[] next = new long[1];
+        long allocated = Allocations.measure(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    append(journal, next[0]++, 1, -60);
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        }, 150000);
+        assertTrue("Allocated " + allocated + " bytes", allocated < 100000);
+        journal.close();
+    }
+
+    private SightingJournal open(int segmentRecords) throws IOException {
+        return new SightingJournal(mFolder.getRoot(), segmentRecords);
+    }
+
+    private static void append(SightingJournal journal, long timestamp, int instance, int rssi)
+            throws IOException {
+        journal.append(timestamp, ScanTraces.NAMESPACE_HIGH, ScanTraces.idLow(instance), rssi,
+                ScanTraces.TX_POWER);
+    }
+
+    private static List<String> replay(SightingJournal journal) throws IOException {
+        Records records = new Records();
+        journal.replay(records);
+        return records.list;
+    }
+
+    private File[] segments() {
+        File[] files = mFolder.getRoot().listFiles();
+        Arrays.sort(files);
+        return files;
+    }
+}
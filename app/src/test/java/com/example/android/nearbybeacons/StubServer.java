@@ -0,0 +1,297 @@
+package com.example.android.nearbybeacons;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Local HTTP/1.1 server standing in for the beacon REST API. Request
+ * bodies are decoded and handed to a {@link Responder}; responses are
+ * gzipped when the client accepts it. Failures and latency can be
+ * injected, paths can be redirected, and connections are kept alive and
+ * counted so tests can tell whether the client reused them.
+ *
+ * Written on plain sockets, as local tests compile against android.jar,
+ * which has no HTTP server.
+ */
+final class StubServer {
+
+    /** Produces the response body for a decoded request body */
+    interface Responder {
+        byte[] respond(byte[] body) throws IOException;
+    }
+
+    private final ServerSocket mServerSocket;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final Responder mResponder;
+    private final ConcurrentLinkedQueue<int[]> mFailures = new ConcurrentLinkedQueue<>();
+    private final Map<String, String> mRedirects = new ConcurrentHashMap<>();
+    private final Set<Socket> mSockets = Collections.synchronizedSet(new HashSet<Socket>());
+    private final AtomicInteger mConnectionCount = new AtomicInteger();
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mGzipRequestCount = new AtomicInteger();
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private final AtomicInteger mMaxInFlight = new AtomicInteger();
+    private volatile long mLatencyMillis;
+
+    StubServer(Responder responder) throws IOException {
+        mResponder = responder;
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+    }
+
+    URL url(String path) throws IOException {
+        return new URL("http", "127.0.0.1", mServerSocket.getLocalPort(), path);
+    }
+
+    /** Delay every response by this long */
+    void setLatency(long millis) {
+        mLatencyMillis = millis;
+    }
+
+    /** Answer the next request with this status, and a Retry-After if not negative */
+    void failNext(int status, int retryAfterSeconds) {
+        mFailures.add(new int[]{status, retryAfterSeconds});
+    }
+
+    /** Answer requests for this path with a 301 to the location */
+    void redirect(String path, String location) {
+        mRedirects.put(path, location);
+    }
+
+    int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    int getGzipRequestCount() {
+        return mGzipRequestCount.get();
+    }
+
+    int getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    int getMaxInFlight() {
+        return mMaxInFlight.get();
+    }
+
+    void stop() {
+        closeQuietly(mServerSocket);
+        synchronized (mSockets) {
+            for (Socket socket : mSockets) {
+                closeQuietly(socket);
+            }
+        }
+        mExecutor.shutdownNow();
+    }
+
+    private void accept() {
+        while (!mServerSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            mConnectionCount.incrementAndGet();
+            mSockets.add(socket);
+            try {
+                socket.setTcpNoDelay(true);
+            } catch (IOException ignored) {
+            }
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        InputStream in = new BufferedInputStream(socket.getInputStream());
+                        OutputStream out = socket.getOutputStream();
+                        //Keep serving the connection until the client closes it
+                        while (serve(in, out)) {
+                            out.flush();
+                        }
+                    } catch (IOException ignored) {
+                    } finally {
+                        mSockets.remove(socket);
+                        closeQuietly(socket);
+                    }
+                }
+            });
+        }
+    }
+
+    /* Read one request and write its response; false at the end of the connection */
+    private boolean serve(InputStream in, OutputStream out) throws IOException {
+        String requestLine = readLine(in);
+        if (requestLine == null) return false;
+        String[] request = requestLine.split(" ");
+        boolean head = "HEAD".equals(request[0]);
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                    line.substring(colon + 1).trim());
+        }
+
+        mRequestCount.incrementAndGet();
+        int inFlight = mInFlight.incrementAndGet();
+        try {
+            while (true) {
+                int max = mMaxInFlight.get();
+                if (inFlight <= max || mMaxInFlight.compareAndSet(max, inFlight)) break;
+            }
+
+            byte[] body = "chunked".equalsIgnoreCase(headers.get("transfer-encoding"))
+                    ? readChunked(in) : readFully(in, headers.get("content-length"));
+            if ("gzip".equalsIgnoreCase(headers.get("content-encoding"))) {
+                mGzipRequestCount.incrementAndGet();
+                body = readAll(new GZIPInputStream(new ByteArrayInputStream(body)));
+            }
+
+            long latency = mLatencyMillis;
+            if (latency > 0) {
+                try {
+                    Thread.sleep(latency);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+
+            int[] failure = mFailures.poll();
+            if (failure != null) {
+                String retryAfter = failure[1] >= 0 ? "Retry-After: " + failure[1] + "\r\n" : "";
+                writeResponse(out, failure[0], retryAfter,
+                        "{\"error\":\"injected\"}".getBytes("UTF-8"), head);
+                return true;
+            }
+
+            String location = mRedirects.get(request[1]);
+            if (location != null) {
+                writeResponse(out, 301, "Location: " + location + "\r\n", new byte[0], head);
+                return true;
+            }
+
+            byte[] response = mResponder.respond(body);
+            String accept = headers.get("accept-encoding");
+            if (accept != null && accept.contains("gzip")) {
+                ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+                GZIPOutputStream gzip = new GZIPOutputStream(gzipped);
+                gzip.write(response);
+                gzip.close();
+                writeResponse(out, 200, "Content-Encoding: gzip\r\n", gzipped.toByteArray(),
+                        head);
+            } else {
+                writeResponse(out, 200, "", response, head);
+            }
+            return true;
+        } finally {
+            mInFlight.decrementAndGet();
+        }
+    }
+
+    /* The body is left out for a HEAD request, but still counted in Content-Length */
+    private static void writeResponse(OutputStream out, int status, String headers,
+                                      byte[] body, boolean headOnly) throws IOException {
+        String head = "HTTP/1.1 " + status + (status == 200 ? " OK" : " Injected") + "\r\n"
+                + headers
+                + "Content-Type: application/json\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Connection: keep-alive\r\n\r\n";
+        //One write, so the body is not held back waiting for an ack
+        ByteArrayOutputStream response = new ByteArrayOutputStream(head.length() + body.length);
+        response.write(head.getBytes("US-ASCII"));
+        if (!headOnly) response.write(body);
+        response.writeTo(out);
+    }
+
+    /* A CRLF terminated line without its terminator, or null at the end of the stream */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) {
+                if (line.length() == 0) return null;
+                throw new EOFException("Unterminated line");
+            }
+            if (c != '\r') line.append((char) c);
+        }
+        return line.toString();
+    }
+
+    private static byte[] readChunked(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        while (true) {
+            String size = readLine(in);
+            if (size == null) throw new EOFException("Missing chunk");
+            int semicolon = size.indexOf(';');
+            int length = Integer.parseInt(
+                    (semicolon >= 0 ? size.substring(0, semicolon) : size).trim(), 16);
+            if (length == 0) {
+                //Trailers, then the blank line that ends the body
+                String trailer;
+                while ((trailer = readLine(in)) != null && !trailer.isEmpty()) {
+                    //Ignore
+                }
+                return body.toByteArray();
+            }
+            body.write(readFully(in, Integer.toString(length)));
+            readLine(in);
+        }
+    }
+
+    private static byte[] readFully(InputStream in, String contentLength) throws IOException {
+        int length = contentLength != null ? Integer.parseInt(contentLength) : 0;
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int read = in.read(bytes, offset, length - offset);
+            if (read == -1) throw new EOFException("Body cut short");
+            offset += read;
+        }
+        return bytes;
+    }
+
+    static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
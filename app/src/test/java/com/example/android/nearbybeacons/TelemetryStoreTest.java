@@ -0,0 +1,176 @@
+package com.example.android.nearbybeacons;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TelemetryStoreTest {
+
+    private static final long ADDRESS = 0x112233445566L;
+
+    /* Samples as "address/timestamp/battery/temperature/count/uptime" */
+    private static class Samples implements TelemetryStore.Visitor {
+        final List<String> list = new ArrayList<>();
+
+        @Override
+        public void onSample(long address, long timestamp, int batteryMillivolts,
+                             int temperature, long advertisingCount, long uptimeTenths) {
+            list.add(sample(address, timestamp, batteryMillivolts, temperature,
+                    advertisingCount, uptimeTenths));
+        }
+    }
+
+    private final TelemetryStore mStore = new TelemetryStore();
+
+    @Test
+    public void appendsFromFrames() {
+        EddystoneFrame frame = new EddystoneFrame();
+        assertTrue(EddystoneFrameDecoder.decodeScanRecord(
+                ScanTraces.tlmRecord(2950, 0xFE80, 0xFFFFFFF0L, 123456), frame));
+        mStore.append(ADDRESS, 1000, frame);
+        assertEquals(1, mStore.getDeviceCount());
+        //Temperatures come back signed: -1.5 degrees
+        assertEquals(Collections.singletonList(
+                sample(ADDRESS, 1000, 2950, (short) 0xFE80, 0xFFFFFFF0L, 123456)),
+                scan(0, Long.MAX_VALUE));
+    }
+
+    /** Random but plausible readings, plus resets and jumps, come back exactly */
+    @Test
+    public void roundTripsEverySample() {
+        Random random = new Random(21);
+        List<String> expected = new ArrayList<>();
+        for (int device = 0; device < 20; device++) {
+            long address = ADDRESS + device;
+            long timestamp = random.nextInt(100000);
+            int battery = 3000 - random.nextInt(500);
+            int temperature = device == 0 ? EddystoneFrame.TEMPERATURE_UNSUPPORTED : 0x1780;
+            long count = random.nextInt(1000);
+            long uptime = random.nextInt(1000);
+            for (int i = 0; i < 1000; i++) {
+                int event = random.nextInt(100);
+                if (event == 0) {
+                    //Rebooted: counters start over
+                    count = 0;
+                    uptime = 0;
+                } else if (event == 1) {
+                    timestamp += random.nextInt(Integer.MAX_VALUE);
+                }
+                timestamp += 10000 + random.nextInt(200) - 100;
+                if (random.nextInt(10) == 0) battery -= random.nextInt(3);
+                if (device > 0 && random.nextInt(4) == 0) {
+                    temperature = (short) (temperature + random.nextInt(64) - 32) & 0xFFFF;
+                }
+                count = (count + 100 + random.nextInt(5)) & 0xFFFFFFFFL;
+                uptime += 100;
+
+                mStore.append(address, timestamp, battery, temperature, count, uptime);
+                int signed = temperature == EddystoneFrame.TEMPERATURE_UNSUPPORTED
+                        ? temperature : (short) temperature;
+                expected.add(sample(address, timestamp, battery, signed, count, uptime));
+            }
+        }
+        assertEquals(20000, mStore.getSampleCount());
+        assertEquals(expected, scan(Long.MIN_VALUE, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void scansTimeRangesInclusively() {
+        for (int i = 0; i < 1000; i++) {
+            mStore.append(ADDRESS, i * 10, 3000, 0, i, i);
+        }
+        List<String> samples = scan(2550, 2570);
+        assertEquals(3, samples.size());
+        assertEquals(sample(ADDRESS, 2550, 3000, 0, 255, 255), samples.get(0));
+        assertEquals(sample(ADDRESS, 2570, 3000, 0, 257, 257), samples.get(2));
+        assertEquals(0, scan(10000, 20000).size());
+        assertEquals(1000, scan(0, 9990).size());
+    }
+
+    @Test
+    public void findsLowBatteries() {
+        Random random = new Random(24);
+        int[] expected = new int[2];
+        for (int i = 0; i < 5000; i++) {
+            long timestamp = i * 1000L;
+            for (int device = 0; device < 4; device++) {
+                //Device 3 does not report its battery
+                int battery = device == 3 ? 0 : 2300 + device * 100 + random.nextInt(200);
+                mStore.append(ADDRESS + device, timestamp, battery, 0, i, i);
+                if (battery > 0 && battery < 2400 && timestamp >= 2000000) {
+                    expected[timestamp <= 3000000 ? 0 : 1]++;
+                }
+            }
+        }
+
+        Samples low = new Samples();
+        mStore.scanBatteryBelow(2400, 2000000, 3000000, low);
+        assertEquals(expected[0], low.list.size());
+        for (String sample : low.list) {
+            int battery = Integer.parseInt(sample.split("/")[2]);
+            assertTrue(sample, battery > 0 && battery < 2400);
+        }
+        low = new Samples();
+        mStore.scanBatteryBelow(2400, 2000000, Long.MAX_VALUE, low);
+        assertEquals(expected[0] + expected[1], low.list.size());
+    }
+
+    /** A beacon reporting on schedule costs a few bits per sample */
+    @Test
+    public void compressesRegularSamples() {
+        long count = 0;
+        for (int i = 0; i < 10000; i++) {
+            count += 100;
+            mStore.append(ADDRESS, i * 10000L, 2950, 0x1780, count, i * 100);
+        }
+        double perSample = (double) mStore.getByteCount() / mStore.getSampleCount();
+        assertTrue(mStore.toString(), perSample < 1.5);
+
+        //Jittered intervals and a noisy battery still stay far below the raw 28 bytes
+        TelemetryStore noisy = new TelemetryStore();
+        Random random = new Random(2);
+        long timestamp = 0;
+        for (int i = 0; i < 10000; i++) {
+            timestamp += 10000 + random.nextInt(100);
+            noisy.append(ADDRESS, timestamp, 2950 + random.nextInt(8),
+                    0x1780 + random.nextInt(16), i * 100 + random.nextInt(3), i * 100);
+        }
+        perSample = (double) noisy.getByteCount() / noisy.getSampleCount();
+        assertTrue(noisy.toString(), perSample < 6);
+    }
+
+    @Test
+    public void prunesWholeChunks() {
+        int samples = TelemetryStore.CHUNK_SAMPLES * 3;
+        for (int i = 0; i < samples; i++) {
+            mStore.append(ADDRESS, i, 3000, 0, i, i);
+        }
+        //The first chunk ends before the cutoff, the second straddles it
+        mStore.prune(TelemetryStore.CHUNK_SAMPLES + 10);
+        assertEquals(samples - TelemetryStore.CHUNK_SAMPLES, mStore.getSampleCount());
+        List<String> left = scan(0, TelemetryStore.CHUNK_SAMPLES * 2 - 1);
+        assertEquals(TelemetryStore.CHUNK_SAMPLES, left.size());
+        mStore.prune(samples);
+        assertEquals(0, mStore.getSampleCount());
+        assertEquals("TelemetryStore[1 devices, 0 samples, 0 chunks, 0 bytes]",
+                mStore.toString());
+    }
+
+    private List<String> scan(long from, long to) {
+        Samples samples = new Samples();
+        mStore.scan(from, to, samples);
+        return samples.list;
+    }
+
+    private static String sample(long address, long timestamp, int battery, int temperature,
+                                 long count, long uptime) {
+        return address + "/" + timestamp + "/" + battery + "/" + temperature + "/" + count
+                + "/" + uptime;
+    }
+}
@@ -0,0 +1,315 @@
+package com.example.android.nearbybeacons;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class UrlFrameEngineTest {
+
+    private static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+    private static final long TTL = 60000;
+    private static final long FAILURE_TTL = 5000;
+
+    /* Runs each resolution on the calling thread */
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            task.run();
+        }
+    };
+
+    /* Resolves every URL to a fixed form, or fails while told to */
+    private static class Resolver implements UrlResolver {
+        final AtomicInteger calls = new AtomicInteger();
+        volatile boolean failing;
+        volatile CountDownLatch gate;
+
+        @Override
+        public String resolve(String url) throws IOException {
+            calls.incrementAndGet();
+            if (gate != null) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            if (failing) throw new IOException("Unreachable");
+            return url + "#resolved";
+        }
+    }
+
+    /* Listener recording outcomes in order */
+    private static class Outcomes implements UrlFrameEngine.Listener {
+        final List<String> list = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void onResolved(String url, String resolved) {
+            list.add(resolved);
+        }
+
+        @Override
+        public void onResolveFailed(String url, IOException error) {
+            list.add(url + " failed");
+        }
+    }
+
+    private final Resolver mResolver = new Resolver();
+    private final Outcomes mOutcomes = new Outcomes();
+
+    @Test
+    public void expandsSchemesAndCodes() {
+        assertEquals("http://www.example.com/", UrlFrameEngine.expand(0, bytes("example\0"), 8));
+        assertEquals("https://www.example.org/x", UrlFrameEngine.expand(1, bytes("example\1x"), 9));
+        assertEquals("http://goo.gl/abc", UrlFrameEngine.expand(2, bytes("goo.gl/abc"), 10));
+        assertEquals("https://a.gov", UrlFrameEngine.expand(3, bytes("a\15"), 2));
+        //Only the given length counts
+        assertEquals("http://ab", UrlFrameEngine.expand(2, bytes("abc"), 2));
+
+        assertNull(UrlFrameEngine.expand(4, bytes("a"), 1));
+        assertNull(UrlFrameEngine.expand(-1, bytes("a"), 1));
+        assertNull(UrlFrameEngine.expand(2, bytes("a\16"), 2));
+        assertNull(UrlFrameEngine.expand(2, bytes("a b"), 3));
+        assertNull(UrlFrameEngine.expand(2, bytes("a\177"), 2));
+    }
+
+    @Test
+    public void ignoresFramesWithoutAValidUrl() {
+        UrlFrameEngine engine = engine(16, DIRECT, 0);
+        EddystoneFrame uid = new EddystoneFrame();
+        uid.type = EddystoneFrame.TYPE_UID;
+        assertNull(engine.onFrame(uid, 0, true));
+
+        EddystoneFrame invalid = frame(2, "a b");
+        assertNull(engine.onFrame(invalid, 0, true));
+        assertNull(engine.onFrame(invalid, 0, true));
+        //Not cached, so each sighting is expanded again
+        assertEquals(2, engine.getMissCount());
+        assertEquals(0, mResolver.calls.get());
+    }
+
+    @Test
+    public void repeatsReturnTheSameString() {
+        UrlFrameEngine engine = engine(16, DIRECT, 0);
+        String url = engine.onFrame(frame(0, "example\0"), 0, false);
+        assertEquals("http://www.example.com/", url);
+        //A fresh frame with the same content, as each scan delivers
+        assertSame(url, engine.onFrame(frame(0, "example\0"), 1, false));
+        assertEquals(1, engine.getHitCount());
+        assertEquals(1, engine.getMissCount());
+    }
+
+    @Test
+    public void resolvesOnceUntilTheTtlPasses() {
+        UrlFrameEngine engine = engine(16, DIRECT, 0);
+        EddystoneFrame frame = frame(2, "goo.gl/abc");
+        assertNull(engine.getResolved(frame));
+        engine.onFrame(frame, 1000, true);
+        assertEquals("http://goo.gl/abc#resolved", engine.getResolved(frame));
+        engine.onFrame(frame, 1000 + TTL - 1, true);
+        assertEquals(1, mResolver.calls.get());
+
+        engine.onFrame(frame, 1000 + TTL, true);
+        assertEquals(2, mResolver.calls.get());
+        assertEquals(Arrays.asList("http://goo.gl/abc#resolved", "http://goo.gl/abc#resolved"),
+                mOutcomes.list);
+        assertTrue(engine.toString(), engine.toString().contains("2 resolved, 0 failed"));
+    }
+
+    @Test
+    public void retriesFailuresAfterTheirTtl() {
+        UrlFrameEngine engine = engine(16, DIRECT, 0);
+        EddystoneFrame frame = frame(2, "goo.gl/abc");
+        mResolver.failing = true;
+        engine.onFrame(frame, 0, true);
+        assertNull(engine.getResolved(frame));
+        assertEquals(Collections.singletonList("http://goo.gl/abc failed"), mOutcomes.list);
+
+        engine.onFrame(frame, FAILURE_TTL - 1, true);
+        assertEquals(1, mResolver.calls.get());
+        mResolver.failing = false;
+        engine.onFrame(frame, FAILURE_TTL, true);
+        assertEquals("http://goo.gl/abc#resolved", engine.getResolved(frame));
+    }
+
+    /**
+     * Many sightings at once, some encoding the URL with the ".com/" code
+     * and some spelling it out, make a single request and all see it.
+     */
+    @Test
+    public void collapsesConcurrentLookups() throws Exception {
+        ExecutorService resolvers = Executors.newFixedThreadPool(4);
+        final UrlFrameEngine engine = engine(16, resolvers, 0);
+        mResolver.gate = new CountDownLatch(1);
+        final String[] encodings = {"example\7/", "example.com/"};
+
+        final CountDownLatch done = new CountDownLatch(8);
+        for (int t = 0; t < 8; t++) {
+            final String encoded = encodings[t % 2];
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        engine.onFrame(frame(2, encoded), i, true);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        mResolver.gate.countDown();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((engine.getResolved(frame(2, encodings[0])) == null
+                || engine.getResolved(frame(2, encodings[1])) == null)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        resolvers.shutdown();
+        assertEquals("http://example.com/#resolved", engine.getResolved(frame(2, encodings[0])));
+        assertEquals("http://example.com/#resolved", engine.getResolved(frame(2, encodings[1])));
+        assertEquals(1, mResolver.calls.get());
+    }
+
+    @Test
+    public void onlyResolvesTrustedBeaconsOrAllowedHosts() {
+        UrlFrameEngine engine = new UrlFrameEngine(16, TTL, FAILURE_TTL, mResolver, DIRECT, 2,
+                Collections.singletonList("Goo.GL"), 0, null);
+        EddystoneFrame other = frame(2, "example\7/x");
+        engine.onFrame(other, 0, false);
+        assertNull(engine.getResolved(other));
+        assertEquals(1, engine.getUntrustedCount());
+
+        //From our own beacons, any host
+        engine.onFrame(other, 1, true);
+        assertNotNull(engine.getResolved(other));
+
+        //From anyone, on an allowed host, whatever its case
+        EddystoneFrame allowed = frame(3, "GOO.gl/abc");
+        engine.onFrame(allowed, 0, false);
+        assertNotNull(engine.getResolved(allowed));
+        assertEquals(2, mResolver.calls.get());
+    }
+
+    @Test
+    public void spacesResolutionsAgainstOneHost() {
+        UrlFrameEngine engine = engine(16, DIRECT, 1000);
+        EddystoneFrame first = frame(2, "goo.gl/a");
+        EddystoneFrame second = frame(2, "goo.gl/b");
+        engine.onFrame(first, 0, true);
+        engine.onFrame(second, 0, true);
+        engine.onFrame(second, 999, true);
+        assertNull(engine.getResolved(second));
+        assertEquals(2, engine.getThrottledCount());
+        //Other hosts are not held up
+        engine.onFrame(frame(2, "bit.ly/a"), 999, true);
+
+        engine.onFrame(second, 1000, true);
+        assertNotNull(engine.getResolved(second));
+        assertEquals(3, mResolver.calls.get());
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsed() {
+        //One set of four entries
+        UrlFrameEngine engine = engine(4, DIRECT, 0);
+        String[] urls = {"a.b", "c.d", "e.f", "g.h", "i.j"};
+        String first = engine.onFrame(frame(2, urls[0]), 0, false);
+        String second = engine.onFrame(frame(2, urls[1]), 0, false);
+        engine.onFrame(frame(2, urls[2]), 0, false);
+        engine.onFrame(frame(2, urls[3]), 0, false);
+        engine.onFrame(frame(2, urls[0]), 0, false);
+        engine.onFrame(frame(2, urls[4]), 0, false);
+
+        assertSame(first, engine.onFrame(frame(2, urls[0]), 0, false));
+        String again = engine.onFrame(frame(2, urls[1]), 0, false);
+        assertEquals(second, again);
+        assertTrue(second != again);
+        assertEquals(2, engine.getHitCount());
+        assertEquals(6, engine.getMissCount());
+    }
+
+    @Test
+    public void repeatsWithoutAllocating() {
+        assumeTrue(Allocations.isSupported());
+        final UrlFrameEngine engine = engine(16, DIRECT, 0);
+        final EddystoneFrame frame = frame(2, "goo.gl/abc");
+        engine.onFrame(frame, 0, true);
+        long allocated = Allocations.measure(new Runnable() {
+            @Override
+            public void run() {
+                engine.onFrame(frame, 1, true);
+            }
+        }, 1000000);
+        assertTrue("Allocated " + allocated + " bytes", allocated < 100000);
+    }
+
+    /** A short link on a local server, followed through its redirects */
+    @Test
+    public void resolvesShortLinksOverHttp() throws Exception {
+        StubServer server = new StubServer(new StubServer.Responder() {
+            @Override
+            public byte[] respond(byte[] body) {
+                return new byte[0];
+            }
+        });
+        try {
+            server.redirect("/a", "/b");
+            server.redirect("/b", server.url("/landing").toString());
+            String encoded = "127.0.0.1:" + server.url("/").getPort() + "/a";
+            assumeTrue(encoded.length() <= 17);
+
+            UrlFrameEngine engine = new UrlFrameEngine(16, TTL, FAILURE_TTL,
+                    new HttpUrlResolver(3), DIRECT, 2, Collections.<String>emptyList(), 0,
+                    mOutcomes);
+            EddystoneFrame frame = frame(2, encoded);
+            assertEquals("http://" + encoded, engine.onFrame(frame, 0, true));
+            assertEquals(server.url("/landing").toString(), engine.getResolved(frame));
+            assertEquals(3, server.getRequestCount());
+        } finally {
+            server.stop();
+        }
+    }
+
+    private UrlFrameEngine engine(int capacity, Executor executor, long hostIntervalMillis) {
+        return new UrlFrameEngine(capacity, TTL, FAILURE_TTL, mResolver, executor, 2,
+                Collections.<String>emptyList(), hostIntervalMillis, mOutcomes);
+    }
+
+    /* A URL frame as decoded from a scan record */
+    private static EddystoneFrame frame(int scheme, String encoded) {
+        EddystoneFrame frame = new EddystoneFrame();
+        byte[] url = bytes(encoded);
+        if (!EddystoneFrameDecoder.decodeScanRecord(
+                ScanTraces.urlRecord(scheme, url, ScanTraces.TX_POWER), frame)) {
+            //The decoder may refuse bad bytes itself; hand them over as they are
+            frame.type = EddystoneFrame.TYPE_URL;
+            frame.urlScheme = scheme;
+            System.arraycopy(url, 0, frame.url, 0, url.length);
+            frame.urlLength = url.length;
+        }
+        return frame;
+    }
+
+    private static byte[] bytes(String encoded) {
+        return encoded.getBytes(LATIN_1);
+    }
+}